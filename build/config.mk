@@ -33,6 +33,9 @@ CTS_EXPECTATIONS := cts/tests/expectations/knownfailures.txt
 # File indicating which tests should be blacklisted due to unsupported abi.
 CTS_UNSUPPORTED_ABIS := cts/tests/expectations/unsupportedabis.txt
 
+# Directory where the XML generator caches the parsed expectation files.
+CTS_EXPECTATIONS_CACHE := $(HOST_OUT_INTERMEDIATES)/cts-expectations-cache
+
 # Holds the target architecture to build for.
 CTS_TARGET_ARCH := $(TARGET_ARCH)
 
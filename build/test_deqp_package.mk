@@ -33,6 +33,7 @@ $(cts_library_xml): external/deqp/android/cts/master/com.drawelements.deqp.$(DEQ
 									-p invalid.dummy \
 									-e $(CTS_EXPECTATIONS) \
 									-b $(CTS_UNSUPPORTED_ABIS) \
+									-c $(CTS_EXPECTATIONS_CACHE) \
 									-a $(CTS_TARGET_ARCH) \
 									< $(PRIVATE_DUMMY_CASELIST) \
 									| grep --only-matching -e " abis=\"[^\"]*\""` && \
@@ -43,6 +43,7 @@ $(cts_library_xml): $(CTS_EXPECTATIONS) $(CTS_UNSUPPORTED_ABIS) $(CTS_XML_GENERA
 									-p invalid.dummy \
 									-e $(CTS_EXPECTATIONS) \
 									-b $(CTS_UNSUPPORTED_ABIS) \
+									-c $(CTS_EXPECTATIONS_CACHE) \
 									-a $(CTS_TARGET_ARCH) \
 									< $(PRIVATE_DUMMY_CASELIST) \
 									| grep --only-matching -e " abis=\"[^\"]*\""` && \
@@ -17,6 +17,7 @@ package com.android.compatibility.common.util;
 
 import android.util.JsonWriter;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -44,7 +45,8 @@ public class DeviceInfoStore extends InfoStore {
     @Override
     public void open() throws IOException {
         FileOutputStream out = new FileOutputStream(mJsonFile);
-        mJsonWriter = new JsonWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        mJsonWriter = new JsonWriter(wrapWriter(
+                new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))));
         // TODO(agathaman): remove to make json output less pretty
         mJsonWriter.setIndent("  ");
         mJsonWriter.beginObject();
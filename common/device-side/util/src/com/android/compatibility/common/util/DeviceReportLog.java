@@ -56,6 +56,8 @@ public class DeviceReportLog extends ReportLog {
             } else {
                 File jsonFile = new File(dir, mReportLogName + ".reportlog.json");
                 store = new ReportLogDeviceInfoStore(jsonFile, mStreamName);
+                // Metrics are often added while measuring, keep the file system out of the way
+                store.setAsyncFlush(true);
                 store.open();
             }
         } catch (Exception e) {
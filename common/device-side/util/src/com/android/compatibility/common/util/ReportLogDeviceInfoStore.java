@@ -65,7 +65,8 @@ public class ReportLogDeviceInfoStore extends DeviceInfoStore {
         formatWriter.write("\"" + mStreamName + "\":", 0, mStreamName.length() + 3);
         formatWriter.flush();
         formatWriter.close();
-        mJsonWriter = new JsonWriter(new FileWriter(tempJsonFile, true));
+        mJsonWriter = new JsonWriter(
+                wrapWriter(new BufferedWriter(new FileWriter(tempJsonFile, true))));
         mJsonWriter.beginObject();
     }
 
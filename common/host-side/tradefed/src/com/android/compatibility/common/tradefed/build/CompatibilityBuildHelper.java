@@ -248,6 +248,18 @@ public class CompatibilityBuildHelper {
         return subPlansDir;
     }
 
+    /**
+     * @return a {@link File} representing the directory to store caches shared across sessions.
+     * @throws FileNotFoundException if the directory structure is not valid.
+     */
+    public File getCacheDir() throws FileNotFoundException {
+        File cacheDir = new File(getDir(), "cache");
+        if (!cacheDir.exists()) {
+            cacheDir.mkdirs();
+        }
+        return cacheDir;
+    }
+
     /**
      * @return a {@link File} representing the test modules directory.
      * @throws FileNotFoundException if the directory structure is not valid.
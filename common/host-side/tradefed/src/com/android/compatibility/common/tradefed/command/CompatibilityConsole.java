@@ -19,7 +19,11 @@ import com.android.compatibility.SuiteInfo;
 import com.android.compatibility.common.tradefed.build.CompatibilityBuildHelper;
 import com.android.compatibility.common.tradefed.build.CompatibilityBuildProvider;
 import com.android.compatibility.common.tradefed.result.SubPlanCreator;
+import com.android.compatibility.common.tradefed.testtype.Abi;
+import com.android.compatibility.common.tradefed.testtype.IModuleDef;
 import com.android.compatibility.common.tradefed.testtype.ModuleRepo;
+import com.android.compatibility.common.tradefed.util.ShardPlanner;
+import com.android.compatibility.common.util.AbiUtils;
 import com.android.compatibility.common.util.IInvocationResult;
 import com.android.compatibility.common.util.ResultHandler;
 import com.android.compatibility.common.util.TestStatus;
@@ -27,14 +31,10 @@ import com.android.tradefed.command.Console;
 import com.android.tradefed.config.ArgsOptionParser;
 import com.android.tradefed.config.ConfigurationException;
 import com.android.tradefed.config.ConfigurationFactory;
-import com.android.tradefed.config.IConfiguration;
-import com.android.tradefed.config.IConfigurationFactory;
 import com.android.tradefed.log.LogUtil.CLog;
-import com.android.tradefed.testtype.IRemoteTest;
-import com.android.tradefed.testtype.IRuntimeHintProvider;
+import com.android.tradefed.testtype.IAbi;
 import com.android.tradefed.util.ArrayUtil;
 import com.android.tradefed.util.FileUtil;
-import com.android.tradefed.util.Pair;
 import com.android.tradefed.util.RegexTrie;
 import com.android.tradefed.util.TableFormatter;
 import com.android.tradefed.util.TimeUtil;
@@ -45,9 +45,7 @@ import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -57,14 +55,6 @@ import java.util.Set;
  */
 public class CompatibilityConsole extends Console {
 
-    /**
-     * Hard coded list of modules to be excluded from manual module sharding
-     * @see #splitModules(int)
-     */
-    private final static Set<String> MODULE_SPLIT_EXCLUSIONS = new HashSet<>();
-    static {
-        MODULE_SPLIT_EXCLUSIONS.add("CtsDeqpTestCases");
-    }
     private CompatibilityBuildHelper mBuildHelper;
 
     /**
@@ -249,95 +239,45 @@ public class CompatibilityConsole extends Console {
     }
 
     private void splitModules(int shards) {
-        File[] files = null;
+        ShardPlanner.Plan<IModuleDef> plan = null;
         try {
-            files = getBuildHelper().getTestsDir().listFiles(new ModuleRepo.ConfigFilter());
-        } catch (FileNotFoundException e) {
+            // plan the modules of each ABI, with their shardable tests split, as a run would
+            plan = new ModuleRepo().previewShards(shards, getBuildHelper().getTestsDir(),
+                    getAbis(), getBuildHelper().getBuildInfo());
+        } catch (FileNotFoundException | IllegalArgumentException e) {
             printLine(e.getMessage());
-            e.printStackTrace();
+            return;
+        } catch (RuntimeException e) {
+            printLine(e.getMessage());
+            CLog.e(e);
+            return;
         }
-        // parse through all config files to get runtime hints
-        if (files != null && files.length > 0) {
-            IConfigurationFactory configFactory = ConfigurationFactory.getInstance();
-            List<Pair<String, Long>> moduleRuntime = new ArrayList<>();
-            // parse through all config files to calculate module execution time
-            for (File file : files) {
-                IConfiguration config = null;
-                String moduleName = file.getName().split("\\.")[0];
-                if (MODULE_SPLIT_EXCLUSIONS.contains(moduleName)) {
-                    continue;
-                }
-                try {
-                    config = configFactory.createConfigurationFromArgs(new String[]{
-                            file.getAbsolutePath(),
-                    });
-                } catch (ConfigurationException ce) {
-                    printLine("Error loading config file: " + file.getAbsolutePath());
-                    CLog.e(ce);
-                    continue;
-                }
-                long runtime = 0;
-                for (IRemoteTest test : config.getTests()) {
-                    if (test instanceof IRuntimeHintProvider) {
-                        runtime += ((IRuntimeHintProvider) test).getRuntimeHint();
-                    } else {
-                        CLog.w("Using default 1m runtime estimation for test type %s",
-                                test.getClass().getSimpleName());
-                        runtime += 60 * 1000;
-                    }
-                }
-                moduleRuntime.add(new Pair<String, Long>(moduleName, runtime));
+        // print the final shared lists
+        for (int shardIndex = 0; shardIndex < plan.getShardCount(); shardIndex++) {
+            // the parts of a split module are listed once
+            Set<String> moduleIds = new LinkedHashSet<>();
+            for (IModuleDef module : plan.getShard(shardIndex)) {
+                moduleIds.add(module.getId());
             }
-            // sort list modules in descending order of runtime hint
-            Collections.sort(moduleRuntime, new Comparator<Pair<String, Long>>() {
-                @Override
-                public int compare(Pair<String, Long> o1, Pair<String, Long> o2) {
-                    return o2.second.compareTo(o1.second);
-                }
-            });
-            // partition list of modules based on the runtime hint
-            List<List<Pair<String, Long>>> splittedModules = new ArrayList<>();
-            for (int i = 0; i < shards; i++) {
-                splittedModules.add(new ArrayList<>());
-            }
-            int shardIndex = 0;
-            int increment = 1;
-            long[] shardTimes = new long[shards];
-            // go through the sorted list, distribute modules into shards in zig-zag pattern to get
-            // an even execution time among shards
-            for (Pair<String, Long> module : moduleRuntime) {
-                splittedModules.get(shardIndex).add(module);
-                // also collect total runtime per shard
-                shardTimes[shardIndex] += module.second;
-                shardIndex += increment;
-                // zig-zagging: first distribute modules from shard 0 to N, then N down to 0, repeat
-                if (shardIndex == shards) {
-                    increment = -1;
-                    shardIndex = shards - 1;
-                }
-                if (shardIndex == -1) {
-                    increment = 1;
-                    shardIndex = 0;
-                }
-            }
-            shardIndex = 0;
-            // print the final shared lists
-            for (List<Pair<String, Long>> shardedModules : splittedModules) {
-                StringBuilder lineBuffer = new StringBuilder();
-                lineBuffer.append(String.format("shard #%d (%s):",
-                        shardIndex, TimeUtil.formatElapsedTime(shardTimes[shardIndex])));
-                Iterator<Pair<String, Long>> itr = shardedModules.iterator();
-                lineBuffer.append(itr.next().first);
-                while (itr.hasNext()) {
-                    lineBuffer.append(',');
-                    lineBuffer.append(itr.next().first);
-                }
-                shardIndex++;
-                printLine(lineBuffer.toString());
+            printLine(String.format("shard #%d (%s): %s", shardIndex,
+                    TimeUtil.formatElapsedTime(plan.getCost(shardIndex)),
+                    ArrayUtil.join(",", moduleIds)));
+        }
+        printLine(String.format("predicted time: %s",
+                TimeUtil.formatElapsedTime(plan.getMakespan())));
+    }
+
+    /**
+     * Returns the ABIs of the suite's architecture that the suite supports.
+     */
+    private static Set<IAbi> getAbis() {
+        Set<IAbi> abis = new LinkedHashSet<>();
+        for (String abi : AbiUtils.getAbisForArch(SuiteInfo.TARGET_ARCH)) {
+            if (AbiUtils.isAbiSupportedByCompatibility(abi)) {
+                abis.add(new Abi(abi, AbiUtils.getBitness(abi)));
             }
-        } else {
-            printLine("No modules found");
         }
+        return abis;
     }
 
     private void listResults() {
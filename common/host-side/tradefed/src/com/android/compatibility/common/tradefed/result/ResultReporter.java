@@ -20,6 +20,7 @@ import com.android.compatibility.common.tradefed.result.InvocationFailureHandler
 import com.android.compatibility.common.tradefed.result.TestRunHandler;
 import com.android.compatibility.common.tradefed.testtype.CompatibilityTest;
 import com.android.compatibility.common.tradefed.testtype.CompatibilityTest.RetryType;
+import com.android.compatibility.common.tradefed.util.InstallLedger;
 import com.android.compatibility.common.util.ICaseResult;
 import com.android.compatibility.common.util.IInvocationResult;
 import com.android.compatibility.common.util.IModuleResult;
@@ -64,7 +65,11 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Collect test results for an entire invocation and output test results to disk.
@@ -109,15 +114,25 @@ public class ResultReporter implements ILogSaverListener, ITestInvocationListene
     private ResultUploader mUploader;
     private String mReferenceUrl;
     private ILogSaver mLogSaver;
-    private int invocationEndedCount = 0;
+    private final AtomicInteger mInvocationEndedCount = new AtomicInteger(0);
+    private volatile boolean mResultDirectoriesInitialized = false;
 
     private IInvocationResult mResult = new InvocationResult();
     private IModuleResult mCurrentModuleResult;
     private ICaseResult mCurrentCaseResult;
     private ITestResult mCurrentResult;
     private String mDeviceSerial = UNKNOWN_DEVICE;
-    private Set<String> mMasterDeviceSerials = new HashSet<>();
-    private Set<IBuildInfo> mMasterBuildInfos = new HashSet<>();
+    private Set<String> mMasterDeviceSerials =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private Set<IBuildInfo> mMasterBuildInfos =
+            Collections.newSetFromMap(new ConcurrentHashMap<IBuildInfo, Boolean>());
+
+    // Module results published by the shard ResultReporters. They are merged into mResult by
+    // one thread at a time, the one that set mMergingModuleResults.
+    private final Queue<IModuleResult> mPublishedModuleResults = new ConcurrentLinkedQueue<>();
+    private final Object mMergeLock = new Object();
+    // Guarded by mMergeLock
+    private boolean mMergingModuleResults = false;
 
     // mCurrentTestNum and mTotalTestsInModule track the progress within the module
     // Note that this count is not necessarily equal to the count of tests contained
@@ -175,22 +190,25 @@ public class ResultReporter implements ILogSaverListener, ITestInvocationListene
 
         // NOTE: Everything after this line only applies to the master ResultReporter.
 
-        synchronized(this) {
-            if (buildInfo.getDeviceSerial() != null) {
-                // The master ResultReporter collects all device serials being used
-                // for the current implementation.
-                mMasterDeviceSerials.add(buildInfo.getDeviceSerial());
-            }
+        if (buildInfo.getDeviceSerial() != null) {
+            // The master ResultReporter collects all device serials being used
+            // for the current implementation.
+            mMasterDeviceSerials.add(buildInfo.getDeviceSerial());
+        }
 
-            // The master ResultReporter collects all buildInfos.
-            mMasterBuildInfos.add(buildInfo);
+        // The master ResultReporter collects all buildInfos.
+        mMasterBuildInfos.add(buildInfo);
 
-            if (mResultDir == null) {
-                // For the non-sharding case, invocationStarted is only called once,
-                // but for the sharding case, this might be called multiple times.
-                // Logic used to initialize the result directory should not be
-                // invoked twice during the same invocation.
-                initializeResultDirectories();
+        if (!mResultDirectoriesInitialized) {
+            synchronized(this) {
+                if (!mResultDirectoriesInitialized) {
+                    // For the non-sharding case, invocationStarted is only called once,
+                    // but for the sharding case, this might be called multiple times.
+                    // Logic used to initialize the result directory should not be
+                    // invoked twice during the same invocation.
+                    initializeResultDirectories();
+                    mResultDirectoriesInitialized = true;
+                }
             }
         }
     }
@@ -361,36 +379,104 @@ public class ResultReporter implements ILogSaverListener, ITestInvocationListene
             // Not executed count now represents an upper-bound for a fix to b/33211104.
             // Only setNotExecuted this number if the module has already been completely executed.
             int testCountDiff = Math.max(mTotalTestsInModule - mCurrentTestNum, 0);
-            if (isShardResultReporter()) {
-                // reset value, which is added to total count for master shard upon merge
-                mCurrentModuleResult.setNotExecuted(testCountDiff);
-            } else {
-                // increment value for master shard
-                mCurrentModuleResult.setNotExecuted(mCurrentModuleResult.getNotExecuted()
-                        + testCountDiff);
-            }
+            // Shard ResultReporters count locally too, the counts are added up by the master
+            // when the module results are merged.
+            mCurrentModuleResult.setNotExecuted(mCurrentModuleResult.getNotExecuted()
+                    + testCountDiff);
             if (mCanMarkDone) {
                 // Only mark module done if status of the invocation allows it (mCanMarkDone) and
                 // if module has not already been marked done.
                 mCurrentModuleResult.setDone(mCurrentTestNum >= mTotalTestsInModule);
             }
         }
-        if (isShardResultReporter()) {
-            // Forward module results to the master.
-            mMasterResultReporter.mergeModuleResult(mCurrentModuleResult);
-            mCurrentModuleResult.resetTestRuns();
+    }
+
+    /**
+     * Hands the module results of a shard ResultReporter over to the master. The shard must not
+     * change them afterwards, so they can be merged without locking the shards out.
+     */
+    private void publishModuleResults(List<IModuleResult> moduleResults) {
+        mPublishedModuleResults.addAll(moduleResults);
+        mergePublishedModuleResults();
+    }
+
+    /**
+     * Merges the published module results into mResult, unless another thread is already
+     * merging, in which case it also merges the module results published meanwhile.
+     */
+    private void mergePublishedModuleResults() {
+        // Check the queue again after giving up the merge, a module result published just before
+        // would otherwise stay behind.
+        while (!mPublishedModuleResults.isEmpty() && startMerge(false)) {
+            try {
+                drainPublishedModuleResults();
+            } finally {
+                endMerge();
+            }
         }
     }
 
     /**
-     * Directly add a module result. Note: this method is meant to be used by
-     * a shard ResultReporter.
+     * Waits for a merge still running in another thread and merges the remaining published
+     * module results, so mResult is complete and no longer changed once this returns.
      */
-    private void mergeModuleResult(IModuleResult moduleResult) {
-        // This merges the results in moduleResult to any existing results already
-        // contained in mResult. This is useful for retries and allows the final
-        // report from a retry to contain all test results.
-        synchronized(this) {
+    private void mergeAllPublishedModuleResults() {
+        startMerge(true);
+        try {
+            drainPublishedModuleResults();
+        } finally {
+            endMerge();
+        }
+    }
+
+    /**
+     * Sets mMergingModuleResults if no other thread is merging.
+     *
+     * @param wait whether to wait for the merge of another thread to end rather than return
+     * @return whether the calling thread may merge
+     */
+    private boolean startMerge(boolean wait) {
+        boolean interrupted = false;
+        try {
+            synchronized (mMergeLock) {
+                while (mMergingModuleResults) {
+                    if (!wait) {
+                        return false;
+                    }
+                    try {
+                        mMergeLock.wait();
+                    } catch (InterruptedException e) {
+                        // The results must be complete, keep waiting and restore the interrupt
+                        interrupted = true;
+                    }
+                }
+                mMergingModuleResults = true;
+                return true;
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void endMerge() {
+        synchronized (mMergeLock) {
+            mMergingModuleResults = false;
+            mMergeLock.notifyAll();
+        }
+    }
+
+    /**
+     * Merges the published module results into mResult. Must only be called by the thread that
+     * set mMergingModuleResults.
+     */
+    private void drainPublishedModuleResults() {
+        IModuleResult moduleResult;
+        while ((moduleResult = mPublishedModuleResults.poll()) != null) {
+            // This merges the results in moduleResult to any existing results already
+            // contained in mResult. This is useful for retries and allows the final
+            // report from a retry to contain all test results.
             mResult.mergeModuleResult(moduleResult);
         }
     }
@@ -430,22 +516,24 @@ public class ResultReporter implements ILogSaverListener, ITestInvocationListene
     @Override
     public void invocationEnded(long elapsedTime) {
         if (isShardResultReporter()) {
-            // Shard ResultReporters report
+            // Shard ResultReporters publish their module results once the shard is done, and
+            // report to the master. The master result therefore only holds the modules of
+            // shards that have ended.
+            mMasterResultReporter.publishModuleResults(mResult.getModules());
             mMasterResultReporter.invocationEnded(elapsedTime);
             return;
         }
 
         // NOTE: Everything after this line only applies to the master ResultReporter.
 
-        synchronized(this) {
-            // The master ResultReporter tracks the progress of all invocations across
-            // shard ResultReporters. Writing results should not proceed until all
-            // ResultReporters have completed.
-            if (++invocationEndedCount < mMasterBuildInfos.size()) {
-                return;
-            }
-            finalizeResults(elapsedTime);
+        // The master ResultReporter tracks the progress of all invocations across
+        // shard ResultReporters. Writing results should not proceed until all
+        // ResultReporters have completed.
+        if (mInvocationEndedCount.incrementAndGet() < mMasterBuildInfos.size()) {
+            return;
         }
+        mergeAllPublishedModuleResults();
+        finalizeResults(elapsedTime);
     }
 
     private void finalizeResults(long elapsedTime) {
@@ -485,6 +573,7 @@ public class ResultReporter implements ILogSaverListener, ITestInvocationListene
                 mResult.countResults(TestStatus.FAIL),
                 mResult.getNotExecuted(),
                 moduleProgress);
+        logInstallLedgerSummary();
 
         long startTime = mResult.getStartTime();
         try {
@@ -522,6 +611,27 @@ public class ResultReporter implements ILogSaverListener, ITestInvocationListene
         }
     }
 
+    /**
+     * Report the installs and pushes that were skipped across all devices of the invocation.
+     */
+    private void logInstallLedgerSummary() {
+        long skipped = 0;
+        long bytesSaved = 0;
+        long timeSaved = 0;
+        for (String deviceSerial : mMasterDeviceSerials) {
+            InstallLedger ledger = InstallLedger.peekLedger(deviceSerial);
+            if (ledger != null) {
+                skipped += ledger.getSkipCount();
+                bytesSaved += ledger.getBytesSaved();
+                timeSaved += ledger.getTimeSavedMs();
+            }
+        }
+        if (skipped > 0) {
+            info("Skipped %d redundant installs and pushes, saved %d bytes and %s", skipped,
+                    bytesSaved, TimeUtil.formatElapsedTime(timeSaved));
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
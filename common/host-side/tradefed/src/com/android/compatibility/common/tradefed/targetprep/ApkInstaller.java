@@ -16,8 +16,14 @@
 package com.android.compatibility.common.tradefed.targetprep;
 
 import com.android.compatibility.common.tradefed.build.CompatibilityBuildHelper;
+import com.android.compatibility.common.tradefed.util.OptionHelper;
 import com.android.tradefed.build.IBuildInfo;
+import com.android.tradefed.config.Option;
 import com.android.tradefed.config.OptionClass;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.targetprep.BuildError;
 import com.android.tradefed.targetprep.TargetSetupError;
 import com.android.tradefed.targetprep.TestAppInstallSetup;
 
@@ -28,7 +34,14 @@ import java.io.FileNotFoundException;
  * Installs specified APKs from Compatibility repository.
  */
 @OptionClass(alias="apk-installer")
-public class ApkInstaller extends TestAppInstallSetup {
+public class ApkInstaller extends TestAppInstallSetup implements IStagedPreparer {
+
+    private static final String TEST_FILE_NAME_OPTION = "test-file-name";
+
+    @Option(name = "skip-installed-apks",
+            description = "Skip installing APKs that are already on the device with the same "
+            + "content, as recorded by an earlier module or session.")
+    private boolean mSkipInstalled = false;
 
     private CompatibilityBuildHelper mBuildHelper = null;
 
@@ -39,6 +52,40 @@ public class ApkInstaller extends TestAppInstallSetup {
         return mBuildHelper.getTestsDir();
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setUp(ITestDevice device, IBuildInfo buildInfo) throws TargetSetupError,
+            BuildError, DeviceNotAvailableException {
+        if (mSkipInstalled || InstallLedgerHandler.hasStagedFiles(device)) {
+            device = InstallLedgerHandler.wrap(device, buildInfo, mSkipInstalled);
+        }
+        super.setUp(device, buildInfo);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Pushes the APKs to the staging directory, they are installed from there by
+     * {@link #setUp}.
+     */
+    @Override
+    public void stage(ITestDevice device, IBuildInfo buildInfo)
+            throws DeviceNotAvailableException {
+        for (String apkFileName : OptionHelper.getOptionValues(this, TEST_FILE_NAME_OPTION)) {
+            try {
+                if (!InstallLedgerHandler.stage(device,
+                        getLocalPathForFilename(buildInfo, apkFileName), null, mSkipInstalled)) {
+                    return;
+                }
+            } catch (TargetSetupError e) {
+                // setUp will report the missing APK.
+                CLog.d("Not staging %s: %s", apkFileName, e.getMessage());
+            }
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -19,6 +19,7 @@ package com.android.compatibility.common.tradefed.targetprep;
 import com.android.compatibility.common.tradefed.build.CompatibilityBuildHelper;
 import com.android.compatibility.common.tradefed.testtype.CompatibilityTest;
 import com.android.compatibility.common.tradefed.util.CollectorUtil;
+import com.android.compatibility.common.tradefed.util.DevicePropertySnapshot;
 import com.android.compatibility.common.util.DevicePropertyInfo;
 import com.android.tradefed.build.IBuildInfo;
 import com.android.tradefed.config.Option;
@@ -31,6 +32,7 @@ import com.android.tradefed.util.FileUtil;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -63,6 +65,7 @@ public class DeviceInfoCollector extends ApkInstrumentationPreparer {
     private static final String VERSION_SECURITY_PATCH = "ro.build.version.security_patch";
 
     private static final String PREFIX_TAG = "cts:build_";
+    private static final String CACHE_DIR_NAME = "device-info";
 
     @Option(name = CompatibilityTest.SKIP_DEVICE_INFO_OPTION,
             shortName = 'd',
@@ -78,6 +81,12 @@ public class DeviceInfoCollector extends ApkInstrumentationPreparer {
     @Option(name = "temp-dir", description = "The directory containing host-side device info files")
     private String mTempDir;
 
+    @Option(name = "reuse-device-info",
+            description = "Reuse the device info collected by an earlier session on the same "
+            + "device and build fingerprint, e.g. for a retry, instead of running the device "
+            + "info APK again.")
+    private boolean mReuseDeviceInfo = false;
+
     // Temp directory for host-side device info files.
     private File mHostDir;
 
@@ -97,10 +106,11 @@ public class DeviceInfoCollector extends ApkInstrumentationPreparer {
                 VERSION_SDK, VERSION_SECURITY_PATCH);
 
         // add device properties to the result with a prefix tag for each key
+        DevicePropertySnapshot properties = DevicePropertySnapshot.get(device);
         for (Entry<String, String> entry :
                 devicePropertyInfo.getPropertytMapWithPrefix(PREFIX_TAG).entrySet()) {
             buildInfo.addBuildAttribute(entry.getKey(),
-                    nullToEmpty(device.getProperty(entry.getValue())));
+                    nullToEmpty(properties.getProperty(entry.getValue())));
         }
         if (mSkipDeviceInfo) {
             return;
@@ -108,8 +118,17 @@ public class DeviceInfoCollector extends ApkInstrumentationPreparer {
 
         createTempHostDir();
         createResultDir(buildInfo);
+        File cacheDir = mReuseDeviceInfo
+                ? getCacheDir(buildInfo, device.getSerialNumber(), properties.getFingerprint())
+                : null;
+        if (restoreDeviceInfoFiles(cacheDir)) {
+            CLog.i("Reusing device info of %s from %s", device.getSerialNumber(),
+                    cacheDir.getAbsolutePath());
+            return;
+        }
         run(device, buildInfo);
         getDeviceInfoFiles(device);
+        saveDeviceInfoFiles(cacheDir);
     }
 
     @Override
@@ -159,6 +178,70 @@ public class DeviceInfoCollector extends ApkInstrumentationPreparer {
         }
     }
 
+    /**
+     * Returns the directory the device info files of the given device and build are cached in,
+     * or null if they cannot be cached.
+     */
+    private static File getCacheDir(IBuildInfo buildInfo, String serial, String fingerprint) {
+        if (fingerprint == null || fingerprint.isEmpty()) {
+            return null;
+        }
+        try {
+            File cacheRoot = new File(new CompatibilityBuildHelper(buildInfo).getCacheDir(),
+                    CACHE_DIR_NAME);
+            return new File(cacheRoot, String.format("%s_%s", fingerprint, serial)
+                    .replaceAll("[^A-Za-z0-9._-]", "_"));
+        } catch (FileNotFoundException e) {
+            CLog.w("Device info of %s will not be cached", serial);
+            return null;
+        }
+    }
+
+    /**
+     * Copies the cached device info files to the result directory.
+     *
+     * @return whether cached files were found and copied.
+     */
+    private boolean restoreDeviceInfoFiles(File cacheDir) {
+        if (cacheDir == null || mResultDir == null || !mResultDir.isDirectory()) {
+            return false;
+        }
+        String[] cachedFiles = cacheDir.list();
+        if (cachedFiles == null || cachedFiles.length == 0) {
+            return false;
+        }
+        try {
+            FileUtil.recursiveCopy(cacheDir, mResultDir);
+            return true;
+        } catch (IOException e) {
+            CLog.w("Failed to reuse device info from %s: %s", cacheDir.getAbsolutePath(),
+                    e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Replaces the cached device info files with the ones just collected.
+     */
+    private void saveDeviceInfoFiles(File cacheDir) {
+        if (cacheDir == null || mResultDir == null || !mResultDir.isDirectory()) {
+            return;
+        }
+        String[] collectedFiles = mResultDir.list();
+        if (collectedFiles == null || collectedFiles.length == 0) {
+            return;
+        }
+        FileUtil.recursiveDelete(cacheDir);
+        cacheDir.mkdirs();
+        try {
+            FileUtil.recursiveCopy(mResultDir, cacheDir);
+        } catch (IOException e) {
+            CLog.w("Failed to cache device info in %s: %s", cacheDir.getAbsolutePath(),
+                    e.getMessage());
+            FileUtil.recursiveDelete(cacheDir);
+        }
+    }
+
     private static String nullToEmpty(String value) {
         return value == null ? "" : value;
     }
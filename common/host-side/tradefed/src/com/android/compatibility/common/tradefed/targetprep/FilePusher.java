@@ -16,12 +16,17 @@
 package com.android.compatibility.common.tradefed.targetprep;
 
 import com.android.compatibility.common.tradefed.build.CompatibilityBuildHelper;
+import com.android.compatibility.common.tradefed.util.OptionHelper;
 import com.android.ddmlib.Log.LogLevel;
 import com.android.tradefed.build.IBuildInfo;
 import com.android.tradefed.config.Option;
 import com.android.tradefed.config.OptionClass;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.targetprep.BuildError;
 import com.android.tradefed.targetprep.PushFilePreparer;
+import com.android.tradefed.targetprep.TargetSetupError;
 import com.android.tradefed.testtype.IAbi;
 import com.android.tradefed.testtype.IAbiReceiver;
 
@@ -32,12 +37,20 @@ import java.io.FileNotFoundException;
  * Pushes specified testing artifacts from Compatibility repository.
  */
 @OptionClass(alias="file-pusher")
-public class FilePusher extends PushFilePreparer implements IAbiReceiver {
+public class FilePusher extends PushFilePreparer implements IAbiReceiver, IStagedPreparer {
+
+    private static final String PUSH_OPTION = "push";
+    private static final String PUSH_SEPARATOR = "->";
 
     @Option(name = "append-bitness",
             description = "Append the ABI's bitness to the filename.")
     private boolean mAppendBitness = false;
 
+    @Option(name = "skip-pushed-files",
+            description = "Skip pushing files that are already on the device with the same "
+            + "content, as recorded by an earlier module or session.")
+    private boolean mSkipPushed = false;
+
     private CompatibilityBuildHelper mBuildHelper = null;
 
     private IAbi mAbi;
@@ -57,6 +70,44 @@ public class FilePusher extends PushFilePreparer implements IAbiReceiver {
         mAbi = abi;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setUp(ITestDevice device, IBuildInfo buildInfo) throws TargetSetupError,
+            BuildError, DeviceNotAvailableException {
+        if (mSkipPushed || InstallLedgerHandler.hasStagedFiles(device)) {
+            device = InstallLedgerHandler.wrap(device, buildInfo, mSkipPushed);
+        }
+        super.setUp(device, buildInfo);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Pushes the files to the staging directory, they are moved to their destination by
+     * {@link #setUp}. Directories are left to {@link #setUp}.
+     */
+    @Override
+    public void stage(ITestDevice device, IBuildInfo buildInfo)
+            throws DeviceNotAvailableException {
+        for (String pushSpec : OptionHelper.getOptionValues(this, PUSH_OPTION)) {
+            String[] pair = pushSpec.split(PUSH_SEPARATOR);
+            if (pair.length != 2) {
+                // setUp will report the malformed spec.
+                continue;
+            }
+            File local = new File(pair[0]);
+            if (!local.isAbsolute()) {
+                local = resolveRelativeFilePath(buildInfo, pair[0]);
+            }
+            if (local != null && local.isFile()
+                    && !InstallLedgerHandler.stage(device, local, pair[1], mSkipPushed)) {
+                return;
+            }
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.compatibility.common.tradefed.targetprep;
+
+import com.android.tradefed.build.IBuildInfo;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.targetprep.ITargetPreparer;
+
+/**
+ * An {@link ITargetPreparer} that can do part of its work ahead of time, while the previous
+ * module is still running on the device.
+ * <p/>
+ * {@link #stage} must not change any device state a running test could observe: it may resolve
+ * and hash local files, or push them to the {@link
+ * com.android.compatibility.common.tradefed.util.StagingArea}, but installs, settings and
+ * anything else visible outside the staging directory must wait for
+ * {@link ITargetPreparer#setUp}. The running module may reboot or recover the device at any
+ * time, so {@link #stage} must stop once the device is not online and must not start a device
+ * recovery itself. Staging is best effort; {@link ITargetPreparer#setUp} must still work if
+ * {@link #stage} was never called or failed half way.
+ */
+public interface IStagedPreparer extends ITargetPreparer {
+
+    /**
+     * Does the work of {@link ITargetPreparer#setUp} that can safely overlap with another
+     * module's tests.
+     */
+    void stage(ITestDevice device, IBuildInfo buildInfo) throws DeviceNotAvailableException;
+}
@@ -0,0 +1,436 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.compatibility.common.tradefed.targetprep;
+
+import com.android.compatibility.common.tradefed.build.CompatibilityBuildHelper;
+import com.android.compatibility.common.tradefed.util.DevicePropertySnapshot;
+import com.android.compatibility.common.tradefed.util.InstallLedger;
+import com.android.compatibility.common.tradefed.util.InstallLedger.Record;
+import com.android.compatibility.common.tradefed.util.StagingArea;
+import com.android.ddmlib.AdbCommandRejectedException;
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.SyncException;
+import com.android.ddmlib.TimeoutException;
+import com.android.tradefed.build.IBuildInfo;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.IManagedTestDevice;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.device.TestDeviceState;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.AaptParser;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Wraps an {@link ITestDevice} so that package installs and file pushes issued by the wrapped
+ * preparers consult the device's {@link InstallLedger} and {@link StagingArea} first.
+ * <p/>
+ * An install is skipped when the ledger holds the same APK digest and install flags for the
+ * package and the device still reports the package at the same version code with a base APK of
+ * the same size. A push is
+ * skipped when the ledger holds the same digest for the remote path and the remote file still has
+ * the same size. Otherwise, a file that was staged ahead of time is installed or moved from the
+ * staging directory, falling back to a regular install or push if that fails. Every other call is
+ * forwarded unchanged.
+ * <p/>
+ * The wrapper implements every interface of the wrapped device, so callers may still cast it to
+ * e.g. {@link IManagedTestDevice}.
+ */
+class InstallLedgerHandler implements InvocationHandler {
+
+    private static final String LEDGER_FILE_FORMAT = "install-ledger-%s.properties";
+    private static final Pattern VERSION_CODE_PATTERN = Pattern.compile("versionCode=(\\d+)");
+    private static final String PACKAGE_PATH_PREFIX = "package:";
+    private static final String INSTALL_SUCCESS = "Success";
+
+    /** Parsed APKs keyed by digest, so staging and installing only run aapt once per APK. */
+    private static final Map<String, AaptParser> sParserCache = new ConcurrentHashMap<>();
+
+    private final ITestDevice mDevice;
+    private final InstallLedger mLedger;
+    private final StagingArea mStagingArea;
+
+    private InstallLedgerHandler(ITestDevice device, InstallLedger ledger,
+            StagingArea stagingArea) {
+        mDevice = device;
+        mLedger = ledger;
+        mStagingArea = stagingArea;
+    }
+
+    /**
+     * Returns a device that installs and pushes from the staging area when it can. If useLedger
+     * is set, it also skips redundant installs and pushes, backed by the ledger of the given
+     * device persisted in the suite's cache directory.
+     */
+    static ITestDevice wrap(ITestDevice device, IBuildInfo buildInfo, boolean useLedger)
+            throws DeviceNotAvailableException {
+        String serial = device.getSerialNumber();
+        InstallLedger ledger = null;
+        if (useLedger) {
+            ledger = InstallLedger.getLedger(serial);
+            File storage = null;
+            try {
+                storage = new File(new CompatibilityBuildHelper(buildInfo).getCacheDir(),
+                        String.format(LEDGER_FILE_FORMAT, serial));
+            } catch (FileNotFoundException e) {
+                CLog.w("Install ledger for %s will not be persisted", serial);
+            }
+            ledger.attach(storage, DevicePropertySnapshot.get(device).getFingerprint());
+        }
+        return (ITestDevice) Proxy.newProxyInstance(device.getClass().getClassLoader(),
+                getInterfaces(device),
+                new InstallLedgerHandler(device, ledger, StagingArea.getArea(serial)));
+    }
+
+    /**
+     * Returns the public interfaces implemented by the class of the device and its superclasses.
+     */
+    private static Class<?>[] getInterfaces(ITestDevice device) {
+        Set<Class<?>> interfaces = new LinkedHashSet<>();
+        interfaces.add(ITestDevice.class);
+        for (Class<?> c = device.getClass(); c != null; c = c.getSuperclass()) {
+            for (Class<?> i : c.getInterfaces()) {
+                if (Modifier.isPublic(i.getModifiers())) {
+                    interfaces.add(i);
+                }
+            }
+        }
+        return interfaces.toArray(new Class<?>[interfaces.size()]);
+    }
+
+    /**
+     * @return whether files have been staged for the given device and not used yet.
+     */
+    static boolean hasStagedFiles(ITestDevice device) {
+        StagingArea area = StagingArea.peekArea(device.getSerialNumber());
+        return area != null && !area.isEmpty();
+    }
+
+    /**
+     * Pushes the given file to the staging directory of the device, unless it is already staged.
+     * If useLedger is set and the ledger shows the file is already installed or pushed, nothing
+     * is staged since {@link #wrap} will most likely skip it.
+     *
+     * @param remotePath the remote path the file will be pushed to, or null for an APK that will
+     * be installed.
+     * @return false if staging should stop because the device is not online or the push failed.
+     */
+    static boolean stage(ITestDevice device, File file, String remotePath, boolean useLedger) {
+        String digest = digestOf(file);
+        if (digest == null) {
+            return true;
+        }
+        String serial = device.getSerialNumber();
+        if (useLedger) {
+            String key = null;
+            if (remotePath != null) {
+                key = InstallLedger.getPathKey(remotePath);
+            } else {
+                AaptParser parser = parse(file, digest);
+                if (parser != null && parser.getPackageName() != null) {
+                    key = InstallLedger.getPackageKey(parser.getPackageName());
+                }
+            }
+            InstallLedger ledger = InstallLedger.peekLedger(serial);
+            if (key != null && ledger != null && ledger.get(key, digest) != null) {
+                return true;
+            }
+        }
+        StagingArea area = StagingArea.getArea(serial);
+        if (area.contains(file, digest)) {
+            return true;
+        }
+        String stagedPath = StagingArea.getStagedPath(file, digest);
+        if (!pushForStaging(device, file, stagedPath)) {
+            return false;
+        }
+        CLog.d("Staged %s to %s on %s", file.getName(), stagedPath, serial);
+        area.put(file, digest, stagedPath);
+        return true;
+    }
+
+    /**
+     * Pushes a file to the staging directory over the device's adb connection. Staging runs
+     * while a module uses the device, so it does not push while the device is rebooting or
+     * being recovered, or once staging was cancelled. Unlike {@link ITestDevice#pushFile}, a
+     * failed push is not retried and does not start a device recovery of its own.
+     */
+    private static boolean pushForStaging(ITestDevice device, File file, String remotePath) {
+        String serial = device.getSerialNumber();
+        if (Thread.currentThread().isInterrupted()) {
+            CLog.d("Staging on %s was cancelled", serial);
+            return false;
+        }
+        TestDeviceState state = device.getDeviceState();
+        IDevice iDevice = device.getIDevice();
+        if (state != TestDeviceState.ONLINE || iDevice == null) {
+            CLog.d("Not staging %s, %s is %s", file.getName(), serial, state);
+            return false;
+        }
+        try {
+            iDevice.pushFile(file.getAbsolutePath(), remotePath);
+            return true;
+        } catch (IOException | AdbCommandRejectedException | TimeoutException
+                | SyncException e) {
+            CLog.w("Failed to stage %s on %s: %s", file.getName(), serial, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (args != null && args.length > 0 && args[0] instanceof File) {
+            if ("installPackage".equals(method.getName())) {
+                return installPackage(method, args);
+            }
+            if ("pushFile".equals(method.getName()) && args.length == 2
+                    && args[1] instanceof String) {
+                return pushFile(method, args);
+            }
+        }
+        if (mLedger != null && "uninstallPackage".equals(method.getName()) && args != null
+                && args.length == 1 && args[0] instanceof String) {
+            mLedger.remove(InstallLedger.getPackageKey((String) args[0]));
+        }
+        return forward(method, args);
+    }
+
+    private Object installPackage(Method method, Object[] args) throws Throwable {
+        File apk = (File) args[0];
+        String digest = digestOf(apk);
+        if (digest == null) {
+            return forward(method, args);
+        }
+        // Reinstalling does not change the installed package, the other flags may.
+        String flags = getInstallOptions(args, false);
+        if (mLedger == null || flags == null) {
+            return installStaged(method, args, digest);
+        }
+        AaptParser parser = parse(apk, digest);
+        if (parser == null || parser.getPackageName() == null) {
+            return installStaged(method, args, digest);
+        }
+        String packageName = parser.getPackageName();
+        String versionCode = parser.getVersionCode();
+        String key = InstallLedger.getPackageKey(packageName);
+        Record record = mLedger.get(key, digest);
+        if (record != null && versionCode != null && versionCode.equals(record.getVersion())
+                && flags.equals(record.getFlags())
+                && isPackageInstalled(packageName, versionCode, apk.length())) {
+            CLog.d("Skipping install of %s, %s is already on %s", apk.getName(), packageName,
+                    mDevice.getSerialNumber());
+            mLedger.skipped(record);
+            return null;
+        }
+        mLedger.remove(key);
+        long start = System.currentTimeMillis();
+        Object result = installStaged(method, args, digest);
+        if (result == null) {
+            // A null result means the install succeeded.
+            mLedger.put(key, new Record(digest, apk.length(), versionCode,
+                    System.currentTimeMillis() - start, flags));
+        }
+        return result;
+    }
+
+    private Object pushFile(Method method, Object[] args) throws Throwable {
+        File file = (File) args[0];
+        String remotePath = (String) args[1];
+        String digest = digestOf(file);
+        if (digest == null) {
+            return forward(method, args);
+        }
+        if (mLedger == null) {
+            return pushStaged(method, args, digest);
+        }
+        String key = InstallLedger.getPathKey(remotePath);
+        Record record = mLedger.get(key, digest);
+        if (record != null && getRemoteSize(remotePath) == file.length()) {
+            CLog.d("Skipping push of %s, %s is up to date on %s", file.getName(), remotePath,
+                    mDevice.getSerialNumber());
+            mLedger.skipped(record);
+            return Boolean.TRUE;
+        }
+        mLedger.remove(key);
+        long start = System.currentTimeMillis();
+        Object result = pushStaged(method, args, digest);
+        if (Boolean.TRUE.equals(result)) {
+            mLedger.put(key, new Record(digest, file.length(), null,
+                    System.currentTimeMillis() - start));
+        }
+        return result;
+    }
+
+    /**
+     * Installs the APK from the staging directory if it was staged, with the same flags the
+     * forwarded call would use. Falls back to the forwarded call if it was not staged or the
+     * install from the staging directory fails.
+     */
+    private Object installStaged(Method method, Object[] args, String digest) throws Throwable {
+        String options = getInstallOptions(args, true);
+        if (options == null) {
+            return forward(method, args);
+        }
+        File apk = (File) args[0];
+        String stagedPath = mStagingArea.take(apk, digest);
+        if (stagedPath == null) {
+            return forward(method, args);
+        }
+        String output = mDevice.executeShellCommand(options.isEmpty()
+                ? String.format("pm install %s", stagedPath)
+                : String.format("pm install %s %s", options, stagedPath));
+        mDevice.executeShellCommand(String.format("rm -f %s", stagedPath));
+        if (output != null && output.contains(INSTALL_SUCCESS)) {
+            CLog.d("Installed %s from %s", apk.getName(), stagedPath);
+            return null;
+        }
+        CLog.w("Install of staged %s failed: %s, installing it again", apk.getName(), output);
+        return forward(method, args);
+    }
+
+    /**
+     * Returns the "pm install" options of an installPackage call, or null if it does not have the
+     * signature installPackage(File, boolean reinstall, [boolean grantPermissions,] String...).
+     *
+     * @param withReinstall whether to include "-r" if the call reinstalls
+     */
+    private static String getInstallOptions(Object[] args, boolean withReinstall) {
+        int last = args.length - 1;
+        if (last < 2 || !(args[1] instanceof Boolean) || !(args[last] instanceof String[])
+                || (last == 3 && !(args[2] instanceof Boolean)) || last > 3) {
+            return null;
+        }
+        StringBuilder options = new StringBuilder();
+        if (withReinstall && (Boolean) args[1]) {
+            options.append(" -r");
+        }
+        if (last == 3 && (Boolean) args[2]) {
+            options.append(" -g");
+        }
+        for (String extraArg : (String[]) args[last]) {
+            options.append(' ').append(extraArg);
+        }
+        return options.toString().trim();
+    }
+
+    /**
+     * Moves the file from the staging directory to the remote path if it was staged. Falls back
+     * to the forwarded call if it was not staged or the moved file does not have the expected
+     * size.
+     */
+    private Object pushStaged(Method method, Object[] args, String digest) throws Throwable {
+        File file = (File) args[0];
+        String remotePath = (String) args[1];
+        String stagedPath = mStagingArea.take(file, digest);
+        if (stagedPath == null) {
+            return forward(method, args);
+        }
+        String parent = new File(remotePath).getParent();
+        mDevice.executeShellCommand(String.format("%smv -f %s %s",
+                (parent == null) ? "" : String.format("mkdir -p %s && ", parent), stagedPath,
+                remotePath));
+        if (getRemoteSize(remotePath) == file.length()) {
+            CLog.d("Moved %s from %s to %s", file.getName(), stagedPath, remotePath);
+            return Boolean.TRUE;
+        }
+        CLog.w("Move of staged %s to %s failed, pushing it again", file.getName(), remotePath);
+        mDevice.executeShellCommand(String.format("rm -f %s", stagedPath));
+        return forward(method, args);
+    }
+
+    /**
+     * Checks with the package manager that the package is installed at the given version and
+     * that its base APK has the expected size.
+     */
+    private boolean isPackageInstalled(String packageName, String versionCode, long size)
+            throws DeviceNotAvailableException {
+        String path = mDevice.executeShellCommand(String.format("pm path %s", packageName));
+        if (path == null || !path.trim().startsWith(PACKAGE_PATH_PREFIX)) {
+            return false;
+        }
+        // Split APKs list one path per line, the base APK comes first.
+        path = path.trim().split("\\s+")[0].substring(PACKAGE_PATH_PREFIX.length());
+        if (getRemoteSize(path) != size) {
+            return false;
+        }
+        String dump = mDevice.executeShellCommand(String.format("dumpsys package %s",
+                packageName));
+        Matcher m = VERSION_CODE_PATTERN.matcher(dump == null ? "" : dump);
+        return m.find() && versionCode.equals(m.group(1));
+    }
+
+    /**
+     * Returns the size in bytes of the given file on the device, or -1 if it cannot be found.
+     */
+    private long getRemoteSize(String remotePath) throws DeviceNotAvailableException {
+        String output = mDevice.executeShellCommand(String.format("stat -c %%s %s", remotePath));
+        try {
+            return Long.parseLong(output.trim());
+        } catch (NumberFormatException | NullPointerException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Parses the given APK with aapt, reusing the result of an earlier parse of the same content.
+     */
+    private static AaptParser parse(File apk, String digest) {
+        AaptParser parser = sParserCache.get(digest);
+        if (parser == null) {
+            parser = AaptParser.parse(apk);
+            if (parser != null) {
+                sParserCache.put(digest, parser);
+            }
+        }
+        return parser;
+    }
+
+    private static String digestOf(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            return InstallLedger.getDigest(file);
+        } catch (IOException e) {
+            CLog.w("Failed to compute digest of %s: %s", file.getAbsolutePath(), e.getMessage());
+            return null;
+        }
+    }
+
+    private Object forward(Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(mDevice, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
@@ -36,4 +36,12 @@ public class NetworkConnectivityChecker extends SystemStatusChecker {
         }
         return true;
     }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isConcurrent() {
+        return true;
+    }
 }
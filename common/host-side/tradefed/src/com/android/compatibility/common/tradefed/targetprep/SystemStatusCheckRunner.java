@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.compatibility.common.tradefed.targetprep;
+
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the {@link SystemStatusChecker}s of a device before and after each module.
+ * <p/>
+ * Each checker only runs for the modules its {@link SystemStatusChecker#getInterval} selects.
+ * In concurrent mode, the checkers that declare themselves
+ * {@link SystemStatusChecker#isConcurrent} run at the same time on a thread pool, most expensive
+ * first, once the others have run one after the other on the calling thread. The concurrent
+ * checkers therefore never overlap a checker that may change the device state. The time spent
+ * checking is accumulated so it can be reported per device.
+ */
+public class SystemStatusCheckRunner {
+
+    private final List<SystemStatusChecker> mCheckers;
+    private final ExecutorService mExecutor;
+    private final int[] mModuleCount;
+    private List<SystemStatusChecker> mDueCheckers = new ArrayList<>();
+    private long mTotalTimeMs = 0;
+
+    /**
+     * @param checkers the checkers to run.
+     * @param concurrent whether concurrent checkers may run at the same time.
+     */
+    public SystemStatusCheckRunner(List<SystemStatusChecker> checkers, boolean concurrent) {
+        mCheckers = new ArrayList<>(checkers);
+        mModuleCount = new int[checkers.size()];
+        int concurrentCount = 0;
+        for (SystemStatusChecker checker : checkers) {
+            if (checker.isConcurrent()) {
+                concurrentCount++;
+            }
+        }
+        // Concurrent checkers only overlap each other, so a pool needs at least two of them
+        mExecutor = (concurrent && concurrentCount > 1)
+                ? Executors.newFixedThreadPool(concurrentCount) : null;
+    }
+
+    /**
+     * Runs the pre execution checks that are due for the next module.
+     *
+     * @return the canonical class names of the checkers that failed.
+     */
+    public List<String> runPreModuleChecks(ITestDevice device)
+            throws DeviceNotAvailableException {
+        mDueCheckers = new ArrayList<>();
+        for (int i = 0; i < mCheckers.size(); i++) {
+            SystemStatusChecker checker = mCheckers.get(i);
+            if (mModuleCount[i]++ % checker.getInterval() == 0) {
+                mDueCheckers.add(checker);
+            }
+        }
+        return run(mDueCheckers, device, true);
+    }
+
+    /**
+     * Runs the post execution checks of the checkers whose pre execution checks ran before the
+     * module.
+     *
+     * @return the canonical class names of the checkers that failed.
+     */
+    public List<String> runPostModuleChecks(ITestDevice device)
+            throws DeviceNotAvailableException {
+        return run(mDueCheckers, device, false);
+    }
+
+    /**
+     * @return the time spent in checks so far, in ms.
+     */
+    public long getTotalTimeMs() {
+        return mTotalTimeMs;
+    }
+
+    /**
+     * Stops the threads of the concurrent checkers.
+     */
+    public void shutdown() {
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+        }
+    }
+
+    private List<String> run(List<SystemStatusChecker> checkers, final ITestDevice device,
+            final boolean pre) throws DeviceNotAvailableException {
+        long start = System.currentTimeMillis();
+        List<SystemStatusChecker> sequential = new ArrayList<>();
+        List<SystemStatusChecker> concurrent = new ArrayList<>();
+        for (SystemStatusChecker checker : checkers) {
+            if (mExecutor != null && checker.isConcurrent()) {
+                concurrent.add(checker);
+            } else {
+                sequential.add(checker);
+            }
+        }
+        Collections.sort(concurrent, new Comparator<SystemStatusChecker>() {
+            @Override
+            public int compare(SystemStatusChecker a, SystemStatusChecker b) {
+                return Long.compare(b.getCost(), a.getCost());
+            }
+        });
+
+        List<String> failures = new ArrayList<>();
+        Map<SystemStatusChecker, Future<Boolean>> futures = new LinkedHashMap<>();
+        try {
+            for (SystemStatusChecker checker : sequential) {
+                if (!check(checker, device, pre)) {
+                    failures.add(checker.getClass().getCanonicalName());
+                }
+            }
+            // The sequential checkers are done, so the concurrent ones only overlap each other
+            for (final SystemStatusChecker checker : concurrent) {
+                futures.put(checker, mExecutor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws DeviceNotAvailableException {
+                        return check(checker, device, pre);
+                    }
+                }));
+            }
+            for (Map.Entry<SystemStatusChecker, Future<Boolean>> entry : futures.entrySet()) {
+                if (!getResult(entry.getValue())) {
+                    failures.add(entry.getKey().getClass().getCanonicalName());
+                }
+            }
+        } finally {
+            for (Future<Boolean> future : futures.values()) {
+                future.cancel(true);
+            }
+            mTotalTimeMs += System.currentTimeMillis() - start;
+        }
+        return failures;
+    }
+
+    private static boolean check(SystemStatusChecker checker, ITestDevice device, boolean pre)
+            throws DeviceNotAvailableException {
+        boolean result = pre ? checker.preExecutionCheck(device)
+                : checker.postExecutionCheck(device);
+        if (!result) {
+            CLog.w("System status checker [%s] failed with message: %s",
+                    checker.getClass().getCanonicalName(), checker.getFailureMessage());
+        }
+        return result;
+    }
+
+    private static boolean getResult(Future<Boolean> future) throws DeviceNotAvailableException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof DeviceNotAvailableException) {
+                throw (DeviceNotAvailableException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+}
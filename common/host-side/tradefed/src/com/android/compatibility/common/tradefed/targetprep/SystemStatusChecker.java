@@ -17,6 +17,7 @@
 package com.android.compatibility.common.tradefed.targetprep;
 
 import com.android.tradefed.build.IBuildInfo;
+import com.android.tradefed.config.Option;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.log.LogUtil.CLog;
@@ -31,9 +32,21 @@ import com.android.tradefed.targetprep.TargetSetupError;
  * <p>Note: the checker must be reentrant: meaning that the same instance will be called multiple
  * times for each module executed, so it should not leave a state so as to interfere with the checks
  * to be performed for the following modules.
+ * <p>A checker may declare how often it runs and how expensive it is, see {@link #getInterval}
+ * and {@link #getCost}, and whether it can run at the same time as other checkers, see
+ * {@link #isConcurrent}.
  */
 public abstract class SystemStatusChecker implements ITargetCleaner {
 
+    @Option(name = "check-interval",
+            description = "Only check before and after every N-th module.")
+    private int mInterval = 1;
+
+    @Option(name = "check-cost-ms",
+            description = "Estimated time a check takes in ms, expensive checks are started "
+            + "first when checkers run concurrently.")
+    private long mCost = 0;
+
     private String mFailureMessage = null;
 
     /**
@@ -91,6 +104,29 @@ public abstract class SystemStatusChecker implements ITargetCleaner {
         return true;
     }
 
+    /**
+     * Returns how often the checker runs: 1 for every module, N for every N-th module. The post
+     * execution check always runs after the modules the pre execution check ran before.
+     */
+    public int getInterval() {
+        return Math.max(1, mInterval);
+    }
+
+    /**
+     * Returns the estimated time a check takes in ms.
+     */
+    public long getCost() {
+        return mCost;
+    }
+
+    /**
+     * Returns whether this checker only reads device state and can run at the same time as other
+     * concurrent checkers. Subclasses that do so should override this method.
+     */
+    public boolean isConcurrent() {
+        return false;
+    }
+
     /**
      * Sets failure message when a system status check failed for reporting purpose
      * @param failureMessage
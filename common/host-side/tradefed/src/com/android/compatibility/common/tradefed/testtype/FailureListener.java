@@ -15,6 +15,7 @@
  */
 package com.android.compatibility.common.tradefed.testtype;
 
+import com.android.compatibility.common.tradefed.util.DevicePropertySnapshot;
 import com.android.ddmlib.testrunner.TestIdentifier;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
@@ -98,10 +99,11 @@ public class FailureListener extends ResultForwarder {
             try {
                 // Rebooting on all failures can hide legitimate issues and platform instabilities,
                 // therefore only allowed on "user-debug" and "eng" builds.
-                if ("user".equals(mDevice.getProperty("ro.build.type"))) {
+                if (DevicePropertySnapshot.get(mDevice).isUserBuild()) {
                     CLog.e("Reboot-on-failure should only be used during development," +
                             " this is a\" user\" build device");
                 } else {
+                    DevicePropertySnapshot.invalidate(mDevice.getSerialNumber());
                     mDevice.reboot();
                 }
             } catch (DeviceNotAvailableException e) {
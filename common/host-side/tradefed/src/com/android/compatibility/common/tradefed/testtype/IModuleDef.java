@@ -75,4 +75,11 @@ public interface IModuleDef extends Comparable<IModuleDef>, IBuildReceiver, IDev
     boolean prepare(boolean skipPrep, List<String> preconditionArgs)
             throws DeviceNotAvailableException;
 
+    /**
+     * Does the part of the module's setup that can safely overlap with another module's tests,
+     * such as pushing its APKs and files to a staging directory on the device. Failures are
+     * logged and left for {@link #run} to handle.
+     */
+    void stage() throws DeviceNotAvailableException;
+
 }
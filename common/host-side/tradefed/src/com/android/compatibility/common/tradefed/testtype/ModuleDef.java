@@ -18,6 +18,7 @@ package com.android.compatibility.common.tradefed.testtype;
 import com.android.compatibility.common.tradefed.result.IModuleListener;
 import com.android.compatibility.common.tradefed.result.ModuleListener;
 import com.android.compatibility.common.tradefed.targetprep.DynamicConfigPusher;
+import com.android.compatibility.common.tradefed.targetprep.IStagedPreparer;
 import com.android.compatibility.common.tradefed.targetprep.PreconditionPreparer;
 import com.android.compatibility.common.tradefed.targetprep.TokenRequirement;
 import com.android.compatibility.common.util.AbiUtils;
@@ -279,9 +280,37 @@ public class ModuleDef implements IModuleDef {
         return true;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void stage() throws DeviceNotAvailableException {
+        for (ITargetPreparer preparer : mPreparers) {
+            if (!(preparer instanceof IStagedPreparer) || !isWhitelisted(preparer)) {
+                continue;
+            }
+            CLog.d("Staging: %s", preparer.getClass().getSimpleName());
+            if (preparer instanceof IAbiReceiver) {
+                ((IAbiReceiver) preparer).setAbi(mAbi);
+            }
+            try {
+                ((IStagedPreparer) preparer).stage(mDevice, mBuild);
+            } catch (RuntimeException e) {
+                // Staging is best effort, setUp does the work if it could not be staged.
+                CLog.w("Failed to stage %s for %s: %s", preparer.getClass().getSimpleName(),
+                        mId, e.getMessage());
+            }
+        }
+    }
+
+    private boolean isWhitelisted(ITargetPreparer preparer) {
+        return mPreparerWhitelist.isEmpty()
+                || mPreparerWhitelist.contains(preparer.getClass().getCanonicalName());
+    }
+
     private void runPreparerSetup(ITargetPreparer preparer) throws DeviceNotAvailableException {
         String preparerName = preparer.getClass().getCanonicalName();
-        if (!mPreparerWhitelist.isEmpty() && !mPreparerWhitelist.contains(preparerName)) {
+        if (!isWhitelisted(preparer)) {
             CLog.w("Skipping Preparer: %s since it is not in the whitelist %s",
                     preparerName, mPreparerWhitelist);
             return;
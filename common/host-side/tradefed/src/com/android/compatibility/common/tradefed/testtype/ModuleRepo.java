@@ -17,6 +17,7 @@ package com.android.compatibility.common.tradefed.testtype;
 
 import com.android.compatibility.common.tradefed.build.CompatibilityBuildHelper;
 import com.android.compatibility.common.tradefed.result.TestRunHandler;
+import com.android.compatibility.common.tradefed.util.ShardPlanner;
 import com.android.compatibility.common.util.AbiUtils;
 import com.android.compatibility.common.util.TestFilter;
 import com.android.ddmlib.Log.LogLevel;
@@ -40,6 +41,7 @@ import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -67,9 +69,6 @@ public class ModuleRepo implements IModuleRepo {
 
     private int mShards;
     private int mModulesPerShard;
-    private int mSmallModulesPerShard;
-    private int mMediumModulesPerShard;
-    private int mLargeModulesPerShard;
     private int mModuleCount = 0;
     private Set<String> mSerials = new HashSet<>();
     private Map<String, Set<String>> mDeviceTokens = new HashMap<>();
@@ -94,6 +93,9 @@ public class ModuleRepo implements IModuleRepo {
     private List<IModuleDef> mLargeModules = new ArrayList<>();
     // Holds all the tests with tokens waiting to be run. Meaning the DUT must have a specific token.
     private List<IModuleDef> mTokenModules = new ArrayList<>();
+    // The planned modules of each shard, and the serial that took each shard or null.
+    private ShardPlanner.Plan<IModuleDef> mShardPlan;
+    private String[] mShardSerials;
 
     /**
      * {@inheritDoc}
@@ -237,6 +239,34 @@ public class ModuleRepo implements IModuleRepo {
     public void initialize(int shards, File testsDir, Set<IAbi> abis, List<String> deviceTokens,
             List<String> testArgs, List<String> moduleArgs, Set<String> includeFilters,
             Set<String> excludeFilters, IBuildInfo buildInfo) {
+        Map<String, Integer> shardedTestCounts = loadModules(shards, testsDir, abis, deviceTokens,
+                testArgs, moduleArgs, includeFilters, excludeFilters, buildInfo);
+        TestRunHandler.setTestRuns(new CompatibilityBuildHelper(buildInfo), shardedTestCounts);
+    }
+
+    /**
+     * Plans the modules in {@code testsDir} on the given number of shards the same way
+     * {@link #initialize} plans a run, without recording the run. Modules are planned per ABI
+     * and after their shardable tests are split.
+     *
+     * @return the modules of each shard, with the predicted runtime of each shard.
+     */
+    public ShardPlanner.Plan<IModuleDef> previewShards(int shards, File testsDir, Set<IAbi> abis,
+            IBuildInfo buildInfo) {
+        loadModules(shards, testsDir, abis, Collections.<String>emptyList(),
+                Collections.<String>emptyList(), Collections.<String>emptyList(),
+                Collections.<String>emptySet(), Collections.<String>emptySet(), buildInfo);
+        return mShardPlan;
+    }
+
+    /**
+     * Parses the module configs, creates the module definitions and plans them on the shards.
+     *
+     * @return the number of parts of each module whose tests were split.
+     */
+    private Map<String, Integer> loadModules(int shards, File testsDir, Set<IAbi> abis,
+            List<String> deviceTokens, List<String> testArgs, List<String> moduleArgs,
+            Set<String> includeFilters, Set<String> excludeFilters, IBuildInfo buildInfo) {
         CLog.d("Initializing ModuleRepo\nShards:%d\nTests Dir:%s\nABIs:%s\nDevice Tokens:%s\n" +
                 "Test Args:%s\nModule Args:%s\nIncludes:%s\nExcludes:%s",
                 shards, testsDir.getAbsolutePath(), abis, deviceTokens, testArgs, moduleArgs,
@@ -336,14 +366,35 @@ public class ModuleRepo implements IModuleRepo {
                         configFile.getName()), e);
             }
         }
-        TestRunHandler.setTestRuns(new CompatibilityBuildHelper(buildInfo), shardedTestCounts);
         mModulesPerShard = mModuleCount / shards;
         if (mModuleCount % shards != 0) {
             mModulesPerShard++; // Round up
         }
-        mSmallModulesPerShard = mSmallModules.size() / shards;
-        mMediumModulesPerShard = mMediumModules.size() / shards;
-        mLargeModulesPerShard = mLargeModules.size() / shards;
+        planShards();
+        return shardedTestCounts;
+    }
+
+    /**
+     * Plans the modules of each shard. Devices with tokens get the first shards, so the modules
+     * that require their tokens are planned on them.
+     */
+    private void planShards() {
+        List<String> tokenSerials = new ArrayList<>(mDeviceTokens.keySet());
+        Collections.sort(tokenSerials);
+        mShardSerials = new String[mShards];
+        List<Set<String>> shardTokens = new ArrayList<>(mShards);
+        for (int i = 0; i < mShards; i++) {
+            shardTokens.add(i < tokenSerials.size()
+                    ? mDeviceTokens.get(tokenSerials.get(i)) : new HashSet<String>());
+        }
+        ShardPlanner<IModuleDef> planner = new ShardPlanner<>(shardTokens);
+        for (List<IModuleDef> modules : Arrays.asList(
+                mTokenModules, mLargeModules, mMediumModules, mSmallModules)) {
+            for (IModuleDef module : modules) {
+                planner.addJob(module, module.getRuntimeHint(), module.getTokens());
+            }
+        }
+        mShardPlan = planner.plan();
     }
 
     private static List<IRemoteTest> splitShardableTests(List<IRemoteTest> tests,
@@ -354,7 +405,13 @@ public class ModuleRepo implements IModuleRepo {
                 if (test instanceof IBuildReceiver) {
                     ((IBuildReceiver)test).setBuild(buildInfo);
                 }
-                shardedList.addAll(((IShardableTest)test).split());
+                Collection<IRemoteTest> shards = ((IShardableTest)test).split();
+                if (shards == null) {
+                    // the test could not be split
+                    shardedList.add(test);
+                } else {
+                    shardedList.addAll(shards);
+                }
             } else {
                 shardedList.add(test);
             }
@@ -522,21 +579,34 @@ public class ModuleRepo implements IModuleRepo {
     @Override
     public synchronized List<IModuleDef> getModules(String serial) {
         List<IModuleDef> modules = new ArrayList<>(mModulesPerShard);
-        Set<String> tokens = mDeviceTokens.get(serial);
-        getModulesWithTokens(tokens, modules);
-        getModules(modules);
-        mSerials.add(serial);
-        if (mSerials.size() == mShards) {
-            for (IModuleDef def : mTokenModules) {
-                CLog.logAndDisplay(LogLevel.WARN,
-                        String.format("No devices found with %s, running %s on %s",
-                                def.getTokens(), def.getId(), serial));
+        int shard = claimShard(serial);
+        if (shard >= 0) {
+            Set<String> tokens = mDeviceTokens.get(serial);
+            for (IModuleDef def : mShardPlan.getShard(shard)) {
+                if (!takeModule(def)) {
+                    continue;
+                }
+                Set<String> required = def.getTokens();
+                if (required != null && !required.isEmpty()
+                        && (tokens == null || !tokens.containsAll(required))) {
+                    CLog.logAndDisplay(LogLevel.WARN,
+                            String.format("No devices found with %s, running %s on %s",
+                                    required, def.getId(), serial));
+                }
                 modules.add(def);
             }
+        }
+        mSerials.add(serial);
+        if (mSerials.size() == mShards) {
             // Add left over modules
+            modules.addAll(mTokenModules);
             modules.addAll(mLargeModules);
             modules.addAll(mMediumModules);
             modules.addAll(mSmallModules);
+            mTokenModules.clear();
+            mLargeModules.clear();
+            mMediumModules.clear();
+            mSmallModules.clear();
         }
         long estimatedTime = 0;
         for (IModuleDef def : modules) {
@@ -550,58 +620,39 @@ public class ModuleRepo implements IModuleRepo {
     }
 
     /**
-     * Iterates through the remaining tests that require tokens and if the device has all the
-     * required tokens it will queue that module to run on that device, else the module gets put
-     * back into the list.
+     * Claims the shard planned for the given device: the shard planned with its tokens if it
+     * has tokens, else the first unclaimed shard planned without tokens, else any unclaimed shard.
+     *
+     * @return the shard index, or -1 if all shards are claimed.
      */
-    private void getModulesWithTokens(Set<String> tokens, List<IModuleDef> modules) {
-        if (tokens != null) {
-            List<IModuleDef> copy = mTokenModules;
-            mTokenModules = new ArrayList<>();
-            for (IModuleDef module : copy) {
-                // If a device has all the tokens required by the module then it can run it.
-                if (tokens.containsAll(module.getTokens())) {
-                    modules.add(module);
-                } else {
-                    mTokenModules.add(module);
+    private int claimShard(String serial) {
+        List<String> tokenSerials = new ArrayList<>(mDeviceTokens.keySet());
+        Collections.sort(tokenSerials);
+        int shard = tokenSerials.indexOf(serial);
+        if (shard >= 0 && shard < mShardSerials.length && mShardSerials[shard] == null) {
+            mShardSerials[shard] = serial;
+            return shard;
+        }
+        for (int pass = 0; pass < 2; pass++) {
+            for (shard = 0; shard < mShardSerials.length; shard++) {
+                boolean tokenShard = shard < tokenSerials.size();
+                if (mShardSerials[shard] == null && (pass == 1 || !tokenShard)) {
+                    mShardSerials[shard] = serial;
+                    return shard;
                 }
             }
         }
+        return -1;
     }
 
     /**
-     * Adds count modules that do not require tokens, to run on a device.
+     * Removes the module from the modules waiting to be run.
+     *
+     * @return true if the module was waiting to be run.
      */
-    private void getModules(List<IModuleDef> modules) {
-        // Take the normal share of modules unless the device already has token modules.
-        takeModule(mSmallModules, modules, mSmallModulesPerShard - modules.size());
-        takeModule(mMediumModules, modules, mMediumModulesPerShard);
-        takeModule(mLargeModules, modules, mLargeModulesPerShard);
-        // If one bucket runs out, take from any of the others.
-        boolean success = true;
-        while (success && modules.size() < mModulesPerShard) {
-            // Take modules from the buckets until it has enough, or there are no more modules.
-            success = takeModule(mSmallModules, modules, 1)
-                    || takeModule(mMediumModules, modules, 1)
-                    || takeModule(mLargeModules, modules, 1);
-        }
-    }
-
-    /**
-     * Takes count modules from the first list and move it to the second.
-     */
-    private static boolean takeModule(
-            List<IModuleDef> source, List<IModuleDef> destination, int count) {
-        if (source.isEmpty()) {
-            return false;
-        }
-        if (count > source.size()) {
-            count = source.size();
-        }
-        for (int i = 0; i < count; i++) {
-            destination.add(source.remove(source.size() - 1));// Take from the end of the arraylist.
-        }
-        return true;
+    private boolean takeModule(IModuleDef def) {
+        return mTokenModules.remove(def) || mLargeModules.remove(def)
+                || mMediumModules.remove(def) || mSmallModules.remove(def);
     }
 
     /**
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.compatibility.common.tradefed.util;
+
+import com.android.ddmlib.IDevice;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The system properties of a device, read with a single "getprop" call and shared by everything
+ * that needs them during an invocation.
+ * <p/>
+ * Snapshots are cached per serial, for the connection to the device they were read from. Only
+ * read-only "ro.*" properties should be read from a snapshot, as they cannot change until the
+ * device reboots. A reboot, e.g. after flashing or a recovery, reconnects the device, and the
+ * next {@link #get} reads the properties again. Callers that are about to reboot the device
+ * should still call {@link #invalidate}, so no snapshot is served until it reconnects.
+ */
+public class DevicePropertySnapshot {
+
+    public static final String ABI = "ro.product.cpu.abi";
+    public static final String ABI2 = "ro.product.cpu.abi2";
+    public static final String ABIS = "ro.product.cpu.abilist";
+    public static final String BUILD_TYPE = "ro.build.type";
+    public static final String FINGERPRINT = "ro.build.fingerprint";
+
+    private static final String GETPROP_COMMAND = "getprop";
+    private static final String KEY_START = "[";
+    private static final String SEPARATOR = "]: [";
+    private static final String VALUE_END = "]";
+
+    private static final Map<String, DevicePropertySnapshot> sSnapshots =
+            new ConcurrentHashMap<>();
+
+    private final Map<String, String> mProperties;
+    /** The connection to the device the snapshot was read from. */
+    private IDevice mIDevice;
+
+    /**
+     * Creates a snapshot from the output of "getprop". Visible for testing; use {@link #get}.
+     */
+    DevicePropertySnapshot(String getpropOutput) {
+        mProperties = Collections.unmodifiableMap(parse(getpropOutput));
+    }
+
+    /**
+     * Returns the property snapshot of the given device, reading all of its properties with one
+     * "getprop" call if no snapshot is cached for the current connection to the device.
+     */
+    public static DevicePropertySnapshot get(ITestDevice device)
+            throws DeviceNotAvailableException {
+        String serial = device.getSerialNumber();
+        IDevice iDevice = device.getIDevice();
+        DevicePropertySnapshot snapshot = sSnapshots.get(serial);
+        if (snapshot != null && snapshot.mIDevice == iDevice) {
+            return snapshot;
+        }
+        snapshot = new DevicePropertySnapshot(device.executeShellCommand(GETPROP_COMMAND));
+        snapshot.mIDevice = iDevice;
+        if (snapshot.getProperty(FINGERPRINT) == null) {
+            // Not a usable getprop output, don't cache it so the next caller tries again.
+            CLog.w("Could not read the properties of %s", serial);
+            return snapshot;
+        }
+        sSnapshots.put(serial, snapshot);
+        return snapshot;
+    }
+
+    /**
+     * Drops the cached snapshot of the given device, e.g. because it is about to reboot.
+     */
+    public static void invalidate(String serial) {
+        sSnapshots.remove(serial);
+    }
+
+    /**
+     * Returns the value of the given property, or null if the device does not define it.
+     */
+    public String getProperty(String name) {
+        return mProperties.get(name);
+    }
+
+    /**
+     * @return all the properties of the snapshot.
+     */
+    public Map<String, String> getProperties() {
+        return mProperties;
+    }
+
+    /**
+     * @return the build fingerprint of the device, or null if unknown.
+     */
+    public String getFingerprint() {
+        return getProperty(FINGERPRINT);
+    }
+
+    /**
+     * @return whether the device runs a "user" build.
+     */
+    public boolean isUserBuild() {
+        return "user".equals(getProperty(BUILD_TYPE));
+    }
+
+    /**
+     * Returns the ABIs supported by the device, primary ABI first, as listed by
+     * "ro.product.cpu.abilist" or, on devices that do not define it, by "ro.product.cpu.abi" and
+     * "ro.product.cpu.abi2".
+     */
+    public List<String> getSupportedAbis() {
+        List<String> abis = new ArrayList<>();
+        String abiList = getProperty(ABIS);
+        if (abiList != null && !abiList.trim().isEmpty()) {
+            for (String abi : abiList.split(",")) {
+                if (!abi.trim().isEmpty()) {
+                    abis.add(abi.trim());
+                }
+            }
+            return abis;
+        }
+        for (String name : new String[] {ABI, ABI2}) {
+            String abi = getProperty(name);
+            if (abi != null && !abi.trim().isEmpty()) {
+                abis.add(abi.trim());
+            }
+        }
+        return abis;
+    }
+
+    /**
+     * Parses lines of the form "[name]: [value]". A value may span several lines.
+     */
+    private static Map<String, String> parse(String output) {
+        Map<String, String> properties = new HashMap<>();
+        if (output == null) {
+            return properties;
+        }
+        String name = null;
+        StringBuilder value = null;
+        for (String line : output.split("\r?\n")) {
+            if (name == null) {
+                int separator = line.indexOf(SEPARATOR);
+                if (!line.startsWith(KEY_START) || separator < 0) {
+                    continue;
+                }
+                name = line.substring(KEY_START.length(), separator);
+                value = new StringBuilder(line.substring(separator + SEPARATOR.length()));
+            } else {
+                value.append('\n').append(line);
+            }
+            if (value.toString().endsWith(VALUE_END)) {
+                properties.put(name, value.substring(0, value.length() - VALUE_END.length()));
+                name = null;
+            }
+        }
+        return properties;
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.compatibility.common.tradefed.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A per-device record of the artifacts that have been installed or pushed to a device, keyed by
+ * package name or remote path and identified by the SHA-256 digest of the local file. Packages
+ * and paths are kept apart, see {@link #getPackageKey} and {@link #getPathKey}.
+ * <p/>
+ * The ledger only remembers what the host did; callers are expected to validate the device state
+ * (e.g. via "pm path" or the size of the remote file) before trusting a {@link Record}. A ledger
+ * can be persisted so that a retry session on the same build can reuse the records of the
+ * previous session.
+ */
+public class InstallLedger {
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final String FINGERPRINT_KEY = "fingerprint";
+    private static final String FORMAT_KEY = "format";
+    /** Bumped when the keys or records change, records of another format are dropped. */
+    private static final String FORMAT = "2";
+    private static final String PACKAGE_KEY_PREFIX = "package:";
+    private static final String PATH_KEY_PREFIX = "path:";
+    private static final String RECORD_PREFIX = "record.";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final Map<String, InstallLedger> sLedgers = new ConcurrentHashMap<>();
+    private static final Map<String, String> sDigestCache = new ConcurrentHashMap<>();
+
+    /**
+     * A single artifact known to be on the device.
+     */
+    public static class Record {
+        private final String mDigest;
+        private final long mSize;
+        private final String mVersion;
+        private final long mDurationMs;
+        private final String mFlags;
+
+        public Record(String digest, long size, String version, long durationMs) {
+            this(digest, size, version, durationMs, null);
+        }
+
+        public Record(String digest, long size, String version, long durationMs,
+                String flags) {
+            mDigest = digest;
+            mSize = size;
+            mVersion = (version == null) ? "" : version;
+            mDurationMs = durationMs;
+            mFlags = (flags == null) ? "" : flags;
+        }
+
+        /** @return the SHA-256 digest of the artifact, in hex */
+        public String getDigest() {
+            return mDigest;
+        }
+
+        /** @return the size of the artifact in bytes */
+        public long getSize() {
+            return mSize;
+        }
+
+        /** @return the version of the artifact (e.g. the package version code), or "" */
+        public String getVersion() {
+            return mVersion;
+        }
+
+        /** @return how long the install or push took when it was performed */
+        public long getDurationMs() {
+            return mDurationMs;
+        }
+
+        /** @return the flags the artifact was installed with (e.g. "-g"), or "" */
+        public String getFlags() {
+            return mFlags;
+        }
+
+        private String serialize() {
+            return String.format("%s:%d:%s:%d:%s", mDigest, mSize, mVersion, mDurationMs,
+                    mFlags);
+        }
+
+        private static Record deserialize(String value) {
+            // The flags come last, they may contain colons.
+            String[] parts = value.split(":", 5);
+            if (parts.length != 5) {
+                return null;
+            }
+            try {
+                return new Record(parts[0], Long.parseLong(parts[1]), parts[2],
+                        Long.parseLong(parts[3]), parts[4]);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    private final String mSerial;
+    private final Map<String, Record> mRecords = new HashMap<>();
+    private final AtomicLong mBytesSaved = new AtomicLong();
+    private final AtomicLong mTimeSavedMs = new AtomicLong();
+    private final AtomicLong mSkipCount = new AtomicLong();
+    private String mFingerprint = null;
+    private File mStorage = null;
+
+    /**
+     * Creates an empty, non-persisted ledger. Visible for testing; use {@link #getLedger}.
+     */
+    InstallLedger(String serial) {
+        mSerial = serial;
+    }
+
+    /**
+     * Returns the shared ledger of the given device, creating it if needed.
+     */
+    public static InstallLedger getLedger(String serial) {
+        InstallLedger ledger = sLedgers.get(serial);
+        if (ledger == null) {
+            sLedgers.putIfAbsent(serial, new InstallLedger(serial));
+            ledger = sLedgers.get(serial);
+        }
+        return ledger;
+    }
+
+    /**
+     * Returns the shared ledger of the given device if one exists, null otherwise.
+     */
+    public static InstallLedger peekLedger(String serial) {
+        return sLedgers.get(serial);
+    }
+
+    /**
+     * Returns the key of the given package, so that it does not clash with a remote path.
+     */
+    public static String getPackageKey(String packageName) {
+        return PACKAGE_KEY_PREFIX + packageName;
+    }
+
+    /**
+     * Returns the key of the given remote path, so that it does not clash with a package name.
+     */
+    public static String getPathKey(String remotePath) {
+        return PATH_KEY_PREFIX + remotePath;
+    }
+
+    /**
+     * @return the serial of the device this ledger belongs to.
+     */
+    public String getSerial() {
+        return mSerial;
+    }
+
+    /**
+     * Binds this ledger to a file and a device build. Records persisted by a previous session
+     * are loaded only if they were written for the same build fingerprint; a fingerprint change
+     * (e.g. the device was flashed) drops every record.
+     *
+     * @param storage the file the ledger is loaded from and saved to
+     * @param fingerprint the current build fingerprint of the device
+     */
+    public synchronized void attach(File storage, String fingerprint) {
+        if (fingerprint != null && !fingerprint.equals(mFingerprint)) {
+            mRecords.clear();
+        }
+        mFingerprint = fingerprint;
+        if (storage == null || storage.equals(mStorage)) {
+            return;
+        }
+        mStorage = storage;
+        if (!storage.isFile()) {
+            return;
+        }
+        Properties props = new Properties();
+        try (InputStream in = new FileInputStream(storage)) {
+            props.load(in);
+        } catch (IOException e) {
+            return;
+        }
+        if (fingerprint == null || !fingerprint.equals(props.getProperty(FINGERPRINT_KEY))
+                || !FORMAT.equals(props.getProperty(FORMAT_KEY))) {
+            return;
+        }
+        for (String name : props.stringPropertyNames()) {
+            if (name.startsWith(RECORD_PREFIX) && !mRecords.containsKey(
+                    name.substring(RECORD_PREFIX.length()))) {
+                Record record = Record.deserialize(props.getProperty(name));
+                if (record != null) {
+                    mRecords.put(name.substring(RECORD_PREFIX.length()), record);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the record of the artifact installed under the given key if its digest matches,
+     * null otherwise.
+     */
+    public synchronized Record get(String key, String digest) {
+        Record record = mRecords.get(key);
+        if (record != null && record.getDigest().equals(digest)) {
+            return record;
+        }
+        return null;
+    }
+
+    /**
+     * Records that an artifact has been installed or pushed under the given key.
+     */
+    public synchronized void put(String key, Record record) {
+        mRecords.put(key, record);
+        save();
+    }
+
+    /**
+     * Forgets the artifact installed under the given key, e.g. because validation on the device
+     * showed that it is no longer there.
+     */
+    public synchronized void remove(String key) {
+        if (mRecords.remove(key) != null) {
+            save();
+        }
+    }
+
+    /**
+     * Accounts for an install or push that was skipped because the record was still valid.
+     */
+    public void skipped(Record record) {
+        mSkipCount.incrementAndGet();
+        mBytesSaved.addAndGet(record.getSize());
+        mTimeSavedMs.addAndGet(record.getDurationMs());
+    }
+
+    /**
+     * @return the number of installs and pushes skipped so far.
+     */
+    public long getSkipCount() {
+        return mSkipCount.get();
+    }
+
+    /**
+     * @return the number of bytes that did not need to be transferred to the device.
+     */
+    public long getBytesSaved() {
+        return mBytesSaved.get();
+    }
+
+    /**
+     * @return the estimated time saved by skipping installs and pushes, in milliseconds.
+     */
+    public long getTimeSavedMs() {
+        return mTimeSavedMs.get();
+    }
+
+    private void save() {
+        if (mStorage == null) {
+            return;
+        }
+        Properties props = new Properties();
+        props.setProperty(FORMAT_KEY, FORMAT);
+        if (mFingerprint != null) {
+            props.setProperty(FINGERPRINT_KEY, mFingerprint);
+        }
+        for (Map.Entry<String, Record> entry : mRecords.entrySet()) {
+            props.setProperty(RECORD_PREFIX + entry.getKey(), entry.getValue().serialize());
+        }
+        File parent = mStorage.getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        try (OutputStream out = new FileOutputStream(mStorage)) {
+            props.store(out, String.format("Install ledger for %s", mSerial));
+        } catch (IOException e) {
+            // The ledger is an optimization, failing to persist it only costs a reinstall.
+        }
+    }
+
+    /**
+     * Computes the SHA-256 digest of a file. Digests are cached by path, size and modification
+     * time so a large APK is only hashed once per invocation.
+     *
+     * @return the digest in hex
+     * @throws IOException if the file could not be read
+     */
+    public static String getDigest(File file) throws IOException {
+        String cacheKey = String.format("%s:%d:%d", file.getAbsolutePath(), file.length(),
+                file.lastModified());
+        String digest = sDigestCache.get(cacheKey);
+        if (digest != null) {
+            return digest;
+        }
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                md.update(buffer, 0, read);
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        for (byte b : md.digest()) {
+            sb.append(String.format("%02x", b));
+        }
+        digest = sb.toString();
+        sDigestCache.put(cacheKey, digest);
+        return digest;
+    }
+}
@@ -19,6 +19,7 @@ import com.android.tradefed.config.Option;
 
 import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -54,6 +55,43 @@ public final class OptionHelper {
         return optionFields;
     }
 
+    /**
+     * Retrieve the values of the {@link Option} with the given name on the given
+     * object, including options declared by its super classes. Collection
+     * options yield one entry per element, null values are skipped.
+     *
+     * @param object An object with @option-annotated fields.
+     * @param name The name of the option.
+     */
+    public static List<String> getOptionValues(Object object, String name) {
+        List<String> values = new ArrayList<String>();
+        for (Class<?> c = object.getClass(); c != null; c = c.getSuperclass()) {
+            for (Field declaredField : c.getDeclaredFields()) {
+                Option option = declaredField.getAnnotation(Option.class);
+                if (option == null || !name.equals(option.name())) {
+                    continue;
+                }
+                declaredField.setAccessible(true);
+                Object value;
+                try {
+                    value = declaredField.get(object);
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException(e);
+                }
+                if (value instanceof Collection) {
+                    for (Object element : (Collection<?>) value) {
+                        if (element != null) {
+                            values.add(element.toString());
+                        }
+                    }
+                } else if (value != null) {
+                    values.add(value.toString());
+                }
+            }
+        }
+        return values;
+    }
+
     /**
      * Retrieve a {@link Set} of {@link Option} names present on the given
      * object.
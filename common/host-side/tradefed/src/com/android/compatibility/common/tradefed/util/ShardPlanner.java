@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.compatibility.common.tradefed.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Plans how to distribute jobs of known cost over a number of shards so that the shards finish
+ * at about the same time.
+ * <p/>
+ * Jobs may require tokens, in which case they are only planned on shards that have all of them,
+ * or be pinned to a shard. Jobs that require tokens no shard has are planned like jobs without
+ * tokens. The jobs are first assigned longest first to the least loaded allowed shard, then the
+ * plan is refined by moving and swapping jobs away from the longest shard while that shortens it.
+ */
+public class ShardPlanner<T> {
+
+    // Bound on refinement steps, each step strictly shortens the longest shard or stops
+    private static final int MAX_REFINEMENT_STEPS = 10000;
+
+    private final List<Set<String>> mShardTokens;
+    private final List<Job<T>> mJobs = new ArrayList<>();
+
+    private static class Job<T> {
+        final T mJob;
+        final long mCost;
+        final Set<String> mTokens;
+        final int mPinnedShard;
+        final int mIndex;
+
+        Job(T job, long cost, Set<String> tokens, int pinnedShard, int index) {
+            mJob = job;
+            mCost = cost;
+            mTokens = tokens;
+            mPinnedShard = pinnedShard;
+            mIndex = index;
+        }
+    }
+
+    /**
+     * A plan of which jobs run on which shard.
+     */
+    public static class Plan<T> {
+
+        private final List<List<T>> mShards;
+        private final long[] mCosts;
+
+        Plan(List<List<T>> shards, long[] costs) {
+            mShards = shards;
+            mCosts = costs;
+        }
+
+        /**
+         * @return the number of shards in the plan.
+         */
+        public int getShardCount() {
+            return mShards.size();
+        }
+
+        /**
+         * @return the jobs planned on the given shard, longest first.
+         */
+        public List<T> getShard(int shard) {
+            return mShards.get(shard);
+        }
+
+        /**
+         * @return the summed cost of the jobs planned on the given shard.
+         */
+        public long getCost(int shard) {
+            return mCosts[shard];
+        }
+
+        /**
+         * @return the cost of the longest shard, which is the predicted run time of the plan.
+         */
+        public long getMakespan() {
+            long makespan = 0;
+            for (long cost : mCosts) {
+                makespan = Math.max(makespan, cost);
+            }
+            return makespan;
+        }
+    }
+
+    /**
+     * Creates a planner for the given number of shards without tokens.
+     */
+    public ShardPlanner(int shards) {
+        this(Collections.<Set<String>>nCopies(shards, Collections.<String>emptySet()));
+    }
+
+    /**
+     * Creates a planner for shards with the given tokens, one set of tokens per shard.
+     */
+    public ShardPlanner(List<Set<String>> shardTokens) {
+        if (shardTokens.isEmpty()) {
+            throw new IllegalArgumentException("At least one shard is needed");
+        }
+        mShardTokens = new ArrayList<>(shardTokens);
+    }
+
+    /**
+     * Adds a job that may run on any shard that has all the given tokens.
+     *
+     * @param tokens the tokens the job requires, or null if none
+     */
+    public void addJob(T job, long cost, Set<String> tokens) {
+        Set<String> jobTokens = (tokens == null) ? Collections.<String>emptySet() : tokens;
+        mJobs.add(new Job<T>(job, cost, jobTokens, -1, mJobs.size()));
+    }
+
+    /**
+     * Adds a job that must run on the given shard.
+     */
+    public void pinJob(T job, long cost, int shard) {
+        if (shard < 0 || shard >= mShardTokens.size()) {
+            throw new IllegalArgumentException(String.format("No shard %d", shard));
+        }
+        mJobs.add(new Job<T>(job, cost, Collections.<String>emptySet(), shard, mJobs.size()));
+    }
+
+    /**
+     * @return a plan for the jobs added so far.
+     */
+    public Plan<T> plan() {
+        final int shards = mShardTokens.size();
+        final List<List<Job<T>>> assigned = new ArrayList<>(shards);
+        final long[] costs = new long[shards];
+        for (int i = 0; i < shards; i++) {
+            assigned.add(new ArrayList<Job<T>>());
+        }
+        final List<Set<Integer>> allowed = new ArrayList<>(mJobs.size());
+        for (Job<T> job : mJobs) {
+            allowed.add(getAllowedShards(job));
+        }
+
+        // Most constrained jobs first, then longest first
+        List<Job<T>> order = new ArrayList<>(mJobs);
+        Collections.sort(order, new Comparator<Job<T>>() {
+            @Override
+            public int compare(Job<T> a, Job<T> b) {
+                int result = Integer.compare(allowed.get(a.mIndex).size(),
+                        allowed.get(b.mIndex).size());
+                if (result == 0) {
+                    result = Long.compare(b.mCost, a.mCost);
+                }
+                return (result != 0) ? result : Integer.compare(a.mIndex, b.mIndex);
+            }
+        });
+        for (Job<T> job : order) {
+            int target = -1;
+            for (int shard : allowed.get(job.mIndex)) {
+                if (target == -1 || costs[shard] < costs[target]
+                        || (costs[shard] == costs[target] && shard < target)) {
+                    target = shard;
+                }
+            }
+            assigned.get(target).add(job);
+            costs[target] += job.mCost;
+        }
+
+        refine(assigned, costs, allowed);
+
+        List<List<T>> shardJobs = new ArrayList<>(shards);
+        for (List<Job<T>> jobs : assigned) {
+            Collections.sort(jobs, new Comparator<Job<T>>() {
+                @Override
+                public int compare(Job<T> a, Job<T> b) {
+                    int result = Long.compare(b.mCost, a.mCost);
+                    return (result != 0) ? result : Integer.compare(a.mIndex, b.mIndex);
+                }
+            });
+            List<T> list = new ArrayList<>(jobs.size());
+            for (Job<T> job : jobs) {
+                list.add(job.mJob);
+            }
+            shardJobs.add(list);
+        }
+        return new Plan<T>(shardJobs, costs);
+    }
+
+    /**
+     * Repeatedly applies the move or swap between the longest shard and another shard that
+     * most reduces the longer of the two, until no move or swap shortens the longest shard.
+     */
+    private void refine(List<List<Job<T>>> assigned, long[] costs, List<Set<Integer>> allowed) {
+        for (int step = 0; step < MAX_REFINEMENT_STEPS; step++) {
+            int longest = 0;
+            for (int shard = 1; shard < costs.length; shard++) {
+                if (costs[shard] > costs[longest]) {
+                    longest = shard;
+                }
+            }
+            long best = costs[longest];
+            Job<T> bestOut = null;
+            Job<T> bestIn = null;
+            int bestShard = -1;
+            for (Job<T> out : assigned.get(longest)) {
+                for (int shard = 0; shard < costs.length; shard++) {
+                    if (shard == longest || !allowed.get(out.mIndex).contains(shard)) {
+                        continue;
+                    }
+                    // move
+                    long moved = Math.max(costs[longest] - out.mCost, costs[shard] + out.mCost);
+                    if (moved < best) {
+                        best = moved;
+                        bestOut = out;
+                        bestIn = null;
+                        bestShard = shard;
+                    }
+                    // swap
+                    for (Job<T> in : assigned.get(shard)) {
+                        if (in.mCost >= out.mCost || !allowed.get(in.mIndex).contains(longest)) {
+                            continue;
+                        }
+                        long delta = out.mCost - in.mCost;
+                        long swapped = Math.max(costs[longest] - delta, costs[shard] + delta);
+                        if (swapped < best) {
+                            best = swapped;
+                            bestOut = out;
+                            bestIn = in;
+                            bestShard = shard;
+                        }
+                    }
+                }
+            }
+            if (bestOut == null) {
+                return;
+            }
+            assigned.get(longest).remove(bestOut);
+            assigned.get(bestShard).add(bestOut);
+            costs[longest] -= bestOut.mCost;
+            costs[bestShard] += bestOut.mCost;
+            if (bestIn != null) {
+                assigned.get(bestShard).remove(bestIn);
+                assigned.get(longest).add(bestIn);
+                costs[bestShard] -= bestIn.mCost;
+                costs[longest] += bestIn.mCost;
+            }
+        }
+    }
+
+    private Set<Integer> getAllowedShards(Job<T> job) {
+        Set<Integer> allowed = new HashSet<>();
+        if (job.mPinnedShard >= 0) {
+            allowed.add(job.mPinnedShard);
+            return allowed;
+        }
+        for (int shard = 0; shard < mShardTokens.size(); shard++) {
+            if (mShardTokens.get(shard).containsAll(job.mTokens)) {
+                allowed.add(shard);
+            }
+        }
+        if (allowed.isEmpty()) {
+            // No shard has the tokens, the job has to run somewhere
+            for (int shard = 0; shard < mShardTokens.size(); shard++) {
+                allowed.add(shard);
+            }
+        }
+        return allowed;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.compatibility.common.tradefed.util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A per-device record of the files that have been pushed ahead of time to a staging directory on
+ * the device, so that the preparer that needs them later only has to move or install them from
+ * there instead of transferring them over adb.
+ * <p/>
+ * Entries are keyed by the local file and identified by its SHA-256 digest, so a file that changed
+ * on the host after it was staged is not used. An entry is handed out at most once.
+ */
+public class StagingArea {
+
+    /** The directory on the device files are staged to. */
+    public static final String STAGING_DIR = "/data/local/tmp/compatibility-staging";
+
+    private static final Map<String, StagingArea> sAreas = new ConcurrentHashMap<>();
+
+    private final String mSerial;
+    private final Map<String, Entry> mEntries = new HashMap<>();
+
+    private static class Entry {
+        private final String mDigest;
+        private final String mRemotePath;
+
+        Entry(String digest, String remotePath) {
+            mDigest = digest;
+            mRemotePath = remotePath;
+        }
+    }
+
+    /**
+     * Creates an empty staging area. Visible for testing; use {@link #getArea}.
+     */
+    StagingArea(String serial) {
+        mSerial = serial;
+    }
+
+    /**
+     * Returns the shared staging area of the given device, creating it if needed.
+     */
+    public static StagingArea getArea(String serial) {
+        StagingArea area = sAreas.get(serial);
+        if (area == null) {
+            sAreas.putIfAbsent(serial, new StagingArea(serial));
+            area = sAreas.get(serial);
+        }
+        return area;
+    }
+
+    /**
+     * Returns the shared staging area of the given device if one exists, null otherwise.
+     */
+    public static StagingArea peekArea(String serial) {
+        return sAreas.get(serial);
+    }
+
+    /**
+     * Returns the path on the device the given file is staged to. The digest is part of the name
+     * so different versions of a file never overwrite each other.
+     */
+    public static String getStagedPath(File file, String digest) {
+        return String.format("%s/%s-%s", STAGING_DIR, digest.substring(0, 16), file.getName());
+    }
+
+    /**
+     * @return the serial of the device this staging area belongs to.
+     */
+    public String getSerial() {
+        return mSerial;
+    }
+
+    /**
+     * Records that the given file, with the given digest, has been staged to remotePath.
+     */
+    public synchronized void put(File file, String digest, String remotePath) {
+        mEntries.put(file.getAbsolutePath(), new Entry(digest, remotePath));
+    }
+
+    /**
+     * @return whether the given file is staged with the given digest.
+     */
+    public synchronized boolean contains(File file, String digest) {
+        Entry entry = mEntries.get(file.getAbsolutePath());
+        return entry != null && entry.mDigest.equals(digest);
+    }
+
+    /**
+     * Removes the entry of the given file and returns where it was staged if its digest matches.
+     *
+     * @return the remote path of the staged file, or null if it was not staged with this digest.
+     */
+    public synchronized String take(File file, String digest) {
+        Entry entry = mEntries.get(file.getAbsolutePath());
+        if (entry == null || !entry.mDigest.equals(digest)) {
+            return null;
+        }
+        mEntries.remove(file.getAbsolutePath());
+        return entry.mRemotePath;
+    }
+
+    /**
+     * @return whether no file is currently staged.
+     */
+    public synchronized boolean isEmpty() {
+        return mEntries.isEmpty();
+    }
+
+    /**
+     * Forgets every staged file.
+     *
+     * @return the remote paths of the files that were staged and never used.
+     */
+    public synchronized List<String> clear() {
+        List<String> remotePaths = new ArrayList<>();
+        for (Entry entry : mEntries.values()) {
+            remotePaths.add(entry.mRemotePath);
+        }
+        mEntries.clear();
+        return remotePaths;
+    }
+}
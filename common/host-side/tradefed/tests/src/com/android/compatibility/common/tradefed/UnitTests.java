@@ -22,14 +22,20 @@ import com.android.compatibility.common.tradefed.result.ConsoleReporterTest;
 import com.android.compatibility.common.tradefed.result.MetadataReporterTest;
 import com.android.compatibility.common.tradefed.result.ResultReporterTest;
 import com.android.compatibility.common.tradefed.result.SubPlanCreatorTest;
+import com.android.compatibility.common.tradefed.targetprep.InstallLedgerHandlerTest;
 import com.android.compatibility.common.tradefed.targetprep.PropertyCheckTest;
 import com.android.compatibility.common.tradefed.targetprep.SettingsPreparerTest;
+import com.android.compatibility.common.tradefed.targetprep.SystemStatusCheckRunnerTest;
 import com.android.compatibility.common.tradefed.testtype.CompatibilityTestTest;
 import com.android.compatibility.common.tradefed.testtype.ModuleDefTest;
 import com.android.compatibility.common.tradefed.testtype.ModuleRepoTest;
 import com.android.compatibility.common.tradefed.testtype.SubPlanTest;
 import com.android.compatibility.common.tradefed.util.OptionHelperTest;
 import com.android.compatibility.common.tradefed.util.CollectorUtilTest;
+import com.android.compatibility.common.tradefed.util.DevicePropertySnapshotTest;
+import com.android.compatibility.common.tradefed.util.InstallLedgerTest;
+import com.android.compatibility.common.tradefed.util.ShardPlannerTest;
+import com.android.compatibility.common.tradefed.util.StagingAreaTest;
 
 import junit.framework.Test;
 import junit.framework.TestSuite;
@@ -52,13 +58,19 @@ public class UnitTests extends TestSuite {
         addTestSuite(CompatibilityTestTest.class);
         addTestSuite(OptionHelperTest.class);
         addTestSuite(CollectorUtilTest.class);
+        addTestSuite(DevicePropertySnapshotTest.class);
+        addTestSuite(InstallLedgerHandlerTest.class);
+        addTestSuite(InstallLedgerTest.class);
         addTestSuite(MetadataReporterTest.class);
         addTestSuite(ModuleDefTest.class);
         addTestSuite(ModuleRepoTest.class);
         addTestSuite(PropertyCheckTest.class);
         addTestSuite(SettingsPreparerTest.class);
+        addTestSuite(ShardPlannerTest.class);
+        addTestSuite(StagingAreaTest.class);
         addTestSuite(SubPlanTest.class);
         addTestSuite(SubPlanCreatorTest.class);
+        addTestSuite(SystemStatusCheckRunnerTest.class);
     }
 
     public static Test suite() {
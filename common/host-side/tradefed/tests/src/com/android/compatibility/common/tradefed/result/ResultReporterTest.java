@@ -35,6 +35,7 @@ import java.io.File;
 import java.io.FileFilter;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 public class ResultReporterTest extends TestCase {
 
@@ -382,6 +383,116 @@ public class ResultReporterTest extends TestCase {
                 result1.getResultStatus());
     }
 
+    public void testShardResultReporting() throws Exception {
+        IBuildInfo buildInfo2 = new BuildInfo(BUILD_NUMBER, "", "");
+        new CompatibilityBuildHelper(buildInfo2).init(SUITE_PLAN, DYNAMIC_CONFIG_URL, START_TIME);
+        mBuildInfo.setDeviceSerial("serial1");
+        buildInfo2.setDeviceSerial("serial2");
+        ResultReporter shard1 = new ResultReporter(mReporter);
+        ResultReporter shard2 = new ResultReporter(mReporter);
+        shard1.invocationStarted(mBuildInfo);
+        shard2.invocationStarted(buildInfo2);
+
+        shard1.testRunStarted(ID, 1);
+        TestIdentifier test1 = new TestIdentifier(CLASS, METHOD_1);
+        shard1.testStarted(test1);
+        shard1.testEnded(test1, new HashMap<String, String>());
+        shard1.testRunEnded(10, new HashMap<String, String>());
+
+        shard2.testRunStarted(ID, 2);
+        TestIdentifier test2 = new TestIdentifier(CLASS, METHOD_2);
+        shard2.testStarted(test2);
+        shard2.testFailed(test2, STACK_TRACE);
+        shard2.testEnded(test2, new HashMap<String, String>());
+        shard2.testRunEnded(20, new HashMap<String, String>());
+
+        // Module results are only published once the shard is done
+        IInvocationResult result = mReporter.getResult();
+        assertTrue(result.getModules().isEmpty());
+        shard1.invocationEnded(10);
+        assertEquals("Expected 1 pass", 1, result.countResults(TestStatus.PASS));
+        assertEquals("Expected 0 failures", 0, result.countResults(TestStatus.FAIL));
+        shard2.invocationEnded(20);
+
+        result = mReporter.getResult();
+        assertEquals("Expected 1 pass", 1, result.countResults(TestStatus.PASS));
+        assertEquals("Expected 1 failure", 1, result.countResults(TestStatus.FAIL));
+        assertEquals("Expected 1 not executed", 1, result.getNotExecuted());
+        List<IModuleResult> modules = result.getModules();
+        assertEquals("Expected 1 module", 1, modules.size());
+        IModuleResult module = modules.get(0);
+        assertEquals("Incorrect ID", ID, module.getId());
+        assertEquals("Incorrect runtime", 30, module.getRuntime());
+        assertEquals("Expected 2 test runs", 2, module.getTestRuns());
+        assertFalse(module.isDone());
+        ICaseResult caseResult = module.getResult(CLASS);
+        assertEquals("Expected 2 tests", 2, caseResult.getResults().size());
+        assertEquals(TestStatus.PASS, caseResult.getResult(METHOD_1).getResultStatus());
+        assertEquals(TestStatus.FAIL, caseResult.getResult(METHOD_2).getResultStatus());
+    }
+
+    public void testShardResultReporting_concurrentInvocationEnded() throws Exception {
+        final int moduleCount = 500;
+        IBuildInfo buildInfo2 = new BuildInfo(BUILD_NUMBER, "", "");
+        new CompatibilityBuildHelper(buildInfo2).init(SUITE_PLAN, DYNAMIC_CONFIG_URL, START_TIME);
+        mBuildInfo.setDeviceSerial("serial1");
+        buildInfo2.setDeviceSerial("serial2");
+        final ResultReporter[] shards = {
+                new ResultReporter(mReporter), new ResultReporter(mReporter)};
+        shards[0].invocationStarted(mBuildInfo);
+        shards[1].invocationStarted(buildInfo2);
+        for (int i = 0; i < shards.length; i++) {
+            for (int j = 0; j < moduleCount; j++) {
+                shards[i].testRunStarted(AbiUtils.createId(ABI, NAME + i + "_" + j), 1);
+                TestIdentifier test = new TestIdentifier(CLASS, METHOD_1);
+                shards[i].testStarted(test);
+                shards[i].testEnded(test, new HashMap<String, String>());
+                shards[i].testRunEnded(10, new HashMap<String, String>());
+            }
+        }
+
+        // Both shards end at the same time, the report must still contain all modules
+        final CountDownLatch start = new CountDownLatch(1);
+        final Throwable[] errors = new Throwable[shards.length];
+        Thread[] threads = new Thread[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            final int shard = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        shards[shard].invocationEnded(10);
+                    } catch (Throwable t) {
+                        errors[shard] = t;
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (Throwable error : errors) {
+            if (error != null) {
+                throw new AssertionError(error);
+            }
+        }
+
+        IInvocationResult result = mReporter.getResult();
+        assertEquals("Incorrect module count", 2 * moduleCount, result.getModules().size());
+        assertEquals("Incorrect pass count", 2 * moduleCount,
+                result.countResults(TestStatus.PASS));
+        File[] zips = mBuildHelper.getResultsDir().listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File pathname) {
+                return pathname.getName().endsWith(".zip");
+            }
+        });
+        assertEquals("Expected one result zip", 1, zips.length);
+    }
+
     public void testCopyFormattingFiles() throws Exception {
         File resultDir = new File(mBuildHelper.getResultsDir(), RESULT_DIR);
         resultDir.mkdirs();
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.compatibility.common.tradefed.targetprep;
+
+import com.android.compatibility.common.tradefed.util.StagingArea;
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.SyncException;
+import com.android.ddmlib.SyncException.SyncError;
+import com.android.tradefed.device.IManagedTestDevice;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.device.TestDeviceState;
+import com.android.tradefed.util.FileUtil;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+
+import java.io.File;
+
+/**
+ * Unit tests for the staging of {@link InstallLedgerHandler}
+ */
+public class InstallLedgerHandlerTest extends TestCase {
+
+    private static final String SERIAL = "install-ledger-handler-test";
+    private static final String REMOTE_PATH = "/data/local/tmp/foo";
+
+    private ITestDevice mMockDevice;
+    private IDevice mMockIDevice;
+    private File mFile;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        // A strict mock, so staging must not call anything but the expected methods, in
+        // particular no pushFile or recoverDevice on the ITestDevice
+        mMockDevice = EasyMock.createStrictMock(ITestDevice.class);
+        mMockIDevice = EasyMock.createMock(IDevice.class);
+        EasyMock.expect(mMockDevice.getSerialNumber()).andStubReturn(SERIAL);
+        mFile = FileUtil.createTempFile("foo", ".bin");
+        FileUtil.writeToFile("foo", mFile);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        FileUtil.deleteFile(mFile);
+        StagingArea.getArea(SERIAL).clear();
+        super.tearDown();
+    }
+
+    public void testStage() throws Exception {
+        EasyMock.expect(mMockDevice.getDeviceState()).andReturn(TestDeviceState.ONLINE);
+        EasyMock.expect(mMockDevice.getIDevice()).andReturn(mMockIDevice);
+        mMockIDevice.pushFile(EasyMock.eq(mFile.getAbsolutePath()),
+                EasyMock.startsWith(StagingArea.STAGING_DIR));
+        EasyMock.replay(mMockDevice, mMockIDevice);
+        assertTrue(InstallLedgerHandler.stage(mMockDevice, mFile, REMOTE_PATH, false));
+        assertFalse(StagingArea.getArea(SERIAL).isEmpty());
+        // A file that is already staged is not pushed again
+        assertTrue(InstallLedgerHandler.stage(mMockDevice, mFile, REMOTE_PATH, false));
+        EasyMock.verify(mMockDevice, mMockIDevice);
+    }
+
+    /**
+     * The wrapped device can still be cast to the interfaces of the real device.
+     */
+    public void testWrap_keepsInterfaces() throws Exception {
+        IManagedTestDevice device = EasyMock.createMock(IManagedTestDevice.class);
+        EasyMock.expect(device.getSerialNumber()).andStubReturn(SERIAL);
+        EasyMock.expect(device.getDeviceState()).andReturn(TestDeviceState.ONLINE);
+        EasyMock.replay(device);
+        ITestDevice wrapped = InstallLedgerHandler.wrap(device, null, false);
+        assertTrue(wrapped instanceof IManagedTestDevice);
+        assertEquals(TestDeviceState.ONLINE, ((IManagedTestDevice) wrapped).getDeviceState());
+        EasyMock.verify(device);
+    }
+
+    public void testStage_deviceNotOnline() throws Exception {
+        EasyMock.expect(mMockDevice.getDeviceState()).andReturn(TestDeviceState.NOT_AVAILABLE);
+        EasyMock.expect(mMockDevice.getIDevice()).andReturn(mMockIDevice);
+        EasyMock.replay(mMockDevice, mMockIDevice);
+        assertFalse(InstallLedgerHandler.stage(mMockDevice, mFile, REMOTE_PATH, false));
+        assertTrue(StagingArea.getArea(SERIAL).isEmpty());
+        EasyMock.verify(mMockDevice, mMockIDevice);
+    }
+
+    public void testStage_deviceInRecovery() throws Exception {
+        EasyMock.expect(mMockDevice.getDeviceState()).andReturn(TestDeviceState.RECOVERY);
+        EasyMock.expect(mMockDevice.getIDevice()).andReturn(mMockIDevice);
+        EasyMock.replay(mMockDevice, mMockIDevice);
+        assertFalse(InstallLedgerHandler.stage(mMockDevice, mFile, REMOTE_PATH, false));
+        assertTrue(StagingArea.getArea(SERIAL).isEmpty());
+        EasyMock.verify(mMockDevice, mMockIDevice);
+    }
+
+    public void testStage_pushFails() throws Exception {
+        EasyMock.expect(mMockDevice.getDeviceState()).andReturn(TestDeviceState.ONLINE);
+        EasyMock.expect(mMockDevice.getIDevice()).andReturn(mMockIDevice);
+        mMockIDevice.pushFile(EasyMock.eq(mFile.getAbsolutePath()),
+                EasyMock.startsWith(StagingArea.STAGING_DIR));
+        EasyMock.expectLastCall().andThrow(new SyncException(SyncError.TRANSFER_PROTOCOL_ERROR));
+        EasyMock.replay(mMockDevice, mMockIDevice);
+        assertFalse(InstallLedgerHandler.stage(mMockDevice, mFile, REMOTE_PATH, false));
+        assertTrue(StagingArea.getArea(SERIAL).isEmpty());
+        EasyMock.verify(mMockDevice, mMockIDevice);
+    }
+
+    public void testStage_cancelled() throws Exception {
+        EasyMock.replay(mMockDevice, mMockIDevice);
+        Thread.currentThread().interrupt();
+        try {
+            assertFalse(InstallLedgerHandler.stage(mMockDevice, mFile, REMOTE_PATH, false));
+        } finally {
+            Thread.interrupted();
+        }
+        assertTrue(StagingArea.getArea(SERIAL).isEmpty());
+        EasyMock.verify(mMockDevice, mMockIDevice);
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.compatibility.common.tradefed.targetprep;
+
+import com.android.tradefed.config.OptionSetter;
+import com.android.tradefed.device.ITestDevice;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit tests for {@link SystemStatusCheckRunner}
+ */
+public class SystemStatusCheckRunnerTest extends TestCase {
+
+    private ITestDevice mMockDevice;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mMockDevice = EasyMock.createMock(ITestDevice.class);
+        EasyMock.replay(mMockDevice);
+    }
+
+    public void testInterval() throws Exception {
+        CountingChecker everyModule = new CountingChecker(true);
+        CountingChecker everyThirdModule = new CountingChecker(true);
+        new OptionSetter(everyThirdModule).setOptionValue("check-interval", "3");
+        SystemStatusCheckRunner runner = new SystemStatusCheckRunner(
+                Arrays.<SystemStatusChecker>asList(everyModule, everyThirdModule), false);
+        for (int i = 0; i < 7; i++) {
+            assertTrue(runner.runPreModuleChecks(mMockDevice).isEmpty());
+            assertTrue(runner.runPostModuleChecks(mMockDevice).isEmpty());
+        }
+        runner.shutdown();
+        assertEquals(7, everyModule.mPreCount.get());
+        assertEquals(7, everyModule.mPostCount.get());
+        // Modules 0, 3 and 6
+        assertEquals(3, everyThirdModule.mPreCount.get());
+        assertEquals(3, everyThirdModule.mPostCount.get());
+    }
+
+    public void testFailures() throws Exception {
+        CountingChecker passing = new CountingChecker(true);
+        CountingChecker failing = new CountingChecker(false);
+        SystemStatusCheckRunner runner = new SystemStatusCheckRunner(
+                Arrays.<SystemStatusChecker>asList(passing, failing), true);
+        assertTrue(runner.runPreModuleChecks(mMockDevice).isEmpty());
+        assertEquals(Collections.singletonList(CountingChecker.class.getCanonicalName()),
+                runner.runPostModuleChecks(mMockDevice));
+        runner.shutdown();
+    }
+
+    /**
+     * Two concurrent checkers that each wait for the other can only pass if they run at the same
+     * time.
+     */
+    public void testConcurrent() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(2);
+        SystemStatusChecker first = new RendezvousChecker(latch);
+        SystemStatusChecker second = new RendezvousChecker(latch);
+        SystemStatusCheckRunner runner = new SystemStatusCheckRunner(
+                Arrays.asList(first, second), true);
+        assertTrue(runner.runPreModuleChecks(mMockDevice).isEmpty());
+        assertTrue(runner.runPostModuleChecks(mMockDevice).isEmpty());
+        runner.shutdown();
+        assertEquals(0, latch.getCount());
+        assertTrue(runner.getTotalTimeMs() >= 0);
+    }
+
+    /**
+     * Concurrent checkers never run at the same time as the sequential ones, which may change the
+     * device state.
+     */
+    public void testConcurrentNotWithSequential() throws Exception {
+        AtomicInteger sequentialRunning = new AtomicInteger();
+        AtomicInteger concurrentRunning = new AtomicInteger();
+        AtomicBoolean overlapped = new AtomicBoolean(false);
+        List<SystemStatusChecker> checkers = Arrays.<SystemStatusChecker>asList(
+                new OverlapChecker(concurrentRunning, sequentialRunning, overlapped, true),
+                new OverlapChecker(sequentialRunning, concurrentRunning, overlapped, false),
+                new OverlapChecker(concurrentRunning, sequentialRunning, overlapped, true));
+        SystemStatusCheckRunner runner = new SystemStatusCheckRunner(checkers, true);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(runner.runPreModuleChecks(mMockDevice).isEmpty());
+            assertTrue(runner.runPostModuleChecks(mMockDevice).isEmpty());
+        }
+        runner.shutdown();
+        assertFalse(overlapped.get());
+    }
+
+    private static class CountingChecker extends SystemStatusChecker {
+        private final boolean mResult;
+        final AtomicInteger mPreCount = new AtomicInteger();
+        final AtomicInteger mPostCount = new AtomicInteger();
+
+        CountingChecker(boolean result) {
+            mResult = result;
+        }
+
+        @Override
+        public boolean preExecutionCheck(ITestDevice device) {
+            mPreCount.incrementAndGet();
+            return true;
+        }
+
+        @Override
+        public boolean postExecutionCheck(ITestDevice device) {
+            mPostCount.incrementAndGet();
+            return mResult;
+        }
+
+        @Override
+        public boolean isConcurrent() {
+            return true;
+        }
+    }
+
+    /**
+     * A checker that records whether it ran while a checker of the other group was running.
+     */
+    private static class OverlapChecker extends SystemStatusChecker {
+        private final AtomicInteger mRunning;
+        private final AtomicInteger mOtherRunning;
+        private final AtomicBoolean mOverlapped;
+        private final boolean mConcurrent;
+
+        OverlapChecker(AtomicInteger running, AtomicInteger otherRunning,
+                AtomicBoolean overlapped, boolean concurrent) {
+            mRunning = running;
+            mOtherRunning = otherRunning;
+            mOverlapped = overlapped;
+            mConcurrent = concurrent;
+        }
+
+        @Override
+        public boolean postExecutionCheck(ITestDevice device) {
+            mRunning.incrementAndGet();
+            try {
+                for (int i = 0; i < 5; i++) {
+                    if (mOtherRunning.get() > 0) {
+                        mOverlapped.set(true);
+                    }
+                    Thread.sleep(10);
+                }
+            } catch (InterruptedException e) {
+                return false;
+            } finally {
+                mRunning.decrementAndGet();
+            }
+            return true;
+        }
+
+        @Override
+        public boolean isConcurrent() {
+            return mConcurrent;
+        }
+    }
+
+    private static class RendezvousChecker extends SystemStatusChecker {
+        private final CountDownLatch mLatch;
+
+        RendezvousChecker(CountDownLatch latch) {
+            mLatch = latch;
+        }
+
+        @Override
+        public boolean postExecutionCheck(ITestDevice device) {
+            mLatch.countDown();
+            try {
+                return mLatch.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public boolean isConcurrent() {
+            return true;
+        }
+    }
+}
@@ -16,16 +16,81 @@
 
 package com.android.compatibility.common.tradefed.testtype;
 
+import com.android.compatibility.common.tradefed.build.CompatibilityBuildHelper;
+import com.android.compatibility.common.tradefed.result.InvocationFailureHandler;
+import com.android.tradefed.build.BuildInfo;
+import com.android.tradefed.build.IBuildInfo;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.util.FileUtil;
+
 import junit.framework.TestCase;
 
+import org.easymock.EasyMock;
+
+import java.io.File;
+import java.util.List;
+
 public class CompatibilityTestTest extends TestCase {
 
+    private static final String ROOT_PROPERTY = "TESTS_ROOT";
+    private static final String BASE_DIR_NAME = "android-tests";
+    private static final String SERIAL = "compatibility-test-test";
+    private static final String MODULE_ID = "x86 ModuleName";
+
+    private File mRoot = null;
+    private IBuildInfo mBuildInfo;
+    private CompatibilityBuildHelper mBuildHelper;
+    private CompatibilityTest mTest;
+    private IModuleDef mMockModule;
+
     @Override
     public void setUp() throws Exception {
+        mRoot = FileUtil.createTempDir("root");
+        new File(mRoot, BASE_DIR_NAME).mkdirs();
+        System.setProperty(ROOT_PROPERTY, mRoot.getAbsolutePath());
+        mBuildInfo = new BuildInfo("2", "", "");
+        ITestDevice device = EasyMock.createMock(ITestDevice.class);
+        EasyMock.expect(device.getSerialNumber()).andStubReturn(SERIAL);
+        EasyMock.replay(device);
+        mTest = new CompatibilityTest();
+        mTest.setDevice(device);
+        mTest.setBuild(mBuildInfo);
+        // The helper every shard of the invocation shares the result directory through
+        mBuildHelper = new CompatibilityBuildHelper(mBuildInfo);
+        mBuildHelper.getResultDir().mkdirs();
+        mMockModule = EasyMock.createMock(IModuleDef.class);
+        EasyMock.expect(mMockModule.getId()).andStubReturn(MODULE_ID);
     }
 
     @Override
     public void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mRoot);
     }
 
+    public void testPrepareModule() throws Exception {
+        EasyMock.expect(mMockModule.prepare(EasyMock.eq(false),
+                EasyMock.<List<String>>anyObject())).andReturn(true);
+        EasyMock.replay(mMockModule);
+        assertTrue(mTest.prepareModule(mMockModule));
+        assertFalse(InvocationFailureHandler.hasFailed(mBuildHelper));
+        EasyMock.verify(mMockModule);
+    }
+
+    public void testPrepareModule_failed() throws Exception {
+        EasyMock.expect(mMockModule.prepare(EasyMock.eq(false),
+                EasyMock.<List<String>>anyObject())).andReturn(false);
+        EasyMock.replay(mMockModule);
+        assertFalse(mTest.prepareModule(mMockModule));
+        // The failure stops the other shards
+        assertTrue(InvocationFailureHandler.hasFailed(mBuildHelper));
+        EasyMock.verify(mMockModule);
+    }
+
+    public void testPrepareModule_failedOnOtherShard() throws Exception {
+        InvocationFailureHandler.setFailed(mBuildHelper, new RuntimeException("other shard"));
+        // The module is not prepared
+        EasyMock.replay(mMockModule);
+        assertFalse(mTest.prepareModule(mMockModule));
+        EasyMock.verify(mMockModule);
+    }
 }
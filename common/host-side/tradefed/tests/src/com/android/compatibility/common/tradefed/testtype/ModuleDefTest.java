@@ -16,9 +16,12 @@
 
 package com.android.compatibility.common.tradefed.testtype;
 
+import com.android.compatibility.common.tradefed.targetprep.IStagedPreparer;
 import com.android.compatibility.common.tradefed.util.NoOpTestInvocationListener;
 import com.android.compatibility.common.util.AbiUtils;
+import com.android.tradefed.build.IBuildInfo;
 import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.result.ITestInvocationListener;
 import com.android.tradefed.targetprep.ITargetPreparer;
 import com.android.tradefed.testtype.IAbi;
@@ -33,6 +36,7 @@ import org.easymock.EasyMock;
 import junit.framework.TestCase;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
@@ -70,6 +74,35 @@ public class ModuleDefTest extends TestCase {
         EasyMock.verify(mockListener);
     }
 
+    public void testStage() throws Exception {
+        IAbi abi = new Abi(ABI, "");
+        ITestDevice mockDevice = EasyMock.createMock(ITestDevice.class);
+        IBuildInfo mockBuild = EasyMock.createMock(IBuildInfo.class);
+        IStagedPreparer mockStaged = EasyMock.createMock(IStagedPreparer.class);
+        ITargetPreparer mockPreparer = EasyMock.createMock(ITargetPreparer.class);
+        // Only staged preparers are called, and setUp is left for run()
+        mockStaged.stage(mockDevice, mockBuild);
+        EasyMock.expectLastCall().andThrow(new RuntimeException("staging failed"));
+        EasyMock.replay(mockDevice, mockBuild, mockStaged, mockPreparer);
+        IModuleDef def = new ModuleDef(NAME, abi, new MockRemoteTest(),
+                Arrays.asList(mockStaged, mockPreparer));
+        def.setDevice(mockDevice);
+        def.setBuild(mockBuild);
+        def.stage();
+        EasyMock.verify(mockDevice, mockBuild, mockStaged, mockPreparer);
+    }
+
+    public void testStage_notWhitelisted() throws Exception {
+        IAbi abi = new Abi(ABI, "");
+        IStagedPreparer mockStaged = EasyMock.createMock(IStagedPreparer.class);
+        EasyMock.replay(mockStaged);
+        IModuleDef def = new ModuleDef(NAME, abi, new MockRemoteTest(),
+                Arrays.<ITargetPreparer>asList(mockStaged));
+        def.setPreparerWhitelist(Collections.singleton("com.android.foo.Preparer"));
+        def.stage();
+        EasyMock.verify(mockStaged);
+    }
+
     private class MockRemoteTest implements IRemoteTest, ITestFilterReceiver, IAbiReceiver,
             IRuntimeHintProvider, ITestCollector {
 
@@ -20,6 +20,7 @@ import com.android.compatibility.common.tradefed.build.CompatibilityBuildHelper;
 import com.android.compatibility.common.tradefed.build.CompatibilityBuildProvider;
 import com.android.compatibility.common.tradefed.testtype.ModuleRepo.ConfigFilter;
 import com.android.compatibility.common.tradefed.testtype.IModuleDef;
+import com.android.compatibility.common.tradefed.util.ShardPlanner;
 import com.android.compatibility.common.util.AbiUtils;
 import com.android.tradefed.build.IBuildInfo;
 import com.android.tradefed.testtype.IAbi;
@@ -33,6 +34,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -270,6 +272,32 @@ public class ModuleRepoTest extends TestCase {
         assertEquals("Shards wrong", 3*3, shardableCount);
     }
 
+    public void testPreviewShards() throws Exception {
+        createConfig(mTestsDir, "sharder_1", null, SHARDABLE_TEST_STUB);
+        ShardPlanner.Plan<IModuleDef> plan = new ModuleRepo().previewShards(3, mTestsDir, ABIS,
+                mBuild);
+        assertEquals("Shards wrong", 3, plan.getShardCount());
+        List<String> ids = new ArrayList<>();
+        long cost = 0;
+        for (int i = 0; i < plan.getShardCount(); i++) {
+            for (IModuleDef def : plan.getShard(i)) {
+                ids.add(def.getId());
+            }
+            cost += plan.getCost(i);
+        }
+        // The modules are planned per ABI, and the shardable module in 3 parts per ABI
+        List<String> expectedIds = new ArrayList<>(Arrays.asList(EXPECTED_MODULE_IDS));
+        for (String abi : Arrays.asList(ABI_32, ABI_64)) {
+            for (int i = 0; i < 3; i++) {
+                expectedIds.add(AbiUtils.createId(abi, "sharder_1"));
+            }
+        }
+        Collections.sort(ids);
+        Collections.sort(expectedIds);
+        assertEquals("Planned modules wrong", expectedIds, ids);
+        assertTrue("Predicted time wrong", plan.getMakespan() * 3 >= cost);
+    }
+
     public void testGetModuleIds() {
         mRepo.initialize(3, mTestsDir, ABIS, DEVICE_TOKENS, TEST_ARGS, MODULE_ARGS, INCLUDES,
                 EXCLUDES, mBuild);
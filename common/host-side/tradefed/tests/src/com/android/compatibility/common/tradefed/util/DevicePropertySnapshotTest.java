@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.compatibility.common.tradefed.util;
+
+import com.android.ddmlib.IDevice;
+import com.android.tradefed.device.ITestDevice;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+
+import java.util.Arrays;
+
+/**
+ * Unit tests for {@link DevicePropertySnapshot}
+ */
+public class DevicePropertySnapshotTest extends TestCase {
+
+    private static final String SERIAL = "device-property-snapshot-test";
+
+    private static final String GETPROP_OUTPUT = "[dalvik.vm.heapsize]: [512m]\n"
+            + "[ro.build.fingerprint]: [google/foo/foo:7.0/NRD90M/123:userdebug/dev-keys]\n"
+            + "[ro.build.type]: [userdebug]\n"
+            + "[ro.product.cpu.abi]: [arm64-v8a]\n"
+            + "[ro.product.cpu.abilist]: [arm64-v8a,armeabi-v7a,armeabi]\n"
+            + "[ro.multiline]: [first\n"
+            + "second]\n"
+            + "[ro.empty]: []\n";
+
+    public void testGetProperty() throws Exception {
+        DevicePropertySnapshot snapshot = new DevicePropertySnapshot(GETPROP_OUTPUT);
+        assertEquals("512m", snapshot.getProperty("dalvik.vm.heapsize"));
+        assertEquals("google/foo/foo:7.0/NRD90M/123:userdebug/dev-keys",
+                snapshot.getFingerprint());
+        assertEquals("first\nsecond", snapshot.getProperty("ro.multiline"));
+        assertEquals("", snapshot.getProperty("ro.empty"));
+        assertNull(snapshot.getProperty("ro.missing"));
+        assertFalse(snapshot.isUserBuild());
+        assertEquals(7, snapshot.getProperties().size());
+    }
+
+    public void testGetSupportedAbis() throws Exception {
+        assertEquals(Arrays.asList("arm64-v8a", "armeabi-v7a", "armeabi"),
+                new DevicePropertySnapshot(GETPROP_OUTPUT).getSupportedAbis());
+        // Devices without an ABI list only define the primary and secondary ABIs
+        DevicePropertySnapshot legacy = new DevicePropertySnapshot(
+                "[ro.product.cpu.abi]: [armeabi-v7a]\n[ro.product.cpu.abi2]: [armeabi]\n");
+        assertEquals(Arrays.asList("armeabi-v7a", "armeabi"), legacy.getSupportedAbis());
+    }
+
+    public void testEmptyOutput() throws Exception {
+        assertTrue(new DevicePropertySnapshot(null).getProperties().isEmpty());
+        assertTrue(new DevicePropertySnapshot("error: device not found").getSupportedAbis()
+                .isEmpty());
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        DevicePropertySnapshot.invalidate(SERIAL);
+        super.tearDown();
+    }
+
+    public void testGet_cachedPerConnection() throws Exception {
+        ITestDevice device = EasyMock.createMock(ITestDevice.class);
+        IDevice connection = EasyMock.createMock(IDevice.class);
+        IDevice reconnection = EasyMock.createMock(IDevice.class);
+        EasyMock.expect(device.getSerialNumber()).andStubReturn(SERIAL);
+        EasyMock.expect(device.getIDevice()).andReturn(connection).times(2);
+        EasyMock.expect(device.executeShellCommand("getprop")).andReturn(GETPROP_OUTPUT);
+        // The device rebooted into a userdebug build and reconnected
+        EasyMock.expect(device.getIDevice()).andReturn(reconnection).times(2);
+        EasyMock.expect(device.executeShellCommand("getprop")).andReturn(
+                "[ro.build.fingerprint]: [google/foo/foo:7.0/NRD90N/456:user/release-keys]\n"
+                + "[ro.build.type]: [user]\n");
+        EasyMock.replay(device);
+
+        DevicePropertySnapshot snapshot = DevicePropertySnapshot.get(device);
+        assertFalse(snapshot.isUserBuild());
+        assertSame(snapshot, DevicePropertySnapshot.get(device));
+        DevicePropertySnapshot rebooted = DevicePropertySnapshot.get(device);
+        assertTrue(rebooted.isUserBuild());
+        assertSame(rebooted, DevicePropertySnapshot.get(device));
+        EasyMock.verify(device);
+    }
+
+    public void testGet_invalidate() throws Exception {
+        ITestDevice device = EasyMock.createMock(ITestDevice.class);
+        IDevice connection = EasyMock.createMock(IDevice.class);
+        EasyMock.expect(device.getSerialNumber()).andStubReturn(SERIAL);
+        EasyMock.expect(device.getIDevice()).andStubReturn(connection);
+        EasyMock.expect(device.executeShellCommand("getprop")).andReturn(GETPROP_OUTPUT)
+                .times(2);
+        EasyMock.replay(device);
+
+        DevicePropertySnapshot snapshot = DevicePropertySnapshot.get(device);
+        DevicePropertySnapshot.invalidate(SERIAL);
+        assertNotSame(snapshot, DevicePropertySnapshot.get(device));
+        EasyMock.verify(device);
+    }
+
+    public void testGet_unusableOutputNotCached() throws Exception {
+        ITestDevice device = EasyMock.createMock(ITestDevice.class);
+        IDevice connection = EasyMock.createMock(IDevice.class);
+        EasyMock.expect(device.getSerialNumber()).andStubReturn(SERIAL);
+        EasyMock.expect(device.getIDevice()).andStubReturn(connection);
+        EasyMock.expect(device.executeShellCommand("getprop")).andReturn("");
+        EasyMock.expect(device.executeShellCommand("getprop")).andReturn(GETPROP_OUTPUT);
+        EasyMock.replay(device);
+
+        assertNull(DevicePropertySnapshot.get(device).getFingerprint());
+        assertNotNull(DevicePropertySnapshot.get(device).getFingerprint());
+        EasyMock.verify(device);
+    }
+}
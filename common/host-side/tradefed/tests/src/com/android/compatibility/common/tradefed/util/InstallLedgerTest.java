@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.compatibility.common.tradefed.util;
+
+import com.android.compatibility.common.tradefed.util.InstallLedger.Record;
+import com.android.tradefed.util.FileUtil;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+
+/**
+ * Unit tests for {@link InstallLedger}
+ */
+public class InstallLedgerTest extends TestCase {
+
+    private static final String SERIAL = "serial";
+    private static final String FINGERPRINT = "fingerprint";
+    private static final String PACKAGE = "com.android.foo";
+    private static final String DIGEST = "abcdef";
+
+    private File mDir;
+
+    @Override
+    public void setUp() throws Exception {
+        mDir = FileUtil.createTempDir("install-ledger");
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mDir);
+    }
+
+    public void testGet_digestMismatch() throws Exception {
+        InstallLedger ledger = new InstallLedger(SERIAL);
+        ledger.put(PACKAGE, new Record(DIGEST, 10L, "1", 100L));
+        assertNotNull(ledger.get(PACKAGE, DIGEST));
+        assertNull(ledger.get(PACKAGE, "012345"));
+        ledger.remove(PACKAGE);
+        assertNull(ledger.get(PACKAGE, DIGEST));
+    }
+
+    public void testGet_packageAndPathKeys() throws Exception {
+        InstallLedger ledger = new InstallLedger(SERIAL);
+        ledger.put(InstallLedger.getPackageKey(PACKAGE), new Record(DIGEST, 10L, "1", 100L));
+        assertNotNull(ledger.get(InstallLedger.getPackageKey(PACKAGE), DIGEST));
+        assertNull(ledger.get(InstallLedger.getPathKey(PACKAGE), DIGEST));
+    }
+
+    public void testSkipped() throws Exception {
+        InstallLedger ledger = new InstallLedger(SERIAL);
+        Record record = new Record(DIGEST, 10L, "1", 100L);
+        ledger.skipped(record);
+        ledger.skipped(record);
+        assertEquals(2, ledger.getSkipCount());
+        assertEquals(20L, ledger.getBytesSaved());
+        assertEquals(200L, ledger.getTimeSavedMs());
+    }
+
+    public void testPersistence() throws Exception {
+        File storage = new File(mDir, "ledger.properties");
+        InstallLedger ledger = new InstallLedger(SERIAL);
+        ledger.attach(storage, FINGERPRINT);
+        ledger.put(PACKAGE, new Record(DIGEST, 10L, "1", 100L, "-g --abi x86:64"));
+
+        InstallLedger reloaded = new InstallLedger(SERIAL);
+        reloaded.attach(storage, FINGERPRINT);
+        Record record = reloaded.get(PACKAGE, DIGEST);
+        assertNotNull(record);
+        assertEquals(10L, record.getSize());
+        assertEquals("1", record.getVersion());
+        assertEquals(100L, record.getDurationMs());
+        assertEquals("-g --abi x86:64", record.getFlags());
+
+        InstallLedger flashed = new InstallLedger(SERIAL);
+        flashed.attach(storage, "other-fingerprint");
+        assertNull(flashed.get(PACKAGE, DIGEST));
+    }
+
+    /**
+     * Records of a previous format are dropped, their keys may clash with the current keys.
+     */
+    public void testPersistence_otherFormat() throws Exception {
+        File storage = new File(mDir, "ledger.properties");
+        FileUtil.writeToFile(String.format("fingerprint=%s\nrecord.%s=%s:10:1:100\n",
+                FINGERPRINT, PACKAGE, DIGEST), storage);
+        InstallLedger ledger = new InstallLedger(SERIAL);
+        ledger.attach(storage, FINGERPRINT);
+        assertNull(ledger.get(PACKAGE, DIGEST));
+    }
+
+    public void testGetDigest() throws Exception {
+        File file = new File(mDir, "file.txt");
+        FileUtil.writeToFile("abc", file);
+        assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad",
+                InstallLedger.getDigest(file));
+    }
+}
@@ -76,6 +76,17 @@ public class OptionHelperTest extends TestCase {
         assertEquals("Expected two elements", 2, optionShortNames.size());
     }
 
+    public void testGetOptionValues() throws Exception {
+        mTestClass = "FooTest";
+        mFilters.add("filter1");
+        mFilters.add("filter2");
+        assertEquals(Arrays.asList("FooTest"), OptionHelper.getOptionValues(this, TEST_CLASS));
+        assertEquals(Arrays.asList("filter1", "filter2"),
+                OptionHelper.getOptionValues(this, TEST_FILTER));
+        assertTrue(OptionHelper.getOptionValues(this, TEST_NAME).isEmpty());
+        assertTrue(OptionHelper.getOptionValues(this, "no-such-option").isEmpty());
+    }
+
     public void testGetValidCliArgs() throws Exception {
         String fakeTestClass = "FooTestCases";
         String fakeTestMethod = "android.foo.footestsuite.RealTest#testSuperReal";
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.compatibility.common.tradefed.util;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Unit tests for {@link ShardPlanner}
+ */
+public class ShardPlannerTest extends TestCase {
+
+    public void testPlan_balanced() throws Exception {
+        // Longest first gives 8+5+4 and 7+6 (makespan 17), the optimum is 8+7 and 6+5+4
+        ShardPlanner<String> planner = new ShardPlanner<>(2);
+        long[] costs = {8, 7, 6, 5, 4};
+        for (int i = 0; i < costs.length; i++) {
+            planner.addJob("m" + i, costs[i], null);
+        }
+        ShardPlanner.Plan<String> plan = planner.plan();
+        assertEquals(2, plan.getShardCount());
+        assertEquals(15, plan.getMakespan());
+        assertEquals(30, plan.getCost(0) + plan.getCost(1));
+        assertEquals(5, plan.getShard(0).size() + plan.getShard(1).size());
+    }
+
+    public void testPlan_refinesGreedy() throws Exception {
+        // Longest first gives 3+2+2 and 3+2 (makespan 7), the optimum is 3+3 and 2+2+2
+        ShardPlanner<String> planner = new ShardPlanner<>(2);
+        planner.addJob("a", 3, null);
+        planner.addJob("b", 3, null);
+        planner.addJob("c", 2, null);
+        planner.addJob("d", 2, null);
+        planner.addJob("e", 2, null);
+        assertEquals(6, planner.plan().getMakespan());
+    }
+
+    public void testPlan_tokens() throws Exception {
+        List<Set<String>> shardTokens = new ArrayList<>();
+        shardTokens.add(Collections.<String>emptySet());
+        shardTokens.add(new HashSet<>(Arrays.asList("sim")));
+        ShardPlanner<String> planner = new ShardPlanner<>(shardTokens);
+        planner.addJob("free1", 5, null);
+        planner.addJob("free2", 5, null);
+        planner.addJob("sim1", 4, new HashSet<>(Arrays.asList("sim")));
+        planner.addJob("sim2", 4, new HashSet<>(Arrays.asList("sim")));
+        planner.addJob("nfc", 1, new HashSet<>(Arrays.asList("nfc")));
+        ShardPlanner.Plan<String> plan = planner.plan();
+        assertTrue(plan.getShard(1).contains("sim1"));
+        assertTrue(plan.getShard(1).contains("sim2"));
+        // no shard has the nfc token, so it goes to the shorter shard
+        assertTrue(plan.getShard(1).contains("nfc"));
+        assertEquals(Arrays.asList("free1", "free2"), plan.getShard(0));
+        assertEquals(10, plan.getMakespan());
+    }
+
+    public void testPlan_pinned() throws Exception {
+        ShardPlanner<String> planner = new ShardPlanner<>(3);
+        for (int i = 0; i < 3; i++) {
+            planner.pinJob("deqp", 10, i);
+        }
+        planner.addJob("a", 6, null);
+        planner.addJob("b", 3, null);
+        planner.addJob("c", 3, null);
+        ShardPlanner.Plan<String> plan = planner.plan();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(plan.getShard(i).contains("deqp"));
+        }
+        assertEquals(16, plan.getMakespan());
+        assertEquals(Arrays.asList("deqp", "a"), plan.getShard(0));
+    }
+
+    public void testPlan_moreShardsThanJobs() throws Exception {
+        ShardPlanner<String> planner = new ShardPlanner<>(3);
+        planner.addJob("a", 1, null);
+        ShardPlanner.Plan<String> plan = planner.plan();
+        assertEquals(3, plan.getShardCount());
+        assertEquals(Arrays.asList("a"), plan.getShard(0));
+        assertTrue(plan.getShard(1).isEmpty());
+        assertEquals(1, plan.getMakespan());
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.compatibility.common.tradefed.util;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Unit tests for {@link StagingArea}
+ */
+public class StagingAreaTest extends TestCase {
+
+    private static final String SERIAL = "serial";
+    private static final String DIGEST = "0123456789abcdef0123456789abcdef";
+    private static final File FILE = new File("/tmp/Foo.apk");
+
+    public void testGetStagedPath() throws Exception {
+        assertEquals(StagingArea.STAGING_DIR + "/0123456789abcdef-Foo.apk",
+                StagingArea.getStagedPath(FILE, DIGEST));
+    }
+
+    public void testTake() throws Exception {
+        StagingArea area = new StagingArea(SERIAL);
+        String remotePath = StagingArea.getStagedPath(FILE, DIGEST);
+        area.put(FILE, DIGEST, remotePath);
+        assertTrue(area.contains(FILE, DIGEST));
+        // A file that changed since it was staged is not handed out
+        assertNull(area.take(FILE, "fedcba"));
+        assertEquals(remotePath, area.take(FILE, DIGEST));
+        // Each staged file is only used once
+        assertNull(area.take(FILE, DIGEST));
+        assertTrue(area.isEmpty());
+    }
+
+    public void testClear() throws Exception {
+        StagingArea area = new StagingArea(SERIAL);
+        area.put(FILE, DIGEST, "/remote/path");
+        assertEquals(Arrays.asList("/remote/path"), area.clear());
+        assertFalse(area.contains(FILE, DIGEST));
+        assertTrue(area.clear().isEmpty());
+    }
+}
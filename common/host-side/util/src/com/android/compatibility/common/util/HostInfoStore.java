@@ -44,7 +44,8 @@ public class HostInfoStore extends InfoStore {
     @Override
     public void open() throws IOException {
         FileOutputStream out = new FileOutputStream(mJsonFile);
-        mJsonWriter = new JsonWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        mJsonWriter = new JsonWriter(
+                wrapWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)));
         // TODO(agathaman): remove to make json output less pretty
         mJsonWriter.setIndent("  ");
         mJsonWriter.beginObject();
@@ -177,11 +178,7 @@ public class HostInfoStore extends InfoStore {
     public void addArrayResult(String name, int[] array) throws IOException {
         checkName(name);
         mJsonWriter.name(name);
-        mJsonWriter.beginArray();
-        for (int value : checkArray(array)) {
-            mJsonWriter.value(value);
-        }
-        mJsonWriter.endArray();
+        mJsonWriter.array(checkArray(array));
     }
 
     /**
@@ -191,11 +188,7 @@ public class HostInfoStore extends InfoStore {
     public void addArrayResult(String name, long[] array) throws IOException {
         checkName(name);
         mJsonWriter.name(name);
-        mJsonWriter.beginArray();
-        for (long value : checkArray(array)) {
-            mJsonWriter.value(value);
-        }
-        mJsonWriter.endArray();
+        mJsonWriter.array(checkArray(array));
     }
 
     /**
@@ -219,11 +212,7 @@ public class HostInfoStore extends InfoStore {
     public void addArrayResult(String name, double[] array) throws IOException {
         checkName(name);
         mJsonWriter.name(name);
-        mJsonWriter.beginArray();
-        for (double value : checkArray(array)) {
-            mJsonWriter.value(value);
-        }
-        mJsonWriter.endArray();
+        mJsonWriter.array(checkArray(array));
     }
 
     /**
@@ -54,6 +54,8 @@ public final class MetricsReportLog extends ReportLog {
             final File dir = FileUtil.createNamedTempDir(TEMPORARY_REPORT_FOLDER);
             File jsonFile = new File(dir, mReportLogName + ".reportlog.json");
             store = new ReportLogHostInfoStore(jsonFile, mStreamName);
+            // Metrics are often added while measuring, keep the file system out of the way
+            store.setAsyncFlush(true);
             store.open();
         } catch (Exception e) {
             e.printStackTrace();
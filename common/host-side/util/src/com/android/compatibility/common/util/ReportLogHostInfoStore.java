@@ -65,7 +65,7 @@ public class ReportLogHostInfoStore extends HostInfoStore {
         formatWriter.write("\"" + mStreamName + "\":", 0, mStreamName.length() + 3);
         formatWriter.flush();
         formatWriter.close();
-        mJsonWriter = new JsonWriter(new FileWriter(tempJsonFile, true));
+        mJsonWriter = new JsonWriter(wrapWriter(new FileWriter(tempJsonFile, true)));
         mJsonWriter.beginObject();
     }
 
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.compatibility.common.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link Writer} that collects the characters in chunks and passes them to another writer on a
+ * background thread, so writing does not wait for the file system.
+ * <p/>
+ * The chunks are reused, so writing does not allocate once the writer is warmed up. The writer
+ * only blocks when the background thread falls behind by more than {@link #MAX_CHUNKS} chunks.
+ * {@link #flush()} hands off the characters written so far and returns without waiting for them,
+ * {@link #close()} waits until everything is written and closes the other writer. Errors of the
+ * background thread are thrown by the next call to write, flush or close, also when the
+ * background thread has stopped while the writer was blocked.
+ */
+public class AsyncWriter extends Writer {
+
+    private static final int CHUNK_SIZE = 8192;
+    private static final int MAX_CHUNKS = 16;
+    /** How long a hand-off waits before checking again whether the background thread stopped. */
+    private static final long HAND_OFF_TIMEOUT_MS = 100;
+
+    /** Characters to write, and whether to flush or close the other writer afterwards. */
+    private static class Chunk {
+        final char[] mChars = new char[CHUNK_SIZE];
+        int mLength = 0;
+        boolean mFlush = false;
+        boolean mClose = false;
+    }
+
+    private final Writer mOut;
+    private final BlockingQueue<Chunk> mPending = new ArrayBlockingQueue<>(MAX_CHUNKS);
+    private final BlockingQueue<Chunk> mFree = new ArrayBlockingQueue<>(MAX_CHUNKS + 1);
+    private final Thread mThread;
+    private Chunk mChunk = new Chunk();
+    private boolean mClosed = false;
+    private volatile IOException mError = null;
+    /** Set by the background thread when it no longer takes chunks, after setting mError. */
+    private volatile boolean mStopped = false;
+
+    /**
+     * @param out the writer to pass the characters to, it is only used by the background thread
+     */
+    public AsyncWriter(Writer out) {
+        mOut = out;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "AsyncWriter");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        checkOpen();
+        while (len > 0) {
+            int count = Math.min(len, CHUNK_SIZE - mChunk.mLength);
+            System.arraycopy(cbuf, off, mChunk.mChars, mChunk.mLength, count);
+            mChunk.mLength += count;
+            off += count;
+            len -= count;
+            if (mChunk.mLength == CHUNK_SIZE) {
+                handOff(false, false);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        checkOpen();
+        while (len > 0) {
+            int count = Math.min(len, CHUNK_SIZE - mChunk.mLength);
+            str.getChars(off, off + count, mChunk.mChars, mChunk.mLength);
+            mChunk.mLength += count;
+            off += count;
+            len -= count;
+            if (mChunk.mLength == CHUNK_SIZE) {
+                handOff(false, false);
+            }
+        }
+    }
+
+    /**
+     * Hands off the characters written so far and lets the background thread flush the other
+     * writer, without waiting for it.
+     */
+    @Override
+    public void flush() throws IOException {
+        checkOpen();
+        handOff(true, false);
+    }
+
+    /**
+     * Writes the remaining characters, closes the other writer and waits for it.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        handOff(false, true);
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while closing");
+        }
+        checkError();
+    }
+
+    private void checkOpen() throws IOException {
+        if (mClosed) {
+            throw new IOException("Writer is closed");
+        }
+        checkError();
+    }
+
+    private void checkError() throws IOException {
+        IOException error = mError;
+        if (error != null) {
+            throw new IOException("Failed to write in the background", error);
+        }
+    }
+
+    private void handOff(boolean flush, boolean close) throws IOException {
+        mChunk.mFlush = flush;
+        mChunk.mClose = close;
+        try {
+            // Nothing takes the chunk once the background thread stopped, so do not wait for a
+            // free slot forever
+            checkStopped();
+            while (!mPending.offer(mChunk, HAND_OFF_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                checkStopped();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing");
+        }
+        mChunk = mFree.poll();
+        if (mChunk == null) {
+            mChunk = new Chunk();
+        }
+    }
+
+    private void checkStopped() throws IOException {
+        if (mStopped) {
+            checkError();
+            throw new IOException("The background writer has stopped");
+        }
+    }
+
+    /**
+     * Writes the pending chunks until a chunk asks to close. After an error the remaining chunks
+     * are discarded, so the writing thread does not block.
+     */
+    private void drain() {
+        try {
+            drainChunks();
+        } finally {
+            mStopped = true;
+        }
+    }
+
+    private void drainChunks() {
+        while (true) {
+            Chunk chunk;
+            try {
+                chunk = mPending.take();
+            } catch (InterruptedException e) {
+                mError = new InterruptedIOException("Interrupted while writing");
+                try {
+                    mOut.close();
+                } catch (IOException ignored) {
+                    // already failing with the interrupt
+                }
+                return;
+            }
+            if (mError == null) {
+                try {
+                    mOut.write(chunk.mChars, 0, chunk.mLength);
+                    if (chunk.mFlush) {
+                        mOut.flush();
+                    }
+                } catch (IOException e) {
+                    mError = e;
+                }
+            }
+            if (chunk.mClose) {
+                try {
+                    mOut.close();
+                } catch (IOException e) {
+                    if (mError == null) {
+                        mError = e;
+                    }
+                }
+                return;
+            }
+            chunk.mLength = 0;
+            mFree.offer(chunk);
+        }
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.compatibility.common.util;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Renders the failure report of a result file: the summary of the invocation, the test counts of
+ * each module and the failing tests with their failure message.
+ * <p/>
+ * The result file is read with a pull parser in one pass, and only the module counts and the
+ * failing tests are kept, so rendering does not build a document of the whole result. The
+ * renderer has no state, several reports can be rendered at the same time.
+ */
+public class FailureReportRenderer {
+
+    private static final String TYPE = "org.kxml2.io.KXmlParser,org.kxml2.io.KXmlSerializer";
+    private static final String NS = null;
+
+    // XML constants, see ResultHandler
+    private static final String ABI_ATTR = "abi";
+    private static final String BUILD_TAG = "Build";
+    private static final String CASE_TAG = "TestCase";
+    private static final String FAILURE_TAG = "Failure";
+    private static final String MESSAGE_ATTR = "message";
+    private static final String MODULE_TAG = "Module";
+    private static final String NAME_ATTR = "name";
+    private static final String PASS_ATTR = "pass";
+    private static final String RESULT_ATTR = "result";
+    private static final String RESULT_TAG = "Result";
+    private static final String SUMMARY_TAG = "Summary";
+    private static final String TEST_TAG = "Test";
+
+    private static final String FAIL = "fail";
+    private static final String NOT_EXECUTED = "not_executed";
+
+    // Element depths in the result file
+    private static final int RESULT_DEPTH = 1;
+    private static final int MODULE_DEPTH = 2;
+    private static final int CASE_DEPTH = 3;
+    private static final int TEST_DEPTH = 4;
+    private static final int FAILURE_DEPTH = 5;
+
+    /** The counts and failing tests of a module. */
+    private static class ModuleFailures {
+        final String mName;
+        final String mAbi;
+        final String mPass;
+        int mNotExecuted = 0;
+        // failing tests as pairs of "TestCase#Test" and failure message
+        final List<String[]> mFailures = new ArrayList<>();
+
+        ModuleFailures(String name, String abi, String pass) {
+            mName = name;
+            mAbi = abi;
+            mPass = pass;
+        }
+
+        String getLabel() {
+            return mName + " - " + mAbi;
+        }
+    }
+
+    /**
+     * Renders the failure report of a result file.
+     *
+     * @param inputXml the result file
+     * @param outputHtml the failure report to write
+     */
+    public static void render(File inputXml, File outputHtml)
+            throws IOException, XmlPullParserException {
+        XmlPullParser parser = XmlPullParserFactory.newInstance(TYPE, null).newPullParser();
+        try (InputStream in = new BufferedInputStream(new FileInputStream(inputXml));
+             Writer out = new BufferedWriter(new OutputStreamWriter(
+                     new FileOutputStream(outputHtml), StandardCharsets.UTF_8))) {
+            parser.setInput(in, null);
+            render(parser, out);
+        }
+    }
+
+    static void render(XmlPullParser parser, Writer out)
+            throws IOException, XmlPullParserException {
+        // attributes shown in the summary, empty until their elements are read
+        String[] result = new String[9];
+        String[] build = new String[5];
+        String[] summary = new String[5];
+        Arrays.fill(result, "");
+        Arrays.fill(build, "");
+        Arrays.fill(summary, "");
+        List<ModuleFailures> modules = new ArrayList<>();
+        ModuleFailures module = null;
+        String caseName = null;
+        String[] failure = null;
+
+        int eventType = parser.getEventType();
+        while (eventType != XmlPullParser.END_DOCUMENT) {
+            if (eventType == XmlPullParser.START_TAG) {
+                String tag = parser.getName();
+                int depth = parser.getDepth();
+                if (depth == RESULT_DEPTH && RESULT_TAG.equals(tag)) {
+                    result = getAttributes(parser, "suite_name", "suite_plan", "suite_version",
+                            "suite_build_number", "host_name", "os_name", "os_version",
+                            "start_display", "end_display");
+                } else if (depth == MODULE_DEPTH && BUILD_TAG.equals(tag)) {
+                    build = getAttributes(parser, "build_fingerprint",
+                            "build_version_security_patch", "build_version_release",
+                            "build_version_sdk", "build_abis");
+                } else if (depth == MODULE_DEPTH && SUMMARY_TAG.equals(tag)) {
+                    summary = getAttributes(parser, "pass", "failed", "not_executed",
+                            "modules_done", "modules_total");
+                } else if (depth == MODULE_DEPTH && MODULE_TAG.equals(tag)) {
+                    module = new ModuleFailures(getAttribute(parser, NAME_ATTR),
+                            getAttribute(parser, ABI_ATTR), getAttribute(parser, PASS_ATTR));
+                    modules.add(module);
+                } else if (depth == CASE_DEPTH && CASE_TAG.equals(tag)) {
+                    caseName = getAttribute(parser, NAME_ATTR);
+                } else if (depth == TEST_DEPTH && TEST_TAG.equals(tag) && module != null) {
+                    String status = getAttribute(parser, RESULT_ATTR);
+                    if (FAIL.equals(status)) {
+                        failure = new String[] {
+                                caseName + "#" + getAttribute(parser, NAME_ATTR), ""};
+                        module.mFailures.add(failure);
+                    } else if (NOT_EXECUTED.equals(status)) {
+                        module.mNotExecuted++;
+                    }
+                } else if (depth == FAILURE_DEPTH && FAILURE_TAG.equals(tag) && failure != null) {
+                    failure[1] = getAttribute(parser, MESSAGE_ATTR);
+                    // only the first failure of a test is shown
+                    failure = null;
+                }
+            } else if (eventType == XmlPullParser.END_TAG && parser.getDepth() == TEST_DEPTH) {
+                failure = null;
+            }
+            eventType = parser.next();
+        }
+
+        out.write("<html>\n<head>\n");
+        out.write("<meta http-equiv=\"Content-Type\" content=\"text/html; charset=UTF-8\">\n");
+        out.write("<title>Test Report</title>\n");
+        out.write("<style type=\"text/css\">\n    @import \"compatibility_result.css\";\n"
+                + "</style>\n");
+        out.write("</head>\n<body>\n");
+        out.write("<div>\n<table class=\"title\">\n<tr>\n"
+                + "<td align=\"left\"><img src=\"logo.png\"></td>\n</tr>\n</table>\n</div>\n");
+
+        out.write("<div>\n<table class=\"summary\">\n");
+        out.write("<tr>\n<th colspan=\"2\">Summary</th>\n</tr>\n");
+        writeSummaryRow(out, "Suite / Plan", result[0] + " / " + result[1]);
+        writeSummaryRow(out, "Suite / Build", result[2] + " / " + result[3]);
+        writeSummaryRow(out, "Host Info", result[4] + " (" + result[5] + " - " + result[6] + ")");
+        writeSummaryRow(out, "Start time / End Time", result[7] + " / " + result[8]);
+        writeSummaryRow(out, "Tests Passed", summary[0]);
+        writeSummaryRow(out, "Tests Failed", summary[1]);
+        writeSummaryRow(out, "Tests Not Executed", summary[2]);
+        writeSummaryRow(out, "Modules Done", summary[3]);
+        writeSummaryRow(out, "Modules Total", summary[4]);
+        writeSummaryRow(out, "Fingerprint", build[0]);
+        writeSummaryRow(out, "Security Patch", build[1]);
+        writeSummaryRow(out, "Release (SDK)", build[2] + " (" + build[3] + ")");
+        writeSummaryRow(out, "ABIs", build[4]);
+        out.write("</table>\n</div>\n");
+
+        // High level summary of test execution
+        out.write("<br>\n<div>\n<table class=\"testsummary\">\n");
+        out.write("<tr>\n<th>Module</th>\n<th>Passed</th>\n<th>Failed</th>\n"
+                + "<th>Not Executed</th>\n<th>Total Tests</th>\n</tr>\n");
+        for (ModuleFailures m : modules) {
+            out.write("<tr>\n<td>");
+            if (m.mFailures.isEmpty()) {
+                out.write(escape(m.getLabel()));
+            } else {
+                out.write("<a href=\"#" + escape(m.getLabel()) + "\">" + escape(m.getLabel())
+                        + "</a>");
+            }
+            out.write("</td>\n");
+            String total;
+            try {
+                total = Integer.toString(m.mFailures.size() + Integer.parseInt(m.mPass.trim())
+                        + m.mNotExecuted);
+            } catch (NumberFormatException e) {
+                // what the stylesheet shows for a missing pass count
+                total = "NaN";
+            }
+            for (String value : new String[] {m.mPass, Integer.toString(m.mFailures.size()),
+                    Integer.toString(m.mNotExecuted), total}) {
+                out.write("<td>" + escape(value) + "</td>\n");
+            }
+            out.write("</tr>\n");
+        }
+        out.write("</table>\n</div>\n");
+
+        out.write("<br>\n<div>\n");
+        for (ModuleFailures m : modules) {
+            if (m.mFailures.isEmpty()) {
+                continue;
+            }
+            out.write("<table class=\"testdetails\">\n");
+            out.write("<tr>\n<td class=\"module\" colspan=\"3\"><a name=\"" + escape(m.getLabel())
+                    + "\">" + escape(m.getLabel()) + "</a></td>\n</tr>\n");
+            out.write("<tr>\n<th width=\"30%\">Test</th>\n<th width=\"5%\">Result</th>\n"
+                    + "<th>Details</th>\n</tr>\n");
+            for (String[] f : m.mFailures) {
+                out.write("<tr>\n<td class=\"testname\"> " + escape(f[0]) + "</td>\n");
+                out.write("<td class=\"failed\">\n<div style=\"text-align: center; "
+                        + "margin-left:auto; margin-right:auto;\">fail</div>\n</td>\n");
+                out.write("<td class=\"failuredetails\">\n<div class=\"details\">"
+                        + escape(f[1]) + "</div>\n</td>\n</tr>\n");
+            }
+            out.write("</table>\n");
+        }
+        out.write("</div>\n</body>\n</html>\n");
+    }
+
+    private static void writeSummaryRow(Writer out, String title, String value)
+            throws IOException {
+        out.write("<tr>\n<td class=\"rowtitle\">" + title + "</td>\n<td>" + escape(value)
+                + "</td>\n</tr>\n");
+    }
+
+    /**
+     * @return the attribute value, or an empty string if it is missing like in the stylesheet.
+     */
+    private static String getAttribute(XmlPullParser parser, String name) {
+        String value = parser.getAttributeValue(NS, name);
+        return value == null ? "" : value;
+    }
+
+    private static String[] getAttributes(XmlPullParser parser, String... names) {
+        String[] values = new String[names.length];
+        for (int i = 0; i < names.length; i++) {
+            values[i] = getAttribute(parser, names[i]);
+        }
+        return values;
+    }
+
+    private static String escape(String text) {
+        StringBuilder escaped = null;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            String replacement;
+            switch (c) {
+                case '&': replacement = "&amp;"; break;
+                case '<': replacement = "&lt;"; break;
+                case '>': replacement = "&gt;"; break;
+                case '"': replacement = "&quot;"; break;
+                default: replacement = null; break;
+            }
+            if (replacement != null && escaped == null) {
+                escaped = new StringBuilder(text.length() + 16);
+                escaped.append(text, 0, i);
+            }
+            if (escaped != null) {
+                if (replacement != null) {
+                    escaped.append(replacement);
+                } else {
+                    escaped.append(c);
+                }
+            }
+        }
+        return escaped == null ? text : escaped.toString();
+    }
+}
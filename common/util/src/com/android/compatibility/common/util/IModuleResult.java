@@ -144,6 +144,9 @@ public interface IModuleResult extends Comparable<IModuleResult> {
 
     /**
      * Merge the module results from otherModuleResult into this moduleResult.
+     * <p/>
+     * Case results that this module does not have yet are shared rather than copied, so
+     * otherModuleResult should not be changed after it has been merged.
      */
     void mergeFrom(IModuleResult otherModuleResult);
 }
@@ -17,6 +17,7 @@ package com.android.compatibility.common.util;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.Writer;
 import java.util.Arrays;
 import java.util.List;
 
@@ -26,6 +27,24 @@ public abstract class InfoStore {
     protected static final int MAX_ARRAY_LENGTH = 1000;
     protected static final int MAX_LIST_LENGTH = 1000;
 
+    private boolean mAsyncFlush = false;
+
+    /**
+     * Sets whether the results are written to the file on a background thread, so that adding a
+     * result does not wait for the file system. Must be called before {@link #open()}.
+     */
+    public void setAsyncFlush(boolean asyncFlush) {
+        mAsyncFlush = asyncFlush;
+    }
+
+    /**
+     * Returns the writer to use for {@code out}, which writes to it on a background thread if
+     * {@link #setAsyncFlush} was enabled.
+     */
+    protected Writer wrapWriter(Writer out) {
+        return mAsyncFlush ? new AsyncWriter(out) : out;
+    }
+
     /**
      * Opens the file for storage and creates the writer.
      */
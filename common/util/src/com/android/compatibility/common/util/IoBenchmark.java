@@ -0,0 +1,725 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.compatibility.common.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Storage I/O benchmark engine shared by the device side file system tests and host runs.
+ * <p/>
+ * A benchmark reads or writes a file in blocks of a fixed size, either sequentially or at random
+ * block aligned offsets, and splits the work in a number of rounds. The time taken by each round
+ * is measured, along with the amount of I/O reported by the kernel in /proc/self/io when it is
+ * available. Several threads can be used to keep more than one request in flight at once.
+ * <p/>
+ * Only plain java APIs are used, so the same measurement can be run on a device or a host JVM.
+ */
+public class IoBenchmark {
+
+    /** How the file is accessed. */
+    public enum Mode {
+        /** {@link RandomAccessFile} seek and read/write of a heap array. */
+        STREAM,
+        /** {@link FileChannel} per thread, position and read/write of a direct buffer. */
+        CHANNEL,
+        /** One {@link FileChannel} shared by all threads, positional read/write. */
+        POSITIONAL,
+        /** Memory mapped file, copied from/to a heap array. */
+        MMAP
+    }
+
+    /** Order in which the blocks of the file are accessed. */
+    public enum Pattern {
+        SEQUENTIAL,
+        RANDOM
+    }
+
+    /** When written data is forced to storage. */
+    public enum SyncPolicy {
+        /** Never, leave it to the kernel. */
+        NONE,
+        /** Every write is synchronous, the file is opened with O_DSYNC ("rwd"). */
+        EACH_WRITE,
+        /** At the end of each round, within the measured time. */
+        EACH_ROUND,
+        /** Once after the last round, accounted to the last round. */
+        AT_END
+    }
+
+    private static final double MB = 1024.0 * 1024.0;
+    private static final int FILL_BUFFER_SIZE = 1024 * 1024;
+    private static final long MAX_MAP_SIZE = 1024L * 1024L * 1024L;
+    private static final String PROC_IO = "/proc/self/io";
+
+    private final File mFile;
+    private final long mFileSize;
+    private final int mBlockSize;
+    private final int mRounds;
+    private final int mQueueDepth;
+    private final boolean mWrite;
+    private final Mode mMode;
+    private final Pattern mPattern;
+    private final SyncPolicy mSyncPolicy;
+    private final long mSeed;
+    private final boolean mMeasureKernelIo;
+
+    private IoBenchmark(Builder builder) {
+        mFile = builder.mFile;
+        mFileSize = builder.mFileSize;
+        mBlockSize = builder.mBlockSize;
+        mRounds = builder.mRounds;
+        mQueueDepth = builder.mQueueDepth;
+        mWrite = builder.mWrite;
+        mMode = builder.mMode;
+        mPattern = builder.mPattern;
+        mSyncPolicy = builder.mSyncPolicy;
+        mSeed = builder.mSeed;
+        mMeasureKernelIo = builder.mMeasureKernelIo;
+    }
+
+    /**
+     * Builds an {@link IoBenchmark}. Defaults to one round of sequential reads of 4KB blocks with
+     * a single thread through a {@link RandomAccessFile}.
+     */
+    public static class Builder {
+        private final File mFile;
+        private final long mFileSize;
+        private int mBlockSize = 4 * 1024;
+        private int mRounds = 1;
+        private int mQueueDepth = 1;
+        private boolean mWrite = false;
+        private Mode mMode = Mode.STREAM;
+        private Pattern mPattern = Pattern.SEQUENTIAL;
+        private SyncPolicy mSyncPolicy = SyncPolicy.NONE;
+        private long mSeed = 0;
+        private boolean mMeasureKernelIo = true;
+
+        /**
+         * @param file the file to access, it must already hold fileSize bytes for reads.
+         * @param fileSize the number of bytes of the file covered by the benchmark.
+         */
+        public Builder(File file, long fileSize) {
+            mFile = file;
+            mFileSize = fileSize;
+        }
+
+        public Builder setBlockSize(int blockSize) {
+            mBlockSize = blockSize;
+            return this;
+        }
+
+        /** Sets the number of measured intervals the blocks are split into. */
+        public Builder setRounds(int rounds) {
+            mRounds = rounds;
+            return this;
+        }
+
+        /** Sets the number of threads issuing requests concurrently. */
+        public Builder setQueueDepth(int queueDepth) {
+            mQueueDepth = queueDepth;
+            return this;
+        }
+
+        public Builder setWrite(boolean write) {
+            mWrite = write;
+            return this;
+        }
+
+        public Builder setMode(Mode mode) {
+            mMode = mode;
+            return this;
+        }
+
+        public Builder setPattern(Pattern pattern) {
+            mPattern = pattern;
+            return this;
+        }
+
+        public Builder setSyncPolicy(SyncPolicy syncPolicy) {
+            mSyncPolicy = syncPolicy;
+            return this;
+        }
+
+        /** Sets the seed of the random offsets and of the written data. */
+        public Builder setSeed(long seed) {
+            mSeed = seed;
+            return this;
+        }
+
+        /** Sets whether the amount of I/O is read from /proc/self/io after each round. */
+        public Builder setMeasureKernelIo(boolean measureKernelIo) {
+            mMeasureKernelIo = measureKernelIo;
+            return this;
+        }
+
+        public IoBenchmark build() {
+            if (mBlockSize <= 0 || mFileSize < mBlockSize) {
+                throw new IllegalArgumentException(String.format(
+                        "Invalid block size %d for file size %d", mBlockSize, mFileSize));
+            }
+            if (mRounds <= 0 || mRounds > mFileSize / mBlockSize) {
+                throw new IllegalArgumentException(String.format(
+                        "Invalid number of rounds %d for %d blocks", mRounds,
+                        mFileSize / mBlockSize));
+            }
+            if (mQueueDepth <= 0) {
+                throw new IllegalArgumentException("Invalid queue depth " + mQueueDepth);
+            }
+            return new IoBenchmark(this);
+        }
+    }
+
+    /**
+     * The measurements of one benchmark run.
+     */
+    public static class Result {
+        private final boolean mWrite;
+        private final long mBytesPerRound;
+        private final double[] mTimes;
+        private final double[] mReadAmount;
+        private final double[] mWriteAmount;
+
+        Result(boolean write, long bytesPerRound, double[] times, double[] readAmount,
+                double[] writeAmount) {
+            mWrite = write;
+            mBytesPerRound = bytesPerRound;
+            mTimes = times;
+            mReadAmount = readAmount;
+            mWriteAmount = writeAmount;
+        }
+
+        /** Returns the number of bytes transferred in each round. */
+        public long getBytesPerRound() {
+            return mBytesPerRound;
+        }
+
+        /** Returns the time taken by each round in msec. */
+        public double[] getTimes() {
+            return mTimes;
+        }
+
+        /** Returns the bytes read from storage in each round, as reported by the kernel. */
+        public double[] getReadAmount() {
+            return mReadAmount;
+        }
+
+        /** Returns the bytes written to storage in each round, as reported by the kernel. */
+        public double[] getWriteAmount() {
+            return mWriteAmount;
+        }
+
+        /** Returns the throughput of each round in MB/s. */
+        public double[] getThroughput() {
+            return Stat.calcRatePerSecArray(mBytesPerRound / MB, mTimes);
+        }
+
+        /**
+         * Adds the per round throughput and amount of I/O to the report as
+         * "&lt;prefix&gt;_throughput" and "&lt;prefix&gt;_amount", and the average throughput as
+         * the summary "&lt;prefix&gt;_throughput_average".
+         */
+        public void report(ReportLog report, String prefix) {
+            double[] mbps = getThroughput();
+            report.addValues(prefix + "_throughput", mbps, ResultType.HIGHER_BETTER,
+                    ResultUnit.MBPS);
+            // This is just the amount of IO returned from kernel. So this is performance neutral.
+            report.addValues(prefix + "_amount", mWrite ? mWriteAmount : mReadAmount,
+                    ResultType.NEUTRAL, ResultUnit.BYTE);
+            Stat.StatResult stat = Stat.getStat(mbps);
+            report.setSummary(prefix + "_throughput_average", stat.mAverage,
+                    ResultType.HIGHER_BETTER, ResultUnit.MBPS);
+        }
+    }
+
+    /**
+     * Runs the benchmark.
+     */
+    public Result run() throws Exception {
+        final long[] offsets = getOffsets();
+        final int opsPerRound = offsets.length / mRounds;
+        final List<Worker> workers = openWorkers();
+        ExecutorService executor = null;
+        if (mQueueDepth > 1) {
+            executor = Executors.newFixedThreadPool(mQueueDepth);
+        }
+        final ExecutorService pool = executor;
+        double[] readAmount = new double[mRounds];
+        double[] writeAmount = new double[mRounds];
+        try {
+            double[] times = measureIO(mRounds, readAmount, writeAmount, mMeasureKernelIo,
+                    new MeasureRun() {
+                @Override
+                public void run(int round) throws Exception {
+                    runRound(workers, pool, offsets, round * opsPerRound, opsPerRound);
+                    if (mSyncPolicy == SyncPolicy.EACH_ROUND
+                            || (mSyncPolicy == SyncPolicy.AT_END && round == mRounds - 1)) {
+                        // Syncing through any descriptor flushes the whole file.
+                        workers.get(0).sync();
+                    }
+                }
+            });
+            return new Result(mWrite, (long) opsPerRound * mBlockSize, times, readAmount,
+                    writeAmount);
+        } finally {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+            for (Worker worker : workers) {
+                worker.close();
+            }
+        }
+    }
+
+    private void runRound(List<Worker> workers, ExecutorService pool, long[] offsets,
+            int start, int count) throws Exception {
+        if (pool == null) {
+            workers.get(0).run(offsets, start, start + count, 1);
+            return;
+        }
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(workers.size());
+        for (int i = 0; i < workers.size(); i++) {
+            final Worker worker = workers.get(i);
+            final int first = start + i;
+            final int end = start + count;
+            final int step = workers.size();
+            futures.add(pool.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    worker.run(offsets, first, end, step);
+                    return null;
+                }
+            }));
+        }
+        try {
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the offset of every block access, in order.
+     */
+    long[] getOffsets() {
+        int total = (int) Math.min(mFileSize / mBlockSize, Integer.MAX_VALUE);
+        long[] offsets = new long[total];
+        if (mPattern == Pattern.SEQUENTIAL) {
+            for (int i = 0; i < total; i++) {
+                offsets[i] = (long) i * mBlockSize;
+            }
+        } else {
+            Random random = new Random(mSeed);
+            for (int i = 0; i < total; i++) {
+                // align in block size
+                long offset = (long) (random.nextFloat() * (mFileSize - mBlockSize));
+                offsets[i] = offset - offset % mBlockSize;
+            }
+        }
+        return offsets;
+    }
+
+    private List<Worker> openWorkers() throws IOException {
+        List<Worker> workers = new ArrayList<Worker>(mQueueDepth);
+        try {
+            switch (mMode) {
+                case STREAM:
+                    for (int i = 0; i < mQueueDepth; i++) {
+                        workers.add(new StreamWorker(openFile(), i));
+                    }
+                    break;
+                case CHANNEL:
+                    for (int i = 0; i < mQueueDepth; i++) {
+                        workers.add(new ChannelWorker(openFile(), i, false));
+                    }
+                    break;
+                case POSITIONAL:
+                    RandomAccessFile shared = openFile();
+                    for (int i = 0; i < mQueueDepth; i++) {
+                        // Only the first worker owns the file, so that it is closed once.
+                        workers.add(new ChannelWorker(i == 0 ? shared : null, shared.getChannel(),
+                                i, true));
+                    }
+                    break;
+                case MMAP:
+                    RandomAccessFile mapped = openFile();
+                    MappedByteBuffer[] segments = map(mapped.getChannel());
+                    for (int i = 0; i < mQueueDepth; i++) {
+                        workers.add(new MappedWorker(i == 0 ? mapped : null, segments, i));
+                    }
+                    break;
+            }
+        } catch (IOException e) {
+            for (Worker worker : workers) {
+                worker.close();
+            }
+            throw e;
+        }
+        return workers;
+    }
+
+    private RandomAccessFile openFile() throws IOException {
+        String mode = !mWrite ? "r" : (mSyncPolicy == SyncPolicy.EACH_WRITE ? "rwd" : "rw");
+        return new RandomAccessFile(mFile, mode);
+    }
+
+    /**
+     * Maps the file in segments holding a whole number of blocks, so that no block straddles two
+     * segments.
+     */
+    private MappedByteBuffer[] map(FileChannel channel) throws IOException {
+        long segmentSize = (MAX_MAP_SIZE / mBlockSize) * mBlockSize;
+        int count = (int) ((mFileSize + segmentSize - 1) / segmentSize);
+        MappedByteBuffer[] segments = new MappedByteBuffer[count];
+        FileChannel.MapMode mode = mWrite ? FileChannel.MapMode.READ_WRITE
+                : FileChannel.MapMode.READ_ONLY;
+        for (int i = 0; i < count; i++) {
+            long position = i * segmentSize;
+            segments[i] = channel.map(mode, position, Math.min(segmentSize, mFileSize - position));
+        }
+        return segments;
+    }
+
+    /**
+     * Issues the block accesses of one thread.
+     */
+    private abstract class Worker {
+        protected final RandomAccessFile mRandomFile;
+
+        Worker(RandomAccessFile randomFile) {
+            mRandomFile = randomFile;
+        }
+
+        /**
+         * Accesses the blocks at offsets[first], offsets[first + step], ... before end.
+         */
+        void run(long[] offsets, int first, int end, int step) throws IOException {
+            for (int i = first; i < end; i += step) {
+                if (mWrite) {
+                    write(offsets[i]);
+                } else {
+                    read(offsets[i]);
+                }
+            }
+        }
+
+        abstract void read(long offset) throws IOException;
+
+        abstract void write(long offset) throws IOException;
+
+        void sync() throws IOException {
+            mRandomFile.getFD().sync();
+        }
+
+        void close() {
+            if (mRandomFile != null) {
+                try {
+                    mRandomFile.close();
+                } catch (IOException e) {
+                    // ignored
+                }
+            }
+        }
+    }
+
+    private class StreamWorker extends Worker {
+        private final byte[] mData;
+
+        StreamWorker(RandomAccessFile randomFile, int index) {
+            super(randomFile);
+            mData = generateData(mBlockSize, (int) mSeed + index);
+        }
+
+        @Override
+        void read(long offset) throws IOException {
+            mRandomFile.seek(offset);
+            mRandomFile.readFully(mData);
+        }
+
+        @Override
+        void write(long offset) throws IOException {
+            mRandomFile.seek(offset);
+            mRandomFile.write(mData);
+        }
+    }
+
+    private class ChannelWorker extends Worker {
+        private final FileChannel mChannel;
+        private final ByteBuffer mBuffer;
+        private final boolean mPositional;
+
+        ChannelWorker(RandomAccessFile randomFile, int index, boolean positional) {
+            this(randomFile, randomFile.getChannel(), index, positional);
+        }
+
+        ChannelWorker(RandomAccessFile randomFile, FileChannel channel, int index,
+                boolean positional) {
+            super(randomFile);
+            mChannel = channel;
+            mPositional = positional;
+            mBuffer = ByteBuffer.allocateDirect(mBlockSize);
+            mBuffer.put(generateData(mBlockSize, (int) mSeed + index));
+        }
+
+        @Override
+        void read(long offset) throws IOException {
+            mBuffer.clear();
+            if (!mPositional) {
+                mChannel.position(offset);
+            }
+            while (mBuffer.hasRemaining()) {
+                int read = mPositional ? mChannel.read(mBuffer, offset + mBuffer.position())
+                        : mChannel.read(mBuffer);
+                if (read < 0) {
+                    throw new IOException("Unexpected end of file at " + offset);
+                }
+            }
+        }
+
+        @Override
+        void write(long offset) throws IOException {
+            mBuffer.clear();
+            if (!mPositional) {
+                mChannel.position(offset);
+            }
+            while (mBuffer.hasRemaining()) {
+                if (mPositional) {
+                    mChannel.write(mBuffer, offset + mBuffer.position());
+                } else {
+                    mChannel.write(mBuffer);
+                }
+            }
+        }
+
+        @Override
+        void sync() throws IOException {
+            mChannel.force(false);
+        }
+    }
+
+    private class MappedWorker extends Worker {
+        private final MappedByteBuffer[] mSegments;
+        private final ByteBuffer[] mViews;
+        private final long mSegmentSize;
+        private final byte[] mData;
+
+        MappedWorker(RandomAccessFile randomFile, MappedByteBuffer[] segments, int index) {
+            super(randomFile);
+            mSegments = segments;
+            mSegmentSize = segments[0].capacity();
+            // Each thread needs its own position, so works on duplicates of the mappings.
+            mViews = new ByteBuffer[segments.length];
+            for (int i = 0; i < segments.length; i++) {
+                mViews[i] = segments[i].duplicate();
+            }
+            mData = generateData(mBlockSize, (int) mSeed + index);
+        }
+
+        @Override
+        void read(long offset) {
+            ByteBuffer view = mViews[(int) (offset / mSegmentSize)];
+            view.position((int) (offset % mSegmentSize));
+            view.get(mData);
+        }
+
+        @Override
+        void write(long offset) {
+            int segment = (int) (offset / mSegmentSize);
+            ByteBuffer view = mViews[segment];
+            view.position((int) (offset % mSegmentSize));
+            view.put(mData);
+            if (mSyncPolicy == SyncPolicy.EACH_WRITE) {
+                mSegments[segment].force();
+            }
+        }
+
+        @Override
+        void sync() {
+            for (MappedByteBuffer segment : mSegments) {
+                segment.force();
+            }
+        }
+    }
+
+    /**
+     * Creates an array of the given length holding consecutive little-endian ints starting at
+     * the given value, so that every block written differs.
+     */
+    public static byte[] generateData(int length, int start) {
+        byte[] buffer = new byte[length];
+        int val = start;
+        for (int i = 0; i < length / 4; i++) {
+            // in little-endian
+            buffer[i * 4] = (byte)(val & 0x000000ff);
+            buffer[i * 4 + 1] = (byte)((val & 0x0000ff00) >> 8);
+            buffer[i * 4 + 2] = (byte)((val & 0x00ff0000) >> 16);
+            buffer[i * 4 + 3] = (byte)((val & 0xff000000) >> 24);
+            val++;
+        }
+        return buffer;
+    }
+
+    /**
+     * Writes the file with the given length, so that it can be read back by a benchmark.
+     */
+    public static void fillFile(File file, long length) throws IOException {
+        RandomAccessFile randomFile = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = randomFile.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(FILL_BUFFER_SIZE);
+            buffer.put(generateData(FILL_BUFFER_SIZE, 0));
+            long written = 0;
+            while (written < length) {
+                buffer.clear();
+                buffer.limit((int) Math.min(FILL_BUFFER_SIZE, length - written));
+                while (buffer.hasRemaining()) {
+                    written += channel.write(buffer, written);
+                }
+            }
+            randomFile.setLength(length);
+        } finally {
+            randomFile.close();
+        }
+    }
+
+    /**
+     * measure time taken for each IO run with amount R/W
+     * @param count
+     * @param readAmount returns amount of read in bytes for each interval.
+     *        Value will not be written if /proc/self/io does not exist.
+     * @param writeAmount returns amount of write in bytes for each interval.
+     * @param measureIo whether to read /proc/self/io between the intervals.
+     * @param run
+     * @return time per each interval in msec
+     */
+    public static double[] measureIO(int count, double[] readAmount, double[] writeAmount,
+            boolean measureIo, MeasureRun run) throws Exception {
+        double[] result = new double[count];
+        File procIo = new File(PROC_IO);
+        measureIo = measureIo && procIo.exists() && procIo.canRead();
+        RWAmount prevAmount = new RWAmount();
+        if (measureIo) {
+            prevAmount = getRWAmount(procIo);
+        }
+        long prev = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            run.run(i);
+            long current = System.nanoTime();
+            result[i] = (current - prev) / 1000000.0;
+            if (measureIo) {
+                RWAmount currentAmount = getRWAmount(procIo);
+                readAmount[i] = currentAmount.mRd - prevAmount.mRd;
+                writeAmount[i] = currentAmount.mWr - prevAmount.mWr;
+                prevAmount = currentAmount;
+            }
+            // Do not account the time spent reading /proc/self/io to the next interval.
+            prev = System.nanoTime();
+        }
+        return result;
+    }
+
+    private static class RWAmount {
+        public double mRd = 0.0;
+        public double mWr = 0.0;
+    };
+
+    private static RWAmount getRWAmount(File file) throws IOException {
+        RWAmount amount = new RWAmount();
+
+        BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file)));
+        try {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.startsWith("read_bytes")) {
+                    amount.mRd = Double.parseDouble(line.split(" ")[1]);
+                } else if (line.startsWith("write_bytes")) {
+                    amount.mWr = Double.parseDouble(line.split(" ")[1]);
+                }
+            }
+        } finally {
+            br.close();
+        }
+        return amount;
+    }
+
+    /**
+     * Runs a benchmark from the command line, eg. on a host.
+     * <p/>
+     * Usage: IoBenchmark -file &lt;path&gt; -size &lt;MB&gt; [-block &lt;bytes&gt;]
+     * [-rounds &lt;n&gt;] [-depth &lt;threads&gt;] [-op read|write]
+     * [-mode stream|channel|positional|mmap] [-pattern sequential|random]
+     * [-sync none|each_write|each_round|at_end]
+     */
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = KeyValueArgsParser.parse(args);
+        if (!options.containsKey("-file") || !options.containsKey("-size")) {
+            System.err.println("Usage: IoBenchmark -file <path> -size <MB> [-block <bytes>]"
+                    + " [-rounds <n>] [-depth <threads>] [-op read|write]"
+                    + " [-mode stream|channel|positional|mmap] [-pattern sequential|random]"
+                    + " [-sync none|each_write|each_round|at_end]");
+            System.exit(1);
+        }
+        File file = new File(options.get("-file"));
+        long fileSize = Long.parseLong(options.get("-size")) * 1024L * 1024L;
+        boolean write = "write".equals(getOption(options, "-op", "read"));
+        Builder builder = new Builder(file, fileSize)
+                .setBlockSize(Integer.parseInt(getOption(options, "-block", "4096")))
+                .setRounds(Integer.parseInt(getOption(options, "-rounds", "16")))
+                .setQueueDepth(Integer.parseInt(getOption(options, "-depth", "1")))
+                .setWrite(write)
+                .setMode(Mode.valueOf(getOption(options, "-mode", "stream").toUpperCase()))
+                .setPattern(Pattern.valueOf(
+                        getOption(options, "-pattern", "sequential").toUpperCase()))
+                .setSyncPolicy(SyncPolicy.valueOf(
+                        getOption(options, "-sync", "none").toUpperCase()));
+        IoBenchmark benchmark = builder.build();
+        if (file.length() < fileSize) {
+            fillFile(file, fileSize);
+        }
+        Result result = benchmark.run();
+        Stat.StatResult stat = Stat.getStat(result.getThroughput());
+        System.out.println(String.format("%s throughput (MB/s): average %.2f min %.2f max %.2f"
+                + " stddev %.2f over %d rounds", write ? "write" : "read", stat.mAverage,
+                stat.mMin, stat.mMax, stat.mStddev, stat.mDataCount));
+    }
+
+    private static String getOption(Map<String, String> options, String key, String value) {
+        return options.containsKey(key) ? options.get(key) : value;
+    }
+}
@@ -265,8 +265,13 @@ public class ModuleResult implements IModuleResult {
         // module at least once (for which the value is not yet set).
         this.mExpectedTestRuns = otherModuleResult.getExpectedTestRuns();
         for (ICaseResult otherCaseResult : otherModuleResult.getResults()) {
-            ICaseResult caseResult = getOrCreateResult(otherCaseResult.getName());
-            caseResult.mergeFrom(otherCaseResult);
+            ICaseResult caseResult = mResults.get(otherCaseResult.getName());
+            if (caseResult == null) {
+                // Take over case results not seen before instead of copying them test by test.
+                mResults.put(otherCaseResult.getName(), otherCaseResult);
+            } else {
+                caseResult.mergeFrom(otherCaseResult);
+            }
         }
     }
 }
@@ -17,6 +17,8 @@
 package com.android.compatibility.common.util;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -27,16 +29,28 @@ import java.net.URL;
 import java.util.HashMap;
 import java.util.Map;
 
-/** Builds a multipart form and submits it. */
+/**
+ * Builds a multipart form and submits it.
+ * <p/>
+ * The payload is streamed to the server with a precomputed Content-Length, so a payload given as
+ * a {@link File} is never held in memory. A submission that fails with an I/O error or a server
+ * error is sent again from the start of the payload, up to a fixed number of attempts.
+ */
 class MultipartForm {
 
     private static final String FORM_DATA_BOUNDARY = "C75I55u3R3p0r73r";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int DEFAULT_MAX_ATTEMPTS = 3;
+    private static final long DEFAULT_RETRY_DELAY_MS = 1000;
 
     /* package */ final String mServerUrl;
     /* package */ final Map<String, String> mFormValues = new HashMap<String, String>();
     /* package */ String mName;
     /* package */ String mFileName;
     /* package */ byte[] mData;
+    /* package */ File mFile;
+    /* package */ int mMaxAttempts = DEFAULT_MAX_ATTEMPTS;
+    /* package */ long mRetryDelayMs = DEFAULT_RETRY_DELAY_MS;
 
     /**
      * Creates a new multi-part form with the given serverUrl.
@@ -69,19 +83,67 @@ class MultipartForm {
         mName = name;
         mFileName = fileName;
         mData = data;
+        mFile = null;
+        return this;
+    }
+
+    /**
+     * Adds the file as the payload of the form. The file is streamed when the form is submitted
+     * and must not change until then.
+     *
+     * @param name The name of attribute
+     * @param fileName The file's name in the form
+     * @param file The file to send
+     * @return the {@link MultipartForm} for easy chaining.
+     */
+    public MultipartForm addFormFile(String name, String fileName, File file) {
+        mName = name;
+        mFileName = fileName;
+        mData = null;
+        mFile = file;
+        return this;
+    }
+
+    /**
+     * Sets how many times a submission is attempted before giving up.
+     *
+     * @return the {@link MultipartForm} for easy chaining.
+     */
+    public MultipartForm setMaxAttempts(int maxAttempts) {
+        mMaxAttempts = Math.max(1, maxAttempts);
         return this;
     }
 
     /**
      * Submits the form to the server url.
      *
-     * This will handle a redirection from the server.
+     * This will handle a redirection from the server. Failed attempts are retried with an
+     * exponential backoff.
      *
      * @return response code
-     * @throws IOException
+     * @throws IOException if the last attempt failed with an I/O error.
      */
     public int submit() throws IOException {
-        return submitForm(mServerUrl);
+        long delay = mRetryDelayMs;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                int response = submitForm(mServerUrl);
+                if (response < 500 || attempt >= mMaxAttempts) {
+                    return response;
+                }
+            } catch (IOException e) {
+                if (attempt >= mMaxAttempts) {
+                    throw e;
+                }
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting to retry", e);
+            }
+            delay *= 2;
+        }
     }
 
     /**
@@ -100,24 +162,28 @@ class MultipartForm {
             connection.setRequestProperty("Content-Type",
                     "multipart/form-data; boundary=" + FORM_DATA_BOUNDARY);
 
-            byte[] body = getContentBody();
-            connection.setRequestProperty("Content-Length", Integer.toString(body.length));
+            byte[] prefix = getBodyPrefix();
+            byte[] suffix = getBodySuffix();
+            // Lets the connection stream the body instead of buffering it to count its length.
+            connection.setFixedLengthStreamingMode(
+                    prefix.length + getPayloadLength() + suffix.length);
 
             OutputStream output = connection.getOutputStream();
             try {
-                output.write(body);
+                writeContentBody(output, prefix, suffix);
             } finally {
                 output.close();
             }
 
-            // Open the stream to get a response. Otherwise request will be cancelled.
-            InputStream input = connection.getInputStream();
-            input.close();
-
             int response = connection.getResponseCode();
             if (response == 302) {
                 return submitForm(connection.getHeaderField("Location"));
             }
+            if (response < 400) {
+                // Open the stream to get a response. Otherwise request will be cancelled.
+                InputStream input = connection.getInputStream();
+                input.close();
+            }
             return response;
         } finally {
             if (connection != null) {
@@ -127,6 +193,50 @@ class MultipartForm {
     }
 
     /* package */ byte[] getContentBody() throws IOException {
+        ByteArrayOutputStream byteOutput = new ByteArrayOutputStream();
+        writeContentBody(byteOutput, getBodyPrefix(), getBodySuffix());
+        return byteOutput.toByteArray();
+    }
+
+    /* package */ long getContentLength() throws IOException {
+        return getBodyPrefix().length + getPayloadLength() + getBodySuffix().length;
+    }
+
+    private void writeContentBody(OutputStream output, byte[] prefix, byte[] suffix)
+            throws IOException {
+        output.write(prefix);
+        if (mData != null) {
+            output.write(mData);
+        } else if (mFile != null) {
+            InputStream input = new FileInputStream(mFile);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int count;
+                while ((count = input.read(buffer)) > 0) {
+                    output.write(buffer, 0, count);
+                }
+            } finally {
+                input.close();
+            }
+        }
+        output.write(suffix);
+    }
+
+    private boolean hasPayload() {
+        return mData != null || mFile != null;
+    }
+
+    private long getPayloadLength() {
+        if (mData != null) {
+            return mData.length;
+        }
+        return mFile != null ? mFile.length() : 0;
+    }
+
+    /**
+     * @return the part of the body before the payload: the form values and the file header.
+     */
+    private byte[] getBodyPrefix() {
         ByteArrayOutputStream byteOutput = new ByteArrayOutputStream();
         PrintWriter writer = new PrintWriter(new OutputStreamWriter(byteOutput));
         writer.println();
@@ -135,14 +245,23 @@ class MultipartForm {
             writeFormField(writer, formValue.getKey(), formValue.getValue());
         }
 
-        if (mData != null) {
+        if (hasPayload()) {
             writeFormFileHeader(writer, mName, mFileName);
-            writer.flush(); // Must flush here before writing to the byte stream!
-            byteOutput.write(mData);
+        }
+        writer.close();
+        return byteOutput.toByteArray();
+    }
+
+    /**
+     * @return the part of the body after the payload.
+     */
+    private byte[] getBodySuffix() {
+        ByteArrayOutputStream byteOutput = new ByteArrayOutputStream();
+        PrintWriter writer = new PrintWriter(new OutputStreamWriter(byteOutput));
+        if (hasPayload()) {
             writer.println();
         }
         writer.append("--").append(FORM_DATA_BOUNDARY).println("--");
-        writer.flush();
         writer.close();
         return byteOutput.toByteArray();
     }
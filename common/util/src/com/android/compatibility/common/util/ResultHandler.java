@@ -43,12 +43,6 @@ import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
 
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.stream.StreamResult;
-import javax.xml.transform.stream.StreamSource;
-
 /**
  * Handles conversion of results to/from files.
  */
@@ -60,7 +54,6 @@ public class ResultHandler {
     private static final String RESULT_FILE_VERSION = "5.0";
     public static final String TEST_RESULT_FILE_NAME = "test_result.xml";
     private static final String FAILURE_REPORT_NAME = "test_result_failures.html";
-    private static final String FAILURE_XSL_FILE_NAME = "compatibility_failures.xsl";
 
     public static final String[] RESULT_RESOURCES = {
         "compatibility_result.css",
@@ -441,16 +434,18 @@ public class ResultHandler {
         return resultFile;
     }
 
+    /**
+     * Creates the failure report next to a result file, see {@link FailureReportRenderer}.
+     *
+     * @return the failure report, which does not exist if it could not be rendered
+     */
     public static File createFailureReport(File inputXml) {
         File failureReport = new File(inputXml.getParentFile(), FAILURE_REPORT_NAME);
-        try (InputStream xslStream = ResultHandler.class.getResourceAsStream(
-                String.format("/report/%s", FAILURE_XSL_FILE_NAME));
-             OutputStream outputStream = new FileOutputStream(failureReport)) {
-
-            Transformer transformer = TransformerFactory.newInstance().newTransformer(
-                    new StreamSource(xslStream));
-            transformer.transform(new StreamSource(inputXml), new StreamResult(outputStream));
-        } catch (IOException | TransformerException ignored) { }
+        try {
+            FailureReportRenderer.render(inputXml, failureReport);
+        } catch (IOException | XmlPullParserException e) {
+            failureReport.delete();
+        }
         return failureReport;
     }
 
@@ -16,20 +16,25 @@
 
 package com.android.compatibility.common.util;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.zip.GZIPOutputStream;
 
 /**
  * Uploads a result through a HTTP POST multipart/form-data request containing
  * the test result XML.
+ * <p/>
+ * The result is compressed to a temporary file with fixed-size buffers and streamed from there,
+ * so uploading does not depend on the heap size, and a retried upload does not compress the
+ * result again.
  */
 public class ResultUploader {
 
-    private static final int RESULT_XML_BYTES = 500 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
 
     /* package */ MultipartForm mMultipartForm;
 
@@ -45,29 +50,35 @@ public class ResultUploader {
      * @throws IOException
      */
     public int uploadResult(File reportFile, String referenceUrl) throws IOException {
-        InputStream input = new FileInputStream(reportFile);
+        File gzipFile = File.createTempFile("test-result", ".xml.gz");
         try {
-            byte[] data = getBytes(input);
-            mMultipartForm.addFormFile("resultXml", "test-result.xml.gz", data);
+            compress(reportFile, gzipFile);
+            mMultipartForm.addFormFile("resultXml", "test-result.xml.gz", gzipFile);
             if (referenceUrl != null && !referenceUrl.trim().isEmpty()) {
                 mMultipartForm.addFormValue("referenceUrl", referenceUrl);
             }
             return mMultipartForm.submit();
         } finally {
-            input.close();
+            gzipFile.delete();
         }
     }
 
-    private static byte[] getBytes(InputStream input) throws IOException {
-        ByteArrayOutputStream byteOutput = new ByteArrayOutputStream(RESULT_XML_BYTES);
-        GZIPOutputStream gzipOutput = new GZIPOutputStream(byteOutput);
-        byte[] buffer = new byte[1024];
-        int count;
-        while ((count = input.read(buffer)) > 0) {
-            gzipOutput.write(buffer, 0, count);
+    private static void compress(File input, File output) throws IOException {
+        InputStream in = new FileInputStream(input);
+        try {
+            OutputStream out = new GZIPOutputStream(new FileOutputStream(output), BUFFER_SIZE);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int count;
+                while ((count = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, count);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
         }
-        gzipOutput.close();
-        return byteOutput.toByteArray();
     }
 
 }
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.compatibility.common.util;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Unit tests for {@link AsyncWriter}
+ */
+public class AsyncWriterTest extends TestCase {
+
+    public void testWrite() throws Exception {
+        StringWriter out = new StringWriter();
+        StringBuilder expected = new StringBuilder();
+        AsyncWriter writer = new AsyncWriter(out);
+        for (int i = 0; i < 10000; i++) {
+            String line = "line " + i + "\n";
+            writer.write(line);
+            expected.append(line);
+            if (i % 1000 == 0) {
+                writer.flush();
+            }
+        }
+        char[] large = new char[100000];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = (char) ('a' + i % 26);
+        }
+        writer.write(large, 1, large.length - 1);
+        expected.append(large, 1, large.length - 1);
+        writer.close();
+        assertEquals(expected.toString(), out.toString());
+    }
+
+    public void testClose() throws Exception {
+        final boolean[] closed = {false};
+        AsyncWriter writer = new AsyncWriter(new StringWriter() {
+            @Override
+            public void close() throws IOException {
+                closed[0] = true;
+            }
+        });
+        writer.write("abc");
+        writer.close();
+        assertTrue(closed[0]);
+        // closing again does nothing
+        writer.close();
+        try {
+            writer.write("def");
+            fail("Expected IOException");
+        } catch (IOException expected) {
+        }
+    }
+
+    public void testError() throws Exception {
+        AsyncWriter writer = new AsyncWriter(new Writer() {
+            @Override
+            public void write(char[] cbuf, int off, int len) throws IOException {
+                throw new IOException("disk full");
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+        writer.write("abc");
+        try {
+            writer.close();
+            fail("Expected IOException");
+        } catch (IOException expected) {
+            assertEquals("disk full", expected.getCause().getMessage());
+        }
+    }
+
+    /**
+     * A writer blocked on a full queue fails rather than blocking forever when the background
+     * thread stops.
+     */
+    public void testBackgroundThreadStopped() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        AsyncWriter writer = new AsyncWriter(new StringWriter() {
+            @Override
+            public void write(char[] cbuf, int off, int len) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    // interrupted below anyway
+                }
+                // the background thread stops at its next wait for a chunk
+                Thread.currentThread().interrupt();
+            }
+        });
+        // release the background thread once this thread blocks on the full queue
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(500);
+                } catch (InterruptedException e) {
+                    // release now
+                }
+                release.countDown();
+            }
+        }).start();
+        char[] chunk = new char[8192];
+        try {
+            for (int i = 0; i < 100; i++) {
+                writer.write(chunk);
+            }
+            fail("Expected IOException");
+        } catch (IOException expected) {
+            assertTrue(expected.getCause() instanceof InterruptedIOException);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.compatibility.common.util;
+
+import com.android.tradefed.util.FileUtil;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+
+/**
+ * Unit tests for {@link FailureReportRenderer}
+ */
+public class FailureReportRendererTest extends TestCase {
+
+    private static final String RESULT_XML =
+            "<?xml version='1.0' encoding='UTF-8' standalone='no' ?>\n" +
+            "<Result suite_name=\"CTS\" suite_plan=\"cts\" host_name=\"%s\">\n" +
+            "  <Build build_fingerprint=\"vendor/product\" build_abis=\"x86\" />\n" +
+            "  <Summary pass=\"2\" failed=\"1\" not_executed=\"1\" " +
+            "modules_done=\"1\" modules_total=\"2\" />\n" +
+            "  <Module name=\"ModuleA\" abi=\"x86\" pass=\"1\">\n" +
+            "    <TestCase name=\"android.test.Foo\">\n" +
+            "      <Test result=\"pass\" name=\"testPass\">\n" +
+            "        <Summary>\n" +
+            "          <Metric source=\"src\" message=\"msg\">\n" +
+            "            <Value>1.0</Value>\n" +
+            "          </Metric>\n" +
+            "        </Summary>\n" +
+            "      </Test>\n" +
+            "      <Test result=\"not_executed\" name=\"testNotExecuted\"/>\n" +
+            "    </TestCase>\n" +
+            "  </Module>\n" +
+            "  <Module name=\"ModuleB\" abi=\"x86\" pass=\"1\">\n" +
+            "    <TestCase name=\"android.test.Bar\">\n" +
+            "      <Test result=\"fail\" name=\"testFail\">\n" +
+            "        <Failure message=\"expected &lt;1&gt; &amp; was 2\">\n" +
+            "          <StackTrace>trace</StackTrace>\n" +
+            "        </Failure>\n" +
+            "      </Test>\n" +
+            "      <Test result=\"pass\" name=\"testPass\"/>\n" +
+            "    </TestCase>\n" +
+            "  </Module>\n" +
+            "</Result>";
+
+    private File mResultsDir = null;
+
+    @Override
+    public void setUp() throws Exception {
+        mResultsDir = FileUtil.createTempDir("results");
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        if (mResultsDir != null) {
+            FileUtil.recursiveDelete(mResultsDir);
+        }
+    }
+
+    public void testCreateFailureReport() throws Exception {
+        File resultFile = writeResult("session", "host");
+        File report = ResultHandler.createFailureReport(resultFile);
+        assertTrue(report.exists());
+        String html = FileUtil.readStringFromFile(report);
+        assertTrue(html.contains("CTS / cts"));
+        assertTrue(html.contains("vendor/product"));
+        // only the module with failures links to its details
+        assertTrue(html.contains("<a href=\"#ModuleB - x86\">"));
+        assertFalse(html.contains("<a href=\"#ModuleA - x86\">"));
+        assertTrue(html.contains("<a name=\"ModuleB - x86\">"));
+        assertTrue(html.contains("android.test.Bar#testFail"));
+        assertTrue(html.contains("expected &lt;1&gt; &amp; was 2"));
+        assertFalse(html.contains("testPass"));
+        assertFalse(html.contains("testNotExecuted"));
+    }
+
+    public void testCreateFailureReport_invalidResult() throws Exception {
+        File resultDir = FileUtil.createTempDir("invalid", mResultsDir);
+        File resultFile = new File(resultDir, ResultHandler.TEST_RESULT_FILE_NAME);
+        FileUtil.writeToFile("<Result><Module>", resultFile);
+        assertFalse(ResultHandler.createFailureReport(resultFile).exists());
+    }
+
+    private File writeResult(String session, String hostName) throws Exception {
+        File resultDir = FileUtil.createTempDir(session, mResultsDir);
+        File resultFile = new File(resultDir, ResultHandler.TEST_RESULT_FILE_NAME);
+        FileUtil.writeToFile(String.format(RESULT_XML, hostName), resultFile);
+        return resultFile;
+    }
+}
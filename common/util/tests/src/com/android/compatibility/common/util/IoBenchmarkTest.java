@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.compatibility.common.util;
+
+import com.android.compatibility.common.util.IoBenchmark.Mode;
+import com.android.compatibility.common.util.IoBenchmark.Pattern;
+import com.android.compatibility.common.util.IoBenchmark.SyncPolicy;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * Unit tests for {@link IoBenchmark}
+ */
+public class IoBenchmarkTest extends TestCase {
+
+    private static final int BLOCK_SIZE = 4 * 1024;
+    private static final long FILE_SIZE = 64 * BLOCK_SIZE;
+    private static final int ROUNDS = 4;
+
+    private File mFile;
+
+    @Override
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("io-benchmark", ".bin");
+        IoBenchmark.fillFile(mFile, FILE_SIZE);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mFile.delete();
+    }
+
+    public void testFillFile() throws Exception {
+        assertEquals(FILE_SIZE, mFile.length());
+        assertTrue(Arrays.equals(IoBenchmark.generateData(BLOCK_SIZE, 0), readBlock(0)));
+    }
+
+    public void testRandomOffsets() throws Exception {
+        long[] offsets = builder().setBlockSize(3000).setPattern(Pattern.RANDOM).build()
+                .getOffsets();
+        assertEquals(FILE_SIZE / 3000, offsets.length);
+        for (long offset : offsets) {
+            assertEquals(0, offset % 3000);
+            assertTrue(offset + 3000 <= FILE_SIZE);
+        }
+        long[] again = builder().setBlockSize(3000).setPattern(Pattern.RANDOM).build()
+                .getOffsets();
+        assertTrue(Arrays.equals(offsets, again));
+    }
+
+    public void testRead_allModes() throws Exception {
+        for (Mode mode : Mode.values()) {
+            for (int depth : new int[] {1, 4}) {
+                IoBenchmark.Result result = builder().setMode(mode).setQueueDepth(depth)
+                        .setPattern(Pattern.RANDOM).build().run();
+                assertEquals(ROUNDS, result.getTimes().length);
+                assertEquals(FILE_SIZE / ROUNDS, result.getBytesPerRound());
+                for (double mbps : result.getThroughput()) {
+                    assertTrue(mode + " " + depth, mbps > 0);
+                }
+            }
+        }
+    }
+
+    public void testWrite_allModes() throws Exception {
+        for (Mode mode : Mode.values()) {
+            mFile.delete();
+            IoBenchmark.fillFile(mFile, FILE_SIZE);
+            builder().setMode(mode).setQueueDepth(2).setWrite(true).setSeed(7)
+                    .setSyncPolicy(SyncPolicy.AT_END).build().run();
+            assertEquals(FILE_SIZE, mFile.length());
+            // Blocks are written by worker 0 and 1 in turn, each with its own data.
+            assertTrue(mode.toString(),
+                    Arrays.equals(IoBenchmark.generateData(BLOCK_SIZE, 7), readBlock(0)));
+            assertTrue(mode.toString(), Arrays.equals(IoBenchmark.generateData(BLOCK_SIZE, 8),
+                    readBlock(BLOCK_SIZE)));
+        }
+    }
+
+    public void testReport() throws Exception {
+        ReportLog report = new ReportLog();
+        builder().setWrite(true).setSyncPolicy(SyncPolicy.EACH_WRITE).build().run()
+                .report(report, "write");
+        assertEquals("write_throughput_average", report.getSummary().getMessage());
+        assertEquals(ResultUnit.MBPS, report.getSummary().getUnit());
+    }
+
+    public void testBuild_invalid() throws Exception {
+        try {
+            builder().setRounds((int) (FILE_SIZE / BLOCK_SIZE) + 1).build();
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            builder().setQueueDepth(0).build();
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private IoBenchmark.Builder builder() {
+        return new IoBenchmark.Builder(mFile, FILE_SIZE).setBlockSize(BLOCK_SIZE)
+                .setRounds(ROUNDS);
+    }
+
+    private byte[] readBlock(long offset) throws Exception {
+        byte[] block = new byte[BLOCK_SIZE];
+        RandomAccessFile file = new RandomAccessFile(mFile, "r");
+        try {
+            file.seek(offset);
+            file.readFully(block);
+        } finally {
+            file.close();
+        }
+        return block;
+    }
+}
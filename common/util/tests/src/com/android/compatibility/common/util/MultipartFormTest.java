@@ -16,9 +16,22 @@
 
 package com.android.compatibility.common.util;
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
 import junit.framework.TestCase;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
 
 /**
  * Unit tests for {@link MultipartForm}
@@ -55,4 +68,139 @@ public class MultipartFormTest extends TestCase {
         assertTrue("No data", data.length > 0);
         assertTrue("Wrong data", Arrays.equals(ZIP_ARRAY, data));
     }
+
+    public void testContentBody_file() throws Exception {
+        File file = File.createTempFile("blah", ".xml.gz");
+        try {
+            writeFile(file, "blah".getBytes());
+            MultipartForm form = new MultipartForm(SERVER_URL);
+            form.addFormValue("foo", "bar");
+            form.addFormFile("blah", "blah.xml.gz", file);
+            assertTrue("Wrong data", Arrays.equals(ZIP_ARRAY, form.getContentBody()));
+            assertEquals(ZIP_ARRAY.length, form.getContentLength());
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testSubmit_streamsFile() throws Exception {
+        byte[] payload = new byte[3 * 1024 * 1024 + 17];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) (i * 31);
+        }
+        File file = File.createTempFile("blah", ".xml.gz");
+        StandInServer server = new StandInServer();
+        try {
+            writeFile(file, payload);
+            MultipartForm form = new MultipartForm(server.getUrl());
+            form.addFormValue("foo", "bar");
+            form.addFormFile("blah", "blah.xml.gz", file);
+            assertEquals(200, form.submit());
+            assertEquals(1, server.mRequests.size());
+            byte[] body = server.mRequests.get(0);
+            assertEquals(Long.toString(form.getContentLength()), server.mContentLengths.get(0));
+            assertEquals(form.getContentLength(), body.length);
+            assertTrue(Arrays.equals(form.getContentBody(), body));
+        } finally {
+            server.stop();
+            file.delete();
+        }
+    }
+
+    public void testSubmit_retriesServerError() throws Exception {
+        StandInServer server = new StandInServer(503, 500);
+        try {
+            MultipartForm form = new MultipartForm(server.getUrl());
+            form.mRetryDelayMs = 1;
+            form.addFormFile("blah", "blah.xml.gz", "blah".getBytes());
+            assertEquals(200, form.submit());
+            assertEquals(3, server.mRequests.size());
+            for (byte[] body : server.mRequests) {
+                assertTrue(Arrays.equals(form.getContentBody(), body));
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    public void testSubmit_givesUp() throws Exception {
+        StandInServer server = new StandInServer(503, 503, 503);
+        try {
+            MultipartForm form = new MultipartForm(server.getUrl()).setMaxAttempts(2);
+            form.mRetryDelayMs = 1;
+            form.addFormFile("blah", "blah.xml.gz", "blah".getBytes());
+            assertEquals(503, form.submit());
+            assertEquals(2, server.mRequests.size());
+        } finally {
+            server.stop();
+        }
+    }
+
+    public void testSubmit_clientErrorNotRetried() throws Exception {
+        StandInServer server = new StandInServer(404);
+        try {
+            MultipartForm form = new MultipartForm(server.getUrl());
+            form.mRetryDelayMs = 1;
+            form.addFormFile("blah", "blah.xml.gz", "blah".getBytes());
+            assertEquals(404, form.submit());
+            assertEquals(1, server.mRequests.size());
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static void writeFile(File file, byte[] data) throws IOException {
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            output.write(data);
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * A local HTTP server standing in for the result server. It records every request body and
+     * answers with the given response codes, then with 200.
+     */
+    /* package */ static class StandInServer implements HttpHandler {
+        private final HttpServer mServer;
+        private final LinkedList<Integer> mResponses = new LinkedList<Integer>();
+        /* package */ final List<byte[]> mRequests = new ArrayList<byte[]>();
+        /* package */ final List<String> mContentLengths = new ArrayList<String>();
+
+        /* package */ StandInServer(int... responses) throws IOException {
+            for (int response : responses) {
+                mResponses.add(response);
+            }
+            mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            mServer.createContext("/", this);
+            mServer.start();
+        }
+
+        /* package */ String getUrl() {
+            return "http://127.0.0.1:" + mServer.getAddress().getPort() + "/upload";
+        }
+
+        /* package */ void stop() {
+            mServer.stop(0);
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            InputStream input = exchange.getRequestBody();
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = input.read(buffer)) > 0) {
+                body.write(buffer, 0, count);
+            }
+            synchronized (this) {
+                mRequests.add(body.toByteArray());
+                mContentLengths.add(exchange.getRequestHeaders().getFirst("Content-Length"));
+            }
+            Integer response = mResponses.poll();
+            exchange.sendResponseHeaders(response == null ? 200 : response, -1);
+            exchange.close();
+        }
+    }
 }
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.compatibility.common.util;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Unit tests for {@link ResultUploader}
+ */
+public class ResultUploaderTest extends TestCase {
+
+    private static final String HEADER_END = "Content-Transfer-Encoding: binary\n\n";
+    private static final String TRAILER = "\n--C75I55u3R3p0r73r--\n";
+
+    public void testUploadResult() throws Exception {
+        File result = File.createTempFile("test_result", ".xml");
+        MultipartFormTest.StandInServer server = new MultipartFormTest.StandInServer(503);
+        try {
+            StringBuilder xml = new StringBuilder("<Result>\n");
+            for (int i = 0; i < 20000; i++) {
+                xml.append("  <Test result=\"pass\" name=\"test").append(i).append("\" />\n");
+            }
+            xml.append("</Result>\n");
+            FileWriter writer = new FileWriter(result);
+            try {
+                writer.write(xml.toString());
+            } finally {
+                writer.close();
+            }
+
+            ResultUploader uploader = new ResultUploader(server.getUrl(), "CTS");
+            uploader.mMultipartForm.mRetryDelayMs = 1;
+            assertEquals(200, uploader.uploadResult(result, "http://reference"));
+
+            // The retry sends the same compressed result again.
+            assertEquals(2, server.mRequests.size());
+            String body = new String(server.mRequests.get(1), "ISO-8859-1");
+            assertEquals(new String(server.mRequests.get(0), "ISO-8859-1"), body);
+            assertTrue(body.contains("name=\"suite\"\n\nCTS\n"));
+            assertTrue(body.contains("name=\"referenceUrl\"\n\nhttp://reference\n"));
+            assertTrue(body.endsWith(TRAILER));
+            int start = body.indexOf(HEADER_END) + HEADER_END.length();
+            byte[] gzip = body.substring(start, body.length() - TRAILER.length())
+                    .getBytes("ISO-8859-1");
+            assertEquals(xml.toString(), gunzip(gzip));
+        } finally {
+            server.stop();
+            result.delete();
+        }
+    }
+
+    private static String gunzip(byte[] data) throws Exception {
+        InputStream input = new GZIPInputStream(new ByteArrayInputStream(data));
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = input.read(buffer)) > 0) {
+            output.write(buffer, 0, count);
+        }
+        return output.toString("UTF-8");
+    }
+}
@@ -28,14 +28,18 @@ public class UnitTests extends TestSuite {
     public UnitTests() {
         super();
         addTestSuite(AbiUtilsTest.class);
+        addTestSuite(AsyncWriterTest.class);
         addTestSuite(CaseResultTest.class);
         addTestSuite(DynamicConfigTest.class);
+        addTestSuite(FailureReportRendererTest.class);
+        addTestSuite(IoBenchmarkTest.class);
         addTestSuite(LightInvocationResultTest.class);
         addTestSuite(MetricsXmlSerializerTest.class);
         addTestSuite(ModuleResultTest.class);
         addTestSuite(MultipartFormTest.class);
         addTestSuite(ReportLogTest.class);
         addTestSuite(ResultHandlerTest.class);
+        addTestSuite(ResultUploaderTest.class);
         addTestSuite(StatTest.class);
         addTestSuite(TestFilterTest.class);
         addTestSuite(TestResultTest.class);
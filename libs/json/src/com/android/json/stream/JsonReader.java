@@ -17,8 +17,10 @@
 package com.android.json.stream;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Reader;
 import java.io.Closeable;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -164,6 +166,14 @@ import java.util.List;
  * precision loss, extremely large values should be written and read as strings
  * in JSON.
  *
+ * <h3>UTF-8 Input</h3>
+ * A reader created from an {@link InputStream} or a {@link ByteBuffer} decodes
+ * UTF-8 itself rather than through an {@link java.io.InputStreamReader}. A
+ * file can be read without copying it into the heap by passing a buffer mapped
+ * with {@link java.nio.channels.FileChannel#map}. Numbers are parsed by {@link #nextInt},
+ * {@link #nextLong} and {@link #nextDouble} without creating a string, and
+ * repeated names are returned as the same string.
+ *
  * <p>Each {@code JsonReader} may be used to read a single JSON stream. Instances
  * of this class are not thread safe.
  */
@@ -172,9 +182,31 @@ public final class JsonReader implements Closeable {
     private static final String TRUE = "true";
     private static final String FALSE = "false";
 
-    /** The input JSON. */
+    /** Replaces malformed UTF-8 input, like the decoder of InputStreamReader. */
+    private static final char REPLACEMENT_CHARACTER = '\ufffd';
+
+    /** Powers of ten that are exactly representable as a double. */
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    /** The input JSON, or null if it is read from UTF-8 bytes. */
     private final Reader in;
 
+    /*
+     * The input JSON bytes, if it is not read from a Reader. Exactly one of
+     * byteStream and byteBuffer is set. The input is copied into bytes and
+     * decoded as UTF-8 from there; a character that does not fit into the char buffer is
+     * kept in pendingSurrogate.
+     */
+    private final InputStream byteStream;
+    private final ByteBuffer byteBuffer;
+    private final byte[] bytes;
+    private int bytePos = 0;
+    private int byteLimit = 0;
+    private char pendingSurrogate = 0;
+
     /** True to accept non-spec compliant JSON */
     private boolean lenient = false;
 
@@ -202,14 +234,24 @@ public final class JsonReader implements Closeable {
     /** The text of the next name. */
     private String name;
 
+    /**
+     * Recently read names by hash, so that names repeated in the document are
+     * returned without creating a new string each time.
+     */
+    private final String[] names = new String[512];
+
     /*
      * For the next literal value, we may have the text value, or the position
-     * and length in the buffer.
+     * and length in the buffer. Numbers are only kept in the buffer until a
+     * caller asks for their text.
      */
     private String value;
     private int valuePos;
     private int valueLength;
 
+    /** The number parsed by parseLong(). */
+    private long valueLong;
+
     /** True if we're currently handling a skipValue() call. */
     private boolean skipping = false;
 
@@ -221,6 +263,38 @@ public final class JsonReader implements Closeable {
             throw new NullPointerException("in == null");
         }
         this.in = in;
+        this.byteStream = null;
+        this.byteBuffer = null;
+        this.bytes = null;
+    }
+
+    /**
+     * Creates a new instance that reads a UTF-8 encoded JSON stream from
+     * {@code in}.
+     */
+    public JsonReader(InputStream in) {
+        if (in == null) {
+            throw new NullPointerException("in == null");
+        }
+        this.in = null;
+        this.byteStream = in;
+        this.byteBuffer = null;
+        this.bytes = new byte[8192];
+    }
+
+    /**
+     * Creates a new instance that reads the UTF-8 encoded JSON in the remaining
+     * bytes of {@code in}, which may be a memory mapped file. Reading advances
+     * the position of the buffer.
+     */
+    public JsonReader(ByteBuffer in) {
+        if (in == null) {
+            throw new NullPointerException("in == null");
+        }
+        this.in = null;
+        this.byteStream = null;
+        this.byteBuffer = in;
+        this.bytes = new byte[8192];
     }
 
     /**
@@ -379,7 +453,7 @@ public final class JsonReader implements Closeable {
             throw new IllegalStateException("Expected a string but was " + peek());
         }
 
-        String result = value;
+        String result = getValue();
         advance();
         return result;
     }
@@ -431,7 +505,12 @@ public final class JsonReader implements Closeable {
             throw new IllegalStateException("Expected a double but was " + token);
         }
 
-        double result = Double.parseDouble(value);
+        double result;
+        if (value == null && token == JsonToken.NUMBER) {
+            result = parseDouble();
+        } else {
+            result = Double.parseDouble(getValue());
+        }
         advance();
         return result;
     }
@@ -453,6 +532,11 @@ public final class JsonReader implements Closeable {
         }
 
         long result;
+        if (value == null && parseLong()) {
+            advance();
+            return valueLong;
+        }
+        value = getValue();
         try {
             result = Long.parseLong(value);
         } catch (NumberFormatException ignored) {
@@ -484,6 +568,11 @@ public final class JsonReader implements Closeable {
         }
 
         int result;
+        if (value == null && parseLong() && valueLong == (int) valueLong) {
+            advance();
+            return (int) valueLong;
+        }
+        value = getValue();
         try {
             result = Integer.parseInt(value);
         } catch (NumberFormatException ignored) {
@@ -499,14 +588,128 @@ public final class JsonReader implements Closeable {
     }
 
     /**
-     * Closes this JSON reader and the underlying {@link Reader}.
+     * Returns the text of the current literal value, creating it from the
+     * buffer if it is a number.
+     */
+    private String getValue() {
+        if (value == null && valuePos != -1 && token == JsonToken.NUMBER) {
+            value = new String(buffer, valuePos, valueLength);
+        }
+        return value;
+    }
+
+    /**
+     * Parses the current number as a long straight from the buffer. Returns
+     * false if it is not an integer that fits into a long, in which case the
+     * caller has to parse its text.
+     */
+    private boolean parseLong() {
+        if (token != JsonToken.NUMBER || valuePos == -1) {
+            return false;
+        }
+        int i = valuePos;
+        int end = valuePos + valueLength;
+        boolean negative = buffer[i] == '-';
+        if (negative) {
+            i++;
+        }
+        // accumulate negatively, since Long.MIN_VALUE has no positive counterpart
+        long result = 0;
+        for (; i < end; i++) {
+            int digit = buffer[i] - '0';
+            if (digit < 0 || digit > 9 || result < Long.MIN_VALUE / 10) {
+                return false;
+            }
+            result *= 10;
+            if (result < Long.MIN_VALUE + digit) {
+                return false;
+            }
+            result -= digit;
+        }
+        if (!negative) {
+            if (result == Long.MIN_VALUE) {
+                return false;
+            }
+            result = -result;
+        }
+        valueLong = result;
+        return true;
+    }
+
+    /**
+     * Parses the current number as a double straight from the buffer when
+     * its digits and exponent are small enough for the result of a single
+     * multiplication or division to be exact, otherwise parses its text.
+     */
+    private double parseDouble() {
+        int i = valuePos;
+        int end = valuePos + valueLength;
+        boolean negative = buffer[i] == '-';
+        if (negative) {
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean fraction = false;
+        for (; i < end; i++) {
+            char c = buffer[i];
+            if (c >= '0' && c <= '9') {
+                if (mantissa != 0 || c != '0') {
+                    digits++;
+                }
+                if (digits > 15) {
+                    return Double.parseDouble(getValue());
+                }
+                mantissa = mantissa * 10 + (c - '0');
+                if (fraction) {
+                    exponent--;
+                }
+            } else if (c == '.') {
+                fraction = true;
+            } else {
+                break;
+            }
+        }
+        if (i < end) {
+            // the exponent, decodeNumber() checked there is at least one digit
+            i++;
+            boolean negativeExponent = buffer[i] == '-';
+            if (buffer[i] == '-' || buffer[i] == '+') {
+                i++;
+            }
+            if (end - i > 3) {
+                return Double.parseDouble(getValue());
+            }
+            int explicit = 0;
+            for (; i < end; i++) {
+                explicit = explicit * 10 + (buffer[i] - '0');
+            }
+            exponent += negativeExponent ? -explicit : explicit;
+        }
+        if (exponent < -22 || exponent > 22) {
+            return Double.parseDouble(getValue());
+        }
+        double result = (exponent < 0)
+                ? mantissa / POWERS_OF_TEN[-exponent]
+                : mantissa * POWERS_OF_TEN[exponent];
+        return negative ? -result : result;
+    }
+
+    /**
+     * Closes this JSON reader and the underlying {@link Reader} or {@link
+     * InputStream}.
      */
     public void close() throws IOException {
         value = null;
         token = null;
         stack.clear();
         stack.add(JsonScope.CLOSED);
-        in.close();
+        if (in != null) {
+            in.close();
+        } else if (byteStream != null) {
+            byteStream.close();
+        }
     }
 
     /**
@@ -622,7 +825,7 @@ public final class JsonReader implements Closeable {
             case '\'':
                 checkLenient(); // fall-through
             case '"':
-                name = nextString((char) quote);
+                name = nextString((char) quote, true);
                 break;
             default:
                 checkLenient();
@@ -673,7 +876,7 @@ public final class JsonReader implements Closeable {
             case '\'':
                 checkLenient(); // fall-through
             case '"':
-                value = nextString((char) c);
+                value = nextString((char) c, false);
                 return token = JsonToken.STRING;
 
             default:
@@ -697,7 +900,7 @@ public final class JsonReader implements Closeable {
 
         pos = 0;
         int total;
-        while ((total = in.read(buffer, limit, buffer.length - limit)) != -1) {
+        while ((total = read(buffer, limit, buffer.length - limit)) != -1) {
             limit += total;
             if (limit >= minimum) {
                 return true;
@@ -706,6 +909,123 @@ public final class JsonReader implements Closeable {
         return false;
     }
 
+    /**
+     * Reads characters into {@code dest} like {@link Reader#read(char[], int,
+     * int)}, from the reader or by decoding the UTF-8 input bytes.
+     */
+    private int read(char[] dest, int offset, int count) throws IOException {
+        if (in != null) {
+            return in.read(dest, offset, count);
+        }
+        int i = offset;
+        int end = offset + count;
+        if (pendingSurrogate != 0 && i < end) {
+            dest[i++] = pendingSurrogate;
+            pendingSurrogate = 0;
+        }
+        while (i < end) {
+            if (bytePos == byteLimit && !fillBytes()) {
+                break;
+            }
+            int b = bytes[bytePos];
+            if (b >= 0) {
+                // ASCII, by far the most common in JSON; copy the run with locals only
+                byte[] source = bytes;
+                int j = bytePos;
+                int asciiEnd = Math.min(byteLimit, j + end - i);
+                while (j < asciiEnd && source[j] >= 0) {
+                    dest[i++] = (char) source[j++];
+                }
+                bytePos = j;
+                continue;
+            }
+
+            int lead = b & 0xff;
+            int length = (lead < 0xc2) ? 0 : (lead < 0xe0) ? 2 : (lead < 0xf0) ? 3
+                    : (lead < 0xf5) ? 4 : 0;
+            if (length == 0) {
+                // a continuation byte, an overlong lead byte or one past U+10FFFF
+                dest[i++] = REPLACEMENT_CHARACTER;
+                bytePos++;
+                continue;
+            }
+            while (byteLimit - bytePos < length && fillBytes()) {
+                // read until the whole sequence is in the byte buffer
+            }
+            int available = Math.min(length, byteLimit - bytePos);
+            int codePoint = lead & (0x7f >> length);
+            int valid = 1;
+            while (valid < available && isContinuation(lead, valid, bytes[bytePos + valid])) {
+                codePoint = (codePoint << 6) | (bytes[bytePos + valid] & 0x3f);
+                valid++;
+            }
+            if (valid < length || (codePoint >= 0xd800 && codePoint <= 0xdfff)) {
+                // Like the JDK's decoder, the valid start of an interrupted sequence, or an
+                // encoded surrogate, is replaced by a single character
+                dest[i++] = REPLACEMENT_CHARACTER;
+                bytePos += valid;
+                continue;
+            }
+            bytePos += length;
+            if (length < 4) {
+                dest[i++] = (char) codePoint;
+            } else {
+                dest[i++] = Character.highSurrogate(codePoint);
+                if (i < end) {
+                    dest[i++] = Character.lowSurrogate(codePoint);
+                } else {
+                    pendingSurrogate = Character.lowSurrogate(codePoint);
+                }
+            }
+        }
+        return (i == offset) ? -1 : i - offset;
+    }
+
+    /**
+     * Returns whether {@code b} can be the byte at {@code index} of a UTF-8
+     * sequence starting with {@code lead}. The second byte is restricted so
+     * that the sequence is not overlong and does not exceed U+10FFFF.
+     */
+    private static boolean isContinuation(int lead, int index, byte b) {
+        int value = b & 0xff;
+        if ((value & 0xc0) != 0x80) {
+            return false;
+        }
+        if (index == 1) {
+            if (lead == 0xe0) {
+                return value >= 0xa0;
+            } else if (lead == 0xf0) {
+                return value >= 0x90;
+            } else if (lead == 0xf4) {
+                return value < 0x90;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Moves the unread input bytes to the start of the byte buffer and reads
+     * more after them. Returns false if there were no more bytes.
+     */
+    private boolean fillBytes() throws IOException {
+        int remaining = byteLimit - bytePos;
+        System.arraycopy(bytes, bytePos, bytes, 0, remaining);
+        bytePos = 0;
+        byteLimit = remaining;
+        int count;
+        if (byteStream != null) {
+            count = byteStream.read(bytes, byteLimit, bytes.length - byteLimit);
+        } else {
+            count = Math.min(byteBuffer.remaining(), bytes.length - byteLimit);
+            byteBuffer.get(bytes, byteLimit, count);
+        }
+        if (count <= 0) {
+            return false;
+        }
+        byteLimit += count;
+        return true;
+    }
+
     private int nextNonWhitespace() throws IOException {
         while (pos < limit || fillBuffer(1)) {
             int c = buffer[pos++];
@@ -801,10 +1121,11 @@ public final class JsonReader implements Closeable {
      * not include it in the returned string.
      *
      * @param quote either ' or ".
+     * @param isName true to look the string up in the recently read names.
      * @throws NumberFormatException if any unicode escape sequences are
      *     malformed.
      */
-    private String nextString(char quote) throws IOException {
+    private String nextString(char quote, boolean isName) throws IOException {
         StringBuilder builder = null;
         do {
             /* the index of the first character not yet appended to the builder. */
@@ -816,7 +1137,9 @@ public final class JsonReader implements Closeable {
                     if (skipping) {
                         return "skipped!";
                     } else if (builder == null) {
-                        return new String(buffer, start, pos - start - 1);
+                        return isName
+                                ? getName(start, pos - start - 1)
+                                : new String(buffer, start, pos - start - 1);
                     } else {
                         builder.append(buffer, start, pos - start - 1);
                         return builder.toString();
@@ -924,6 +1247,31 @@ public final class JsonReader implements Closeable {
         return result;
     }
 
+    /**
+     * Returns the name in the buffer at {@code start}, reusing the string of
+     * the last name with the same hash if it has the same characters.
+     */
+    private String getName(int start, int length) {
+        int hash = 0;
+        for (int i = start; i < start + length; i++) {
+            hash = 31 * hash + buffer[i];
+        }
+        int index = (hash ^ (hash >>> 16)) & (names.length - 1);
+        String name = names[index];
+        if (name != null && name.length() == length) {
+            int i = 0;
+            while (i < length && name.charAt(i) == buffer[start + i]) {
+                i++;
+            }
+            if (i == length) {
+                return name;
+            }
+        }
+        name = new String(buffer, start, length);
+        names[index] = name;
+        return name;
+    }
+
     @Override public String toString() {
         return getClass().getSimpleName() + " near " + getSnippet();
     }
@@ -1020,8 +1368,12 @@ public final class JsonReader implements Closeable {
             value = FALSE;
             return JsonToken.BOOLEAN;
         } else {
-            value = new String(buffer, valuePos, valueLength);
-            return decodeNumber(buffer, valuePos, valueLength);
+            JsonToken result = decodeNumber(buffer, valuePos, valueLength);
+            if (result == JsonToken.STRING) {
+                // numbers stay in the buffer until their text is needed
+                value = new String(buffer, valuePos, valueLength);
+            }
+            return result;
         }
     }
 
@@ -113,15 +113,31 @@ import java.util.List;
  *     writer.endArray();
  *   }}</pre>
  *
+ * <p>Output is collected in a small buffer and passed to the underlying
+ * {@link Writer} in blocks; numbers are formatted straight into that buffer.
+ * Arrays of numbers can be written in one call with the {@code array} methods.
+ *
  * <p>Each {@code JsonWriter} may be used to write a single JSON stream.
  * Instances of this class are not thread safe. Calls that would result in a
  * malformed JSON string will fail with an {@link IllegalStateException}.
  */
 public final class JsonWriter implements Closeable {
 
+    /**
+     * The largest number of fraction digits of doubles that are formatted
+     * without {@link Double#toString}.
+     */
+    private static final int MAX_FAST_FRACTION_DIGITS = 4;
+
+    private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4 };
+
     /** The output data, containing at most one top-level array or object. */
     private final Writer out;
 
+    /** Output not yet passed to {@link #out}. */
+    private final char[] buffer = new char[1024];
+    private int pos = 0;
+
     private final List<JsonScope> stack = new ArrayList<JsonScope>();
     {
         stack.add(JsonScope.EMPTY_DOCUMENT);
@@ -140,8 +156,8 @@ public final class JsonWriter implements Closeable {
 
     /**
      * Creates a new instance that writes a JSON-encoded stream to {@code out}.
-     * For best performance, ensure {@link Writer} is buffered; wrapping in
-     * {@link java.io.BufferedWriter BufferedWriter} if necessary.
+     * The writer buffers its output, so {@code out} does not need to be
+     * buffered.
      */
     public JsonWriter(Writer out) {
         if (out == null) {
@@ -213,7 +229,7 @@ public final class JsonWriter implements Closeable {
     private JsonWriter open(JsonScope empty, String openBracket) throws IOException {
         beforeValue(true);
         stack.add(empty);
-        out.write(openBracket);
+        write(openBracket);
         return this;
     }
 
@@ -232,7 +248,7 @@ public final class JsonWriter implements Closeable {
         if (context == nonempty) {
             newline();
         }
-        out.write(closeBracket);
+        write(closeBracket);
         return this;
     }
 
@@ -287,7 +303,7 @@ public final class JsonWriter implements Closeable {
      */
     public JsonWriter nullValue() throws IOException {
         beforeValue(false);
-        out.write("null");
+        write("null");
         return this;
     }
 
@@ -298,7 +314,7 @@ public final class JsonWriter implements Closeable {
      */
     public JsonWriter value(boolean value) throws IOException {
         beforeValue(false);
-        out.write(value ? "true" : "false");
+        write(value ? "true" : "false");
         return this;
     }
 
@@ -310,11 +326,9 @@ public final class JsonWriter implements Closeable {
      * @return this writer.
      */
     public JsonWriter value(double value) throws IOException {
-        if (Double.isNaN(value) || Double.isInfinite(value)) {
-            throw new IllegalArgumentException("Numeric values must be finite, but was " + value);
-        }
+        checkFinite(value);
         beforeValue(false);
-        out.append(Double.toString(value));
+        writeDouble(value);
         return this;
     }
 
@@ -325,15 +339,70 @@ public final class JsonWriter implements Closeable {
      */
     public JsonWriter value(long value) throws IOException {
         beforeValue(false);
-        out.write(Long.toString(value));
+        writeLong(value);
         return this;
     }
 
+    /**
+     * Encodes {@code values} as an array. This writes the same as calling
+     * {@link #value(double)} for each element between {@link #beginArray} and
+     * {@link #endArray}.
+     *
+     * @param values finite values. May not contain {@link Double#isNaN() NaNs}
+     *     or {@link Double#isInfinite() infinities}, nothing is written if it
+     *     does.
+     * @return this writer.
+     */
+    public JsonWriter array(double[] values) throws IOException {
+        for (double value : values) {
+            checkFinite(value);
+        }
+        beginArray();
+        for (int i = 0; i < values.length; i++) {
+            beforeElement(i);
+            writeDouble(values[i]);
+        }
+        return endArray();
+    }
+
+    /**
+     * Encodes {@code values} as an array. This writes the same as calling
+     * {@link #value(long)} for each element between {@link #beginArray} and
+     * {@link #endArray}.
+     *
+     * @return this writer.
+     */
+    public JsonWriter array(long[] values) throws IOException {
+        beginArray();
+        for (int i = 0; i < values.length; i++) {
+            beforeElement(i);
+            writeLong(values[i]);
+        }
+        return endArray();
+    }
+
+    /**
+     * Encodes {@code values} as an array. This writes the same as calling
+     * {@link #value(long)} for each element between {@link #beginArray} and
+     * {@link #endArray}.
+     *
+     * @return this writer.
+     */
+    public JsonWriter array(int[] values) throws IOException {
+        beginArray();
+        for (int i = 0; i < values.length; i++) {
+            beforeElement(i);
+            writeLong(values[i]);
+        }
+        return endArray();
+    }
+
     /**
      * Ensures all buffered data is written to the underlying {@link Writer}
      * and flushes that writer.
      */
     public void flush() throws IOException {
+        flushBuffer();
         out.flush();
     }
 
@@ -343,7 +412,11 @@ public final class JsonWriter implements Closeable {
      * @throws IOException if the JSON document is incomplete.
      */
     public void close() throws IOException {
-        out.close();
+        try {
+            flushBuffer();
+        } finally {
+            out.close();
+        }
 
         if (peek() != JsonScope.NONEMPTY_DOCUMENT) {
             throw new IOException("Incomplete document");
@@ -351,7 +424,9 @@ public final class JsonWriter implements Closeable {
     }
 
     private void string(String value) throws IOException {
-        out.write("\"");
+        write('"');
+        // the first character of value that is not written yet
+        int start = 0;
         for (int i = 0, length = value.length(); i < length; i++) {
             char c = value.charAt(i);
 
@@ -361,45 +436,54 @@ public final class JsonWriter implements Closeable {
              * quotation mark, reverse solidus, and the control characters
              * (U+0000 through U+001F)."
              */
+            String escaped;
             switch (c) {
                 case '"':
+                    escaped = "\\\"";
+                    break;
+
                 case '\\':
+                    escaped = "\\\\";
+                    break;
+
                 case '/':
-                    out.write('\\');
-                    out.write(c);
+                    escaped = "\\/";
                     break;
 
                 case '\t':
-                    out.write("\\t");
+                    escaped = "\\t";
                     break;
 
                 case '\b':
-                    out.write("\\b");
+                    escaped = "\\b";
                     break;
 
                 case '\n':
-                    out.write("\\n");
+                    escaped = "\\n";
                     break;
 
                 case '\r':
-                    out.write("\\r");
+                    escaped = "\\r";
                     break;
 
                 case '\f':
-                    out.write("\\f");
+                    escaped = "\\f";
                     break;
 
                 default:
                     if (c <= 0x1F) {
-                        out.write(String.format("\\u%04x", (int) c));
+                        escaped = String.format("\\u%04x", (int) c);
                     } else {
-                        out.write(c);
+                        continue;
                     }
                     break;
             }
-
+            write(value, start, i);
+            write(escaped);
+            start = i + 1;
         }
-        out.write("\"");
+        write(value, start, value.length());
+        write('"');
     }
 
     private void newline() throws IOException {
@@ -407,9 +491,129 @@ public final class JsonWriter implements Closeable {
             return;
         }
 
-        out.write("\n");
+        write('\n');
         for (int i = 1; i < stack.size(); i++) {
-            out.write(indent);
+            write(indent);
+        }
+    }
+
+    private void write(char c) throws IOException {
+        if (pos == buffer.length) {
+            flushBuffer();
+        }
+        buffer[pos++] = c;
+    }
+
+    private void write(String s) throws IOException {
+        write(s, 0, s.length());
+    }
+
+    /**
+     * Writes the characters of {@code s} from {@code start} up to but not
+     * including {@code end}.
+     */
+    private void write(String s, int start, int end) throws IOException {
+        int length = end - start;
+        if (length > buffer.length - pos) {
+            flushBuffer();
+            if (length > buffer.length) {
+                out.write(s, start, length);
+                return;
+            }
+        }
+        s.getChars(start, end, buffer, pos);
+        pos += length;
+    }
+
+    private void flushBuffer() throws IOException {
+        if (pos > 0) {
+            out.write(buffer, 0, pos);
+            pos = 0;
+        }
+    }
+
+    /**
+     * Writes the same characters as {@link Long#toString(long)}.
+     */
+    private void writeLong(long value) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            write(Long.toString(value));
+            return;
+        }
+        // at most 19 digits and a sign
+        if (buffer.length - pos < 20) {
+            flushBuffer();
+        }
+        if (value < 0) {
+            buffer[pos++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long rest = value / 10; rest != 0; rest /= 10) {
+            digits++;
+        }
+        pos += digits;
+        for (int i = pos - 1; i >= pos - digits; i--) {
+            buffer[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    /**
+     * Writes the same characters as {@link Double#toString(double)}. Values
+     * from 10^-3 to 10^7 that are exactly the double nearest to a decimal with
+     * few fraction digits, which covers most measurements, are formatted
+     * without creating a string.
+     */
+    private void writeDouble(double value) throws IOException {
+        double magnitude = Math.abs(value);
+        if (magnitude != 0 && (magnitude < 1e-3 || magnitude >= 1e7)) {
+            // Double.toString uses computerized scientific notation
+            write(Double.toString(value));
+            return;
+        }
+        int fractionDigits = 0;
+        long scaled = (long) magnitude;
+        while (scaled != magnitude * POWERS_OF_TEN[fractionDigits]
+                || scaled / POWERS_OF_TEN[fractionDigits] != magnitude) {
+            if (++fractionDigits > MAX_FAST_FRACTION_DIGITS) {
+                write(Double.toString(value));
+                return;
+            }
+            scaled = (long) (magnitude * POWERS_OF_TEN[fractionDigits]);
+        }
+        while (fractionDigits > 0 && scaled % 10 == 0) {
+            scaled /= 10;
+            fractionDigits--;
+        }
+
+        // sign, 7 integer digits, point and fraction digits
+        if (buffer.length - pos < 9 + MAX_FAST_FRACTION_DIGITS) {
+            flushBuffer();
+        }
+        if (value < 0 || (value == 0 && 1 / value < 0)) {
+            buffer[pos++] = '-';
+        }
+        long integer = scaled;
+        for (int i = 0; i < fractionDigits; i++) {
+            integer /= 10;
+        }
+        writeLong(integer);
+        buffer[pos++] = '.';
+        if (fractionDigits == 0) {
+            buffer[pos++] = '0';
+        } else {
+            pos += fractionDigits;
+            for (int i = pos - 1; i >= pos - fractionDigits; i--) {
+                buffer[i] = (char) ('0' + scaled % 10);
+                scaled /= 10;
+            }
+        }
+    }
+
+    private static void checkFinite(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new IllegalArgumentException("Numeric values must be finite, but was " + value);
         }
     }
 
@@ -420,7 +624,7 @@ public final class JsonWriter implements Closeable {
     private void beforeName() throws IOException {
         JsonScope context = peek();
         if (context == JsonScope.NONEMPTY_OBJECT) { // first in object
-            out.write(',');
+            write(',');
         } else if (context != JsonScope.EMPTY_OBJECT) { // not in an object!
             throw new IllegalStateException("Nesting problem: " + stack);
         }
@@ -452,12 +656,12 @@ public final class JsonWriter implements Closeable {
                 break;
 
             case NONEMPTY_ARRAY: // another in array
-                out.append(',');
+                write(',');
                 newline();
                 break;
 
             case DANGLING_NAME: // value for name
-                out.append(separator);
+                write(separator);
                 replaceTop(JsonScope.NONEMPTY_OBJECT);
                 break;
 
@@ -469,4 +673,17 @@ public final class JsonWriter implements Closeable {
                 throw new IllegalStateException("Nesting problem: " + stack);
         }
     }
+
+    /**
+     * Inserts the separator and whitespace before element {@code index} of an
+     * array opened by this writer, like {@link #beforeValue} does.
+     */
+    private void beforeElement(int index) throws IOException {
+        if (index == 0) {
+            replaceTop(JsonScope.NONEMPTY_ARRAY);
+        } else {
+            write(',');
+        }
+        newline();
+    }
 }
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.json.stream;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Unit tests for reading UTF-8 bytes with {@link JsonReader}
+ */
+public class JsonReaderTest extends TestCase {
+
+    private static final String UTF8 = "UTF-8";
+
+    /** The size of the reader's char buffer. */
+    private static final int CHAR_BUFFER_SIZE = 1024;
+    /** The size of the reader's byte buffer. */
+    private static final int BYTE_BUFFER_SIZE = 8192;
+
+    /** Characters encoded with 2, 3 and 4 bytes, the last one as a surrogate pair. */
+    private static final String MULTI_BYTE = "é€😀";
+
+    /**
+     * Multi-byte sequences are decoded when they are split across reads or across the reader's
+     * byte and char buffers.
+     */
+    public void testSplitMultiByteSequences() throws Exception {
+        for (int boundary : new int[] {CHAR_BUFFER_SIZE, BYTE_BUFFER_SIZE}) {
+            for (int padding = boundary - 12; padding < boundary + 4; padding++) {
+                String value = "a" + MULTI_BYTE + "b" + MULTI_BYTE + MULTI_BYTE;
+                byte[] json = getBytes(spaces(padding) + "[\"" + value + "\"]");
+                for (JsonReader reader : getReaders(json)) {
+                    reader.beginArray();
+                    assertEquals("padding " + padding, value, reader.nextString());
+                    reader.endArray();
+                    assertEquals(JsonToken.END_DOCUMENT, reader.peek());
+                }
+            }
+        }
+    }
+
+    /**
+     * Numbers are parsed in the char buffer, also when they start before the end of the buffer
+     * and have to be moved and completed by the next read.
+     */
+    public void testNumbersAcrossBufferBoundaries() throws Exception {
+        String numbers = "[1234567890123, -0.25, 1.5e10, 42, 3.141592653589793, 1e400]";
+        for (int padding = CHAR_BUFFER_SIZE - 64; padding < CHAR_BUFFER_SIZE + 4; padding++) {
+            byte[] json = getBytes(spaces(padding) + numbers);
+            for (JsonReader reader : getReaders(json)) {
+                String message = "padding " + padding;
+                reader.beginArray();
+                assertEquals(message, 1234567890123L, reader.nextLong());
+                assertEquals(message, -0.25, reader.nextDouble(), 0);
+                assertEquals(message, 1.5e10, reader.nextDouble(), 0);
+                assertEquals(message, 42, reader.nextInt());
+                assertEquals(message, 3.141592653589793, reader.nextDouble(), 0);
+                assertEquals(message, "1e400", reader.nextString());
+                reader.endArray();
+            }
+        }
+    }
+
+    public void testMalformedUtf8() throws Exception {
+        int[][] sequences = {
+            {0x80}, // a continuation byte on its own
+            {0xff}, // never valid
+            {0xc3}, // a truncated 2 byte sequence
+            {0xe2, 0x82}, // a truncated 3 byte sequence
+            {0xe2, 0x82, 0x41}, // a 3 byte sequence interrupted by ASCII
+            {0xf0, 0x9f, 0x98}, // a truncated 4 byte sequence
+            {0xc0, 0xaf}, // an overlong encoding of '/'
+            {0xe0, 0x80, 0xaf}, // an overlong 3 byte encoding
+            {0xed, 0xa0, 0x80}, // an encoded surrogate
+            {0xf4, 0x90, 0x80, 0x80}, // past U+10FFFF
+            {0xf8, 0x88, 0x80, 0x80, 0x80}, // a 5 byte sequence
+        };
+        for (int[] sequence : sequences) {
+            byte[] value = new byte[sequence.length + 2];
+            value[0] = 'x';
+            for (int i = 0; i < sequence.length; i++) {
+                value[i + 1] = (byte) sequence[i];
+            }
+            value[value.length - 1] = 'y';
+            assertDecodedLikeJdk(Arrays.toString(sequence), value);
+        }
+    }
+
+    /**
+     * Random byte strings decode to the same characters as with an {@link InputStreamReader}.
+     */
+    public void testRandomBytes() throws Exception {
+        Random random = new Random(0);
+        for (int i = 0; i < 1000; i++) {
+            byte[] value = new byte[random.nextInt(20)];
+            for (int j = 0; j < value.length; j++) {
+                // mostly non-ASCII bytes, and no quotes or escapes that end the string
+                value[j] = (byte) (random.nextInt(4) == 0 ? 'a' + random.nextInt(26)
+                        : 0x80 + random.nextInt(0x80));
+            }
+            assertDecodedLikeJdk(Arrays.toString(value), value);
+        }
+    }
+
+    private void assertDecodedLikeJdk(String message, byte[] value) throws IOException {
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        json.write('[');
+        json.write('"');
+        json.write(value);
+        json.write('"');
+        json.write(']');
+        String expected = readString(new JsonReader(new InputStreamReader(
+                new ByteArrayInputStream(json.toByteArray()), UTF8)));
+        assertEquals(message, new String(value, UTF8), expected);
+        for (JsonReader reader : getReaders(json.toByteArray())) {
+            assertEquals(message, expected, readString(reader));
+        }
+    }
+
+    private static String readString(JsonReader reader) throws IOException {
+        reader.beginArray();
+        String value = reader.nextString();
+        reader.endArray();
+        return value;
+    }
+
+    /**
+     * Returns readers of the given UTF-8 bytes: decoded by a {@link java.io.Reader}, from a
+     * stream that returns all bytes, from a stream that returns one byte per read and from a
+     * direct {@link ByteBuffer}.
+     */
+    private static JsonReader[] getReaders(byte[] json) throws IOException {
+        ByteBuffer direct = ByteBuffer.allocateDirect(json.length);
+        direct.put(json);
+        direct.flip();
+        return new JsonReader[] {
+            new JsonReader(new StringReader(new String(json, UTF8))),
+            new JsonReader(new ByteArrayInputStream(json)),
+            new JsonReader(new OneByteInputStream(json)),
+            new JsonReader(direct),
+        };
+    }
+
+    private static byte[] getBytes(String json) throws IOException {
+        return json.getBytes(UTF8);
+    }
+
+    private static String spaces(int count) {
+        char[] spaces = new char[count];
+        Arrays.fill(spaces, ' ');
+        return new String(spaces);
+    }
+
+    /**
+     * A stream that returns at most one byte per read.
+     */
+    private static class OneByteInputStream extends InputStream {
+        private final byte[] mBytes;
+        private int mPos = 0;
+
+        OneByteInputStream(byte[] bytes) {
+            mBytes = bytes;
+        }
+
+        @Override
+        public int read() {
+            return (mPos < mBytes.length) ? mBytes[mPos++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            int c = read();
+            if (c == -1) {
+                return -1;
+            }
+            b[off] = (byte) c;
+            return 1;
+        }
+    }
+}
@@ -25,3 +25,5 @@ LOCAL_MODULE := ctstestserver
 LOCAL_SDK_VERSION := 16
 
 include $(BUILD_STATIC_JAVA_LIBRARY)
+
+include $(call all-makefiles-under,$(LOCAL_PATH))
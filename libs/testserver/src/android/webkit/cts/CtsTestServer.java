@@ -33,12 +33,16 @@ import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.DefaultHttpServerConnection;
 import org.apache.http.impl.cookie.DateUtils;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.apache.http.message.BasicHttpRequest;
 import org.apache.http.message.BasicHttpResponse;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.CoreProtocolPNames;
 import org.apache.http.params.HttpParams;
+import org.apache.http.util.EntityUtils;
 
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.content.res.AssetManager;
 import android.content.res.Resources;
 import android.net.Uri;
@@ -50,6 +54,7 @@ import android.webkit.MimeTypeMap;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -59,6 +64,7 @@ import java.net.Socket;
 import java.net.URI;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.nio.channels.FileChannel;
 import java.security.KeyStore;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
@@ -66,11 +72,9 @@ import java.util.Date;
 import java.util.Hashtable;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.Vector;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
@@ -114,6 +118,8 @@ public class CtsTestServer {
     private static final String AUTH_PREFIX = "/auth";
     public static final String NOLENGTH_POSTFIX = "nolength";
     private static final int DELAY_MILLIS = 2000;
+    // same number of request threads as the blocking server core
+    private static final int NIO_WORKER_THREADS = 20;
 
     public static final String AUTH_REALM = "Android CTS";
     public static final String AUTH_USER = "cts";
@@ -135,13 +141,14 @@ public class CtsTestServer {
     private static Hashtable<Integer, String> sReasons;
 
     private ServerThread mServerThread;
+    private NioHttpServer mNioServer;
     private String mServerUri;
     private AssetManager mAssets;
     private Context mContext;
     private Resources mResources;
     private SslMode mSsl;
     private MimeTypeMap mMap;
-    private Vector<String> mQueries;
+    private final RequestLog mQueries = new RequestLog();
     private ArrayList<HttpEntity> mRequestEntities;
     private final Map<String, HttpRequest> mLastRequestMap = new HashMap<String, HttpRequest>();
     private long mDocValidity;
@@ -203,8 +210,21 @@ public class CtsTestServer {
         mSsl = sslMode;
         mRequestEntities = new ArrayList<HttpEntity>();
         mMap = MimeTypeMap.getSingleton();
-        mQueries = new Vector<String>();
         mTrustManager = trustManager;
+        if (mSsl == SslMode.INSECURE && !hasCustomHttpServerConnection()) {
+            // Plain HTTP is served by the selector based core, which keeps connections alive
+            // and does not need a thread per connection.
+            mNioServer = new NioHttpServer(new NioHttpServer.Handler() {
+                @Override
+                public NioHttpServer.Response handle(NioHttpServer.Request request)
+                        throws Exception {
+                    return toNioResponse(request.getUri(),
+                            getResponse(fromNioRequest(request)));
+                }
+            }, NIO_WORKER_THREADS);
+            mServerUri = "http://localhost:" + mNioServer.getPort();
+            return;
+        }
         mServerThread = new ServerThread(this, mSsl);
         if (mSsl == SslMode.INSECURE) {
             mServerUri = "http:";
@@ -215,10 +235,100 @@ public class CtsTestServer {
         mServerThread.start();
     }
 
+    /**
+     * Returns true if a subclass supplies its own connection through
+     * {@link #createHttpServerConnection()}. The connection is bound to the sockets of the
+     * blocking server core, so such servers keep using it.
+     */
+    private boolean hasCustomHttpServerConnection() {
+        for (Class<?> c = getClass(); c != CtsTestServer.class; c = c.getSuperclass()) {
+            try {
+                c.getDeclaredMethod("createHttpServerConnection");
+                return true;
+            } catch (NoSuchMethodException e) {
+                // not overridden by this class
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Converts a request received by the selector based core to the request type handled by
+     * {@link #getResponse(HttpRequest)}.
+     */
+    private static HttpRequest fromNioRequest(NioHttpServer.Request nioRequest) {
+        HttpRequest request;
+        byte[] body = nioRequest.getBody();
+        if (body.length > 0 || nioRequest.getHeader("Content-Length") != null) {
+            BasicHttpEntityEnclosingRequest entityRequest = new BasicHttpEntityEnclosingRequest(
+                    nioRequest.getMethod(), nioRequest.getUri());
+            ByteArrayEntity entity = new ByteArrayEntity(body);
+            entity.setContentType(nioRequest.getHeader("Content-Type"));
+            entityRequest.setEntity(entity);
+            request = entityRequest;
+        } else {
+            request = new BasicHttpRequest(nioRequest.getMethod(), nioRequest.getUri());
+        }
+        for (Map.Entry<String, String> header : nioRequest.getHeaders().entrySet()) {
+            request.addHeader(header.getKey(), header.getValue());
+        }
+        return request;
+    }
+
+    /**
+     * Converts a response of {@link #getResponse(HttpRequest)} for the selector based core,
+     * which adds the framing headers itself. Files and uncompressed assets are sent from their
+     * channel, other bodies are buffered and sent with their length, so the connection is kept
+     * alive. Only the body of a "nolength" URL is ended by closing the connection.
+     */
+    private static NioHttpServer.Response toNioResponse(String uriString, HttpResponse response)
+            throws IOException {
+        StatusLine status = response.getStatusLine();
+        HttpEntity entity = response.getEntity();
+        // The blocking core sends the content type of the entity unless a header is set.
+        String contentType = null;
+        if (entity != null && entity.getContentType() != null
+                && response.getFirstHeader("Content-Type") == null) {
+            contentType = entity.getContentType().getValue();
+        }
+        NioHttpServer.Response nioResponse;
+        if (entity instanceof ServedFileEntity) {
+            nioResponse = NioHttpServer.Response.fromFile(status.getStatusCode(),
+                    status.getReasonPhrase(), contentType,
+                    ((ServedFileEntity) entity).getFile());
+        } else if (entity instanceof AssetFdEntity) {
+            AssetFdEntity assetEntity = (AssetFdEntity) entity;
+            nioResponse = NioHttpServer.Response.fromChannel(status.getStatusCode(),
+                    status.getReasonPhrase(), contentType, assetEntity.getChannel(),
+                    assetEntity.getStartOffset(), assetEntity.getContentLength());
+        } else {
+            byte[] body = (entity == null) ? null : EntityUtils.toByteArray(entity);
+            nioResponse = NioHttpServer.Response.create(
+                    status.getStatusCode(), status.getReasonPhrase(), contentType, body);
+        }
+        String query = Uri.parse(uriString).getQuery();
+        if (entity != null && response.getFirstHeader("Content-Length") == null
+                && query != null && query.contains(NOLENGTH_POSTFIX)) {
+            nioResponse.withoutContentLength();
+        }
+        for (Header header : response.getAllHeaders()) {
+            String name = header.getName();
+            if (!name.equalsIgnoreCase("Content-Length") && !name.equalsIgnoreCase("Connection")
+                    && !name.equalsIgnoreCase("Transfer-Encoding")) {
+                nioResponse.addHeader(name, header.getValue());
+            }
+        }
+        return nioResponse;
+    }
+
     /**
      * Terminate the http server.
      */
     public void shutdown() {
+        if (mNioServer != null) {
+            mNioServer.shutdown();
+            return;
+        }
         mServerThread.shutDownOnClientThread();
 
         try {
@@ -456,15 +566,8 @@ public class CtsTestServer {
      *
      * @param url The relative url to check whether it has been requested.
      */
-    public synchronized boolean wasResourceRequested(String url) {
-        Iterator<String> it = mQueries.iterator();
-        while (it.hasNext()) {
-            String request = it.next();
-            if (request.endsWith(url)) {
-                return true;
-            }
-        }
-        return false;
+    public boolean wasResourceRequested(String url) {
+        return mQueries.wasRequested(url);
     }
 
     /**
@@ -474,7 +577,7 @@ public class CtsTestServer {
         return mRequestEntities;
     }
 
-    public synchronized int getRequestCount() {
+    public int getRequestCount() {
         return mQueries.size();
     }
 
@@ -544,8 +647,8 @@ public class CtsTestServer {
         String uriString = requestLine.getUri();
         Log.i(TAG, requestLine.getMethod() + ": " + uriString);
 
+        mQueries.add(uriString);
         synchronized (this) {
-            mQueries.add(uriString);
             mLastRequestMap.put(uriString, request);
             if (request instanceof HttpEntityEnclosingRequest) {
                 mRequestEntities.add(((HttpEntityEnclosingRequest)request).getEntity());
@@ -622,7 +725,7 @@ public class CtsTestServer {
             path = path.substring(ASSET_PREFIX.length());
             // request for an asset file
             try {
-                InputStream in;
+                InputStreamEntity entity;
                 if (path.startsWith(RAW_PREFIX)) {
                   String resourceName = path.substring(RAW_PREFIX.length());
                   int id = mResources.getIdentifier(resourceName, "raw", mContext.getPackageName());
@@ -630,12 +733,19 @@ public class CtsTestServer {
                     Log.w(TAG, "Can't find raw resource " + resourceName);
                     throw new IOException();
                   }
-                  in = mResources.openRawResource(id);
+                  entity = AssetFdEntity.open(openRawResourceFd(id));
+                  if (entity == null) {
+                    InputStream in = mResources.openRawResource(id);
+                    entity = new InputStreamEntity(in, in.available());
+                  }
                 } else {
-                  in = mAssets.open(path);
+                  entity = AssetFdEntity.open(openAssetFd(path));
+                  if (entity == null) {
+                    InputStream in = mAssets.open(path);
+                    entity = new InputStreamEntity(in, in.available());
+                  }
                 }
                 response = createResponse(HttpStatus.SC_OK);
-                InputStreamEntity entity = new InputStreamEntity(in, in.available());
                 String mimeType =
                     mMap.getMimeTypeFromExtension(MimeTypeMap.getFileExtensionFromUrl(path));
                 if (mimeType == null) {
@@ -821,7 +931,8 @@ public class CtsTestServer {
         return response;
     }
 
-    private static FileEntity createFileEntity(String downloadId, int numBytes) throws IOException {
+    private static ServedFileEntity createFileEntity(String downloadId, int numBytes)
+            throws IOException {
         String storageState = Environment.getExternalStorageState();
         if (Environment.MEDIA_MOUNTED.equalsIgnoreCase(storageState)) {
             File storageDir = Environment.getExternalStorageDirectory();
@@ -840,12 +951,86 @@ public class CtsTestServer {
             } finally {
                 stream.close();
             }
-            return new FileEntity(file, "application/octet-stream");
+            return new ServedFileEntity(file, "application/octet-stream");
         } else {
             throw new IllegalStateException("External storage must be mounted for this test!");
         }
     }
 
+    /**
+     * Returns the descriptor of an uncompressed asset, or null if the asset is compressed.
+     */
+    private AssetFileDescriptor openAssetFd(String path) {
+        try {
+            return mAssets.openFd(path);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the descriptor of an uncompressed raw resource, or null if it is compressed.
+     */
+    private AssetFileDescriptor openRawResourceFd(int id) {
+        try {
+            return mResources.openRawResourceFd(id);
+        } catch (Resources.NotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * A {@link FileEntity} the selector based core sends from its file.
+     */
+    private static class ServedFileEntity extends FileEntity {
+        ServedFileEntity(File file, String contentType) {
+            super(file, contentType);
+        }
+
+        File getFile() {
+            return file;
+        }
+    }
+
+    /**
+     * An entity reading an uncompressed asset or raw resource, which the selector based core
+     * sends from the channel of its descriptor.
+     */
+    private static class AssetFdEntity extends InputStreamEntity {
+        private final FileInputStream mIn;
+        private final long mStartOffset;
+
+        private AssetFdEntity(FileInputStream in, AssetFileDescriptor fd) {
+            super(in, fd.getLength());
+            mIn = in;
+            mStartOffset = fd.getStartOffset();
+        }
+
+        /**
+         * Returns an entity for the descriptor, or null if there is no descriptor or its length
+         * is unknown.
+         */
+        static AssetFdEntity open(AssetFileDescriptor fd) throws IOException {
+            if (fd == null) {
+                return null;
+            }
+            if (fd.getLength() < 0) {
+                fd.close();
+                return null;
+            }
+            // The stream owns the descriptor and closes it together with its channel.
+            return new AssetFdEntity(fd.createInputStream(), fd);
+        }
+
+        FileChannel getChannel() {
+            return mIn.getChannel();
+        }
+
+        long getStartOffset() {
+            return mStartOffset;
+        }
+    }
+
     protected DefaultHttpServerConnection createHttpServerConnection() {
         return new DefaultHttpServerConnection();
     }
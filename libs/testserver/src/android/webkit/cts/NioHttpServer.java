@@ -0,0 +1,634 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.webkit.cts;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A small selector based HTTP/1.1 server for loopback testing.
+ *
+ * A single thread accepts connections and does all the socket I/O. Connections are kept alive
+ * and may pipeline requests; requests are handed to a pool of worker threads and the responses
+ * are written back in request order as soon as they are ready. File responses are sent with
+ * {@link FileChannel#transferTo}, without copying the content through the heap.
+ *
+ * The server has no dependency on the Android framework so that it can also be exercised on a
+ * host JVM.
+ */
+public class NioHttpServer {
+    private static final String CHARSET = "ISO-8859-1";
+    private static final byte[] HEADER_END = new byte[] {'\r', '\n', '\r', '\n'};
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    private static final int MAX_REQUEST_SIZE = 1024 * 1024;
+
+    /**
+     * Generates the response to a request. Called on a worker thread.
+     */
+    public interface Handler {
+        Response handle(Request request) throws Exception;
+    }
+
+    /**
+     * A parsed HTTP request.
+     */
+    public static class Request {
+        private final String mMethod;
+        private final String mUri;
+        private final String mVersion;
+        private final Map<String, String> mHeaders;
+        private final byte[] mBody;
+
+        Request(String method, String uri, String version, Map<String, String> headers,
+                byte[] body) {
+            mMethod = method;
+            mUri = uri;
+            mVersion = version;
+            mHeaders = headers;
+            mBody = body;
+        }
+
+        public String getMethod() {
+            return mMethod;
+        }
+
+        public String getUri() {
+            return mUri;
+        }
+
+        public String getVersion() {
+            return mVersion;
+        }
+
+        /**
+         * Returns the value of the given header, or null. Header names are case insensitive.
+         */
+        public String getHeader(String name) {
+            return mHeaders.get(name.toLowerCase(Locale.US));
+        }
+
+        /**
+         * Returns all headers, keyed by their lower case names.
+         */
+        public Map<String, String> getHeaders() {
+            return Collections.unmodifiableMap(mHeaders);
+        }
+
+        public byte[] getBody() {
+            return mBody;
+        }
+
+        boolean isKeepAlive() {
+            String connection = getHeader("Connection");
+            if ("HTTP/1.0".equals(mVersion)) {
+                return connection != null && connection.equalsIgnoreCase("keep-alive");
+            }
+            return connection == null || !connection.equalsIgnoreCase("close");
+        }
+    }
+
+    /**
+     * An HTTP response, with its body either in memory or in a file.
+     */
+    public static class Response {
+        private final int mStatus;
+        private final String mReason;
+        private final List<String[]> mHeaders = new ArrayList<String[]>();
+        private final byte[] mBody;
+        private final File mFile;
+        private FileChannel mChannel;
+        private long mPosition;
+        private long mLength;
+        private boolean mWithoutContentLength = false;
+
+        private Response(int status, String reason, byte[] body, File file) {
+            mStatus = status;
+            mReason = reason;
+            mBody = body;
+            mFile = file;
+        }
+
+        /**
+         * Creates a response with an in-memory body.
+         */
+        public static Response create(int status, String reason, String contentType,
+                byte[] body) {
+            Response response = new Response(status, reason, body == null ? new byte[0] : body,
+                    null);
+            if (contentType != null) {
+                response.addHeader("Content-Type", contentType);
+            }
+            return response;
+        }
+
+        /**
+         * Creates a response sending the content of the given file.
+         */
+        public static Response fromFile(int status, String reason, String contentType,
+                File file) {
+            Response response = new Response(status, reason, null, file);
+            if (contentType != null) {
+                response.addHeader("Content-Type", contentType);
+            }
+            return response;
+        }
+
+        /**
+         * Creates a response sending {@code length} bytes of the given channel from
+         * {@code position}, such as an uncompressed entry of an archive. The channel is closed once
+         * the response has been sent or the connection is closed.
+         */
+        public static Response fromChannel(int status, String reason, String contentType,
+                FileChannel channel, long position, long length) {
+            Response response = new Response(status, reason, null, null);
+            response.mChannel = channel;
+            response.mPosition = position;
+            response.mLength = length;
+            if (contentType != null) {
+                response.addHeader("Content-Type", contentType);
+            }
+            return response;
+        }
+
+        public Response addHeader(String name, String value) {
+            mHeaders.add(new String[] {name, value});
+            return this;
+        }
+
+        /**
+         * Sends the response without a Content-Length header. The end of the body is then marked
+         * by closing the connection.
+         */
+        public Response withoutContentLength() {
+            mWithoutContentLength = true;
+            return this;
+        }
+
+        public int getStatus() {
+            return mStatus;
+        }
+    }
+
+    /** A response slot, filled in by a worker and written by the selector thread. */
+    private static class PendingResponse {
+        final boolean mKeepAlive;
+        volatile Response mResponse;
+
+        PendingResponse(boolean keepAlive) {
+            mKeepAlive = keepAlive;
+        }
+    }
+
+    private final Handler mHandler;
+    private final ServerSocketChannel mServerChannel;
+    private final Selector mSelector;
+    private final ExecutorService mWorkers;
+    private final Thread mSelectorThread;
+    private final RequestLog mRequestLog = new RequestLog();
+    private final ConcurrentLinkedQueue<Connection> mReadyConnections =
+            new ConcurrentLinkedQueue<Connection>();
+    private volatile boolean mRunning = true;
+
+    /**
+     * Creates and starts a server listening on an ephemeral loopback port.
+     *
+     * @param handler generates the responses
+     * @param workerThreads the number of threads running the handler
+     */
+    public NioHttpServer(Handler handler, int workerThreads) throws IOException {
+        mHandler = handler;
+        mWorkers = Executors.newFixedThreadPool(workerThreads);
+        mSelector = Selector.open();
+        mServerChannel = ServerSocketChannel.open();
+        mServerChannel.socket().setReuseAddress(true);
+        mServerChannel.socket().bind(new InetSocketAddress(InetAddress.getByName("localhost"), 0));
+        mServerChannel.configureBlocking(false);
+        mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+        mSelectorThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runSelectorLoop();
+            }
+        }, "NioHttpServer");
+        mSelectorThread.start();
+    }
+
+    /**
+     * Returns the port the server is listening on.
+     */
+    public int getPort() {
+        return mServerChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Returns the base URI of the server, e.g. "http://localhost:1234".
+     */
+    public String getBaseUri() {
+        return "http://localhost:" + getPort();
+    }
+
+    /**
+     * Returns the log of the requests received by the server.
+     */
+    public RequestLog getRequestLog() {
+        return mRequestLog;
+    }
+
+    /**
+     * Stops the server and closes all connections.
+     */
+    public void shutdown() {
+        mRunning = false;
+        mSelector.wakeup();
+        try {
+            mSelectorThread.join();
+            mWorkers.shutdown();
+            mWorkers.awaitTermination(1L, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runSelectorLoop() {
+        try {
+            while (mRunning) {
+                mSelector.select();
+                Connection ready;
+                while ((ready = mReadyConnections.poll()) != null) {
+                    ready.write();
+                }
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    if (key.isReadable()) {
+                        connection.read();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.write();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // The selector failed, nothing more can be served.
+        } finally {
+            for (SelectionKey key : mSelector.keys()) {
+                closeQuietly(key);
+            }
+            try {
+                mSelector.close();
+                mServerChannel.close();
+            } catch (IOException ignored) {
+                // safe to ignore
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = mServerChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            SelectionKey key = channel.register(mSelector, SelectionKey.OP_READ);
+            key.attach(new Connection(key, channel));
+        }
+    }
+
+    private static void closeQuietly(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {
+            // safe to ignore
+        }
+        Object attachment = key.attachment();
+        if (attachment instanceof Connection) {
+            ((Connection) attachment).closeFiles();
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // safe to ignore
+            }
+        }
+    }
+
+    /**
+     * The state of one client connection. Only accessed on the selector thread, except for the
+     * response slots which workers fill in.
+     */
+    private class Connection {
+        private final SelectionKey mKey;
+        private final SocketChannel mChannel;
+        private ByteBuffer mReadBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final LinkedList<PendingResponse> mPending = new LinkedList<PendingResponse>();
+        private boolean mInputClosed = false;
+
+        // The response being written.
+        private ByteBuffer mHeaderBuffer;
+        private ByteBuffer mBodyBuffer;
+        private FileChannel mFileChannel;
+        private long mFilePosition;
+        private long mFileRemaining;
+
+        Connection(SelectionKey key, SocketChannel channel) {
+            mKey = key;
+            mChannel = channel;
+        }
+
+        void read() {
+            try {
+                if (!mReadBuffer.hasRemaining()) {
+                    if (mReadBuffer.capacity() >= MAX_REQUEST_SIZE) {
+                        close();
+                        return;
+                    }
+                    ByteBuffer larger = ByteBuffer.allocate(mReadBuffer.capacity() * 2);
+                    mReadBuffer.flip();
+                    larger.put(mReadBuffer);
+                    mReadBuffer = larger;
+                }
+                int read = mChannel.read(mReadBuffer);
+                if (read < 0) {
+                    mInputClosed = true;
+                    mKey.interestOps(mKey.interestOps() & ~SelectionKey.OP_READ);
+                    if (mPending.isEmpty()) {
+                        close();
+                    }
+                    return;
+                }
+                Request request;
+                while ((request = parseRequest()) != null) {
+                    dispatch(request);
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        /**
+         * Parses the next complete request out of the read buffer, or returns null if more
+         * input is needed. Pipelined requests are parsed one after the other.
+         */
+        private Request parseRequest() throws IOException {
+            byte[] data = mReadBuffer.array();
+            int limit = mReadBuffer.position();
+            int headerEnd = indexOf(data, limit, HEADER_END);
+            if (headerEnd < 0) {
+                return null;
+            }
+            String head = new String(data, 0, headerEnd, CHARSET);
+            String[] lines = head.split("\r\n");
+            String[] requestLine = lines[0].split(" ");
+            if (requestLine.length != 3) {
+                throw new IOException("Malformed request line: " + lines[0]);
+            }
+            Map<String, String> headers = new HashMap<String, String>();
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon > 0) {
+                    headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.US),
+                            lines[i].substring(colon + 1).trim());
+                }
+            }
+            int bodyStart = headerEnd + HEADER_END.length;
+            int bodyLength = 0;
+            String contentLength = headers.get("content-length");
+            if (contentLength != null) {
+                try {
+                    bodyLength = Integer.parseInt(contentLength);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed Content-Length: " + contentLength);
+                }
+            }
+            if (bodyStart + bodyLength > MAX_REQUEST_SIZE) {
+                throw new IOException("Request too large");
+            }
+            if (limit < bodyStart + bodyLength) {
+                return null;
+            }
+            byte[] body = new byte[bodyLength];
+            System.arraycopy(data, bodyStart, body, 0, bodyLength);
+            // Keep any pipelined bytes following this request.
+            mReadBuffer.flip();
+            mReadBuffer.position(bodyStart + bodyLength);
+            mReadBuffer.compact();
+            return new Request(requestLine[0], requestLine[1], requestLine[2], headers, body);
+        }
+
+        private void dispatch(final Request request) {
+            mRequestLog.add(request.getUri());
+            final PendingResponse pending = new PendingResponse(request.isKeepAlive());
+            mPending.add(pending);
+            try {
+                mWorkers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        Response response;
+                        try {
+                            response = mHandler.handle(request);
+                        } catch (Exception e) {
+                            response = null;
+                        }
+                        if (response == null) {
+                            response = Response.create(500, "Internal Server Error", null, null);
+                        }
+                        pending.mResponse = response;
+                        mReadyConnections.add(Connection.this);
+                        mSelector.wakeup();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Shutting down.
+                close();
+            }
+        }
+
+        /**
+         * Writes as many completed responses as the socket accepts, in request order.
+         */
+        void write() {
+            if (!mKey.isValid()) {
+                // Responses completed after the connection was closed are dropped.
+                closeFiles();
+                return;
+            }
+            try {
+                while (true) {
+                    if (mHeaderBuffer == null) {
+                        if (mPending.isEmpty() || mPending.getFirst().mResponse == null) {
+                            break;
+                        }
+                        startResponse(mPending.getFirst());
+                    }
+                    if (!writeCurrent()) {
+                        // The socket is full, wait until it is writable again.
+                        mKey.interestOps(mKey.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    PendingResponse done = mPending.removeFirst();
+                    mHeaderBuffer = null;
+                    mBodyBuffer = null;
+                    closeFile();
+                    if (!done.mKeepAlive || done.mResponse.mWithoutContentLength) {
+                        close();
+                        return;
+                    }
+                }
+                mKey.interestOps(mKey.interestOps() & ~SelectionKey.OP_WRITE);
+                if (mInputClosed && mPending.isEmpty()) {
+                    close();
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        private void startResponse(PendingResponse pending) throws IOException {
+            Response response = pending.mResponse;
+            long length;
+            if (response.mFile != null) {
+                FileInputStream in = new FileInputStream(response.mFile);
+                mFileChannel = in.getChannel();
+                mFilePosition = 0;
+                mFileRemaining = mFileChannel.size();
+                length = mFileRemaining;
+            } else if (response.mChannel != null) {
+                mFileChannel = response.mChannel;
+                mFilePosition = response.mPosition;
+                mFileRemaining = response.mLength;
+                length = mFileRemaining;
+            } else {
+                mBodyBuffer = ByteBuffer.wrap(response.mBody);
+                length = response.mBody.length;
+            }
+            StringBuilder sb = new StringBuilder();
+            sb.append("HTTP/1.1 ").append(response.mStatus).append(' ');
+            sb.append(response.mReason == null ? "" : response.mReason).append("\r\n");
+            for (String[] header : response.mHeaders) {
+                sb.append(header[0]).append(": ").append(header[1]).append("\r\n");
+            }
+            boolean keepAlive = pending.mKeepAlive && !response.mWithoutContentLength;
+            if (!response.mWithoutContentLength) {
+                sb.append("Content-Length: ").append(length).append("\r\n");
+            }
+            sb.append("Connection: ").append(keepAlive ? "keep-alive" : "close");
+            sb.append("\r\n\r\n");
+            try {
+                mHeaderBuffer = ByteBuffer.wrap(sb.toString().getBytes(CHARSET));
+            } catch (UnsupportedEncodingException e) {
+                throw new IOException(e.toString());
+            }
+        }
+
+        /**
+         * Writes the current response, returns true once it has been written completely.
+         */
+        private boolean writeCurrent() throws IOException {
+            if (mHeaderBuffer.hasRemaining()) {
+                mChannel.write(mHeaderBuffer);
+                if (mHeaderBuffer.hasRemaining()) {
+                    return false;
+                }
+            }
+            if (mBodyBuffer != null) {
+                mChannel.write(mBodyBuffer);
+                return !mBodyBuffer.hasRemaining();
+            }
+            while (mFileRemaining > 0) {
+                long sent = mFileChannel.transferTo(mFilePosition, mFileRemaining, mChannel);
+                if (sent <= 0) {
+                    return false;
+                }
+                mFilePosition += sent;
+                mFileRemaining -= sent;
+            }
+            return true;
+        }
+
+        void closeFile() {
+            closeQuietly(mFileChannel);
+            mFileChannel = null;
+        }
+
+        /**
+         * Closes the file of the response being written and the channels of the responses that
+         * will not be written anymore.
+         */
+        void closeFiles() {
+            closeFile();
+            for (PendingResponse pending : mPending) {
+                Response response = pending.mResponse;
+                if (response != null) {
+                    closeQuietly(response.mChannel);
+                }
+            }
+        }
+
+        private void close() {
+            closeQuietly(mKey);
+        }
+    }
+
+    private static int indexOf(byte[] data, int limit, byte[] pattern) {
+        outer:
+        for (int i = 0; i <= limit - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
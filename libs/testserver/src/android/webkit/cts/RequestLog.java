@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.webkit.cts;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A log of the request URIs received by a test server.
+ *
+ * Requests are recorded from the server's threads without taking a lock, so that many parallel
+ * sub-resource loads do not serialize on the log while the test thread queries it.
+ */
+public class RequestLog {
+    private final ConcurrentLinkedQueue<String> mUris = new ConcurrentLinkedQueue<String>();
+    private final AtomicInteger mCount = new AtomicInteger();
+
+    /**
+     * Records a request for the given URI.
+     */
+    public void add(String uri) {
+        mUris.add(uri);
+        mCount.incrementAndGet();
+    }
+
+    /**
+     * Returns true if a request for a URI ending with the given suffix has been recorded.
+     */
+    public boolean wasRequested(String suffix) {
+        for (String uri : mUris) {
+            if (uri.endsWith(suffix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of requests recorded since the last {@link #clear()}.
+     */
+    public int size() {
+        return mCount.get();
+    }
+
+    /**
+     * Returns a snapshot of the recorded request URIs, in the order they were received.
+     */
+    public List<String> getUris() {
+        return new ArrayList<String>(mUris);
+    }
+
+    /**
+     * Forgets all recorded requests.
+     */
+    public void clear() {
+        while (mUris.poll() != null) {
+            mCount.decrementAndGet();
+        }
+    }
+}
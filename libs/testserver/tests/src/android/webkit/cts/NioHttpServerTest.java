@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.webkit.cts;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Host side tests for {@link NioHttpServer}, run without a device.
+ */
+public class NioHttpServerTest extends TestCase {
+
+    private static final String ASSET_PREFIX = "/assets/";
+    private static final String REGION_PREFIX = "/region/";
+    private static final int REGION_OFFSET = 1000;
+    private static final int REGION_LENGTH = 5000;
+    private static final String DELAY_PREFIX = "/delayed/";
+    private static final String NOLENGTH_PREFIX = "/nolength/";
+
+    private NioHttpServer mServer;
+    private File mAsset;
+    private byte[] mAssetContent;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mAssetContent = new byte[1024 * 1024];
+        new Random(0).nextBytes(mAssetContent);
+        mAsset = File.createTempFile("asset", ".bin");
+        OutputStream out = new FileOutputStream(mAsset);
+        try {
+            out.write(mAssetContent);
+        } finally {
+            out.close();
+        }
+        mServer = new NioHttpServer(new NioHttpServer.Handler() {
+            @Override
+            public NioHttpServer.Response handle(NioHttpServer.Request request) throws Exception {
+                String uri = request.getUri();
+                if (uri.startsWith(ASSET_PREFIX)) {
+                    return NioHttpServer.Response.fromFile(200, "OK", "application/octet-stream",
+                            mAsset);
+                }
+                if (uri.startsWith(REGION_PREFIX)) {
+                    return NioHttpServer.Response.fromChannel(200, "OK",
+                            "application/octet-stream",
+                            new FileInputStream(mAsset).getChannel(), REGION_OFFSET,
+                            REGION_LENGTH);
+                }
+                if (uri.startsWith(NOLENGTH_PREFIX)) {
+                    return NioHttpServer.Response.create(200, "OK", "text/plain",
+                            uri.getBytes("UTF-8")).withoutContentLength();
+                }
+                if (uri.startsWith(DELAY_PREFIX)) {
+                    Thread.sleep(Integer.parseInt(uri.substring(DELAY_PREFIX.length())));
+                }
+                return NioHttpServer.Response.create(200, "OK", "text/plain",
+                        uri.getBytes("UTF-8"));
+            }
+        }, 8);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        mAsset.delete();
+        super.tearDown();
+    }
+
+    public void testGet() throws Exception {
+        assertEquals("/hello", new String(get("/hello"), "UTF-8"));
+        assertTrue(mServer.getRequestLog().wasRequested("/hello"));
+        assertEquals(1, mServer.getRequestLog().size());
+        mServer.getRequestLog().clear();
+        assertEquals(0, mServer.getRequestLog().size());
+    }
+
+    public void testFileResponse() throws Exception {
+        byte[] content = get(ASSET_PREFIX + "file.bin");
+        assertEquals(mAssetContent.length, content.length);
+        for (int i = 0; i < content.length; i++) {
+            assertEquals(mAssetContent[i], content[i]);
+        }
+    }
+
+    /**
+     * A region of a channel, like an uncompressed asset of an APK, is sent with its length over
+     * a connection that is kept alive.
+     */
+    public void testChannelResponse() throws Exception {
+        Socket socket = new Socket("localhost", mServer.getPort());
+        try {
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET " + REGION_PREFIX + "1 HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                    + "GET /second HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n")
+                    .getBytes("ISO-8859-1"));
+            out.flush();
+            byte[] responses = readFully(socket.getInputStream());
+            String headers = new String(responses, 0, indexOfBody(responses), "ISO-8859-1");
+            assertTrue(headers, headers.contains("Content-Length: " + REGION_LENGTH + "\r\n"));
+            assertTrue(headers, headers.contains("Connection: keep-alive\r\n"));
+            for (int i = 0; i < REGION_LENGTH; i++) {
+                assertEquals(mAssetContent[REGION_OFFSET + i],
+                        responses[headers.length() + i]);
+            }
+            String rest = new String(responses, headers.length() + REGION_LENGTH,
+                    responses.length - headers.length() - REGION_LENGTH, "ISO-8859-1");
+            assertTrue(rest, rest.startsWith("HTTP/1.1 200 OK\r\n"));
+            assertTrue(rest, rest.endsWith("/second"));
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Sends several requests at once on one connection, the responses must come back in order
+     * even though the first one takes the longest to generate.
+     */
+    public void testPipelining() throws Exception {
+        Socket socket = new Socket("localhost", mServer.getPort());
+        try {
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET " + DELAY_PREFIX + "200 HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                    + "GET /second HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                    + "GET /third HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n")
+                    .getBytes("ISO-8859-1"));
+            out.flush();
+            String responses = new String(readFully(socket.getInputStream()), "ISO-8859-1");
+            int first = responses.indexOf(DELAY_PREFIX + "200");
+            int second = responses.indexOf("/second");
+            int third = responses.indexOf("/third");
+            assertTrue(responses, first > 0 && first < second && second < third);
+            assertEquals(3, mServer.getRequestLog().size());
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * A response without Content-Length is ended by closing the connection, even if the client
+     * asked to keep it alive.
+     */
+    public void testResponseWithoutContentLength() throws Exception {
+        Socket socket = new Socket("localhost", mServer.getPort());
+        try {
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET " + NOLENGTH_PREFIX + "file HTTP/1.1\r\nHost: localhost\r\n\r\n")
+                    .getBytes("ISO-8859-1"));
+            out.flush();
+            String response = new String(readFully(socket.getInputStream()), "ISO-8859-1");
+            assertTrue(response, response.startsWith("HTTP/1.1 200 OK\r\n"));
+            assertFalse(response, response.contains("Content-Length"));
+            assertTrue(response, response.contains("Connection: close\r\n"));
+            assertTrue(response, response.endsWith("\r\n\r\n" + NOLENGTH_PREFIX + "file"));
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Loads many resources from parallel clients over keep-alive connections.
+     */
+    public void testConcurrentLoad() throws Exception {
+        final int clients = 32;
+        final int requestsPerClient = 50;
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        try {
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            for (int i = 0; i < clients; i++) {
+                final int client = i;
+                results.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        int ok = 0;
+                        for (int j = 0; j < requestsPerClient; j++) {
+                            String path = "/client" + client + "/request" + j;
+                            if (path.equals(new String(get(path), "UTF-8"))) {
+                                ok++;
+                            }
+                        }
+                        return ok;
+                    }
+                }));
+            }
+            for (Future<Integer> result : results) {
+                assertEquals(requestsPerClient, result.get().intValue());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(clients * requestsPerClient, mServer.getRequestLog().size());
+        assertTrue(mServer.getRequestLog().wasRequested("/client0/request49"));
+    }
+
+    private byte[] get(String path) throws IOException {
+        HttpURLConnection connection =
+                (HttpURLConnection) new URL(mServer.getBaseUri() + path).openConnection();
+        try {
+            assertEquals(200, connection.getResponseCode());
+            return readFully(connection.getInputStream());
+        } finally {
+            // Leave the connection open for reuse by the keep-alive cache.
+            connection.getInputStream().close();
+        }
+    }
+
+    private static int indexOfBody(byte[] response) throws IOException {
+        int end = new String(response, "ISO-8859-1").indexOf("\r\n\r\n");
+        assertTrue(end > 0);
+        return end + 4;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
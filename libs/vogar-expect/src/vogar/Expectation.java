@@ -45,6 +45,9 @@ public final class Expectation {
     /** The pattern the expected output will match. */
     private final Pattern pattern;
 
+    /** The text the expected output contains, if that is all the pattern checks, or null. */
+    private final String substring;
+
     /** Attributes of this test. */
     private final Set<String> tags;
 
@@ -55,6 +58,16 @@ public final class Expectation {
     private boolean bugIsOpen = false;
 
     public Expectation(Result result, Pattern pattern, Set<String> tags, String description, long bug) {
+        this(result, pattern, null, tags, description, bug);
+    }
+
+    /**
+     * Creates an expectation whose pattern matches exactly the outputs that
+     * contain {@code substring}, if it is not null. Such outputs are matched
+     * without running the pattern.
+     */
+    Expectation(Result result, Pattern pattern, String substring, Set<String> tags,
+            String description, long bug) {
         if (result == null || description == null || pattern == null) {
             throw new IllegalArgumentException(
                     "result=" + result + " description=" + description + " pattern=" + pattern);
@@ -63,6 +76,7 @@ public final class Expectation {
         this.description = description;
         this.result = result;
         this.pattern = pattern;
+        this.substring = substring;
         this.tags = new LinkedHashSet<String>(tags);
         this.bug = bug;
     }
@@ -83,6 +97,14 @@ public final class Expectation {
         return tags;
     }
 
+    Pattern getPattern() {
+        return pattern;
+    }
+
+    String getSubstring() {
+        return substring;
+    }
+
     /**
      * Set the current status of this expectation's bug. When a bug is open,
      * any result (success or failure) is permitted.
@@ -95,10 +117,13 @@ public final class Expectation {
      * Returns true if {@code outcome} matches this expectation.
      */
     public boolean matches(Outcome outcome) {
-        return patternMatches(outcome) && (bugIsOpen || result == outcome.getResult());
+        return (bugIsOpen || result == outcome.getResult()) && patternMatches(outcome);
     }
 
     private boolean patternMatches(Outcome outcome) {
+        if (substring != null) {
+            return outcome.getOutput().contains(substring);
+        }
         return pattern.matcher(outcome.getOutput()).matches();
     }
 
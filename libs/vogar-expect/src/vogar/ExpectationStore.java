@@ -17,16 +17,24 @@
 package vogar;
 
 import com.android.json.stream.JsonReader;
+import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
 import com.google.common.base.Splitter;
 import com.google.common.collect.Iterables;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.Reader;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
@@ -63,9 +71,15 @@ public final class ExpectationStore {
 
     private static final int PATTERN_FLAGS = Pattern.MULTILINE | Pattern.DOTALL;
 
+    /** Identifies the cache file format, change it when the format changes. */
+    private static final int CACHE_MAGIC = 0x76657831;
+
     private final Map<String, Expectation> outcomes = new LinkedHashMap<String, Expectation>();
     private final Map<String, Expectation> failures = new LinkedHashMap<String, Expectation>();
 
+    /** Index of {@code outcomes} by name, built on first use. */
+    private volatile NameTrie outcomeIndex;
+
     private ExpectationStore() {}
 
     /**
@@ -102,19 +116,96 @@ public final class ExpectationStore {
         return byName != null ? byName : SUCCESS;
     }
 
+    /**
+     * Returns the expectation of the longest prefix of {@code name} that is
+     * either the whole name or ends before a '.' or '#', or null if there is
+     * none.
+     */
     private Expectation getByNameOrPackage(String name) {
-        while (true) {
-            Expectation expectation = outcomes.get(name);
-            if (expectation != null) {
-                return expectation;
+        NameTrie index = outcomeIndex;
+        if (index == null || index.size != outcomes.size()) {
+            index = buildOutcomeIndex();
+        }
+        return index.getByNameOrPackage(name);
+    }
+
+    /**
+     * Builds the index of {@code outcomes}, unless another thread already did.
+     * The index is only published once it is complete.
+     */
+    private synchronized NameTrie buildOutcomeIndex() {
+        NameTrie index = outcomeIndex;
+        if (index == null || index.size != outcomes.size()) {
+            index = new NameTrie();
+            for (Map.Entry<String, Expectation> entry : outcomes.entrySet()) {
+                index.put(entry.getKey(), entry.getValue());
+            }
+            outcomeIndex = index;
+        }
+        return index;
+    }
+
+    /**
+     * A character trie of expectation names. Looking up all the packages of a
+     * name is a single walk down the trie that does not allocate.
+     */
+    private static final class NameTrie {
+        private final Node root = new Node();
+        private int size;
+
+        private static final class Node {
+            private char[] keys = new char[0];
+            private Node[] children = new Node[0];
+            private Expectation expectation;
+
+            Node child(char c) {
+                int index = Arrays.binarySearch(keys, c);
+                return index >= 0 ? children[index] : null;
+            }
+
+            Node getOrAddChild(char c) {
+                int index = Arrays.binarySearch(keys, c);
+                if (index >= 0) {
+                    return children[index];
+                }
+                index = -index - 1;
+                char[] newKeys = new char[keys.length + 1];
+                Node[] newChildren = new Node[keys.length + 1];
+                System.arraycopy(keys, 0, newKeys, 0, index);
+                System.arraycopy(children, 0, newChildren, 0, index);
+                System.arraycopy(keys, index, newKeys, index + 1, keys.length - index);
+                System.arraycopy(children, index, newChildren, index + 1, keys.length - index);
+                newKeys[index] = c;
+                newChildren[index] = new Node();
+                keys = newKeys;
+                children = newChildren;
+                return newChildren[index];
             }
+        }
 
-            int dotOrHash = Math.max(name.lastIndexOf('.'), name.lastIndexOf('#'));
-            if (dotOrHash == -1) {
-                return null;
+        void put(String name, Expectation expectation) {
+            Node node = root;
+            for (int i = 0; i < name.length(); i++) {
+                node = node.getOrAddChild(name.charAt(i));
             }
+            node.expectation = expectation;
+            size++;
+        }
 
-            name = name.substring(0, dotOrHash);
+        Expectation getByNameOrPackage(String name) {
+            Expectation longestPackage = null;
+            Node node = root;
+            for (int i = 0; i < name.length(); i++) {
+                char c = name.charAt(i);
+                if ((c == '.' || c == '#') && node.expectation != null) {
+                    longestPackage = node.expectation;
+                }
+                node = node.child(c);
+                if (node == null) {
+                    return longestPackage;
+                }
+            }
+            return node.expectation != null ? node.expectation : longestPackage;
         }
     }
 
@@ -128,6 +219,156 @@ public final class ExpectationStore {
         return result;
     }
 
+    /**
+     * Like {@link #parse(Set, ModeId)}, but keeps the parsed expectations of
+     * each file in a binary cache in {@code cacheDir}, keyed by a hash of the
+     * file contents and the mode. Unchanged files are loaded from the cache.
+     */
+    public static ExpectationStore parse(Set<File> expectationFiles, ModeId mode, File cacheDir)
+            throws IOException {
+        ExpectationStore result = new ExpectationStore();
+        for (File f : expectationFiles) {
+            if (!f.exists()) {
+                continue;
+            }
+            byte[] contents = Files.toByteArray(f);
+            File cacheFile = new File(cacheDir, f.getName() + "-"
+                    + Hashing.sha1().hashBytes(contents) + "-" + mode + ".bin");
+            ExpectationStore fileStore = null;
+            if (cacheFile.isFile()) {
+                try {
+                    fileStore = readCache(cacheFile);
+                    Log.verbose("loaded expectations of " + f + " from " + cacheFile);
+                } catch (IOException | IllegalArgumentException e) {
+                    Log.warn("Ignoring unreadable expectation cache " + cacheFile + ": " + e);
+                }
+            }
+            if (fileStore == null) {
+                fileStore = new ExpectationStore();
+                fileStore.parse(new JsonReader(ByteBuffer.wrap(contents)), f.toString(), mode);
+                try {
+                    fileStore.writeCache(cacheFile);
+                } catch (IOException e) {
+                    Log.warn("Could not write expectation cache " + cacheFile + ": " + e);
+                }
+            }
+            result.addAll(fileStore);
+        }
+        return result;
+    }
+
+    private void addAll(ExpectationStore other) {
+        for (Map.Entry<String, Expectation> entry : other.outcomes.entrySet()) {
+            put(outcomes, entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, Expectation> entry : other.failures.entrySet()) {
+            put(failures, entry.getKey(), entry.getValue());
+        }
+    }
+
+    private static void put(Map<String, Expectation> map, String name, Expectation expectation) {
+        if (map.put(name, expectation) != null) {
+            throw new IllegalArgumentException("Duplicate expectations for " + name);
+        }
+    }
+
+    private void writeCache(File cacheFile) throws IOException {
+        // Expectations may be shared by several names, so they are written once
+        Map<Expectation, Integer> ids = new LinkedHashMap<Expectation, Integer>();
+        for (Expectation expectation : Iterables.concat(outcomes.values(), failures.values())) {
+            if (!ids.containsKey(expectation)) {
+                ids.put(expectation, ids.size());
+            }
+        }
+
+        // Several generators may share the cache directory, so each writes its own
+        // temporary file and renames it into place once it is complete.
+        File cacheDir = cacheFile.getParentFile();
+        cacheDir.mkdirs();
+        File tmpFile = File.createTempFile(cacheFile.getName(), ".tmp", cacheDir);
+        boolean written = false;
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+                out.writeInt(CACHE_MAGIC);
+                out.writeInt(ids.size());
+                for (Expectation expectation : ids.keySet()) {
+                    writeString(out, expectation.getResult().name());
+                    writeString(out, expectation.getPattern().pattern());
+                    out.writeBoolean(expectation.getSubstring() != null);
+                    if (expectation.getSubstring() != null) {
+                        writeString(out, expectation.getSubstring());
+                    }
+                    out.writeInt(expectation.getTags().size());
+                    for (String tag : expectation.getTags()) {
+                        writeString(out, tag);
+                    }
+                    writeString(out, expectation.getDescription());
+                    out.writeLong(expectation.getBug());
+                }
+                for (Map<String, Expectation> map : Arrays.asList(outcomes, failures)) {
+                    out.writeInt(map.size());
+                    for (Map.Entry<String, Expectation> entry : map.entrySet()) {
+                        writeString(out, entry.getKey());
+                        out.writeInt(ids.get(entry.getValue()));
+                    }
+                }
+            }
+            written = tmpFile.renameTo(cacheFile);
+        } finally {
+            if (!written) {
+                tmpFile.delete();
+            }
+        }
+        if (!written) {
+            throw new IOException("Could not rename " + tmpFile + " to " + cacheFile);
+        }
+    }
+
+    private static ExpectationStore readCache(File cacheFile) throws IOException {
+        ExpectationStore result = new ExpectationStore();
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(cacheFile)))) {
+            if (in.readInt() != CACHE_MAGIC) {
+                throw new IOException("Unknown cache format");
+            }
+            Expectation[] expectations = new Expectation[in.readInt()];
+            for (int i = 0; i < expectations.length; i++) {
+                Result expectedResult = Result.valueOf(readString(in));
+                String patternSource = readString(in);
+                String substring = in.readBoolean() ? readString(in) : null;
+                Set<String> tags = new LinkedHashSet<String>();
+                for (int count = in.readInt(); count > 0; count--) {
+                    tags.add(readString(in));
+                }
+                String description = readString(in);
+                long bug = in.readLong();
+                Pattern pattern = patternSource.equals(MATCH_ALL_PATTERN.pattern())
+                        ? MATCH_ALL_PATTERN : Pattern.compile(patternSource, PATTERN_FLAGS);
+                expectations[i] = new Expectation(
+                        expectedResult, pattern, substring, tags, description, bug);
+            }
+            for (Map<String, Expectation> map : Arrays.asList(result.outcomes, result.failures)) {
+                for (int count = in.readInt(); count > 0; count--) {
+                    put(map, readString(in), expectations[in.readInt()]);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(Charsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, Charsets.UTF_8);
+    }
+
     /**
      * Create an {@link ExpectationStore} that is populated from expectation resources.
      * @param owningClass the class from which the resources are loaded.
@@ -156,24 +397,26 @@ public final class ExpectationStore {
     private void parse(URL url, ModeId mode) throws IOException {
         Log.verbose("loading expectations from " + url);
 
-        try (InputStream is = url.openStream();
-             Reader reader = new InputStreamReader(is)) {
-            parse(reader, url.toString(), mode);
+        try (InputStream is = url.openStream()) {
+            parse(new JsonReader(is), url.toString(), mode);
         }
     }
 
     public void parse(File expectationsFile, ModeId mode) throws IOException {
         Log.verbose("loading expectations file " + expectationsFile);
 
-        try (Reader fileReader = new FileReader(expectationsFile)) {
+        try (InputStream is = new FileInputStream(expectationsFile)) {
             String source = expectationsFile.toString();
-            parse(fileReader, source, mode);
+            parse(new JsonReader(is), source, mode);
         }
     }
 
-    private void parse(Reader reader, String source, ModeId mode) throws IOException {
+    /**
+     * Reads the expectations of a UTF-8 encoded expectations file, and closes the reader.
+     */
+    private void parse(JsonReader reader, String source, ModeId mode) throws IOException {
         int count = 0;
-        try (JsonReader jsonReader = new JsonReader(reader)) {
+        try (JsonReader jsonReader = reader) {
             jsonReader.setLenient(true);
             jsonReader.beginArray();
             while (jsonReader.hasNext()) {
@@ -190,6 +433,7 @@ public final class ExpectationStore {
         boolean isFailure = false;
         Result result = Result.EXEC_FAILED;
         Pattern pattern = MATCH_ALL_PATTERN;
+        String substring = null;
         Set<String> names = new LinkedHashSet<String>();
         Set<String> tags = new LinkedHashSet<String>();
         Set<ModeId> modes = null;
@@ -216,8 +460,10 @@ public final class ExpectationStore {
                 names.add(reader.nextString());
             } else if (name.equals("pattern")) {
                 pattern = Pattern.compile(reader.nextString(), PATTERN_FLAGS);
+                substring = null;
             } else if (name.equals("substring")) {
-                pattern = Pattern.compile(".*" + Pattern.quote(reader.nextString()) + ".*", PATTERN_FLAGS);
+                substring = reader.nextString();
+                pattern = Pattern.compile(".*" + Pattern.quote(substring) + ".*", PATTERN_FLAGS);
             } else if (name.equals("tags")) {
                 readStrings(reader, tags);
             } else if (name.equals("description")) {
@@ -241,12 +487,11 @@ public final class ExpectationStore {
             return;
         }
 
-        Expectation expectation = new Expectation(result, pattern, tags, description, buganizerBug);
+        Expectation expectation = new Expectation(
+                result, pattern, substring, tags, description, buganizerBug);
         Map<String, Expectation> map = isFailure ? failures : outcomes;
         for (String name : names) {
-            if (map.put(name, expectation) != null) {
-                throw new IllegalArgumentException("Duplicate expectations for " + name);
-            }
+            put(map, name, expectation);
         }
     }
 
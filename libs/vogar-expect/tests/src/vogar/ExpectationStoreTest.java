@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package vogar;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Unit tests for {@link ExpectationStore}
+ */
+public class ExpectationStoreTest extends TestCase {
+
+    private File mDir;
+    private File mCacheDir;
+    private File mExpectations;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mDir = Files.createTempDir();
+        mCacheDir = new File(mDir, "cache");
+        mExpectations = new File(mDir, "knownfailures.txt");
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        delete(mDir);
+        super.tearDown();
+    }
+
+    public void testGetByNameOrPackage() throws Exception {
+        write("[",
+                "{ description: \"package\", name: \"android.foo\" },",
+                "{ description: \"class\", name: \"android.foo.BarTest\" },",
+                "{ description: \"method\", name: \"android.foo.BarTest#testBaz\" }",
+                "]");
+        ExpectationStore store = ExpectationStore.parse(files(), ModeId.DEVICE);
+        assertEquals("method", store.get("android.foo.BarTest#testBaz").getDescription());
+        assertEquals("class", store.get("android.foo.BarTest#testOther").getDescription());
+        assertEquals("class", store.get("android.foo.BarTest").getDescription());
+        assertEquals("package", store.get("android.foo.BazTest#testBar").getDescription());
+        assertEquals("package", store.get("android.foo.bar.BazTest").getDescription());
+        // Names only match up to a '.' or '#' boundary, not in the middle of a segment
+        assertEquals("package", store.get("android.foo.BarTestCase").getDescription());
+        assertEquals(Result.SUCCESS, store.get("android.foobar.BazTest").getResult());
+        assertEquals(Result.SUCCESS, store.get("android").getResult());
+        assertEquals(Result.SUCCESS, store.get("").getResult());
+    }
+
+    public void testGetAfterParse() throws Exception {
+        write("[ { description: \"first\", name: \"android.foo\" } ]");
+        ExpectationStore store = ExpectationStore.parse(files(), ModeId.DEVICE);
+        assertEquals(Result.SUCCESS, store.get("android.bar.BarTest").getResult());
+
+        File more = new File(mDir, "more.txt");
+        Files.write("[ { description: \"second\", name: \"android.bar\" } ]", more,
+                Charsets.UTF_8);
+        store.parse(more, ModeId.DEVICE);
+        assertEquals("second", store.get("android.bar.BarTest").getDescription());
+        assertEquals("first", store.get("android.foo.FooTest").getDescription());
+    }
+
+    public void testCache() throws Exception {
+        write("[ { description: \"uncached\", name: \"android.foo\" } ]");
+        ExpectationStore store = ExpectationStore.parse(files(), ModeId.DEVICE, mCacheDir);
+        assertEquals("uncached", store.get("android.foo.FooTest").getDescription());
+        File[] cacheFiles = mCacheDir.listFiles();
+        assertEquals(1, cacheFiles.length);
+        assertTrue(cacheFiles[0].getName().endsWith(".bin"));
+
+        // The second parse reads the cache, which still holds the same expectations
+        store = ExpectationStore.parse(files(), ModeId.DEVICE, mCacheDir);
+        assertEquals("uncached", store.get("android.foo.FooTest").getDescription());
+        assertEquals(1, mCacheDir.listFiles().length);
+    }
+
+    public void testCacheInvalidatedByContents() throws Exception {
+        write("[ { description: \"old\", name: \"android.foo\" } ]");
+        ExpectationStore.parse(files(), ModeId.DEVICE, mCacheDir);
+        write("[ { description: \"new\", name: \"android.foo\" } ]");
+        ExpectationStore store = ExpectationStore.parse(files(), ModeId.DEVICE, mCacheDir);
+        assertEquals("new", store.get("android.foo.FooTest").getDescription());
+        assertEquals(2, mCacheDir.listFiles().length);
+    }
+
+    public void testCacheInvalidatedByMode() throws Exception {
+        write("[ { description: \"host\", name: \"android.foo\", modes: [ \"host\" ] } ]");
+        ExpectationStore store = ExpectationStore.parse(files(), ModeId.DEVICE, mCacheDir);
+        assertEquals(Result.SUCCESS, store.get("android.foo.FooTest").getResult());
+        store = ExpectationStore.parse(files(), ModeId.HOST, mCacheDir);
+        assertEquals("host", store.get("android.foo.FooTest").getDescription());
+    }
+
+    public void testUnreadableCacheIgnored() throws Exception {
+        write("[ { description: \"parsed\", name: \"android.foo\" } ]");
+        ExpectationStore.parse(files(), ModeId.DEVICE, mCacheDir);
+        File cacheFile = mCacheDir.listFiles()[0];
+        Files.write("garbage", cacheFile, Charsets.UTF_8);
+        ExpectationStore store = ExpectationStore.parse(files(), ModeId.DEVICE, mCacheDir);
+        assertEquals("parsed", store.get("android.foo.FooTest").getDescription());
+    }
+
+    private void write(String... lines) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (String line : lines) {
+            sb.append(line).append('\n');
+        }
+        Files.write(sb.toString(), mExpectations, Charsets.UTF_8);
+    }
+
+    private Set<File> files() {
+        return Collections.singleton(mExpectations);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -21,19 +21,16 @@ import android.cts.util.SystemUtil;
 import android.util.Log;
 
 import com.android.compatibility.common.util.DeviceReportLog;
+import com.android.compatibility.common.util.IoBenchmark;
 import com.android.compatibility.common.util.MeasureRun;
-import com.android.compatibility.common.util.MeasureTime;
 import com.android.compatibility.common.util.ReportLog;
 import com.android.compatibility.common.util.ResultType;
 import com.android.compatibility.common.util.ResultUnit;
 import com.android.compatibility.common.util.Stat;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.RandomAccessFile;
 import java.util.Random;
 
@@ -43,6 +40,8 @@ public class FileUtil {
     private static long mFileId = 0;
 
     public static final int BUFFER_SIZE = 10 * 1024 * 1024;
+    private static final int RUNS_IN_ONE_GO = 16;
+
     /**
      * create array with different data per each call
      *
@@ -51,20 +50,7 @@ public class FileUtil {
      * @return
      */
     public static byte[] generateRandomData(int length) {
-        byte[] buffer = new byte[length];
-        int val = mRandom.nextInt();
-        for (int i = 0; i < length / 4; i++) {
-            // in little-endian
-            buffer[i * 4] = (byte)(val & 0x000000ff);
-            buffer[i * 4 + 1] = (byte)((val & 0x0000ff00) >> 8);
-            buffer[i * 4 + 2] = (byte)((val & 0x00ff0000) >> 16);
-            buffer[i * 4 + 3] = (byte)((val & 0xff000000) >> 24);
-            val++;
-        }
-        for (int i = (length / 4) * 4; i < length; i++) {
-            buffer[i] = 0;
-        }
-        return buffer;
+        return IoBenchmark.generateData(length, mRandom.nextInt());
     }
 
     /**
@@ -190,48 +176,7 @@ public class FileUtil {
      */
     public static double[] measureIO(int count, double[] readAmount, double[] writeAmount,
             MeasureRun run)  throws Exception {
-        double[] result = new double[count];
-        File procIo = new File("/proc/self/io");
-        boolean measureIo = procIo.exists() && procIo.canRead();
-        long prev = System.currentTimeMillis();
-        RWAmount prevAmount = new RWAmount();
-        if (measureIo) {
-            prevAmount = getRWAmount(procIo);
-        }
-        for (int i = 0; i < count; i++) {
-            run.run(i);
-            long current =  System.currentTimeMillis();
-            result[i] = current - prev;
-            prev = current;
-            if (measureIo) {
-                RWAmount currentAmount = getRWAmount(procIo);
-                readAmount[i] = currentAmount.mRd - prevAmount.mRd;
-                writeAmount[i] = currentAmount.mWr - prevAmount.mWr;
-                prevAmount = currentAmount;
-            }
-        }
-        return result;
-    }
-
-    private static class RWAmount {
-        public double mRd = 0.0;
-        public double mWr = 0.0;
-    };
-
-    private static RWAmount getRWAmount(File file) throws IOException {
-        RWAmount amount = new RWAmount();
-
-        BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file)));
-        String line;
-        while((line = br.readLine())!= null) {
-            if (line.startsWith("read_bytes")) {
-                amount.mRd = Double.parseDouble(line.split(" ")[1]);
-            } else if (line.startsWith("write_bytes")) {
-                amount.mWr = Double.parseDouble(line.split(" ")[1]);
-            }
-        }
-        br.close();
-        return amount;
+        return IoBenchmark.measureIO(count, readAmount, writeAmount, true, run);
     }
 
     /**
@@ -274,44 +219,13 @@ public class FileUtil {
         File file = FileUtil.createNewFilledFile(context,
                 dirName, fileSize);
 
-        final byte[] data = FileUtil.generateRandomData(bufferSize);
-        Random random = new Random(0);
-        final int totalReadCount = (int)(fileSize / bufferSize);
-        final int[] readOffsets = new int[totalReadCount];
-        for (int i = 0; i < totalReadCount; i++) {
-            // align in buffer size
-            readOffsets[i] = (int)(random.nextFloat() * (fileSize - bufferSize)) &
-                    ~(bufferSize - 1);
-        }
-        final int runsInOneGo = 16;
-        final int readsInOneMeasure = totalReadCount / runsInOneGo;
-
-        final RandomAccessFile randomFile = new RandomAccessFile(file, "rw"); // do not need O_SYNC
-        double[] rdAmount = new double[runsInOneGo];
-        double[] wrAmount = new double[runsInOneGo];
-        double[] times = FileUtil.measureIO(runsInOneGo, rdAmount, wrAmount, new MeasureRun() {
-
-            @Override
-            public void run(int i) throws IOException {
-                Log.i(TAG, "starting " + i + " -th round");
-                int start = i * readsInOneMeasure;
-                int end = (i + 1) * readsInOneMeasure;
-                for (int j = start; j < end; j++) {
-                    randomFile.seek(readOffsets[j]);
-                    randomFile.read(data);
-                }
-            }
-        });
-        randomFile.close();
-        double[] mbps = Stat.calcRatePerSecArray((double)fileSize / runsInOneGo / 1024 / 1024,
-                times);
-        report.addValues("read_throughput", mbps, ResultType.HIGHER_BETTER, ResultUnit.MBPS);
-        // This is just the amount of IO returned from kernel. So this is performance neutral.
-        report.addValues("read_amount", rdAmount, ResultType.NEUTRAL, ResultUnit.BYTE);
-        Stat.StatResult stat = Stat.getStat(mbps);
-
-        report.setSummary("read_throughput_average", stat.mAverage, ResultType.HIGHER_BETTER,
-                ResultUnit.MBPS);
+        IoBenchmark.Result result = new IoBenchmark.Builder(file, fileSize)
+                .setBlockSize(bufferSize)
+                .setRounds(RUNS_IN_ONE_GO)
+                .setPattern(IoBenchmark.Pattern.RANDOM)
+                .build()
+                .run();
+        result.report(report, "read");
     }
 
     /**
@@ -327,42 +241,15 @@ public class FileUtil {
             long fileSize, int bufferSize) throws Exception {
         File file = FileUtil.createNewFilledFile(context,
                 dirName, fileSize);
-        final byte[] data = FileUtil.generateRandomData(bufferSize);
-        Random random = new Random(0);
-        final int totalWriteCount = (int)(fileSize / bufferSize);
-        final int[] writeOffsets = new int[totalWriteCount];
-        for (int i = 0; i < totalWriteCount; i++) {
-            writeOffsets[i] = (int)(random.nextFloat() * (fileSize - bufferSize)) &
-                    ~(bufferSize - 1);
-        }
-        final int runsInOneGo = 16;
-        final int writesInOneMeasure = totalWriteCount / runsInOneGo;
-
-        final RandomAccessFile randomFile = new RandomAccessFile(file, "rwd"); // force O_SYNC
-        double[] rdAmount = new double[runsInOneGo];
-        double[] wrAmount = new double[runsInOneGo];
-        double[] times = FileUtil.measureIO(runsInOneGo, rdAmount, wrAmount, new MeasureRun() {
-
-            @Override
-            public void run(int i) throws IOException {
-                Log.i(TAG, "starting " + i + " -th round");
-                int start = i * writesInOneMeasure;
-                int end = (i + 1) * writesInOneMeasure;
-                for (int j = start; j < end; j++) {
-                    randomFile.seek(writeOffsets[j]);
-                    randomFile.write(data);
-                }
-            }
-        });
-        randomFile.close();
-        double[] mbps = Stat.calcRatePerSecArray((double)fileSize / runsInOneGo / 1024 / 1024,
-                times);
-        report.addValues("write_throughput", mbps, ResultType.HIGHER_BETTER, ResultUnit.MBPS);
-        report.addValues("write_amount", wrAmount, ResultType.NEUTRAL, ResultUnit.BYTE);
-        Stat.StatResult stat = Stat.getStat(mbps);
-
-        report.setSummary("write_throughput_average", stat.mAverage, ResultType.HIGHER_BETTER,
-                ResultUnit.MBPS);
+        IoBenchmark.Result result = new IoBenchmark.Builder(file, fileSize)
+                .setBlockSize(bufferSize)
+                .setRounds(RUNS_IN_ONE_GO)
+                .setPattern(IoBenchmark.Pattern.RANDOM)
+                .setWrite(true)
+                .setSyncPolicy(IoBenchmark.SyncPolicy.EACH_WRITE) // force O_SYNC
+                .build()
+                .run();
+        result.report(report, "write");
     }
 
     /**
@@ -380,25 +267,21 @@ public class FileUtil {
             throws Exception {
         File file = FileUtil.createNewFilledFile(context,
                 dirName, fileSize);
-        final byte[] data = FileUtil.generateRandomData(bufferSize);
         int numberRepeatInOneRun = (int)(fileSize / bufferSize);
+        // One round per block, so that the time of every single write is reported.
+        IoBenchmark benchmark = new IoBenchmark.Builder(file, fileSize)
+                .setBlockSize(bufferSize)
+                .setRounds(numberRepeatInOneRun)
+                .setWrite(true)
+                .setSyncPolicy(IoBenchmark.SyncPolicy.EACH_WRITE) // force O_SYNC
+                .setMeasureKernelIo(false)
+                .build();
         double[] mbpsAll = new double[numberRepetition * numberRepeatInOneRun];
         for (int i = 0; i < numberRepetition; i++) {
             Log.i(TAG, "starting " + i + " -th round");
             DeviceReportLog report = new DeviceReportLog(reportName, streamName);
             report.addValue("round", i,  ResultType.NEUTRAL, ResultUnit.NONE);
-            final RandomAccessFile randomFile = new RandomAccessFile(file, "rwd");  // force O_SYNC
-            randomFile.seek(0L);
-            double[] times = MeasureTime.measure(numberRepeatInOneRun, new MeasureRun() {
-
-                @Override
-                public void run(int i) throws IOException {
-                    randomFile.write(data);
-                }
-            });
-            randomFile.close();
-            double[] mbps = Stat.calcRatePerSecArray((double)bufferSize / 1024 / 1024,
-                    times);
+            double[] mbps = benchmark.run().getThroughput();
             report.addValues("throughput", mbps, ResultType.HIGHER_BETTER, ResultUnit.MBPS);
             int offset = i * numberRepeatInOneRun;
             for (int j = 0; j < mbps.length; j++) {
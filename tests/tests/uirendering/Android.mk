@@ -36,3 +36,5 @@ LOCAL_PACKAGE_NAME := CtsUiRenderingTestCases
 #LOCAL_SDK_VERSION := current
 
 include $(BUILD_CTS_PACKAGE)
+
+include $(call all-makefiles-under,$(LOCAL_PATH))
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.uirendering.cts.util;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Unit tests for {@link ImageStatistics}, against the per-window loops MSSIMComparer used before.
+ */
+public class ImageStatisticsTest extends TestCase {
+
+    private static final int WINDOW_SIZE = 10;
+    private static final int WHITE = 0xFFFFFFFF;
+    private static final double DELTA = 1e-9;
+
+    private static final int WIDTH = 45;
+    private static final int HEIGHT = 31;
+    private static final int OFFSET = 7;
+    private static final int STRIDE = 50;
+
+    private int[] mIdeal;
+    private int[] mGiven;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        Random random = new Random(0);
+        mIdeal = new int[OFFSET + STRIDE * HEIGHT];
+        mGiven = new int[mIdeal.length];
+        for (int i = 0; i < mIdeal.length; i++) {
+            mIdeal[i] = 0xFF000000 | random.nextInt(0x1000000);
+            // The given image is close to the ideal one, so the covariance is not trivial
+            mGiven[i] = random.nextInt(4) == 0 ? 0xFF000000 | random.nextInt(0x1000000)
+                    : mIdeal[i] ^ random.nextInt(0x10);
+        }
+    }
+
+    /**
+     * Full windows have the same statistics as with the per-window loops.
+     */
+    public void testFullWindows() throws Exception {
+        ImageStatistics stats = new ImageStatistics(mIdeal, mGiven, OFFSET, STRIDE, WIDTH,
+                HEIGHT);
+        for (int y = 0; y + WINDOW_SIZE <= HEIGHT; y += WINDOW_SIZE) {
+            for (int x = 0; x + WINDOW_SIZE <= WIDTH; x += WINDOW_SIZE) {
+                assertWindow(stats, x, y, WINDOW_SIZE, WINDOW_SIZE);
+            }
+        }
+    }
+
+    /**
+     * Windows at the right and bottom edges are clipped to the analyzed subsection.
+     */
+    public void testEdgeWindows() throws Exception {
+        ImageStatistics stats = new ImageStatistics(mIdeal, mGiven, OFFSET, STRIDE, WIDTH,
+                HEIGHT);
+        for (int y = 0; y < HEIGHT; y += WINDOW_SIZE) {
+            for (int x = 0; x < WIDTH; x += WINDOW_SIZE) {
+                int width = Math.min(WINDOW_SIZE, WIDTH - x);
+                int height = Math.min(WINDOW_SIZE, HEIGHT - y);
+                assertEquals(width * height, stats.getPixelCount(x, y, WINDOW_SIZE, WINDOW_SIZE));
+                if (width * height > 1) {
+                    assertWindow(stats, x, y, width, height);
+                }
+            }
+        }
+    }
+
+    /**
+     * A window of a single pixel has no variance rather than NaN.
+     */
+    public void testSinglePixelWindow() throws Exception {
+        ImageStatistics stats = new ImageStatistics(mIdeal, mGiven, OFFSET, STRIDE, 41, 21);
+        assertEquals(1, stats.getPixelCount(40, 20, WINDOW_SIZE, WINDOW_SIZE));
+        assertEquals(0.0, stats.getVarianceX(40, 20, WINDOW_SIZE, WINDOW_SIZE), 0);
+        assertEquals(0.0, stats.getVarianceY(40, 20, WINDOW_SIZE, WINDOW_SIZE), 0);
+        assertEquals(0.0, stats.getCovariance(40, 20, WINDOW_SIZE, WINDOW_SIZE), 0);
+        int index = OFFSET + 20 * STRIDE + 40;
+        assertEquals(getIntensity(mIdeal[index]),
+                stats.getMeanX(40, 20, WINDOW_SIZE, WINDOW_SIZE), DELTA);
+    }
+
+    public void testWhiteWindows() throws Exception {
+        Arrays.fill(mIdeal, WHITE);
+        mGiven[OFFSET + 15 * STRIDE + 15] = WHITE;
+        for (int y = 0; y < WINDOW_SIZE; y++) {
+            Arrays.fill(mGiven, OFFSET + y * STRIDE, OFFSET + y * STRIDE + WINDOW_SIZE, WHITE);
+        }
+        ImageStatistics stats = new ImageStatistics(mIdeal, mGiven, OFFSET, STRIDE, WIDTH,
+                HEIGHT);
+        for (int y = 0; y < HEIGHT; y += WINDOW_SIZE) {
+            for (int x = 0; x < WIDTH; x += WINDOW_SIZE) {
+                assertTrue(stats.isWhiteX(x, y, WINDOW_SIZE, WINDOW_SIZE));
+                assertEquals(x == 0 && y == 0,
+                        stats.isWhiteY(x, y, WINDOW_SIZE, WINDOW_SIZE));
+            }
+        }
+    }
+
+    private void assertWindow(ImageStatistics stats, int x, int y, int width, int height) {
+        int start = OFFSET + y * STRIDE + x;
+        double[] means = getMeans(mIdeal, mGiven, start, width, height);
+        double[] variances = getVariances(mIdeal, mGiven, means[0], means[1], start, width,
+                height);
+        String window = String.format("window (%d, %d)", x, y);
+        assertEquals(window, means[0], stats.getMeanX(x, y, width, height), DELTA);
+        assertEquals(window, means[1], stats.getMeanY(x, y, width, height), DELTA);
+        assertEquals(window, variances[0], stats.getVarianceX(x, y, width, height), DELTA);
+        assertEquals(window, variances[1], stats.getVarianceY(x, y, width, height), DELTA);
+        assertEquals(window, variances[2], stats.getCovariance(x, y, width, height), DELTA);
+        assertEquals(window, isWindowWhite(mIdeal, start, width, height),
+                stats.isWhiteX(x, y, width, height));
+        assertEquals(window, isWindowWhite(mGiven, start, width, height),
+                stats.isWhiteY(x, y, width, height));
+    }
+
+    // The per-window loops of MSSIMComparer, for windows of the given size
+
+    private static boolean isWindowWhite(int[] colors, int start, int width, int height) {
+        for (int y = 0 ; y < height ; y++) {
+            for (int x = 0 ; x < width ; x++) {
+                if (colors[start + y * STRIDE + x] != WHITE) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static double[] getMeans(int[] pixels0, int[] pixels1, int start, int width,
+            int height) {
+        double avg0 = 0;
+        double avg1 = 0;
+        for (int y = 0 ; y < height ; y++) {
+            for (int x = 0 ; x < width ; x++) {
+                int index = start + y * STRIDE + x;
+                avg0 += getIntensity(pixels0[index]);
+                avg1 += getIntensity(pixels1[index]);
+            }
+        }
+        avg0 /= width * height;
+        avg1 /= width * height;
+        return new double[] {avg0, avg1};
+    }
+
+    private static double[] getVariances(int[] pixels0, int[] pixels1, double mean0,
+            double mean1, int start, int width, int height) {
+        double var0 = 0;
+        double var1 = 0;
+        double varBoth = 0;
+        for (int y = 0 ; y < height ; y++) {
+            for (int x = 0 ; x < width ; x++) {
+                int index = start + y * STRIDE + x;
+                double v0 = getIntensity(pixels0[index]) - mean0;
+                double v1 = getIntensity(pixels1[index]) - mean1;
+                var0 += v0 * v0;
+                var1 += v1 * v1;
+                varBoth += v0 * v1;
+            }
+        }
+        var0 /= (width * height) - 1;
+        var1 /= (width * height) - 1;
+        varBoth /= (width * height) - 1;
+        return new double[] {var0, var1, varBoth};
+    }
+
+    private static double getIntensity(int pixel) {
+        final double gamma = 1;
+        double l = 0;
+        l += (0.21f * Math.pow(((pixel >> 16) & 0xFF) / 255f, gamma));
+        l += (0.72f * Math.pow(((pixel >> 8) & 0xFF) / 255f, gamma));
+        l += (0.07f * Math.pow((pixel & 0xFF) / 255f, gamma));
+        return l;
+    }
+}
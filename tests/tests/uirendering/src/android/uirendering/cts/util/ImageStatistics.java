@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.uirendering.cts.util;
+
+/**
+ * Window statistics of a pair of ARGB images, for example an ideal and a given bitmap.
+ *
+ * The constructor builds summed-area tables of the pixel intensities, their squares and products
+ * and of the white pixels in one pass over the images. Afterwards the sums, means, variances and
+ * covariance of any rectangular window are computed in constant time without allocating.
+ *
+ * Only plain int arrays are used, so this class also works on a host JVM.
+ */
+public class ImageStatistics {
+    private static final int WHITE = 0xFFFFFFFF;
+
+    // Contribution of each channel value to the intensity, see getIntensity()
+    private static final double[] RED_INTENSITY = new double[256];
+    private static final double[] GREEN_INTENSITY = new double[256];
+    private static final double[] BLUE_INTENSITY = new double[256];
+    static {
+        for (int i = 0 ; i < 256 ; i++) {
+            RED_INTENSITY[i] = 0.21f * (double) (i / 255f);
+            GREEN_INTENSITY[i] = 0.72f * (double) (i / 255f);
+            BLUE_INTENSITY[i] = 0.07f * (double) (i / 255f);
+        }
+    }
+
+    private final int mWidth;
+    private final int mHeight;
+    // Summed-area tables with (width + 1) * (height + 1) entries, the first row and column are 0
+    private final double[] mSumX;
+    private final double[] mSumY;
+    private final double[] mSumXX;
+    private final double[] mSumYY;
+    private final double[] mSumXY;
+    private final int[] mWhiteX;
+    private final int[] mWhiteY;
+
+    /**
+     * @param ideal the first image, whose statistics are called X
+     * @param given the second image, whose statistics are called Y
+     * @param offset where in the images to start
+     * @param stride how much to skip between two different rows
+     * @param width the width of the subsection to analyze
+     * @param height the height of the subsection to analyze
+     */
+    public ImageStatistics(int[] ideal, int[] given, int offset, int stride, int width,
+            int height) {
+        mWidth = width;
+        mHeight = height;
+        int size = (width + 1) * (height + 1);
+        mSumX = new double[size];
+        mSumY = new double[size];
+        mSumXX = new double[size];
+        mSumYY = new double[size];
+        mSumXY = new double[size];
+        mWhiteX = new int[size];
+        mWhiteY = new int[size];
+
+        for (int y = 0 ; y < height ; y++) {
+            double rowX = 0;
+            double rowY = 0;
+            double rowXX = 0;
+            double rowYY = 0;
+            double rowXY = 0;
+            int rowWhiteX = 0;
+            int rowWhiteY = 0;
+            int above = y * (width + 1) + 1;
+            int current = above + width + 1;
+            int index = y * stride + offset;
+            for (int x = 0 ; x < width ; x++, above++, current++, index++) {
+                int pixelX = ideal[index];
+                int pixelY = given[index];
+                double intensityX = getIntensity(pixelX);
+                double intensityY = getIntensity(pixelY);
+                rowX += intensityX;
+                rowY += intensityY;
+                rowXX += intensityX * intensityX;
+                rowYY += intensityY * intensityY;
+                rowXY += intensityX * intensityY;
+                if (pixelX == WHITE) {
+                    rowWhiteX++;
+                }
+                if (pixelY == WHITE) {
+                    rowWhiteY++;
+                }
+                mSumX[current] = mSumX[above] + rowX;
+                mSumY[current] = mSumY[above] + rowY;
+                mSumXX[current] = mSumXX[above] + rowXX;
+                mSumYY[current] = mSumYY[above] + rowYY;
+                mSumXY[current] = mSumXY[above] + rowXY;
+                mWhiteX[current] = mWhiteX[above] + rowWhiteX;
+                mWhiteY[current] = mWhiteY[above] + rowWhiteY;
+            }
+        }
+    }
+
+    /**
+     * Gets the intensity of a given pixel in RGB using luminosity formula
+     *
+     * l = 0.21R' + 0.72G' + 0.07B'
+     *
+     * The prime symbols dictate a gamma correction of 1.
+     */
+    public static double getIntensity(int pixel) {
+        double l = 0;
+        l += RED_INTENSITY[(pixel >> 16) & 0xFF];
+        l += GREEN_INTENSITY[(pixel >> 8) & 0xFF];
+        l += BLUE_INTENSITY[pixel & 0xFF];
+        return l;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Returns the number of pixels in the window, which is clipped to the analyzed subsection.
+     * The window methods below take the same arguments and clip the window the same way.
+     */
+    public int getPixelCount(int x, int y, int width, int height) {
+        return (clip(x + width, mWidth) - clip(x, mWidth))
+                * (clip(y + height, mHeight) - clip(y, mHeight));
+    }
+
+    public double getSumX(int x, int y, int width, int height) {
+        return getWindowSum(mSumX, x, y, width, height);
+    }
+
+    public double getSumY(int x, int y, int width, int height) {
+        return getWindowSum(mSumY, x, y, width, height);
+    }
+
+    public double getMeanX(int x, int y, int width, int height) {
+        return getSumX(x, y, width, height) / getPixelCount(x, y, width, height);
+    }
+
+    public double getMeanY(int x, int y, int width, int height) {
+        return getSumY(x, y, width, height) / getPixelCount(x, y, width, height);
+    }
+
+    /**
+     * Returns the sample variance of the intensities of the first image in the window, or 0 if
+     * the window has fewer than two pixels.
+     */
+    public double getVarianceX(int x, int y, int width, int height) {
+        return getCovariance(mSumXX, mSumX, mSumX, x, y, width, height);
+    }
+
+    /**
+     * Returns the sample variance of the intensities of the second image in the window, or 0 if
+     * the window has fewer than two pixels.
+     */
+    public double getVarianceY(int x, int y, int width, int height) {
+        return getCovariance(mSumYY, mSumY, mSumY, x, y, width, height);
+    }
+
+    /**
+     * Returns the sample covariance of the intensities of the two images in the window, or 0 if
+     * the window has fewer than two pixels.
+     */
+    public double getCovariance(int x, int y, int width, int height) {
+        return getCovariance(mSumXY, mSumX, mSumY, x, y, width, height);
+    }
+
+    /**
+     * Returns whether all pixels of the window are white in the first image.
+     */
+    public boolean isWhiteX(int x, int y, int width, int height) {
+        return getWindowCount(mWhiteX, x, y, width, height) == getPixelCount(x, y, width, height);
+    }
+
+    /**
+     * Returns whether all pixels of the window are white in the second image.
+     */
+    public boolean isWhiteY(int x, int y, int width, int height) {
+        return getWindowCount(mWhiteY, x, y, width, height) == getPixelCount(x, y, width, height);
+    }
+
+    private double getCovariance(double[] sumAB, double[] sumA, double[] sumB, int x, int y,
+            int width, int height) {
+        int count = getPixelCount(x, y, width, height);
+        if (count <= 1) {
+            // A clipped window of a single pixel at the edge has no spread
+            return 0;
+        }
+        double a = getWindowSum(sumA, x, y, width, height);
+        double b = getWindowSum(sumB, x, y, width, height);
+        double ab = getWindowSum(sumAB, x, y, width, height);
+        return (ab - a * b / count) / (count - 1);
+    }
+
+    private double getWindowSum(double[] table, int x, int y, int width, int height) {
+        int x0 = clip(x, mWidth);
+        int x1 = clip(x + width, mWidth);
+        int y0 = clip(y, mHeight) * (mWidth + 1);
+        int y1 = clip(y + height, mHeight) * (mWidth + 1);
+        return table[y1 + x1] - table[y0 + x1] - table[y1 + x0] + table[y0 + x0];
+    }
+
+    private int getWindowCount(int[] table, int x, int y, int width, int height) {
+        int x0 = clip(x, mWidth);
+        int x1 = clip(x + width, mWidth);
+        int y0 = clip(y, mHeight) * (mWidth + 1);
+        int y1 = clip(y + height, mHeight) * (mWidth + 1);
+        return table[y1 + x1] - table[y0 + x1] - table[y1 + x0] + table[y0 + x0];
+    }
+
+    private static int clip(int value, int max) {
+        return Math.max(0, Math.min(value, max));
+    }
+}
@@ -19,7 +19,10 @@ package com.android.cts.apicoverage;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /** Representation of a class in the API with constructors and methods. */
 class ApiClass implements Comparable<ApiClass>, HasCoverage {
@@ -36,6 +39,16 @@ class ApiClass implements Comparable<ApiClass>, HasCoverage {
 
     private final List<ApiMethod> mApiMethods = new ArrayList<ApiMethod>();
 
+    // Constructors by number of parameters and methods by name, in the order they were added
+    private final Map<Integer, List<ApiConstructor>> mConstructorsByArity =
+            new HashMap<Integer, List<ApiConstructor>>();
+
+    private final Map<String, List<ApiMethod>> mMethodsByName =
+            new HashMap<String, List<ApiMethod>>();
+
+    // Kept up to date as members get covered, so reports do not count them again
+    private int mNumCoveredMethods;
+
     private final String mSuperClassName;
 
     private ApiClass mSuperClass;
@@ -83,6 +96,13 @@ class ApiClass implements Comparable<ApiClass>, HasCoverage {
 
     public void addConstructor(ApiConstructor constructor) {
         mApiConstructors.add(constructor);
+        int arity = constructor.getParameterTypes().size();
+        List<ApiConstructor> constructors = mConstructorsByArity.get(arity);
+        if (constructors == null) {
+            constructors = new ArrayList<ApiConstructor>();
+            mConstructorsByArity.put(arity, constructors);
+        }
+        constructors.add(constructor);
     }
 
 
@@ -92,6 +112,12 @@ class ApiClass implements Comparable<ApiClass>, HasCoverage {
 
     public void addMethod(ApiMethod method) {
         mApiMethods.add(method);
+        List<ApiMethod> methods = mMethodsByName.get(method.getName());
+        if (methods == null) {
+            methods = new ArrayList<ApiMethod>();
+            mMethodsByName.put(method.getName(), methods);
+        }
+        methods.add(method);
     }
 
     /** Look for a matching constructor and mark it as covered */
@@ -102,6 +128,9 @@ class ApiClass implements Comparable<ApiClass>, HasCoverage {
         }
         ApiConstructor apiConstructor = getConstructor(parameterTypes);
         if (apiConstructor != null) {
+            if (!apiConstructor.isCovered()) {
+                mNumCoveredMethods++;
+            }
             apiConstructor.setCovered(coveredbyApk);
         }
 
@@ -116,27 +145,48 @@ class ApiClass implements Comparable<ApiClass>, HasCoverage {
         }
         ApiMethod apiMethod = getMethod(name, parameterTypes, returnType);
         if (apiMethod != null) {
+            if (!apiMethod.isCovered()) {
+                mNumCoveredMethods++;
+            }
+            apiMethod.setCovered(coveredbyApk);
+        }
+    }
+
+    /**
+     * Marks a member covered by its index, where the constructors come first and then the
+     * methods, each in the order they were added. Unlike the other mark methods this does not
+     * mark the superclass, since the index is of a member known to be covered.
+     */
+    public void markMemberCovered(int index, String coveredbyApk) {
+        if (index < mApiConstructors.size()) {
+            ApiConstructor apiConstructor = mApiConstructors.get(index);
+            if (!apiConstructor.isCovered()) {
+                mNumCoveredMethods++;
+            }
+            apiConstructor.setCovered(coveredbyApk);
+        } else {
+            ApiMethod apiMethod = mApiMethods.get(index - mApiConstructors.size());
+            if (!apiMethod.isCovered()) {
+                mNumCoveredMethods++;
+            }
             apiMethod.setCovered(coveredbyApk);
         }
     }
 
+    /** Returns the modules covering a member, see {@link #markMemberCovered}. */
+    public Set<String> getMemberCoveredWith(int index) {
+        if (index < mApiConstructors.size()) {
+            return mApiConstructors.get(index).getCoveredWith();
+        }
+        return mApiMethods.get(index - mApiConstructors.size()).getCoveredWith();
+    }
+
     public Collection<ApiMethod> getMethods() {
         return Collections.unmodifiableList(mApiMethods);
     }
 
     public int getNumCoveredMethods() {
-        int numCovered = 0;
-        for (ApiConstructor constructor : mApiConstructors) {
-            if (constructor.isCovered()) {
-                numCovered++;
-            }
-        }
-        for (ApiMethod method : mApiMethods) {
-            if (method.isCovered()) {
-                numCovered++;
-            }
-        }
-        return numCovered;
+        return mNumCoveredMethods;
     }
 
     public int getTotalMethods() {
@@ -158,12 +208,14 @@ class ApiClass implements Comparable<ApiClass>, HasCoverage {
     }
 
     private ApiMethod getMethod(String name, List<String> parameterTypes, String returnType) {
-        for (ApiMethod method : mApiMethods) {
-            boolean methodNameMatch = name.equals(method.getName());
+        List<ApiMethod> methods = mMethodsByName.get(name);
+        if (methods == null) {
+            return null;
+        }
+        for (ApiMethod method : methods) {
             boolean parameterTypeMatch =
                     compareParameterTypes(method.getParameterTypes(), parameterTypes);
-            boolean returnTypeMatch = compareType(method.getReturnType(), returnType);
-            if (methodNameMatch && parameterTypeMatch && returnTypeMatch) {
+            if (parameterTypeMatch && compareType(method.getReturnType(), returnType)) {
                 return method;
             }
         }
@@ -243,7 +295,11 @@ class ApiClass implements Comparable<ApiClass>, HasCoverage {
     }
 
     private ApiConstructor getConstructor(List<String> parameterTypes) {
-        for (ApiConstructor constructor : mApiConstructors) {
+        List<ApiConstructor> constructors = mConstructorsByArity.get(parameterTypes.size());
+        if (constructors == null) {
+            return null;
+        }
+        for (ApiConstructor constructor : constructors) {
             if (compareParameterTypes(constructor.getParameterTypes(), parameterTypes)) {
                 return constructor;
             }
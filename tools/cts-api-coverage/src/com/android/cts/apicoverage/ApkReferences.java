@@ -0,0 +1,409 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cts.apicoverage;
+
+import org.jf.dexlib2.DexFileFactory;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.dexbacked.reference.DexBackedMethodReference;
+import org.jf.dexlib2.iface.Annotation;
+import org.jf.dexlib2.iface.AnnotationElement;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.Method;
+import org.jf.dexlib2.iface.value.StringEncodedValue;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The external method references and CDD annotations of a test APK, read from its dex files
+ * in-process. Gives the same references as dexdeps, which lists the methods an APK calls on
+ * classes it does not define.
+ * <p/>
+ * The references of an APK can be cached in a directory, keyed by a hash of the APK and the API
+ * level it is read at, so that unchanged APKs are not read again by later reports.
+ */
+class ApkReferences {
+
+    private static final String CDD_REQUIREMENT_ANNOTATION =
+            "Lcom/android/compatibility/common/util/CddTest;";
+
+    private static final String CDD_REQUIREMENT_ELEMENT_NAME = "requirement";
+
+    private static final String CONSTRUCTOR_NAME = "<init>";
+
+    // Identifies the cache file format, change it when the format changes.
+    private static final int CACHE_MAGIC = 0x61706b31;
+
+    /** A method or constructor of a class the APK does not define. */
+    static class MethodReference {
+        private final String mPackageName;
+        private final String mClassName;
+        private final String mMethodName;
+        private final List<String> mParameterTypes;
+        private final String mReturnType;
+
+        MethodReference(String packageName, String className, String methodName,
+                List<String> parameterTypes, String returnType) {
+            mPackageName = packageName;
+            mClassName = className;
+            mMethodName = methodName;
+            mParameterTypes = parameterTypes;
+            mReturnType = returnType;
+        }
+
+        boolean isConstructor() {
+            return CONSTRUCTOR_NAME.equals(mMethodName);
+        }
+    }
+
+    /** A test method annotated with a CDD requirement. */
+    static class CddReference {
+        private final String mRequirement;
+        private final String mClassName;
+        private final String mMethodName;
+
+        CddReference(String requirement, String className, String methodName) {
+            mRequirement = requirement;
+            mClassName = className;
+            mMethodName = methodName;
+        }
+    }
+
+    private final String mApkName;
+
+    private final List<MethodReference> mMethodReferences = new ArrayList<MethodReference>();
+
+    private final List<CddReference> mCddReferences = new ArrayList<CddReference>();
+
+    private ApkReferences(String apkName) {
+        mApkName = apkName;
+    }
+
+    /**
+     * Reads the references of the given APK, from the cache if it has them.
+     *
+     * @param apk the test APK
+     * @param api the API level of the dex opcodes
+     * @param cacheDir the directory of the cache, or null to not use a cache
+     */
+    static ApkReferences read(File apk, int api, File cacheDir) throws IOException {
+        File cacheFile = null;
+        if (cacheDir != null) {
+            cacheFile = getCacheFile(apk, api, cacheDir);
+            if (cacheFile.isFile()) {
+                try {
+                    return readCache(apk.getName(), cacheFile);
+                } catch (IOException e) {
+                    System.err.println("warning: ignoring unreadable cache: " + cacheFile);
+                }
+            }
+        }
+        ApkReferences references = readDex(apk, api);
+        if (cacheFile != null) {
+            try {
+                references.writeCache(cacheFile);
+            } catch (IOException e) {
+                System.err.println("warning: could not write cache: " + cacheFile);
+            }
+        }
+        return references;
+    }
+
+    /**
+     * Returns the file caching the references of the given APK read at the given API level.
+     */
+    static File getCacheFile(File apk, int api, File cacheDir) throws IOException {
+        return new File(cacheDir, apk.getName() + "-" + api + "-" + getHash(apk) + ".refs");
+    }
+
+    /** Marks the referenced methods as covered by the APK. */
+    void addApiCoverage(ApiCoverage apiCoverage) {
+        for (MethodReference reference : mMethodReferences) {
+            ApiPackage apiPackage = apiCoverage.getPackage(reference.mPackageName);
+            if (apiPackage == null) {
+                continue;
+            }
+            ApiClass apiClass = apiPackage.getClass(reference.mClassName);
+            if (apiClass == null) {
+                continue;
+            }
+            if (reference.isConstructor()) {
+                apiClass.markConstructorCovered(reference.mParameterTypes, mApkName);
+            } else {
+                apiClass.markMethodCovered(reference.mMethodName, reference.mParameterTypes,
+                        reference.mReturnType, mApkName);
+            }
+        }
+    }
+
+    /** Adds the CDD requirements annotated in the APK. */
+    void addCddCoverage(CddCoverage cddCoverage) {
+        for (CddReference reference : mCddReferences) {
+            cddCoverage.addCoverage(reference.mRequirement, new CddCoverage.TestMethod(
+                    mApkName, reference.mClassName, reference.mMethodName));
+        }
+    }
+
+    private static ApkReferences readDex(File apk, int api) throws IOException {
+        ApkReferences references = new ApkReferences(apk.getName());
+        List<DexBackedDexFile> dexFiles = new ArrayList<DexBackedDexFile>();
+        if (apk.getName().endsWith(".apk")) {
+            // classes.dex, classes2.dex, ...
+            for (int i = 1; ; i++) {
+                String entry = (i == 1) ? "classes.dex" : "classes" + i + ".dex";
+                try {
+                    dexFiles.add(DexFileFactory.loadDexFile(apk, entry, Opcodes.forApi(api)));
+                } catch (DexFileFactory.DexFileNotFound e) {
+                    break;
+                }
+            }
+        } else {
+            try {
+                dexFiles.add(DexFileFactory.loadDexFile(apk, null, Opcodes.forApi(api)));
+            } catch (DexFileFactory.DexFileNotFound e) {
+                // no dex, such as a host side jar
+            }
+        }
+        if (dexFiles.isEmpty()) {
+            System.err.println("warning: no dex file in: " + apk.getPath());
+            return references;
+        }
+
+        Set<String> definedClasses = new HashSet<String>();
+        for (DexBackedDexFile dexFile : dexFiles) {
+            for (ClassDef classDef : dexFile.getClasses()) {
+                definedClasses.add(classDef.getType());
+            }
+        }
+        for (DexBackedDexFile dexFile : dexFiles) {
+            for (int i = 0; i < dexFile.getMethodCount(); i++) {
+                DexBackedMethodReference method = new DexBackedMethodReference(dexFile, i);
+                String definingClass = method.getDefiningClass();
+                if (definedClasses.contains(definingClass) || definingClass.startsWith("[")) {
+                    continue;
+                }
+                List<String> parameterTypes = new ArrayList<String>();
+                for (CharSequence parameterType : method.getParameterTypes()) {
+                    parameterTypes.add(descriptorToJavaName(parameterType.toString()));
+                }
+                int packageEnd = definingClass.lastIndexOf('/');
+                String packageName = (packageEnd < 0) ? ""
+                        : definingClass.substring(1, packageEnd).replace('/', '.');
+                String className = definingClass.substring(packageEnd + 1,
+                        definingClass.length() - 1).replace('$', '.');
+                references.mMethodReferences.add(new MethodReference(packageName, className,
+                        method.getName(), parameterTypes,
+                        descriptorToJavaName(method.getReturnType())));
+            }
+            for (ClassDef classDef : dexFile.getClasses()) {
+                // CDD coverage names test classes like Class.getName(), with '$' for inner classes
+                String className = dexToJavaName(classDef.getType());
+                references.addCddReferences(className, null, classDef.getAnnotations());
+                for (Method method : classDef.getMethods()) {
+                    references.addCddReferences(
+                            className, method.getName(), method.getAnnotations());
+                }
+            }
+        }
+        return references;
+    }
+
+    private void addCddReferences(String className, String methodName,
+            Set<? extends Annotation> annotations) {
+        for (String cddRequirement : getCddRequirements(annotations)) {
+            mCddReferences.add(new CddReference(cddRequirement, className, methodName));
+        }
+    }
+
+    /**
+     * Returns the CDD requirements of the CddTest annotations of a test class or method.
+     */
+    static List<String> getCddRequirements(Set<? extends Annotation> annotations) {
+        List<String> cddRequirements = new ArrayList<String>();
+        for (Annotation annotation : annotations) {
+            if (annotation.getType().equals(CDD_REQUIREMENT_ANNOTATION)) {
+                for (AnnotationElement annotationElement : annotation.getElements()) {
+                    if (annotationElement.getName().equals(CDD_REQUIREMENT_ELEMENT_NAME)) {
+                        cddRequirements.add(
+                                ((StringEncodedValue) annotationElement.getValue()).getValue());
+                    }
+                }
+            }
+        }
+        return cddRequirements;
+    }
+
+    /**
+     * Given a string like Landroid/app/cts/DownloadManagerTest;
+     * return android.app.cts.DownloadManagerTest.
+     */
+    static String dexToJavaName(String dexName) {
+        if (!dexName.startsWith("L") || !dexName.endsWith(";")) {
+            return dexName;
+        }
+        dexName = dexName.replace('/', '.');
+        if (dexName.length() > 2) {
+            dexName = dexName.substring(1, dexName.length() - 1);
+        }
+        return dexName;
+    }
+
+    /**
+     * Given a type descriptor like [Landroid/app/Notification$Action; return the name used in
+     * the API XML, like android.app.Notification.Action[].
+     */
+    static String descriptorToJavaName(String descriptor) {
+        int dimensions = 0;
+        while (descriptor.charAt(dimensions) == '[') {
+            dimensions++;
+        }
+        String name;
+        switch (descriptor.charAt(dimensions)) {
+            case 'V': name = "void"; break;
+            case 'Z': name = "boolean"; break;
+            case 'B': name = "byte"; break;
+            case 'S': name = "short"; break;
+            case 'C': name = "char"; break;
+            case 'I': name = "int"; break;
+            case 'J': name = "long"; break;
+            case 'F': name = "float"; break;
+            case 'D': name = "double"; break;
+            default:
+                name = descriptor.substring(dimensions + 1, descriptor.length() - 1)
+                        .replace('/', '.').replace('$', '.');
+                break;
+        }
+        StringBuilder javaName = new StringBuilder(name);
+        for (int i = 0; i < dimensions; i++) {
+            javaName.append("[]");
+        }
+        return javaName.toString();
+    }
+
+    /** Returns the SHA-1 of the file as a hex string. */
+    static String getHash(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        StringBuilder hash = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hash.append(String.format("%02x", b));
+        }
+        return hash.toString();
+    }
+
+    private void writeCache(File cacheFile) throws IOException {
+        cacheFile.getParentFile().mkdirs();
+        File tmpFile = File.createTempFile(cacheFile.getName(), ".tmp",
+                cacheFile.getParentFile());
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            try {
+                out.writeInt(CACHE_MAGIC);
+                out.writeInt(mMethodReferences.size());
+                for (MethodReference reference : mMethodReferences) {
+                    out.writeUTF(reference.mPackageName);
+                    out.writeUTF(reference.mClassName);
+                    out.writeUTF(reference.mMethodName);
+                    out.writeInt(reference.mParameterTypes.size());
+                    for (String parameterType : reference.mParameterTypes) {
+                        out.writeUTF(parameterType);
+                    }
+                    out.writeUTF(reference.mReturnType);
+                }
+                out.writeInt(mCddReferences.size());
+                for (CddReference reference : mCddReferences) {
+                    out.writeUTF(reference.mRequirement);
+                    out.writeUTF(reference.mClassName);
+                    out.writeBoolean(reference.mMethodName != null);
+                    if (reference.mMethodName != null) {
+                        out.writeUTF(reference.mMethodName);
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            if (!tmpFile.renameTo(cacheFile)) {
+                throw new IOException("could not rename " + tmpFile + " to " + cacheFile);
+            }
+        } finally {
+            // nothing to delete once renamed
+            tmpFile.delete();
+        }
+    }
+
+    private static ApkReferences readCache(String apkName, File cacheFile) throws IOException {
+        ApkReferences references = new ApkReferences(apkName);
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(cacheFile)));
+        try {
+            if (in.readInt() != CACHE_MAGIC) {
+                throw new IOException("unknown cache format");
+            }
+            for (int count = in.readInt(); count > 0; count--) {
+                String packageName = in.readUTF();
+                String className = in.readUTF();
+                String methodName = in.readUTF();
+                List<String> parameterTypes = new ArrayList<String>();
+                for (int parameters = in.readInt(); parameters > 0; parameters--) {
+                    parameterTypes.add(in.readUTF());
+                }
+                String returnType = in.readUTF();
+                references.mMethodReferences.add(new MethodReference(
+                        packageName, className, methodName, parameterTypes, returnType));
+            }
+            for (int count = in.readInt(); count > 0; count--) {
+                String requirement = in.readUTF();
+                String className = in.readUTF();
+                String methodName = in.readBoolean() ? in.readUTF() : null;
+                references.mCddReferences.add(
+                        new CddReference(requirement, className, methodName));
+            }
+        } finally {
+            in.close();
+        }
+        return references;
+    }
+}
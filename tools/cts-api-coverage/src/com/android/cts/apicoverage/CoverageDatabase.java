@@ -0,0 +1,439 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cts.apicoverage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Snapshot of an API coverage report: the API model and, for every test APK, its hash, the API
+ * members it covers and its CDD coverage.
+ * <p/>
+ * A later report of the same API only needs to read the APKs whose hash changed, and can list
+ * the members whose coverage changed since the snapshot. The members of the API are numbered in
+ * the order of {@link #getClasses}, so the covered members of an APK are stored as a bit set.
+ */
+class CoverageDatabase {
+
+    // Identifies the file format, change it when the format changes.
+    private static final int MAGIC = 0x61636462;
+
+    /** What the database knows about a test APK. */
+    private static class ApkEntry {
+        private final String mHash;
+        private final BitSet mCoveredMembers;
+        private final List<String[]> mCddCoverage;
+
+        ApkEntry(String hash, BitSet coveredMembers, List<String[]> cddCoverage) {
+            mHash = hash;
+            mCoveredMembers = coveredMembers;
+            mCddCoverage = cddCoverage;
+        }
+    }
+
+    private final String mApiHash;
+
+    private final ApiCoverage mApiCoverage;
+
+    private final Map<String, ApkEntry> mApks = new HashMap<String, ApkEntry>();
+
+    // The classes in member order, see getClasses()
+    private List<ApiClass> mClasses;
+
+    private CoverageDatabase(String apiHash, ApiCoverage apiCoverage) {
+        mApiHash = apiHash;
+        mApiCoverage = apiCoverage;
+    }
+
+    /**
+     * Creates a snapshot of the coverage of the given APKs.
+     *
+     * @param apiHash the hash of the API XML file the API coverage was created from
+     * @param apkHashes the hash of every test APK by file name
+     */
+    static CoverageDatabase create(String apiHash, ApiCoverage apiCoverage,
+            CddCoverage cddCoverage, Map<String, String> apkHashes) {
+        CoverageDatabase database = new CoverageDatabase(apiHash, apiCoverage);
+        // The API members only know the module name, which is the APK name without ".apk"
+        Map<String, String> apkNames = new HashMap<String, String>();
+        for (String apkName : apkHashes.keySet()) {
+            apkNames.put(getModuleName(apkName), apkName);
+            database.mApks.put(apkName, new ApkEntry(apkHashes.get(apkName), new BitSet(),
+                    new ArrayList<String[]>()));
+        }
+        int member = 0;
+        for (ApiClass apiClass : getClasses(apiCoverage)) {
+            for (int i = 0; i < apiClass.getTotalMethods(); i++, member++) {
+                for (String module : apiClass.getMemberCoveredWith(i)) {
+                    String apkName = apkNames.get(module);
+                    if (apkName != null) {
+                        database.mApks.get(apkName).mCoveredMembers.set(member);
+                    }
+                }
+            }
+        }
+        for (CddCoverage.CddRequirement requirement : cddCoverage.getCddRequirements()) {
+            for (CddCoverage.TestMethod testMethod : requirement.getTestMethods()) {
+                ApkEntry apk = database.mApks.get(testMethod.getTestModule());
+                if (apk != null) {
+                    apk.mCddCoverage.add(new String[] {requirement.getRequirementId(),
+                            testMethod.getTestClass(), testMethod.getTestMethod()});
+                }
+            }
+        }
+        return database;
+    }
+
+    /**
+     * Returns the hash of the API XML file the database was created from.
+     */
+    String getApiHash() {
+        return mApiHash;
+    }
+
+    /**
+     * Returns the API of the database. Coverage read from the database is added to it, so it
+     * must only be used for a new report.
+     */
+    ApiCoverage getApiCoverage() {
+        return mApiCoverage;
+    }
+
+    /**
+     * Adds the coverage of an APK known to the database to the API of the database.
+     *
+     * @return false if the database does not know the APK with the given hash, in which case
+     *     the APK has to be read again
+     */
+    boolean addCoverage(String apkName, String apkHash, CddCoverage cddCoverage) {
+        ApkEntry apk = mApks.get(apkName);
+        if (apk == null || !apk.mHash.equals(apkHash)) {
+            return false;
+        }
+        if (mClasses == null) {
+            mClasses = getClasses(mApiCoverage);
+        }
+        int member = 0;
+        int next = apk.mCoveredMembers.nextSetBit(0);
+        for (ApiClass apiClass : mClasses) {
+            int end = member + apiClass.getTotalMethods();
+            while (next >= 0 && next < end) {
+                apiClass.markMemberCovered(next - member, apkName);
+                next = apk.mCoveredMembers.nextSetBit(next + 1);
+            }
+            member = end;
+        }
+        for (String[] cdd : apk.mCddCoverage) {
+            cddCoverage.addCoverage(cdd[0], new CddCoverage.TestMethod(apkName, cdd[1], cdd[2]));
+        }
+        return true;
+    }
+
+    /**
+     * Prints the API members that are covered now but not in the previous snapshot, and the
+     * ones that are not covered anymore. Members added to or removed from the API are left out.
+     */
+    static void printDiffReport(CoverageDatabase previous, CoverageDatabase current,
+            OutputStream outputStream) {
+        Set<String> previousMembers = new TreeSet<String>();
+        Set<String> previousCovered = previous.getCoveredMembers(previousMembers);
+        Set<String> currentMembers = new TreeSet<String>();
+        Set<String> currentCovered = current.getCoveredMembers(currentMembers);
+
+        PrintStream out = new PrintStream(outputStream);
+        out.println("Covered methods: " + previousCovered.size() + "/" + previousMembers.size()
+                + " -> " + currentCovered.size() + "/" + currentMembers.size());
+        for (String member : currentCovered) {
+            if (previousMembers.contains(member) && !previousCovered.contains(member)) {
+                out.println("+ " + member);
+            }
+        }
+        for (String member : previousCovered) {
+            if (currentMembers.contains(member) && !currentCovered.contains(member)) {
+                out.println("- " + member);
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Adds the names of all API members to the given set and returns the ones any APK covers.
+     */
+    private Set<String> getCoveredMembers(Set<String> members) {
+        BitSet covered = new BitSet();
+        for (ApkEntry apk : mApks.values()) {
+            covered.or(apk.mCoveredMembers);
+        }
+        Set<String> coveredMembers = new TreeSet<String>();
+        int member = 0;
+        for (ApiPackage apiPackage : getPackages(mApiCoverage)) {
+            for (ApiClass apiClass : getClasses(apiPackage)) {
+                String className = apiPackage.getName() + "." + apiClass.getName();
+                for (ApiConstructor constructor : apiClass.getConstructors()) {
+                    String name = className + formatParameters(constructor.getParameterTypes());
+                    members.add(name);
+                    if (covered.get(member++)) {
+                        coveredMembers.add(name);
+                    }
+                }
+                for (ApiMethod method : apiClass.getMethods()) {
+                    String name = method.getReturnType() + " " + className + "."
+                            + method.getName() + formatParameters(method.getParameterTypes());
+                    members.add(name);
+                    if (covered.get(member++)) {
+                        coveredMembers.add(name);
+                    }
+                }
+            }
+        }
+        return coveredMembers;
+    }
+
+    private static String formatParameters(List<String> parameterTypes) {
+        StringBuilder parameters = new StringBuilder("(");
+        for (int i = 0; i < parameterTypes.size(); i++) {
+            if (i > 0) {
+                parameters.append(", ");
+            }
+            parameters.append(parameterTypes.get(i));
+        }
+        return parameters.append(')').toString();
+    }
+
+    /**
+     * Returns the classes of the API in the order their members are numbered in.
+     */
+    private static List<ApiClass> getClasses(ApiCoverage apiCoverage) {
+        List<ApiClass> classes = new ArrayList<ApiClass>();
+        for (ApiPackage apiPackage : getPackages(apiCoverage)) {
+            classes.addAll(getClasses(apiPackage));
+        }
+        return classes;
+    }
+
+    private static List<ApiPackage> getPackages(ApiCoverage apiCoverage) {
+        List<ApiPackage> packages = new ArrayList<ApiPackage>(apiCoverage.getPackages());
+        Collections.sort(packages, new Comparator<ApiPackage>() {
+            @Override
+            public int compare(ApiPackage a, ApiPackage b) {
+                return a.getName().compareTo(b.getName());
+            }
+        });
+        return packages;
+    }
+
+    private static List<ApiClass> getClasses(ApiPackage apiPackage) {
+        List<ApiClass> classes = new ArrayList<ApiClass>(apiPackage.getClasses());
+        Collections.sort(classes);
+        return classes;
+    }
+
+    private static String getModuleName(String apkName) {
+        return apkName.endsWith(".apk") ? apkName.substring(0, apkName.length() - 4) : apkName;
+    }
+
+    /**
+     * Reads a database written by {@link #write}.
+     *
+     * @return the database, or null if the file does not exist or is not readable
+     */
+    static CoverageDatabase read(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file)));
+            try {
+                return read(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            System.err.println("warning: ignoring unreadable coverage database: " + file);
+            return null;
+        }
+    }
+
+    private static CoverageDatabase read(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("unknown coverage database format");
+        }
+        ApiCoverage apiCoverage = new ApiCoverage();
+        CoverageDatabase database = new CoverageDatabase(in.readUTF(), apiCoverage);
+        for (int packages = in.readInt(); packages > 0; packages--) {
+            ApiPackage apiPackage = new ApiPackage(in.readUTF());
+            for (int classes = in.readInt(); classes > 0; classes--) {
+                String className = in.readUTF();
+                boolean deprecated = in.readBoolean();
+                boolean classAbstract = in.readBoolean();
+                String superClassName = in.readBoolean() ? in.readUTF() : null;
+                ApiClass apiClass = new ApiClass(
+                        className, deprecated, classAbstract, superClassName);
+                for (int constructors = in.readInt(); constructors > 0; constructors--) {
+                    String name = in.readUTF();
+                    List<String> parameterTypes = readStrings(in);
+                    apiClass.addConstructor(
+                            new ApiConstructor(name, parameterTypes, in.readBoolean()));
+                }
+                for (int methods = in.readInt(); methods > 0; methods--) {
+                    String name = in.readUTF();
+                    List<String> parameterTypes = readStrings(in);
+                    String returnType = in.readUTF();
+                    boolean methodDeprecated = in.readBoolean();
+                    String visibility = in.readUTF();
+                    boolean staticMethod = in.readBoolean();
+                    boolean finalMethod = in.readBoolean();
+                    boolean abstractMethod = in.readBoolean();
+                    apiClass.addMethod(new ApiMethod(name, parameterTypes, returnType,
+                            methodDeprecated, visibility, staticMethod, finalMethod,
+                            abstractMethod));
+                }
+                apiPackage.addClass(apiClass);
+            }
+            apiCoverage.addPackage(apiPackage);
+        }
+        for (int apks = in.readInt(); apks > 0; apks--) {
+            String apkName = in.readUTF();
+            String hash = in.readUTF();
+            long[] words = new long[in.readInt()];
+            for (int i = 0; i < words.length; i++) {
+                words[i] = in.readLong();
+            }
+            List<String[]> cddCoverage = new ArrayList<String[]>();
+            for (int cdds = in.readInt(); cdds > 0; cdds--) {
+                String requirement = in.readUTF();
+                String testClass = in.readUTF();
+                String testMethod = in.readBoolean() ? in.readUTF() : null;
+                cddCoverage.add(new String[] {requirement, testClass, testMethod});
+            }
+            database.mApks.put(apkName, new ApkEntry(hash, BitSet.valueOf(words), cddCoverage));
+        }
+        return database;
+    }
+
+    /**
+     * Writes the database to the given file. A temporary file in the same directory is written
+     * first and renamed, so concurrent runs on the same database do not write to the same
+     * temporary file.
+     */
+    void write(File file) throws IOException {
+        File tmpFile = File.createTempFile(file.getName(), ".tmp",
+                file.getAbsoluteFile().getParentFile());
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeUTF(mApiHash);
+                List<ApiPackage> packages = getPackages(mApiCoverage);
+                out.writeInt(packages.size());
+                for (ApiPackage apiPackage : packages) {
+                    out.writeUTF(apiPackage.getName());
+                    List<ApiClass> classes = getClasses(apiPackage);
+                    out.writeInt(classes.size());
+                    for (ApiClass apiClass : classes) {
+                        out.writeUTF(apiClass.getName());
+                        out.writeBoolean(apiClass.isDeprecated());
+                        out.writeBoolean(apiClass.isAbstract());
+                        out.writeBoolean(apiClass.getSuperClassName() != null);
+                        if (apiClass.getSuperClassName() != null) {
+                            out.writeUTF(apiClass.getSuperClassName());
+                        }
+                        out.writeInt(apiClass.getConstructors().size());
+                        for (ApiConstructor constructor : apiClass.getConstructors()) {
+                            out.writeUTF(constructor.getName());
+                            writeStrings(out, constructor.getParameterTypes());
+                            out.writeBoolean(constructor.isDeprecated());
+                        }
+                        out.writeInt(apiClass.getMethods().size());
+                        for (ApiMethod method : apiClass.getMethods()) {
+                            out.writeUTF(method.getName());
+                            writeStrings(out, method.getParameterTypes());
+                            out.writeUTF(method.getReturnType());
+                            out.writeBoolean(method.isDeprecated());
+                            out.writeUTF(method.getVisibility());
+                            out.writeBoolean(method.isStaticMethod());
+                            out.writeBoolean(method.isFinalMethod());
+                            out.writeBoolean(method.isAbstractMethod());
+                        }
+                    }
+                }
+                out.writeInt(mApks.size());
+                for (Map.Entry<String, ApkEntry> entry : mApks.entrySet()) {
+                    ApkEntry apk = entry.getValue();
+                    out.writeUTF(entry.getKey());
+                    out.writeUTF(apk.mHash);
+                    long[] words = apk.mCoveredMembers.toLongArray();
+                    out.writeInt(words.length);
+                    for (long word : words) {
+                        out.writeLong(word);
+                    }
+                    out.writeInt(apk.mCddCoverage.size());
+                    for (String[] cdd : apk.mCddCoverage) {
+                        out.writeUTF(cdd[0]);
+                        out.writeUTF(cdd[1]);
+                        out.writeBoolean(cdd[2] != null);
+                        if (cdd[2] != null) {
+                            out.writeUTF(cdd[2]);
+                        }
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            if (!tmpFile.renameTo(file) && !(file.delete() && tmpFile.renameTo(file))) {
+                throw new IOException("could not replace " + file);
+            }
+        } finally {
+            tmpFile.delete();
+        }
+    }
+
+    private static List<String> readStrings(DataInputStream in) throws IOException {
+        List<String> strings = new ArrayList<String>();
+        for (int count = in.readInt(); count > 0; count--) {
+            strings.add(in.readUTF());
+        }
+        return strings;
+    }
+
+    private static void writeStrings(DataOutputStream out, List<String> strings)
+            throws IOException {
+        out.writeInt(strings.size());
+        for (String string : strings) {
+            out.writeUTF(string);
+        }
+    }
+}
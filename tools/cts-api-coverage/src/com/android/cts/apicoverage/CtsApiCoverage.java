@@ -23,11 +23,9 @@ import org.jf.dexlib2.DexFileFactory.DexFileNotFound;
 import org.jf.dexlib2.DexFileFactory.MultipleDexFilesException;
 import org.jf.dexlib2.Opcodes;
 import org.jf.dexlib2.iface.Annotation;
-import org.jf.dexlib2.iface.AnnotationElement;
 import org.jf.dexlib2.iface.ClassDef;
 import org.jf.dexlib2.iface.DexFile;
 import org.jf.dexlib2.iface.Method;
-import org.jf.dexlib2.iface.value.StringEncodedValue;
 
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
@@ -43,8 +41,15 @@ import java.io.OutputStream;
 import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.xml.transform.TransformerException;
 
@@ -67,10 +72,6 @@ public class CtsApiCoverage {
 
     private static final int FORMAT_HTML = 2;
 
-    private static final String CDD_REQUIREMENT_ANNOTATION = "Lcom/android/compatibility/common/util/CddTest;";
-
-    private static final String CDD_REQUIREMENT_ELEMENT_NAME = "requirement";
-
     private static void printUsage() {
         System.out.println("Usage: cts-api-coverage [OPTION]... [APK]...");
         System.out.println();
@@ -90,6 +91,15 @@ public class CtsApiCoverage {
         System.out.println("  -p PACKAGENAMEPREFIX   report coverage only for package that start with");
         System.out.println("  -t TITLE               report title");
         System.out.println("  -a API                 the Android API Level");
+        System.out.println("  -j THREADS             read the APKs in-process with THREADS threads");
+        System.out.println("                         rather than with dexdeps");
+        System.out.println("  -c DIR                 cache the references of each APK in DIR, implies");
+        System.out.println("                         reading the APKs in-process");
+        System.out.println("  -b FILE                coverage database of the previous report, only");
+        System.out.println("                         APKs changed since are read, implies reading the");
+        System.out.println("                         APKs in-process");
+        System.out.println("  -r FILE                report of the coverage gained or lost since the");
+        System.out.println("                         previous report in the database");
         System.out.println();
         System.exit(1);
     }
@@ -103,6 +113,10 @@ public class CtsApiCoverage {
         PackageFilter packageFilter = new PackageFilter();
         String reportTitle = "CTS API Coverage";
         int apiLevel = Integer.MAX_VALUE;
+        int threads = 0;
+        File cacheDir = null;
+        File databaseFile = null;
+        File diffFile = null;
 
         for (int i = 0; i < args.length; i++) {
             if (args[i].startsWith("-")) {
@@ -129,6 +143,14 @@ public class CtsApiCoverage {
                     reportTitle = getExpectedArg(args, ++i);
                 } else if ("-a".equals(args[i])) {
                     apiLevel = Integer.parseInt(getExpectedArg(args, ++i));
+                } else if ("-j".equals(args[i])) {
+                    threads = Integer.parseInt(getExpectedArg(args, ++i));
+                } else if ("-c".equals(args[i])) {
+                    cacheDir = new File(getExpectedArg(args, ++i));
+                } else if ("-b".equals(args[i])) {
+                    databaseFile = new File(getExpectedArg(args, ++i));
+                } else if ("-r".equals(args[i])) {
+                    diffFile = new File(getExpectedArg(args, ++i));
                 } else {
                     printUsage();
                 }
@@ -148,18 +170,46 @@ public class CtsApiCoverage {
          *    constructor or method yet.
          *
          * 2. For each provided APK, scan it using dexdeps, parse the output of dexdeps, and
-         *    call methods on the ApiCoverage object to cumulatively add coverage stats.
+         *    call methods on the ApiCoverage object to cumulatively add coverage stats. When
+         *    reading in-process, the APKs are scanned in parallel and their references are
+         *    added one APK after the other, since the ApiCoverage object is not thread-safe.
+         *
+         *    With a coverage database, the API and the coverage of the APKs that did not change
+         *    since the previous report are read from the database instead.
          *
          * 3. Output a report based on the coverage stats in the ApiCoverage object.
          */
 
-        ApiCoverage apiCoverage = getEmptyApiCoverage(apiXmlPath);
+        if (diffFile != null && databaseFile == null) {
+            printUsage();
+        }
+        CoverageDatabase previous = null;
+        String apiHash = null;
+        if (databaseFile != null) {
+            previous = CoverageDatabase.read(databaseFile);
+            apiHash = ApkReferences.getHash(new File(apiXmlPath));
+        }
+
+        ApiCoverage apiCoverage;
+        if (previous != null && previous.getApiHash().equals(apiHash)) {
+            apiCoverage = previous.getApiCoverage();
+        } else {
+            apiCoverage = getEmptyApiCoverage(apiXmlPath);
+        }
         CddCoverage cddCoverage = getEmptyCddCoverage();
         // Add superclass information into api coverage.
         apiCoverage.resolveSuperClasses();
-        for (File testApk : testApks) {
-            addApiCoverage(apiCoverage, testApk, dexDeps);
-            addCddCoverage(cddCoverage, testApk, apiLevel);
+        if (databaseFile != null) {
+            updateCoverage(apiCoverage, cddCoverage, testApks, apiLevel, Math.max(threads, 1),
+                    cacheDir, apiHash, previous, databaseFile, diffFile);
+        } else if (threads > 0 || cacheDir != null) {
+            addCoverageInProcess(apiCoverage, cddCoverage, testApks, apiLevel,
+                    Math.max(threads, 1), cacheDir);
+        } else {
+            for (File testApk : testApks) {
+                addApiCoverage(apiCoverage, testApk, dexDeps);
+                addCddCoverage(cddCoverage, testApk, apiLevel);
+            }
         }
 
         outputCoverageReport(apiCoverage, cddCoverage, testApks, outputFile,
@@ -229,6 +279,93 @@ public class CtsApiCoverage {
         }
     }
 
+    /**
+     * Adds the coverage of the test APKs read in-process with dexlib2 rather than dexdeps.
+     *
+     * @param threads the number of APKs to read at the same time
+     * @param cacheDir the directory to cache the references of each APK in, or null
+     */
+    private static void addCoverageInProcess(ApiCoverage apiCoverage, CddCoverage cddCoverage,
+            List<File> testApks, final int api, int threads, final File cacheDir)
+            throws IOException, InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<ApkReferences>> futures = new ArrayList<Future<ApkReferences>>();
+            for (final File testApk : testApks) {
+                futures.add(executor.submit(new Callable<ApkReferences>() {
+                    @Override
+                    public ApkReferences call() throws IOException {
+                        return ApkReferences.read(testApk, api, cacheDir);
+                    }
+                }));
+            }
+            // Add in the order of the APKs, so the report does not depend on the threads
+            for (int i = 0; i < testApks.size(); i++) {
+                File testApk = testApks.get(i);
+                ApkReferences references;
+                try {
+                    references = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    System.err.println("warning: unable to read: " + testApk.getPath() + ": "
+                            + e.getCause());
+                    continue;
+                }
+                references.addApiCoverage(apiCoverage);
+                if (testApk.getName().endsWith(".jar")) {
+                    addCddJarCoverage(cddCoverage, testApk);
+                } else {
+                    references.addCddCoverage(cddCoverage);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Adds the coverage of the test APKs, reading only the ones that changed since the previous
+     * report, and writes the database for the next report.
+     *
+     * @param previous the database of the previous report, or null if there is none
+     * @param diffFile the file to write the changes since the previous report to, or null
+     */
+    private static void updateCoverage(ApiCoverage apiCoverage, CddCoverage cddCoverage,
+            List<File> testApks, int api, int threads, File cacheDir, String apiHash,
+            CoverageDatabase previous, File databaseFile, File diffFile)
+            throws IOException, InterruptedException {
+        // The members covered by an APK are numbered in the API of the database
+        boolean sameApi = previous != null && previous.getApiCoverage() == apiCoverage;
+        Map<String, String> apkHashes = new HashMap<String, String>();
+        List<File> changedApks = new ArrayList<File>();
+        for (File testApk : testApks) {
+            String apkHash = ApkReferences.getHash(testApk);
+            apkHashes.put(testApk.getName(), apkHash);
+            if (!sameApi || !previous.addCoverage(testApk.getName(), apkHash, cddCoverage)) {
+                changedApks.add(testApk);
+            }
+        }
+        System.err.println("Reading " + changedApks.size() + " of " + testApks.size()
+                + " test APKs");
+        addCoverageInProcess(apiCoverage, cddCoverage, changedApks, api, threads, cacheDir);
+
+        CoverageDatabase current =
+                CoverageDatabase.create(apiHash, apiCoverage, cddCoverage, apkHashes);
+        current.write(databaseFile);
+        if (diffFile != null) {
+            if (previous == null) {
+                System.err.println("warning: no previous report to compare with in: "
+                        + databaseFile);
+                return;
+            }
+            OutputStream out = new FileOutputStream(diffFile);
+            try {
+                CoverageDatabase.printDiffReport(previous, current, out);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
     private static void addCddCoverage(CddCoverage cddCoverage, File testSource, int api)
             throws IOException {
 
@@ -289,35 +426,12 @@ public class CtsApiCoverage {
     private static void handleAnnotations(
             CddCoverage cddCoverage, String moduleName, String className,
                     String methodName, Set<? extends Annotation> annotations) {
-        for (Annotation annotation : annotations) {
-            if (annotation.getType().equals(CDD_REQUIREMENT_ANNOTATION)) {
-                for (AnnotationElement annotationElement : annotation.getElements()) {
-                    if (annotationElement.getName().equals(CDD_REQUIREMENT_ELEMENT_NAME)) {
-                        String cddRequirement =
-                                ((StringEncodedValue) annotationElement.getValue()).getValue();
-                        CddCoverage.TestMethod testMethod =
-                                new CddCoverage.TestMethod(
-                                        moduleName, dexToJavaName(className), methodName);
-                        cddCoverage.addCoverage(cddRequirement, testMethod);
-                    }
-                }
-            }
-        }
-    }
-
-    /**
-     * Given a string like Landroid/app/cts/DownloadManagerTest;
-     * return android.app.cts.DownloadManagerTest.
-     */
-    private static String dexToJavaName(String dexName) {
-        if (!dexName.startsWith("L") || !dexName.endsWith(";")) {
-            return dexName;
-        }
-        dexName = dexName.replace('/', '.');
-        if (dexName.length() > 2) {
-            dexName = dexName.substring(1, dexName.length() - 1);
+        for (String cddRequirement : ApkReferences.getCddRequirements(annotations)) {
+            CddCoverage.TestMethod testMethod =
+                    new CddCoverage.TestMethod(
+                            moduleName, ApkReferences.dexToJavaName(className), methodName);
+            cddCoverage.addCoverage(cddRequirement, testMethod);
         }
-        return dexName;
     }
 
     private static CddCoverage getEmptyCddCoverage() {
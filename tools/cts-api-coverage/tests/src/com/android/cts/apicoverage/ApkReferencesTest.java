@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cts.apicoverage;
+
+import junit.framework.TestCase;
+
+import org.jf.dexlib2.AnnotationVisibility;
+import org.jf.dexlib2.iface.Annotation;
+import org.jf.dexlib2.immutable.ImmutableAnnotation;
+import org.jf.dexlib2.immutable.ImmutableAnnotationElement;
+import org.jf.dexlib2.immutable.value.ImmutableStringEncodedValue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * Unit tests for {@link ApkReferences}
+ */
+public class ApkReferencesTest extends TestCase {
+
+    private File mDir;
+    private File mCacheDir;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mDir = File.createTempFile("apkreferences", "");
+        mDir.delete();
+        mDir.mkdirs();
+        mCacheDir = new File(mDir, "cache");
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        delete(mDir);
+        super.tearDown();
+    }
+
+    public void testDescriptorToJavaName() {
+        assertEquals("void", ApkReferences.descriptorToJavaName("V"));
+        assertEquals("int[][]", ApkReferences.descriptorToJavaName("[[I"));
+        assertEquals("java.lang.String", ApkReferences.descriptorToJavaName("Ljava/lang/String;"));
+        assertEquals("android.app.Notification.Action[]",
+                ApkReferences.descriptorToJavaName("[Landroid/app/Notification$Action;"));
+    }
+
+    public void testDexToJavaName() {
+        assertEquals("android.app.cts.DownloadManagerTest",
+                ApkReferences.dexToJavaName("Landroid/app/cts/DownloadManagerTest;"));
+        // Inner classes are named like Class.getName()
+        assertEquals("android.app.cts.Outer$Inner",
+                ApkReferences.dexToJavaName("Landroid/app/cts/Outer$Inner;"));
+        assertEquals("I", ApkReferences.dexToJavaName("I"));
+    }
+
+    public void testGetCddRequirements() {
+        Set<Annotation> annotations = new HashSet<Annotation>();
+        annotations.add(new ImmutableAnnotation(AnnotationVisibility.RUNTIME,
+                "Lcom/android/compatibility/common/util/CddTest;",
+                Collections.singleton(new ImmutableAnnotationElement("requirement",
+                        new ImmutableStringEncodedValue("3.1/C-0-1")))));
+        annotations.add(new ImmutableAnnotation(AnnotationVisibility.RUNTIME,
+                "Lorg/junit/Test;", Collections.<ImmutableAnnotationElement>emptySet()));
+        assertEquals(Arrays.asList("3.1/C-0-1"), ApkReferences.getCddRequirements(annotations));
+        assertTrue(ApkReferences.getCddRequirements(
+                Collections.<Annotation>emptySet()).isEmpty());
+    }
+
+    /**
+     * The cache is keyed by the contents of the APK and by the API level it is read at.
+     */
+    public void testGetCacheFile() throws Exception {
+        File apk = writeJar("CtsFooTestCases.jar", "a");
+        File cacheFile = ApkReferences.getCacheFile(apk, 23, mCacheDir);
+        assertEquals(cacheFile, ApkReferences.getCacheFile(apk, 23, mCacheDir));
+        assertFalse(cacheFile.equals(ApkReferences.getCacheFile(apk, 24, mCacheDir)));
+        writeJar("CtsFooTestCases.jar", "b");
+        assertFalse(cacheFile.equals(ApkReferences.getCacheFile(apk, 23, mCacheDir)));
+    }
+
+    public void testReadCached() throws Exception {
+        File apk = writeJar("CtsFooTestCases.jar", "a");
+        ApkReferences.read(apk, 23, mCacheDir);
+        assertTrue(ApkReferences.getCacheFile(apk, 23, mCacheDir).isFile());
+        assertEquals(1, mCacheDir.listFiles().length);
+
+        // Read from the cache
+        ApkReferences.read(apk, 23, mCacheDir);
+        assertEquals(1, mCacheDir.listFiles().length);
+
+        // Another API level is cached on its own
+        ApkReferences.read(apk, 24, mCacheDir);
+        assertTrue(ApkReferences.getCacheFile(apk, 24, mCacheDir).isFile());
+        assertEquals(2, mCacheDir.listFiles().length);
+    }
+
+    /**
+     * Writes a jar without dex files, whose contents depend on the given text.
+     */
+    private File writeJar(String name, String text) throws IOException {
+        File jar = new File(mDir, name);
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+        try {
+            out.putNextEntry(new ZipEntry("text.txt"));
+            out.write(text.getBytes("UTF-8"));
+            out.closeEntry();
+        } finally {
+            out.close();
+        }
+        return jar;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cts.apicoverage;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Unit tests for {@link CoverageDatabase}, against the coverage computed from the members of the
+ * API model like the reports did before the database.
+ */
+public class CoverageDatabaseTest extends TestCase {
+
+    private static final String API_HASH = "apihash";
+    private static final String APK_X = "CtsXTestCases.apk";
+    private static final String APK_Y = "CtsYTestCases.apk";
+    private static final String APK_Z = "CtsZTestCases.apk";
+
+    private File mDatabaseFile;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mDatabaseFile = File.createTempFile("coverage", ".db");
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mDatabaseFile.delete();
+        super.tearDown();
+    }
+
+    /**
+     * An incremental report, which reads only the changed APKs, has the coverage and diff report
+     * of a report that reads all APKs.
+     */
+    public void testIncrementalReport() throws Exception {
+        // The previous report reads all of its APKs
+        ApiCoverage previousApi = createApi();
+        CddCoverage previousCdd = new CddCoverage();
+        coverX(previousApi);
+        coverOldY(previousApi);
+        previousCdd.addCoverage("3.1/C-0-1",
+                new CddCoverage.TestMethod(APK_X, "android.x.cts.XTest", "testX"));
+        Map<String, String> previousHashes = new HashMap<String, String>();
+        previousHashes.put(APK_X, "x1");
+        previousHashes.put(APK_Y, "y1");
+        CoverageDatabase.create(API_HASH, previousApi, previousCdd, previousHashes)
+                .write(mDatabaseFile);
+        // The temporary file of the write was renamed
+        for (File file : mDatabaseFile.getParentFile().listFiles()) {
+            assertFalse(file.getName(), file.getName().startsWith(mDatabaseFile.getName())
+                    && file.getName().endsWith(".tmp"));
+        }
+
+        // The current report gets X from the database and reads the changed Y and the new Z
+        CoverageDatabase previous = CoverageDatabase.read(mDatabaseFile);
+        assertEquals(API_HASH, previous.getApiHash());
+        ApiCoverage api = previous.getApiCoverage();
+        CddCoverage cdd = new CddCoverage();
+        assertTrue(previous.addCoverage(APK_X, "x1", cdd));
+        assertFalse(previous.addCoverage(APK_Y, "y2", cdd));
+        assertFalse(previous.addCoverage(APK_Z, "z1", cdd));
+        api.resolveSuperClasses();
+        coverNewY(api);
+        coverZ(api);
+        Map<String, String> hashes = new HashMap<String, String>();
+        hashes.put(APK_X, "x1");
+        hashes.put(APK_Y, "y2");
+        hashes.put(APK_Z, "z1");
+        CoverageDatabase current = CoverageDatabase.create(API_HASH, api, cdd, hashes);
+
+        // The report that reads all APKs
+        ApiCoverage fullApi = createApi();
+        coverX(fullApi);
+        coverNewY(fullApi);
+        coverZ(fullApi);
+
+        assertEquals(getCoverage(fullApi), getCoverage(api));
+        assertCoveredCounts(api);
+        assertEquals(1, cdd.getCddRequirements().size());
+        CddCoverage.TestMethod testMethod =
+                cdd.getCddRequirements().iterator().next().getTestMethods().iterator().next();
+        assertEquals("android.x.cts.XTest#testX", testMethod.getTestClass() + "#"
+                + testMethod.getTestMethod());
+
+        ByteArrayOutputStream diff = new ByteArrayOutputStream();
+        CoverageDatabase.printDiffReport(previous, current, diff);
+        assertEquals(getDiffReport(getCoverage(previousApi), getCoverage(fullApi)),
+                diff.toString());
+        assertTrue(diff.toString().contains("+ void android.b.Bar.setValue(java.lang.String)\n"));
+        assertTrue(diff.toString().contains("- int android.b.Bar.getValue()\n"));
+    }
+
+    public void testRead_missingOrUnreadable() throws Exception {
+        mDatabaseFile.delete();
+        assertNull(CoverageDatabase.read(mDatabaseFile));
+        PrintStream out = new PrintStream(mDatabaseFile);
+        out.print("garbage");
+        out.close();
+        assertNull(CoverageDatabase.read(mDatabaseFile));
+    }
+
+    /**
+     * Creates the API of the fixture. Packages and classes are not added in name order, so the
+     * numbering of the members depends on the database sorting them.
+     */
+    private static ApiCoverage createApi() {
+        ApiCoverage api = new ApiCoverage();
+        ApiPackage b = new ApiPackage("android.b");
+        ApiClass bar = new ApiClass("Bar", false, false, null);
+        bar.addConstructor(new ApiConstructor("Bar", Collections.<String>emptyList(), false));
+        bar.addConstructor(new ApiConstructor("Bar", Arrays.asList("int"), false));
+        bar.addMethod(method("getValue", "int"));
+        bar.addMethod(method("setValue", "void", "int"));
+        bar.addMethod(method("setValue", "void", "java.lang.String"));
+        ApiClass baz = new ApiClass("Baz", false, false, null);
+        baz.addMethod(method("stop", "void"));
+        b.addClass(baz);
+        b.addClass(bar);
+        api.addPackage(b);
+        ApiPackage a = new ApiPackage("android.a");
+        ApiClass foo = new ApiClass("Foo", false, false, null);
+        foo.addConstructor(new ApiConstructor("Foo", Collections.<String>emptyList(), false));
+        foo.addMethod(method("run", "void"));
+        foo.addMethod(method("run", "boolean", "long"));
+        a.addClass(foo);
+        api.addPackage(a);
+        api.resolveSuperClasses();
+        return api;
+    }
+
+    private static ApiMethod method(String name, String returnType, String... parameterTypes) {
+        return new ApiMethod(name, Arrays.asList(parameterTypes), returnType, false, "public",
+                false, false, false);
+    }
+
+    private static void coverX(ApiCoverage api) {
+        getClass(api, "android.a", "Foo").markConstructorCovered(
+                Collections.<String>emptyList(), APK_X);
+        getClass(api, "android.a", "Foo").markMethodCovered(
+                "run", Collections.<String>emptyList(), "void", APK_X);
+    }
+
+    private static void coverOldY(ApiCoverage api) {
+        getClass(api, "android.b", "Bar").markMethodCovered(
+                "getValue", Collections.<String>emptyList(), "int", APK_Y);
+        getClass(api, "android.b", "Bar").markMethodCovered(
+                "setValue", Arrays.asList("int"), "void", APK_Y);
+    }
+
+    private static void coverNewY(ApiCoverage api) {
+        getClass(api, "android.b", "Bar").markConstructorCovered(Arrays.asList("int"), APK_Y);
+        getClass(api, "android.b", "Bar").markMethodCovered(
+                "setValue", Arrays.asList("java.lang.String"), "void", APK_Y);
+    }
+
+    private static void coverZ(ApiCoverage api) {
+        getClass(api, "android.a", "Foo").markMethodCovered(
+                "run", Collections.<String>emptyList(), "void", APK_Z);
+        getClass(api, "android.b", "Baz").markMethodCovered(
+                "stop", Collections.<String>emptyList(), "void", APK_Z);
+    }
+
+    private static ApiClass getClass(ApiCoverage api, String packageName, String className) {
+        return api.getPackage(packageName).getClass(className);
+    }
+
+    /**
+     * Returns the modules covering each member of the API, by the member names of the diff
+     * report.
+     */
+    private static Map<String, Set<String>> getCoverage(ApiCoverage api) {
+        Map<String, Set<String>> coverage = new TreeMap<String, Set<String>>();
+        for (ApiPackage apiPackage : api.getPackages()) {
+            for (ApiClass apiClass : apiPackage.getClasses()) {
+                String className = apiPackage.getName() + "." + apiClass.getName();
+                for (ApiConstructor constructor : apiClass.getConstructors()) {
+                    coverage.put(className + formatParameters(constructor.getParameterTypes()),
+                            new TreeSet<String>(constructor.getCoveredWith()));
+                }
+                for (ApiMethod method : apiClass.getMethods()) {
+                    coverage.put(method.getReturnType() + " " + className + "." + method.getName()
+                            + formatParameters(method.getParameterTypes()),
+                            new TreeSet<String>(method.getCoveredWith()));
+                }
+            }
+        }
+        return coverage;
+    }
+
+    /**
+     * Checks the covered member counts the classes keep up to date against counting them.
+     */
+    private static void assertCoveredCounts(ApiCoverage api) {
+        for (ApiPackage apiPackage : api.getPackages()) {
+            for (ApiClass apiClass : apiPackage.getClasses()) {
+                int numCovered = 0;
+                for (ApiConstructor constructor : apiClass.getConstructors()) {
+                    if (constructor.isCovered()) {
+                        numCovered++;
+                    }
+                }
+                for (ApiMethod method : apiClass.getMethods()) {
+                    if (method.isCovered()) {
+                        numCovered++;
+                    }
+                }
+                assertEquals(apiClass.getName(), numCovered, apiClass.getNumCoveredMethods());
+            }
+        }
+    }
+
+    private static String getDiffReport(Map<String, Set<String>> previous,
+            Map<String, Set<String>> current) {
+        Set<String> previousCovered = getCoveredMembers(previous);
+        Set<String> currentCovered = getCoveredMembers(current);
+        StringBuilder report = new StringBuilder();
+        report.append("Covered methods: " + previousCovered.size() + "/" + previous.size()
+                + " -> " + currentCovered.size() + "/" + current.size() + "\n");
+        for (String member : currentCovered) {
+            if (!previousCovered.contains(member)) {
+                report.append("+ " + member + "\n");
+            }
+        }
+        for (String member : previousCovered) {
+            if (!currentCovered.contains(member)) {
+                report.append("- " + member + "\n");
+            }
+        }
+        return report.toString();
+    }
+
+    private static Set<String> getCoveredMembers(Map<String, Set<String>> coverage) {
+        Set<String> covered = new TreeSet<String>();
+        for (Map.Entry<String, Set<String>> entry : coverage.entrySet()) {
+            if (!entry.getValue().isEmpty()) {
+                covered.add(entry.getKey());
+            }
+        }
+        return covered;
+    }
+
+    private static String formatParameters(List<String> parameterTypes) {
+        StringBuilder parameters = new StringBuilder("(");
+        for (int i = 0; i < parameterTypes.size(); i++) {
+            if (i > 0) {
+                parameters.append(", ");
+            }
+            parameters.append(parameterTypes.get(i));
+        }
+        return parameters.append(')').toString();
+    }
+}
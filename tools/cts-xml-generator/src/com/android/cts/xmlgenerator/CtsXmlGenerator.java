@@ -39,7 +39,8 @@ public class CtsXmlGenerator {
         System.err.println("Usage: cts-xml-generator -p PACKAGE_NAME -n NAME [-t TEST_TYPE]"
                 + " [-j JAR_PATH] [-i INSTRUMENTATION] [-m MANIFEST_FILE] [-e EXPECTATION_FILE]"
                 + " [-b UNSUPPORTED_ABI_FILE] [-a ARCHITECTURE] [-o OUTPUT_FILE]"
-                + " [-s APP_NAME_SPACE] [-x ADDITIONAL_ATTRIBUTE_KEY->VALUE]");
+                + " [-s APP_NAME_SPACE] [-x ADDITIONAL_ATTRIBUTE_KEY->VALUE]"
+                + " [-c EXPECTATION_CACHE_DIR]");
         System.exit(1);
     }
 
@@ -49,6 +50,7 @@ public class CtsXmlGenerator {
         String outputPath = null;
         Set<File> expectationFiles = new HashSet<File>();
         Set<File> abiFiles = new HashSet<File>();
+        File expectationCacheDir = null;
         String architecture = null;
         File manifestFile = null;
         String instrumentation = null;
@@ -76,6 +78,9 @@ public class CtsXmlGenerator {
                         "Missing value for expectation store")));
             } else if ("-b".equals(args[i])) {
                 abiFiles.add(new File(getArg(args, ++i, "Missing value for abi store")));
+            } else if ("-c".equals(args[i])) {
+                expectationCacheDir = new File(getArg(args, ++i,
+                        "Missing value for expectation cache directory"));
             } else if ("-a".equals(args[i])) {
                 architecture = getArg(args, ++i, "Missing value for architecture");
             } else if ("-o".equals(args[i])) {
@@ -125,8 +130,16 @@ public class CtsXmlGenerator {
             usage(args);
         }
 
-        ExpectationStore failuresStore = ExpectationStore.parse(expectationFiles, ModeId.DEVICE);
-        ExpectationStore abiStore = ExpectationStore.parse(abiFiles, ModeId.DEVICE);
+        ExpectationStore failuresStore;
+        ExpectationStore abiStore;
+        if (expectationCacheDir != null) {
+            failuresStore = ExpectationStore.parse(expectationFiles, ModeId.DEVICE,
+                    expectationCacheDir);
+            abiStore = ExpectationStore.parse(abiFiles, ModeId.DEVICE, expectationCacheDir);
+        } else {
+            failuresStore = ExpectationStore.parse(expectationFiles, ModeId.DEVICE);
+            abiStore = ExpectationStore.parse(abiFiles, ModeId.DEVICE);
+        }
         XmlGenerator generator = new XmlGenerator(failuresStore, abiStore, architecture,
                 appNameSpace, appPackageName, name, runner, instrumentation, targetNameSpace,
                 jarPath, testType, outputPath, additionalAttributes);
@@ -0,0 +1,367 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dasm;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Assembles many .d files in parallel.
+ * <p>
+ * Each worker thread reads whole sources into a char array it keeps between
+ * files and reuses its {@link Scanner}, so that no Reader is involved and the
+ * buffers stay warm. The parser tables are static and shared by all threads.
+ * A fresh {@link DAsm} is still used per file, as it holds the state of the
+ * classes being built. The generated .dex files are the same as the ones
+ * written by {@link Main} for the same sources.
+ */
+public class BatchAssembler {
+
+    /**
+     * A .d file to assemble and the folder its .dex file goes to. The .dex
+     * file is placed in the package sub-folder of the class it defines, as
+     * with dasm -d.
+     */
+    public static class Job {
+        final File source;
+        final File destDir;
+
+        public Job(File source, File destDir) {
+            this.source = source;
+            this.destDir = destDir;
+        }
+    }
+
+    /**
+     * The outcome of assembling one {@link Job}.
+     */
+    public static class Result {
+        final Job job;
+        File output;
+        String error;
+        long readMs;
+        long parseMs;
+        long writeMs;
+
+        Result(Job job) {
+            this.job = job;
+        }
+
+        public File getSource() {
+            return job.source;
+        }
+
+        /** Returns the generated .dex file, or null if assembly failed. */
+        public File getOutput() {
+            return output;
+        }
+
+        /** Returns why assembly failed, or null if it succeeded. */
+        public String getError() {
+            return error;
+        }
+
+        public boolean isSuccess() {
+            return error == null;
+        }
+
+        /** Returns the total time spent on this file in ms. */
+        public long getTimeMs() {
+            return readMs + parseMs + writeMs;
+        }
+
+        @Override
+        public String toString() {
+            if (!isSuccess()) {
+                return "Failed: " + job.source.getPath() + ": " + error;
+            }
+            return "Generated: " + output.getPath() + " (" + getTimeMs()
+                    + " ms: read " + readMs + ", parse " + parseMs
+                    + ", write " + writeMs + ")";
+        }
+    }
+
+    private final int threads;
+    private boolean generateLineNumbers = false;
+    private Charset charset = Charset.defaultCharset();
+    private boolean verbose = false;
+
+    /**
+     * @param threads number of worker threads, 1 assembles the files one by
+     *            one on the calling thread.
+     */
+    public BatchAssembler(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive");
+        }
+        this.threads = threads;
+    }
+
+    public void setGenerateLineNumbers(boolean generateLineNumbers) {
+        this.generateLineNumbers = generateLineNumbers;
+    }
+
+    /** Sets the encoding of the sources, the platform default if not set. */
+    public void setEncoding(String encoding) {
+        charset = Charset.forName(encoding);
+    }
+
+    /** Prints the outcome and timing of every file as it completes. */
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    /**
+     * Assembles the given files into destDir.
+     */
+    public List<Result> assemble(List<File> sources, File destDir) {
+        List<Job> jobs = new ArrayList<Job>(sources.size());
+        for (File source : sources) {
+            jobs.add(new Job(source, destDir));
+        }
+        return assembleJobs(jobs);
+    }
+
+    /**
+     * Assembles the given jobs and returns their results in the same order.
+     * Failures are reported in the results, they do not stop the batch.
+     */
+    public List<Result> assembleJobs(List<Job> jobs) {
+        long start = System.currentTimeMillis();
+        List<Result> results = new ArrayList<Result>(jobs.size());
+        for (Job job : jobs) {
+            results.add(new Result(job));
+        }
+        int workers = Math.min(threads, Math.max(1, jobs.size()));
+        if (workers == 1) {
+            new Worker(results, 0, 1).call();
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(workers);
+            try {
+                List<Future<Void>> futures = new ArrayList<Future<Void>>();
+                for (int i = 0; i < workers; i++) {
+                    futures.add(executor.submit(new Worker(results, i, workers)));
+                }
+                for (Future<Void> future : futures) {
+                    future.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+        if (verbose) {
+            int failed = 0;
+            for (Result result : results) {
+                if (!result.isSuccess()) failed++;
+            }
+            System.out.println("Assembled " + (results.size() - failed) + " of "
+                    + results.size() + " files in "
+                    + (System.currentTimeMillis() - start) + " ms with "
+                    + workers + " threads");
+        }
+        return results;
+    }
+
+    /**
+     * Returns the .dex file for the class defined by dAsm, placed in the
+     * package sub-folder of destDir, or of the current folder if destDir is
+     * null.
+     */
+    static File getOutputFile(DAsm dAsm, File destDir) {
+        String class_path[] = Utils.getClassFieldFromString(dAsm.getClassName());
+        String class_name = class_path[1];
+        String dest_dir = destDir == null ? null : destDir.getPath();
+        if (class_path[0] != null) {
+            String class_dir = class_path[0].replaceAll("/|\\.",
+                    Character.toString(File.separatorChar));
+            if (dest_dir != null) {
+                dest_dir = dest_dir + File.separator + class_dir;
+            } else {
+                dest_dir = class_dir;
+            }
+        }
+        if (dest_dir == null) {
+            return new File(class_name + ".dex");
+        }
+        return new File(dest_dir, class_name + ".dex");
+    }
+
+    /**
+     * Assembles every step-th result starting at first, with buffers kept
+     * across files.
+     */
+    private class Worker implements Callable<Void> {
+        private final List<Result> results;
+        private final int first;
+        private final int step;
+        private final CharsetDecoder decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private byte[] bytes = new byte[64 * 1024];
+        private char[] chars = new char[64 * 1024];
+        private int length;
+        private Scanner scanner;
+
+        Worker(List<Result> results, int first, int step) {
+            this.results = results;
+            this.first = first;
+            this.step = step;
+        }
+
+        @Override
+        public Void call() {
+            for (int i = first; i < results.size(); i += step) {
+                Result result = results.get(i);
+                assemble(result);
+                if (verbose) {
+                    (result.isSuccess() ? System.out : System.err).println(result);
+                }
+            }
+            return null;
+        }
+
+        private void assemble(Result result) {
+            File source = result.job.source;
+            long start = System.currentTimeMillis();
+            try {
+                read(source);
+            } catch (IOException e) {
+                result.error = "Exception <" + e.getClass().getName() + ">"
+                        + e.getMessage() + " while reading " + source.getPath();
+                return;
+            }
+            long parsed = System.currentTimeMillis();
+            result.readMs = parsed - start;
+
+            DAsm dAsm = new DAsm();
+            try {
+                if (scanner == null) {
+                    scanner = new Scanner(chars, length);
+                } else {
+                    scanner.reset(chars, length);
+                }
+                dAsm.readD(scanner, source.getName(), generateLineNumbers);
+            } catch (DasmError e) {
+                result.error = "DASM Error: " + e.getMessage();
+                return;
+            } catch (Exception e) {
+                result.error = "Exception <" + e.getClass().getName() + ">"
+                        + e.getMessage() + " while reading and parsing "
+                        + source.getPath();
+                return;
+            } finally {
+                result.parseMs = System.currentTimeMillis() - parsed;
+            }
+            if (dAsm.errorCount() > 0) {
+                result.error = "Found " + dAsm.errorCount() + " errors "
+                        + " while reading and parsing " + source.getPath();
+                return;
+            }
+
+            long written = System.currentTimeMillis();
+            File out_file = getOutputFile(dAsm, result.job.destDir);
+            File dest = out_file.getAbsoluteFile().getParentFile();
+            if (!dest.isDirectory() && !dest.mkdirs() && !dest.isDirectory()) {
+                result.error = "Cannot create directory " + dest.getPath();
+                return;
+            }
+            OutputStream outp = null;
+            try {
+                outp = new FileOutputStream(out_file);
+                dAsm.write(outp, null);
+                outp.close();
+                outp = null;
+                result.output = out_file;
+            } catch (Exception e) {
+                result.error = "Exception <" + e.getClass().getName() + ">"
+                        + e.getMessage() + " while writing " + out_file.getPath();
+                close(outp);
+                out_file.delete();
+            } finally {
+                result.writeMs = System.currentTimeMillis() - written;
+            }
+        }
+
+        /**
+         * Reads and decodes the whole source into chars[0..length).
+         */
+        private void read(File source) throws IOException {
+            long size = source.length();
+            if (size > Integer.MAX_VALUE / 2) {
+                throw new IOException("File too large");
+            }
+            if (bytes.length < size) {
+                bytes = new byte[(int) size];
+            }
+            int count = 0;
+            InputStream in = new FileInputStream(source);
+            try {
+                int read;
+                while ((read = in.read(bytes, count, bytes.length - count)) > 0) {
+                    count += read;
+                    if (count == bytes.length) {
+                        // The file grew since its size was read.
+                        byte[] tmp = new byte[bytes.length * 2];
+                        System.arraycopy(bytes, 0, tmp, 0, count);
+                        bytes = tmp;
+                    }
+                }
+            } finally {
+                in.close();
+            }
+            int maxChars = (int) (count * (double) decoder.maxCharsPerByte()) + 1;
+            if (chars.length < maxChars) {
+                chars = new char[maxChars];
+            }
+            CharBuffer out = CharBuffer.wrap(chars);
+            decoder.reset();
+            decoder.decode(ByteBuffer.wrap(bytes, 0, count), out, true);
+            decoder.flush(out);
+            length = out.position();
+        }
+    }
+
+    private static void close(OutputStream c) {
+        if (c == null) return;
+        try {
+            c.close();
+        } catch (IOException e) {
+
+        }
+    }
+}
@@ -1601,6 +1601,28 @@ public class DAsm {
     public void readD(Reader input, String name, boolean numberLines)
             throws IOException, Exception {
 
+        readD(new Scanner(input), name, numberLines);
+    }
+
+    /**
+     * Parses a .d file held in memory, see {@link #readD(Reader, String, boolean)}.
+     *
+     * @param source
+     *            holds the Dalvik assembly code for the class in its first
+     *            length chars.
+     */
+    public void readD(char[] source, int length, String name,
+            boolean numberLines) throws IOException, Exception {
+        readD(new Scanner(source, length), name, numberLines);
+    }
+
+    /**
+     * Parses the .d file read by the given scanner, which may be reused
+     * between files by the caller.
+     */
+    void readD(Scanner input, String name, boolean numberLines)
+            throws IOException, Exception {
+
         // TODO: numberLines?
         errors = 0;
         filename = name;
@@ -1609,7 +1631,7 @@ public class DAsm {
         classDef = null;
         dexFile = new DexFile(dexOptions);
 
-        scanner = new Scanner(input);
+        scanner = input;
         parser parse_obj = new parser(this, scanner);
 
 
@@ -25,6 +25,8 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * DAsm entry point
@@ -57,6 +59,11 @@ public class Main {
      */
     private static boolean generateLineNumbers = false;
 
+    /**
+     * number of threads for batch assembly, 0 to assemble files one by one
+     */
+    private static int threads = 0;
+
     private static void incompleteOption(String opt) {
         System.err.println("Command line option " + opt
                 + " required argument missed");
@@ -212,6 +219,11 @@ public class Main {
                     destPath = args[i];
             } else if (args[i].equals("-h")) {
                 humanHeadable = true;
+            } else if (args[i].equals("-j")) {
+                if (++i >= args.length)
+                    incompleteOption("-j");
+                else
+                    threads = Integer.parseInt(args[i]);
             } else if (args[i].equals("-e")) {
                 if (++i >= args.length)
                     incompleteOption("-e");
@@ -222,19 +234,49 @@ public class Main {
             }
         }
 
+        if (threads > 0) {
+            assembleBatch(files, num_files);
+            return;
+        }
+
         for (i = 0; i < num_files; i++) {
             assemble(files[i]);
         }
     }
 
+    /**
+     * Assembles the files in parallel, printing the time taken by each one.
+     */
+    private static void assembleBatch(String files[], int num_files) {
+        BatchAssembler assembler = new BatchAssembler(threads);
+        assembler.setGenerateLineNumbers(generateLineNumbers);
+        if (encoding != null) assembler.setEncoding(encoding);
+        assembler.setVerbose(true);
+        if (humanHeadable) {
+            System.err.println("-h is ignored with -j");
+        }
+        List<File> sources = new ArrayList<File>(num_files);
+        for (int i = 0; i < num_files; i++) {
+            sources.add(new File(files[i]));
+        }
+        File dest = destPath == null ? null : new File(destPath);
+        for (BatchAssembler.Result result : assembler.assemble(sources, dest)) {
+            if (!result.isSuccess()) {
+                System.exit(-1);
+            }
+        }
+    }
+
     static void printUsage() {
         System.err
-                .println("dasm [-d <outpath>] [-g] [-h] [-e <encoding>] <file>"
-                        + "[<file> ...]\n\n"
+                .println("dasm [-d <outpath>] [-g] [-h] [-e <encoding>]"
+                        + " [-j <threads>] <file> [<file> ...]\n\n"
                         + "  -g - autogenerate linenumbers\n"
                         + "  -e - codepage for inputfile encoding\n"
                         + "  -d - path for generated classfiles\n"
                         + "  -h - generate human-readable output\n"
+                        + "  -j - assemble in parallel with the given number"
+                        + " of threads, printing the time taken per file\n"
                         + "  file  - sourcefile\n"
                         + "or: dasm -version\n"
                         + "or: dasm -help");
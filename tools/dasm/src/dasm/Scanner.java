@@ -75,6 +75,13 @@ class Scanner {
 
     protected Reader inputReader;
 
+    /**
+     * whole source, used instead of inputReader when not null
+     */
+    protected char[] source;
+    protected int source_length;
+    protected int source_pos;
+
     /**
      * next character in input stream
      */
@@ -105,9 +112,37 @@ class Scanner {
 
     public Scanner(Reader i) throws IOException, DasmError {
         inputReader = i;
+        line = new StringBuffer();
+        start();
+    }
+
+    /**
+     * Creates a scanner reading the first length chars of the given array.
+     */
+    public Scanner(char[] chars, int length) throws IOException, DasmError {
+        line = new StringBuffer();
+        reset(chars, length);
+    }
+
+    /**
+     * Restarts the scanner on another source held in the first length chars
+     * of the given array, reusing its buffers.
+     */
+    public void reset(char[] chars, int length) throws IOException, DasmError {
+        inputReader = null;
+        source = chars;
+        source_length = length;
+        source_pos = 0;
+        charBuf.reset();
+        dict.clear();
+        start();
+    }
+
+    private void start() throws IOException, DasmError {
         line_num = 1;
+        token_line_num = 0;
         char_num = 0;
-        line = new StringBuffer();
+        line.setLength(0);
         nextChar = 0;
         skipEmptyLines();
         if (nextChar == -1) throw new DasmError("empty source file");
@@ -117,21 +152,27 @@ class Scanner {
      * Checks if a character code is a whitespace character
      */
     protected static boolean isWhitespace(int c) {
-        return (WHITESPACE.indexOf(c) != -1);
+        // same as WHITESPACE.indexOf(c) != -1, without the string scan
+        return c == ' ' || c == '\n' || c == '\t' || c == '\r';
     }
 
     /**
      * Checks if a character code is a separator character
      */
     protected static boolean isSeparator(int c) {
-        return (c == -1 || SEPARATORS.indexOf(c) != -1);
+        // same as SEPARATORS.indexOf(c) != -1, without the string scan
+        return c == -1 || isWhitespace(c) || c == ':' || c == '=' || c == ',';
     }
 
     /**
      * Gets next char from input
      */
     protected void readNextChar() throws IOException {
-        nextChar = inputReader.read();
+        if (source != null) {
+            nextChar = source_pos < source_length ? source[source_pos++] : -1;
+        } else {
+            nextChar = inputReader.read();
+        }
         switch (nextChar) {
         case -1: // EOF
             if (char_num == 0) {
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dasm;
+
+import junit.framework.TestCase;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks that {@link BatchAssembler} generates exactly the same .dex files as
+ * assembling the sources one by one through a Reader.
+ * <p>
+ * The .d sources are searched under the folder given by the dasm.test.sources
+ * system property, or under cts/tools of $ANDROID_BUILD_TOP.
+ */
+public class BatchAssemblerTest extends TestCase {
+
+    private File tmpDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        tmpDir = File.createTempFile("dasm", "");
+        tmpDir.delete();
+        tmpDir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(tmpDir);
+        super.tearDown();
+    }
+
+    public void testBatchMatchesSequential() throws Exception {
+        List<File> sources = findSources();
+        assertFalse("No .d sources found", sources.isEmpty());
+
+        // One output folder per source, as different sources may define the same class.
+        List<BatchAssembler.Job> jobs = new ArrayList<BatchAssembler.Job>();
+        for (int i = 0; i < sources.size(); i++) {
+            jobs.add(new BatchAssembler.Job(sources.get(i), new File(tmpDir, Integer.toString(i))));
+        }
+        BatchAssembler assembler = new BatchAssembler(4);
+        List<BatchAssembler.Result> results = assembler.assembleJobs(jobs);
+        assertEquals(sources.size(), results.size());
+
+        int compared = 0;
+        for (BatchAssembler.Result result : results) {
+            File source = result.getSource();
+            byte[] expected = assembleSequentially(source);
+            if (expected == null) {
+                assertFalse(source.getPath() + " should fail", result.isSuccess());
+                continue;
+            }
+            assertTrue(source.getPath() + ": " + result.getError(), result.isSuccess());
+            assertTrue(source.getPath() + " differs",
+                    Arrays.equals(expected, readFully(result.getOutput())));
+            compared++;
+        }
+        assertTrue(compared > 0);
+    }
+
+    /**
+     * A failing file must not leave the reused scanner of its worker in a state
+     * that affects the next file.
+     */
+    public void testFailureDoesNotAffectNextFile() throws Exception {
+        File empty = new File(tmpDir, "empty.d");
+        write(empty, "; nothing but a comment\n");
+        File bad = new File(tmpDir, "bad.d");
+        write(bad, ".source bad.java\n.class public \"unterminated\n");
+        File good = new File(tmpDir, "good.d");
+        write(good, ".source T.java\n"
+                + ".class public dot.junit.T\n"
+                + ".super java/lang/Object\n"
+                + "\n"
+                + ".method public <init>()V\n"
+                + ".limit regs 1\n"
+                + "       invoke-direct {v0}, java/lang/Object/<init>()V\n"
+                + "       return-void\n"
+                + ".end method\n");
+
+        File out = new File(tmpDir, "out");
+        List<BatchAssembler.Result> results = new BatchAssembler(1).assemble(
+                Arrays.asList(empty, bad, good), out);
+        assertFalse(results.get(0).isSuccess());
+        assertFalse(results.get(1).isSuccess());
+        assertTrue(results.get(2).getError(), results.get(2).isSuccess());
+        assertEquals(new File(out, "dot" + File.separator + "junit" + File.separator + "T.dex"),
+                results.get(2).getOutput());
+        assertTrue(Arrays.equals(assembleSequentially(good),
+                readFully(results.get(2).getOutput())));
+    }
+
+    /**
+     * Assembles the source as Main does, returns null if it fails.
+     */
+    private static byte[] assembleSequentially(File source) {
+        DAsm dAsm = new DAsm();
+        Reader inp = null;
+        try {
+            inp = new BufferedReader(new InputStreamReader(new FileInputStream(source)));
+            dAsm.readD(inp, source.getName(), false);
+            if (dAsm.errorCount() > 0) {
+                return null;
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            dAsm.write(out, null);
+            return out.toByteArray();
+        } catch (Exception e) {
+            return null;
+        } finally {
+            if (inp != null) {
+                try {
+                    inp.close();
+                } catch (IOException e) {
+                    // ignored
+                }
+            }
+        }
+    }
+
+    private static List<File> findSources() {
+        String root = System.getProperty("dasm.test.sources");
+        if (root == null) {
+            root = System.getenv("ANDROID_BUILD_TOP") + File.separator + "cts"
+                    + File.separator + "tools";
+        }
+        List<File> sources = new ArrayList<File>();
+        findSources(new File(root), sources);
+        return sources;
+    }
+
+    private static void findSources(File dir, List<File> sources) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        Arrays.sort(children);
+        for (File child : children) {
+            if (child.isDirectory()) {
+                findSources(child, sources);
+            } else if (child.getName().endsWith(".d")) {
+                sources.add(child);
+            }
+        }
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+
+    private static void write(File file, String content) throws IOException {
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
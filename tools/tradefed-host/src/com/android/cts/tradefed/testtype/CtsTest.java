@@ -195,6 +195,16 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
             "Collect dEQP logs from the device.")
     private boolean mCollectDeqpLogs = false;
 
+    @Option(name = "cache-deqp-capabilities", description =
+            "Share the dEQP platform capability queries between the dEQP packages run on a " +
+            "device build, and keep them in the results directory for later sessions.")
+    private boolean mCacheDeqpCapabilities = true;
+
+    @Option(name = "prefetch-deqp-capabilities", description =
+            "Query the support of all render configs of a dEQP package with one shell " +
+            "command before running it.")
+    private boolean mPrefetchDeqpCapabilities = false;
+
     @Option(name = INCLUDE_FILTERS_OPTION, description = "Positive filters to pass to tests.")
     private List<String> mPositiveFilters = new ArrayList<> ();
 
@@ -230,9 +240,17 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
         private final Collection<TestIdentifier> mKnownTests;
 
         TestPackage(ITestPackageDef packageDef, IRemoteTest testForPackage) {
+            this(packageDef, testForPackage, packageDef.getTests());
+        }
+
+        /**
+         * Create a {@link TestPackage} that only runs the knownTests of the package.
+         */
+        TestPackage(ITestPackageDef packageDef, IRemoteTest testForPackage,
+                Collection<TestIdentifier> knownTests) {
             mPackageDef = packageDef;
             mTestForPackage = testForPackage;
-            mKnownTests = packageDef.getTests();
+            mKnownTests = knownTests;
         }
 
         IRemoteTest getTestForPackage() {
@@ -554,6 +572,13 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
                 }
                 if (test instanceof DeqpTestRunner) {
                     ((DeqpTestRunner)test).setCollectLogs(mCollectDeqpLogs);
+                    if (mCacheDeqpCapabilities) {
+                        ((DeqpTestRunner)test).setCapabilityCache(DeqpCapabilityCache.getCache(
+                                getDevice(), new File(mCtsBuild.getTestCasesDir(),
+                                        DeqpTestRunner.DEQP_ONDEVICE_APK),
+                                mCtsBuild.getResultsDir()));
+                    }
+                    ((DeqpTestRunner)test).setPrefetchCapabilities(mPrefetchDeqpCapabilities);
                 }
                 if (test instanceof GeeTest) {
                     if (!mPositiveFilters.isEmpty()) {
@@ -849,14 +874,8 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
             }
 
             // Filter by shard
-            int numTestPackages = testPackageList.size();
-            int totalShards = Math.min(mTotalShards, numTestPackages);
-
-            List<TestPackage> shardTestPackageList = new ArrayList<>();
-            for (int i = mShardAssignment; i < numTestPackages; i += totalShards) {
-                shardTestPackageList.add(testPackageList.get(i));
-            }
-            mTestPackageList.addAll(shardTestPackageList);
+            mTestPackageList.addAll(
+                    getShardTestPackages(testPackageList, mShardAssignment, mTotalShards));
         } catch (FileNotFoundException e) {
             throw new IllegalArgumentException("failed to find test plan file", e);
         } catch (ParseException e) {
@@ -866,6 +885,52 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
         }
     }
 
+    /**
+     * Select the test packages of a shard.
+     * <p/>
+     * dEQP packages are split into a part per shard, so their test instances run on all devices
+     * instead of keeping one device busy. Every shard splits them the same way and runs its own
+     * part, which is reported under the package id like the whole package. The other packages
+     * are assigned to the shards round robin.
+     *
+     * Exposed for unit testing
+     */
+    static List<TestPackage> getShardTestPackages(List<TestPackage> testPackageList,
+            int shardAssignment, int totalShards) {
+        Map<TestPackage, List<IRemoteTest>> splitTests = new HashMap<>();
+        int numUnsplitPackages = 0;
+        for (TestPackage testPackage : testPackageList) {
+            IRemoteTest test = testPackage.getTestForPackage();
+            if (totalShards > 1 && test instanceof DeqpTestRunner) {
+                DeqpTestRunner deqpTest = (DeqpTestRunner) test;
+                deqpTest.setShardCount(totalShards);
+                Collection<IRemoteTest> parts = deqpTest.split();
+                if (parts != null) {
+                    splitTests.put(testPackage, new ArrayList<>(parts));
+                    continue;
+                }
+            }
+            numUnsplitPackages++;
+        }
+
+        int unsplitShards = Math.min(totalShards, numUnsplitPackages);
+        int unsplitIndex = 0;
+        List<TestPackage> shardTestPackageList = new ArrayList<>();
+        for (TestPackage testPackage : testPackageList) {
+            List<IRemoteTest> parts = splitTests.get(testPackage);
+            if (parts == null) {
+                if (unsplitIndex++ % unsplitShards == shardAssignment) {
+                    shardTestPackageList.add(testPackage);
+                }
+            } else if (shardAssignment < parts.size()) {
+                DeqpTestRunner part = (DeqpTestRunner) parts.get(shardAssignment);
+                shardTestPackageList.add(new TestPackage(testPackage.getPackageDef(), part,
+                        new ArrayList<>(part.getRemainingTests())));
+            }
+        }
+        return shardTestPackageList;
+    }
+
     /**
      * Return the {@link Set} of {@link ITestPackageDef}s to run unfiltered by ABI
      *
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cts.tradefed.testtype;
+
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.AaptParser;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Cache of the dEQP platform capability queries of a device build.
+ * <p/>
+ * The answers only depend on the build running on the device and on the dEQP package asking, so
+ * one cache is shared by all {@link DeqpTestRunner}s for devices with the same build fingerprint
+ * running the same version of the dEQP package. The cache is stored in the results directory so
+ * that retries and later sessions do not query the device again.
+ */
+public class DeqpCapabilityCache {
+
+    private static final String FINGERPRINT_PROPERTY = "ro.build.fingerprint";
+    private static final String FILE_PREFIX = "deqp-capabilities-";
+    private static final String FILE_SUFFIX = ".properties";
+    private static final String RENDER_CONFIG_KEY_PREFIX = "renderConfigSupported ";
+    private static final String FEATURES_KEY = "features";
+
+    private static final Map<String, DeqpCapabilityCache> sCaches = new HashMap<>();
+    /** The versions of the dEQP APKs, by path, size and modification time. */
+    private static final Map<String, String> sPackageVersions = new HashMap<>();
+
+    private final File mFile;
+    private final Properties mEntries = new Properties();
+
+    /**
+     * Creates a cache stored in the given file, or an in-memory cache if the file is null.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    DeqpCapabilityCache(File file) {
+        mFile = file;
+        if (mFile != null && mFile.isFile()) {
+            try {
+                InputStream in = new FileInputStream(mFile);
+                try {
+                    mEntries.load(in);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                CLog.w("Ignoring unreadable dEQP capability cache %s: %s",
+                        mFile.getAbsolutePath(), e.getMessage());
+                mEntries.clear();
+            }
+        }
+    }
+
+    /**
+     * Gets the cache for the build running on the given device and the given dEQP APK.
+     *
+     * @param device the device to be queried
+     * @param deqpApk the dEQP APK the queries are run with
+     * @param storeDir the directory the cache is stored in, or null to keep it in memory
+     */
+    public static DeqpCapabilityCache getCache(ITestDevice device, File deqpApk, File storeDir)
+            throws DeviceNotAvailableException {
+        return getCache(device, getPackageVersion(deqpApk), storeDir);
+    }
+
+    /**
+     * Gets the cache for the build running on the given device and the given dEQP package
+     * version.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    static DeqpCapabilityCache getCache(ITestDevice device, String packageVersion,
+            File storeDir) throws DeviceNotAvailableException {
+        final String fingerprint = device.getProperty(FINGERPRINT_PROPERTY);
+        if (fingerprint == null || fingerprint.isEmpty() || packageVersion == null) {
+            // nothing identifies the build or the package, do not share the answers
+            return new DeqpCapabilityCache(null);
+        }
+        final String name = fingerprint + "_" + packageVersion;
+        final File file = (storeDir == null) ? null : new File(storeDir,
+                FILE_PREFIX + name.replaceAll("[^A-Za-z0-9._-]", "_") + FILE_SUFFIX);
+        final String key = (file == null) ? name : file.getAbsolutePath();
+        synchronized (sCaches) {
+            DeqpCapabilityCache cache = sCaches.get(key);
+            if (cache == null) {
+                cache = new DeqpCapabilityCache(file);
+                sCaches.put(key, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Returns whether the render config was supported, or null if it has not been queried.
+     *
+     * @param abi the ABI name the query was run with
+     * @param commandLine the dEQP command line of the query
+     */
+    public synchronized Boolean isSupportedRenderConfig(String abi, String commandLine) {
+        final String value = mEntries.getProperty(getRenderConfigKey(abi, commandLine));
+        return (value == null) ? null : Boolean.valueOf(value);
+    }
+
+    /**
+     * Records whether the render config is supported.
+     */
+    public synchronized void setSupportedRenderConfig(String abi, String commandLine,
+            boolean supported) {
+        mEntries.setProperty(getRenderConfigKey(abi, commandLine), Boolean.toString(supported));
+        store();
+    }
+
+    /**
+     * Returns the features of the device, or null if they have not been queried.
+     */
+    public synchronized Set<String> getDeviceFeatures() {
+        final String value = mEntries.getProperty(FEATURES_KEY);
+        if (value == null) {
+            return null;
+        } else if (value.isEmpty()) {
+            return new HashSet<>();
+        }
+        return new HashSet<>(Arrays.asList(value.split(",")));
+    }
+
+    /**
+     * Records the features of the device.
+     */
+    public synchronized void setDeviceFeatures(Set<String> features) {
+        final StringBuilder value = new StringBuilder();
+        for (String feature : features) {
+            if (value.length() > 0) {
+                value.append(',');
+            }
+            value.append(feature);
+        }
+        mEntries.setProperty(FEATURES_KEY, value.toString());
+        store();
+    }
+
+    /**
+     * Returns the version code of the given dEQP APK, or null if it cannot be read.
+     */
+    private static String getPackageVersion(File apk) {
+        if (apk == null || !apk.isFile()) {
+            return null;
+        }
+        final String key = apk.getAbsolutePath() + " " + apk.length() + " " + apk.lastModified();
+        synchronized (sPackageVersions) {
+            if (sPackageVersions.containsKey(key)) {
+                return sPackageVersions.get(key);
+            }
+        }
+        final AaptParser parser = AaptParser.parse(apk);
+        final String version = (parser == null) ? null : parser.getVersionCode();
+        if (version == null) {
+            CLog.w("Could not read the version of %s, not caching dEQP capabilities",
+                    apk.getAbsolutePath());
+        }
+        synchronized (sPackageVersions) {
+            sPackageVersions.put(key, version);
+        }
+        return version;
+    }
+
+    private static String getRenderConfigKey(String abi, String commandLine) {
+        return RENDER_CONFIG_KEY_PREFIX + abi + " " + commandLine;
+    }
+
+    private void store() {
+        if (mFile == null) {
+            return;
+        }
+        // write a temporary file of its own first, so a reader never sees a partial cache and
+        // concurrent sessions do not write to the same temporary file
+        File tmpFile = null;
+        try {
+            mFile.getAbsoluteFile().getParentFile().mkdirs();
+            tmpFile = File.createTempFile(mFile.getName(), ".tmp",
+                    mFile.getAbsoluteFile().getParentFile());
+            OutputStream out = new FileOutputStream(tmpFile);
+            try {
+                mEntries.store(out, "dEQP platform capabilities");
+            } finally {
+                out.close();
+            }
+            if (!tmpFile.renameTo(mFile) && !(mFile.delete() && tmpFile.renameTo(mFile))) {
+                throw new IOException("could not replace " + mFile.getAbsolutePath());
+            }
+        } catch (IOException e) {
+            CLog.w("Failed to store dEQP capability cache: %s", e.getMessage());
+        } finally {
+            if (tmpFile != null) {
+                tmpFile.delete();
+            }
+        }
+    }
+}
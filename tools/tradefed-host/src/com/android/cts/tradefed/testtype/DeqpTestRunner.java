@@ -19,6 +19,7 @@ import com.android.tradefed.testtype.IAbi;
 import com.android.tradefed.testtype.IBuildReceiver;
 import com.android.tradefed.testtype.IDeviceTest;
 import com.android.tradefed.testtype.IRemoteTest;
+import com.android.tradefed.testtype.IShardableTest;
 import com.android.tradefed.util.IRunUtil;
 import com.android.tradefed.util.RunInterruptedException;
 import com.android.tradefed.util.RunUtil;
@@ -31,6 +32,7 @@ import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -47,9 +49,10 @@ import java.util.concurrent.TimeUnit;
  *
  * Supports running drawElements Quality Program tests found under external/deqp.
  */
-public class DeqpTestRunner implements IBuildReceiver, IDeviceTest, IRemoteTest {
+public class DeqpTestRunner implements IBuildReceiver, IDeviceTest, IRemoteTest,
+        IShardableTest {
 
-    private static final String DEQP_ONDEVICE_APK = "com.drawelements.deqp.apk";
+    static final String DEQP_ONDEVICE_APK = "com.drawelements.deqp.apk";
     private static final String DEQP_ONDEVICE_PKG = "com.drawelements.deqp";
     private static final String INCOMPLETE_LOG_MESSAGE = "Crash: Incomplete test log";
     private static final String SKIPPED_INSTANCE_LOG_MESSAGE = "Configuration skipped";
@@ -64,6 +67,8 @@ public class DeqpTestRunner implements IBuildReceiver, IDeviceTest, IRemoteTest
         new BatchRunConfiguration("rgba8888d24s8", "unspecified", "window");
 
     private static final int UNRESPOSIVE_CMD_TIMEOUT_MS = 10*60*1000; // ten minutes
+    // number of test instances per shard when the shard count is not set
+    private static final int SHARD_INSTANCE_COUNT_TARGET = 10000;
 
     private final String mPackageName;
     private final String mName;
@@ -77,7 +82,12 @@ public class DeqpTestRunner implements IBuildReceiver, IDeviceTest, IRemoteTest
     private ITestDevice mDevice;
     private Set<String> mDeviceFeatures;
     private Map<String, Boolean> mConfigQuerySupportCache = new HashMap<>();
+    private DeqpCapabilityCache mCapabilityCache = null;
+    private boolean mPrefetchCapabilities = false;
+    private int mShardCount = 0;
     private IRunUtil mRunUtil = RunUtil.getDefault();
+    private IClock mClock = new SystemClock();
+    private BatchSizePolicy mBatchSizePolicy = new BatchSizePolicy();
 
     private IRecovery mDeviceRecovery = new Recovery();
     {
@@ -93,6 +103,27 @@ public class DeqpTestRunner implements IBuildReceiver, IDeviceTest, IRemoteTest
         mTestInstabilityRatings = new HashMap<>();
     }
 
+    /**
+     * Creates a runner for a part of the tests of the given runner. The new runner does its own
+     * pending instance tracking and reports under the same run id.
+     */
+    private DeqpTestRunner(DeqpTestRunner parent, Collection<TestIdentifier> tests) {
+        mPackageName = parent.mPackageName;
+        mName = parent.mName;
+        mRemainingTests = new LinkedList<>(tests);
+        mTestInstances = new HashMap<>();
+        for (TestIdentifier test : tests) {
+            mTestInstances.put(test, parent.mTestInstances.get(test));
+        }
+        mTestInstabilityRatings = new HashMap<>();
+        mAbi = parent.mAbi;
+        mCtsBuild = parent.mCtsBuild;
+        mLogData = parent.mLogData;
+        mCapabilityCache = parent.mCapabilityCache;
+        mPrefetchCapabilities = parent.mPrefetchCapabilities;
+        mRunUtil = parent.mRunUtil;
+    }
+
     /**
      * @param abi the ABI to run the test on
      */
@@ -160,6 +191,56 @@ public class DeqpTestRunner implements IBuildReceiver, IDeviceTest, IRemoteTest
         mRunUtil = runUtil;
     }
 
+    /**
+     * Set the capability cache shared with other runners for the same device build, or null to
+     * only cache the capability queries within this runner.
+     */
+    public void setCapabilityCache(DeqpCapabilityCache capabilityCache) {
+        mCapabilityCache = capabilityCache;
+    }
+
+    /**
+     * Enable or disable querying the support of all render configs in one shell command before
+     * running the tests.
+     */
+    public void setPrefetchCapabilities(boolean prefetchCapabilities) {
+        mPrefetchCapabilities = prefetchCapabilities;
+    }
+
+    /**
+     * Set the number of shards {@link #split()} creates. If not set, the shard count is derived
+     * from the number of test instances.
+     */
+    public void setShardCount(int shardCount) {
+        mShardCount = shardCount;
+    }
+
+    /**
+     * Get the tests this runner has not run yet. Before {@link #run} these are all the tests of
+     * the runner.
+     */
+    Collection<TestIdentifier> getRemainingTests() {
+        return Collections.unmodifiableCollection(mRemainingTests);
+    }
+
+    /**
+     * Set IClock used to time the batches.
+     *
+     * Exposed for unit testing.
+     */
+    public void setClock(IClock clock) {
+        mClock = clock;
+    }
+
+    /**
+     * Set batch size policy.
+     *
+     * Exposed for unit testing.
+     */
+    public void setBatchSizePolicy(BatchSizePolicy batchSizePolicy) {
+        mBatchSizePolicy = batchSizePolicy;
+    }
+
     private static final class CapabilityQueryFailureException extends Exception {
     }
 
@@ -240,6 +321,7 @@ public class DeqpTestRunner implements IBuildReceiver, IDeviceTest, IRemoteTest
         private TestIdentifier mCurrentTestId;
         private boolean mGotTestResult;
         private String mCurrentTestLog;
+        private long mFirstTestBeginTime = -1;
 
         private class PendingResult {
             boolean allInstancesPassed;
@@ -258,6 +340,20 @@ public class DeqpTestRunner implements IBuildReceiver, IDeviceTest, IRemoteTest
             mRunConfig = runConfig;
         }
 
+        /**
+         * Get the config of the latest batch, or null if no batch has been run
+         */
+        public BatchRunConfiguration getCurrentConfig() {
+            return mRunConfig;
+        }
+
+        /**
+         * Get the time the first test case of the current batch began, or -1 if none has
+         */
+        public long getFirstTestBeginTime() {
+            return mFirstTestBeginTime;
+        }
+
         /**
          * Get currently processed test id, or null if not currently processing a test case
          */
@@ -430,6 +526,10 @@ public class DeqpTestRunner implements IBuildReceiver, IDeviceTest, IRemoteTest
             mCurrentTestLog = "";
             mGotTestResult = false;
 
+            if (mFirstTestBeginTime < 0) {
+                mFirstTestBeginTime = mClock.currentTimeMillis();
+            }
+
             if (casePath == null) {
                 CLog.w("Got null case path for test case begin event. Current test ID: %s", mCurrentTestId);
                 mCurrentTestId = null;
@@ -603,6 +703,7 @@ public class DeqpTestRunner implements IBuildReceiver, IDeviceTest, IRemoteTest
                 }
             }
             mCurrentTestId = null;
+            mFirstTestBeginTime = -1;
         }
     }
 
@@ -727,6 +828,9 @@ public class DeqpTestRunner implements IBuildReceiver, IDeviceTest, IRemoteTest
         private Map<String,String> mResultMap = new LinkedHashMap<>();
         private int mResultCode;
         private boolean mGotExitValue = false;
+        private List<Map<String,String>> mRunResultMaps = new ArrayList<>();
+        private List<Integer> mRunResultCodes = new ArrayList<>();
+        private Map<String,String> mRunResultMap = new LinkedHashMap<>();
 
         /**
          * {@inheritDoc}
@@ -738,6 +842,7 @@ public class DeqpTestRunner implements IBuildReceiver, IDeviceTest, IRemoteTest
                     final String parts[] = line.substring(24).split("=",2);
                     if (parts.length == 2) {
                         mResultMap.put(parts[0], parts[1]);
+                        mRunResultMap.put(parts[0], parts[1]);
                     } else {
                         CLog.w("Instrumentation status format unexpected");
                     }
@@ -745,6 +850,9 @@ public class DeqpTestRunner implements IBuildReceiver, IDeviceTest, IRemoteTest
                     try {
                         mResultCode = Integer.parseInt(line.substring(22));
                         mGotExitValue = true;
+                        mRunResultMaps.add(mRunResultMap);
+                        mRunResultCodes.add(mResultCode);
+                        mRunResultMap = new LinkedHashMap<>();
                     } catch (NumberFormatException ex) {
                         CLog.w("Instrumentation code format unexpected");
                     }
@@ -777,6 +885,21 @@ public class DeqpTestRunner implements IBuildReceiver, IDeviceTest, IRemoteTest
         public Map<String,String> getResultMap() {
             return mResultMap;
         }
+
+        /**
+         * Returns the result maps of each instrumentation run, in the order the runs ended.
+         * Used when several instrumentations are run with one shell command.
+         */
+        public List<Map<String,String>> getRunResultMaps() {
+            return mRunResultMaps;
+        }
+
+        /**
+         * Returns the return codes of each instrumentation run.
+         */
+        public List<Integer> getRunResultCodes() {
+            return mRunResultCodes;
+        }
     }
 
     /**
@@ -797,6 +920,132 @@ public class DeqpTestRunner implements IBuildReceiver, IDeviceTest, IRemoteTest
         }
     }
 
+    /**
+     * Interface for reading the time.
+     *
+     * Exposed for unit testing
+     */
+    public static interface IClock {
+        public long currentTimeMillis();
+    }
+
+    private static class SystemClock implements IClock {
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Adaptive limit for the number of test cases in a batch.
+     *
+     * Every batch pays a fixed launch overhead (pushing the case list, starting the
+     * instrumentation, creating the rendering context). The limit grows while that overhead is
+     * a large fraction of the batch run time, and halves when a full-size batch crashes, since
+     * a crash throws the rest of the batch away and the remainder has to be bisected again.
+     * Crashes in the smaller sub-batches created by the bisection do not shrink the limit
+     * further.
+     *
+     * Exposed for unit testing
+     */
+    public static class BatchSizePolicy {
+        private static final int MIN_BATCH_LIMIT = 16;
+        private static final int MAX_BATCH_LIMIT = 4 * TESTCASE_BATCH_LIMIT;
+        // grow the batches until launching takes at most this fraction of a batch
+        private static final double TARGET_OVERHEAD_FRACTION = 0.1;
+        // do not grow the batches while the recent crash rate is above this
+        private static final double MAX_CRASH_RATE_FOR_GROWTH = 0.1;
+        // weight of the latest batch in the smoothed estimates
+        private static final double SMOOTHING = 0.25;
+
+        private final int mMinLimit;
+        private int mLimit;
+        private double mOverheadMs = -1; // negative until observed
+        private double mCaseMs = -1; // negative until observed
+        private double mCrashRate = 0.0;
+
+        private int mNumBatches = 0;
+        private int mNumCrashedBatches = 0;
+        private long mNumCases = 0;
+        private long mTotalOverheadMs = 0;
+        private long mTotalExecutionMs = 0;
+
+        public BatchSizePolicy() {
+            this(TESTCASE_BATCH_LIMIT);
+        }
+
+        public BatchSizePolicy(int initialLimit) {
+            mMinLimit = Math.min(MIN_BATCH_LIMIT, initialLimit);
+            mLimit = initialLimit;
+        }
+
+        /**
+         * Get the current batch size limit for stable test cases
+         */
+        public int getBatchSizeLimit() {
+            return mLimit;
+        }
+
+        /**
+         * Records the outcome of one batch run.
+         *
+         * @param numCases number of cases in the batch
+         * @param numCompleted number of cases that are no longer pending after the run
+         * @param overheadMs time from starting the batch until the first case began
+         * @param executionMs time from the first case beginning until the run ended
+         * @param crashed true if the run did not complete normally
+         */
+        public void recordBatch(int numCases, int numCompleted, long overheadMs, long executionMs,
+                boolean crashed) {
+            ++mNumBatches;
+            mNumCases += numCompleted;
+            mTotalOverheadMs += overheadMs;
+            mTotalExecutionMs += executionMs;
+
+            mOverheadMs = smooth(mOverheadMs, overheadMs);
+            if (numCompleted > 0) {
+                mCaseMs = smooth(mCaseMs, (double)executionMs / numCompleted);
+            }
+            mCrashRate = (1.0 - SMOOTHING) * mCrashRate + (crashed ? SMOOTHING : 0.0);
+
+            if (crashed) {
+                ++mNumCrashedBatches;
+                if (2 * numCases > mLimit) {
+                    mLimit = Math.max(mMinLimit, mLimit / 2);
+                }
+            } else if (mCrashRate < MAX_CRASH_RATE_FOR_GROWTH && isOverheadDominating()) {
+                mLimit = Math.min(MAX_BATCH_LIMIT, mLimit * 2);
+            }
+        }
+
+        /**
+         * Get batch statistics to be reported as run metrics
+         */
+        public Map<String, String> getMetrics() {
+            final Map<String, String> metrics = new LinkedHashMap<>();
+            metrics.put("batch-count", Integer.toString(mNumBatches));
+            metrics.put("crashed-batch-count", Integer.toString(mNumCrashedBatches));
+            metrics.put("case-count", Long.toString(mNumCases));
+            metrics.put("launch-overhead-ms", Long.toString(mTotalOverheadMs));
+            metrics.put("execution-ms", Long.toString(mTotalExecutionMs));
+            metrics.put("batch-size-limit", Integer.toString(mLimit));
+            return metrics;
+        }
+
+        private boolean isOverheadDominating() {
+            if (mOverheadMs < 0 || mCaseMs < 0) {
+                return false;
+            }
+            return mOverheadMs > TARGET_OVERHEAD_FRACTION * (mOverheadMs + mLimit * mCaseMs);
+        }
+
+        private static double smooth(double estimate, double sample) {
+            if (estimate < 0) {
+                return sample;
+            }
+            return (1.0 - SMOOTHING) * estimate + SMOOTHING * sample;
+        }
+    }
+
     /**
      * Interface for failure recovery.
      *
@@ -1057,6 +1306,110 @@ public class DeqpTestRunner implements IBuildReceiver, IDeviceTest, IRemoteTest
         }
     }
 
+    /**
+     * Partitions tests to at most shardCount parts of about the same number of test instances.
+     *
+     * Tests of the same group (test class) stay together unless the group alone is larger than
+     * a shard, in which case it is cut into consecutive pieces. The pieces are then assigned
+     * largest first to the least loaded part. Each part keeps the original test order. The
+     * result only depends on the arguments, so runners of different shards with the same tests
+     * get the same parts.
+     *
+     * Exposed for unit testing
+     */
+    static List<List<TestIdentifier>> partitionTests(Collection<TestIdentifier> tests,
+            Map<TestIdentifier, Integer> instanceCounts, int shardCount) {
+        final Map<String, List<TestIdentifier>> groups = new LinkedHashMap<>();
+        final Map<TestIdentifier, Integer> testOrder = new HashMap<>();
+        for (TestIdentifier test : tests) {
+            List<TestIdentifier> group = groups.get(test.getClassName());
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(test.getClassName(), group);
+            }
+            group.add(test);
+            testOrder.put(test, testOrder.size());
+        }
+
+        final Map<String, Double> groupWeights = new HashMap<>();
+        double totalWeight = 0.0;
+        for (Map.Entry<String, List<TestIdentifier>> group : groups.entrySet()) {
+            final double weight = getInstanceCount(group.getValue(), instanceCounts);
+            groupWeights.put(group.getKey(), weight);
+            totalWeight += weight;
+        }
+
+        // cut groups longer than a shard into pieces
+        final double shardWeight = totalWeight / shardCount;
+        final List<List<TestIdentifier>> pieces = new ArrayList<>();
+        final List<Double> pieceWeights = new ArrayList<>();
+        for (Map.Entry<String, List<TestIdentifier>> group : groups.entrySet()) {
+            final List<TestIdentifier> groupTests = group.getValue();
+            final double weight = groupWeights.get(group.getKey());
+            final int numPieces = (shardWeight <= 0.0) ? 1 :
+                    Math.max(1, Math.min(groupTests.size(), (int)Math.ceil(weight / shardWeight)));
+            for (int pieceNdx = 0; pieceNdx < numPieces; ++pieceNdx) {
+                final int begin = groupTests.size() * pieceNdx / numPieces;
+                final int end = groupTests.size() * (pieceNdx + 1) / numPieces;
+                pieces.add(groupTests.subList(begin, end));
+                pieceWeights.add(weight * (end - begin) / groupTests.size());
+            }
+        }
+
+        // largest piece first
+        final List<Integer> pieceOrder = new ArrayList<>();
+        for (int pieceNdx = 0; pieceNdx < pieces.size(); ++pieceNdx) {
+            pieceOrder.add(pieceNdx);
+        }
+        Collections.sort(pieceOrder, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Double.compare(pieceWeights.get(b), pieceWeights.get(a));
+            }
+        });
+
+        final int numParts = Math.max(1, Math.min(shardCount, pieces.size()));
+        final List<List<TestIdentifier>> parts = new ArrayList<>();
+        final double[] partWeights = new double[numParts];
+        for (int partNdx = 0; partNdx < numParts; ++partNdx) {
+            parts.add(new ArrayList<TestIdentifier>());
+        }
+        for (int pieceNdx : pieceOrder) {
+            int lightestNdx = 0;
+            for (int partNdx = 1; partNdx < numParts; ++partNdx) {
+                if (partWeights[partNdx] < partWeights[lightestNdx]) {
+                    lightestNdx = partNdx;
+                }
+            }
+            parts.get(lightestNdx).addAll(pieces.get(pieceNdx));
+            partWeights[lightestNdx] += pieceWeights.get(pieceNdx);
+        }
+
+        final List<List<TestIdentifier>> nonEmptyParts = new ArrayList<>();
+        for (List<TestIdentifier> part : parts) {
+            if (part.isEmpty()) {
+                continue;
+            }
+            Collections.sort(part, new Comparator<TestIdentifier>() {
+                @Override
+                public int compare(TestIdentifier a, TestIdentifier b) {
+                    return Integer.compare(testOrder.get(a), testOrder.get(b));
+                }
+            });
+            nonEmptyParts.add(part);
+        }
+        return nonEmptyParts;
+    }
+
+    private static int getInstanceCount(Collection<TestIdentifier> tests,
+            Map<TestIdentifier, Integer> instanceCounts) {
+        int numInstances = 0;
+        for (TestIdentifier test : tests) {
+            numInstances += instanceCounts.get(test);
+        }
+        return numInstances;
+    }
+
     /**
      * Parse map of instance arguments to map of BatchRunConfigurations
      */
@@ -1202,6 +1555,18 @@ public class DeqpTestRunner implements IBuildReceiver, IDeviceTest, IRemoteTest
     }
 
     private TestBatch selectRunBatch() {
+        // Stay in the configuration of the previous batch while it has stable pending instances.
+        // Changing the surface type or the screen rotation between batches is expensive. Unstable
+        // instances are deferred as usual.
+        final BatchRunConfiguration currentConfig = mInstanceListerner.getCurrentConfig();
+        if (currentConfig != null) {
+            for (TestIdentifier test : mRemainingTests) {
+                if (getTestInstabilityRating(test) == 0 &&
+                        mInstanceListerner.isPendingTestInstance(test, currentConfig)) {
+                    return createRunBatch(mRemainingTests, test, currentConfig);
+                }
+            }
+        }
         return selectRunBatch(mRemainingTests, null);
     }
 
@@ -1252,6 +1617,15 @@ public class DeqpTestRunner implements IBuildReceiver, IDeviceTest, IRemoteTest
             throw new AssertionError("search postcondition failed");
         }
 
+        return createRunBatch(pool, leadingTest, leadingTestConfig);
+    }
+
+    /**
+     * Creates a TestBatch led by the given test instance and packs along as many other
+     * compatible instances from the pool as the batch size limit allows.
+     */
+    private TestBatch createRunBatch(Collection<TestIdentifier> pool, TestIdentifier leadingTest,
+            BatchRunConfiguration leadingTestConfig) {
         final int leadingInstability = getTestInstabilityRating(leadingTest);
 
         final TestBatch runBatch = new TestBatch();
@@ -1296,7 +1670,7 @@ public class DeqpTestRunner implements IBuildReceiver, IDeviceTest, IRemoteTest
 
     private int getBatchSizeLimitForInstability(int batchInstabilityRating) {
         // reduce group size exponentially down to one
-        return Math.max(1, TESTCASE_BATCH_LIMIT / (1 << batchInstabilityRating));
+        return Math.max(1, mBatchSizePolicy.getBatchSizeLimit() / (1 << batchInstabilityRating));
     }
 
     private int getTestInstabilityRating(TestIdentifier testId) {
@@ -1352,6 +1726,20 @@ public class DeqpTestRunner implements IBuildReceiver, IDeviceTest, IRemoteTest
     private boolean isSupportedRunConfiguration(BatchRunConfiguration runConfig)
             throws DeviceNotAvailableException, CapabilityQueryFailureException {
         // orientation support
+        if (!isSupportedRotation(runConfig)) {
+            return false;
+        }
+
+        if (isOpenGlEsPackage()) {
+            // renderability support for OpenGL ES tests
+            return isSupportedGlesRenderConfig(runConfig);
+        } else {
+            return true;
+        }
+    }
+
+    private boolean isSupportedRotation(BatchRunConfiguration runConfig)
+            throws DeviceNotAvailableException, CapabilityQueryFailureException {
         if (!BatchRunConfiguration.ROTATION_UNSPECIFIED.equals(runConfig.getRotation())) {
             final Set<String> features = getDeviceFeatures(mDevice);
 
@@ -1364,13 +1752,7 @@ public class DeqpTestRunner implements IBuildReceiver, IDeviceTest, IRemoteTest
                 return false;
             }
         }
-
-        if (isOpenGlEsPackage()) {
-            // renderability support for OpenGL ES tests
-            return isSupportedGlesRenderConfig(runConfig);
-        } else {
-            return true;
-        }
+        return true;
     }
 
     private static final class AdbComLinkOpenError extends Exception {
@@ -1477,6 +1859,7 @@ public class DeqpTestRunner implements IBuildReceiver, IDeviceTest, IRemoteTest
 
         checkInterrupted(); // throws if interrupted
 
+        final long batchStartTime = mClock.currentTimeMillis();
         final String testCases = generateTestCaseTrie(batch.tests);
 
         mDevice.executeShellCommand("rm " + CASE_LIST_FILE_NAME);
@@ -1518,6 +1901,12 @@ public class DeqpTestRunner implements IBuildReceiver, IDeviceTest, IRemoteTest
             interruptingError = ex;
         }
 
+        final long batchEndTime = mClock.currentTimeMillis();
+        final long firstTestBeginTime = (mInstanceListerner.getFirstTestBeginTime() < 0) ?
+                batchEndTime : mInstanceListerner.getFirstTestBeginTime();
+        final boolean wasCrash = interruptingError != null || !parser.wasSuccessful() ||
+                mInstanceListerner.getCurrentTestId() != null;
+
         final boolean progressedSinceLastCall = mInstanceListerner.getCurrentTestId() != null ||
                 getNumRemainingInstances() < numRemainingInstancesBefore;
 
@@ -1606,6 +1995,10 @@ public class DeqpTestRunner implements IBuildReceiver, IDeviceTest, IRemoteTest
         }
 
         mInstanceListerner.endBatch();
+
+        mBatchSizePolicy.recordBatch(batch.tests.size(),
+                batch.tests.size() - getBatchNumPendingCases(batch),
+                firstTestBeginTime - batchStartTime, batchEndTime - firstTestBeginTime, wasCrash);
     }
 
     private static String getRunConfigDisplayCmdLine(BatchRunConfiguration runConfig) {
@@ -1704,6 +2097,21 @@ public class DeqpTestRunner implements IBuildReceiver, IDeviceTest, IRemoteTest
     private boolean isSupportedGlesRenderConfig(BatchRunConfiguration runConfig)
             throws DeviceNotAvailableException, CapabilityQueryFailureException {
         // query if configuration is supported
+        final String commandLine = getGlesRenderConfigQueryCommandLine(runConfig);
+
+        // check for cached result first
+        final Boolean cachedSupported = getCachedGlesRenderConfigSupport(commandLine);
+        if (cachedSupported != null) {
+            return cachedSupported;
+        }
+
+        final boolean supported = queryIsSupportedConfigCommandLine(commandLine);
+        cacheGlesRenderConfigSupport(commandLine, supported);
+        return supported;
+    }
+
+    private String getGlesRenderConfigQueryCommandLine(BatchRunConfiguration runConfig)
+            throws DeviceNotAvailableException {
         final StringBuilder configCommandLine =
                 new StringBuilder(getRunConfigDisplayCmdLine(runConfig));
         if (configCommandLine.length() != 0) {
@@ -1714,26 +2122,106 @@ public class DeqpTestRunner implements IBuildReceiver, IDeviceTest, IRemoteTest
         configCommandLine.append(" --deqp-gl-minor-version=");
         configCommandLine.append(getGlesMinorVersion());
 
-        final String commandLine = configCommandLine.toString();
+        return configCommandLine.toString();
+    }
 
-        // check for cached result first
+    /**
+     * Returns the cached support of the render config, or null if it is not known.
+     */
+    private Boolean getCachedGlesRenderConfigSupport(String commandLine) {
         if (mConfigQuerySupportCache.containsKey(commandLine)) {
             return mConfigQuerySupportCache.get(commandLine);
         }
+        if (mCapabilityCache != null) {
+            final Boolean supported =
+                    mCapabilityCache.isSupportedRenderConfig(mAbi.getName(), commandLine);
+            if (supported != null) {
+                mConfigQuerySupportCache.put(commandLine, supported);
+            }
+            return supported;
+        }
+        return null;
+    }
 
-        final boolean supported = queryIsSupportedConfigCommandLine(commandLine);
+    private void cacheGlesRenderConfigSupport(String commandLine, boolean supported) {
         mConfigQuerySupportCache.put(commandLine, supported);
-        return supported;
+        if (mCapabilityCache != null) {
+            mCapabilityCache.setSupportedRenderConfig(mAbi.getName(), commandLine, supported);
+        }
     }
 
-    private boolean queryIsSupportedConfigCommandLine(String deqpCommandLine)
+    /**
+     * Queries the support of all render configs used by the tests that are not cached yet with
+     * one shell command, instead of one command per render config.
+     *
+     * The query instrumentation answers one config per run, so the runs are chained in the
+     * shell. Answers that are missing or malformed are left out of the cache and queried again
+     * individually when needed.
+     */
+    private void prefetchGlesRenderConfigSupport()
             throws DeviceNotAvailableException, CapabilityQueryFailureException {
+        final Set<String> commandLines = new LinkedHashSet<>();
+        for (TestIdentifier test : mRemainingTests) {
+            for (BatchRunConfiguration runConfig : getTestRunConfigs(test)) {
+                if (!isSupportedRotation(runConfig)) {
+                    continue;
+                }
+                final String commandLine = getGlesRenderConfigQueryCommandLine(runConfig);
+                if (getCachedGlesRenderConfigSupport(commandLine) == null) {
+                    commandLines.add(commandLine);
+                }
+            }
+        }
+
+        if (commandLines.size() < 2) {
+            // nothing to gain over querying on demand
+            return;
+        }
+
+        final StringBuilder command = new StringBuilder();
+        for (String commandLine : commandLines) {
+            if (command.length() != 0) {
+                command.append(" ; ");
+            }
+            command.append(getQueryCommand(commandLine));
+        }
+
+        final PlatformQueryInstrumentationParser parser = new PlatformQueryInstrumentationParser();
+        mDevice.executeShellCommand(command.toString(), parser);
+        parser.flush();
+
+        if (parser.getRunResultMaps().size() != commandLines.size()) {
+            CLog.w("Capability prefetch returned %d results for %d queries, ignoring",
+                    parser.getRunResultMaps().size(), commandLines.size());
+            return;
+        }
+
+        int runNdx = 0;
+        for (String commandLine : commandLines) {
+            final String supported = parser.getRunResultMaps().get(runNdx).get("Supported");
+            if (parser.getRunResultCodes().get(runNdx) == 0) {
+                if ("Yes".equals(supported)) {
+                    cacheGlesRenderConfigSupport(commandLine, true);
+                } else if ("No".equals(supported)) {
+                    cacheGlesRenderConfigSupport(commandLine, false);
+                }
+            }
+            ++runNdx;
+        }
+    }
+
+    private String getQueryCommand(String deqpCommandLine) {
         final String instrumentationName =
                 "com.drawelements.deqp/com.drawelements.deqp.platformutil.DeqpPlatformCapabilityQueryInstrumentation";
-        final String command = String.format(
+        return String.format(
                 "am instrument %s -w -e deqpQueryType renderConfigSupported -e deqpCmdLine \"%s\""
                     + " %s",
                 AbiUtils.createAbiFlag(mAbi.getName()), deqpCommandLine, instrumentationName);
+    }
+
+    private boolean queryIsSupportedConfigCommandLine(String deqpCommandLine)
+            throws DeviceNotAvailableException, CapabilityQueryFailureException {
+        final String command = getQueryCommand(deqpCommandLine);
 
         final PlatformQueryInstrumentationParser parser = new PlatformQueryInstrumentationParser();
         mDevice.executeShellCommand(command, parser);
@@ -1764,8 +2252,14 @@ public class DeqpTestRunner implements IBuildReceiver, IDeviceTest, IRemoteTest
      */
     private Set<String> getDeviceFeatures(ITestDevice device)
             throws DeviceNotAvailableException, CapabilityQueryFailureException {
+        if (mDeviceFeatures == null && mCapabilityCache != null) {
+            mDeviceFeatures = mCapabilityCache.getDeviceFeatures();
+        }
         if (mDeviceFeatures == null) {
             mDeviceFeatures = queryDeviceFeatures(device);
+            if (mCapabilityCache != null) {
+                mCapabilityCache.setDeviceFeatures(mDeviceFeatures);
+            }
         }
         return mDeviceFeatures;
     }
@@ -1878,12 +2372,43 @@ public class DeqpTestRunner implements IBuildReceiver, IDeviceTest, IRemoteTest
         }
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Collection<IRemoteTest> split() {
+        final Map<TestIdentifier, Integer> instanceCounts = new HashMap<>();
+        int numInstances = 0;
+        for (TestIdentifier test : mRemainingTests) {
+            instanceCounts.put(test, getTestRunConfigs(test).size());
+            numInstances += getTestRunConfigs(test).size();
+        }
+
+        final int shardCount = (mShardCount > 0) ? mShardCount :
+                (numInstances + SHARD_INSTANCE_COUNT_TARGET - 1) / SHARD_INSTANCE_COUNT_TARGET;
+        if (shardCount <= 1) {
+            return null;
+        }
+
+        final List<List<TestIdentifier>> parts = partitionTests(mRemainingTests, instanceCounts,
+                shardCount);
+        if (parts.size() <= 1) {
+            return null;
+        }
+
+        final List<IRemoteTest> shards = new ArrayList<>(parts.size());
+        for (List<TestIdentifier> part : parts) {
+            shards.add(new DeqpTestRunner(this, part));
+        }
+        CLog.i("Split %s into %d shards", getId(), shards.size());
+        return shards;
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public void run(ITestInvocationListener listener) throws DeviceNotAvailableException {
-        final Map<String, String> emptyMap = Collections.emptyMap();
         final boolean isSupportedApi = !isOpenGlEsPackage() || isSupportedGles();
 
         listener.testRunStarted(getId(), mRemainingTests.size());
@@ -1896,6 +2421,9 @@ public class DeqpTestRunner implements IBuildReceiver, IDeviceTest, IRemoteTest
 
                 mInstanceListerner.setSink(listener);
                 mDeviceRecovery.setDevice(mDevice);
+                if (mPrefetchCapabilities && isOpenGlEsPackage()) {
+                    prefetchGlesRenderConfigSupport();
+                }
                 runTests();
 
                 uninstallTestApk();
@@ -1911,6 +2439,6 @@ public class DeqpTestRunner implements IBuildReceiver, IDeviceTest, IRemoteTest
             uninstallTestApk();
         }
 
-        listener.testRunEnded(0, emptyMap);
+        listener.testRunEnded(0, mBatchSizePolicy.getMetrics());
     }
 }
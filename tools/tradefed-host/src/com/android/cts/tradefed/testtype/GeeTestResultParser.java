@@ -27,8 +27,6 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * TODO: Merge change to add package prefix to tradefed's GTestResultParser.
@@ -88,10 +86,22 @@ import java.util.regex.Pattern;
  * </pre>
  *
  * All other lines are ignored.
+ * <p/>
+ * Lines are matched against the tags above without regular expressions, and the output captured
+ * for a test is bounded by {@link #setMaxCapturedOutput(int)}, so that native binaries emitting
+ * millions of lines can be parsed cheaply. Lines can be fed as any {@link CharSequence} through
+ * {@link #parse(CharSequence)}, which does not retain the given sequence.
  */
 public class GeeTestResultParser extends MultiLineReceiver {
     private static final String LOG_TAG = "GTestResultParser";
 
+    /** Default number of output characters kept for each test, see setMaxCapturedOutput. */
+    public static final int DEFAULT_MAX_CAPTURED_OUTPUT = 64 * 1024;
+    private static final String LINE_SEPARATOR = "\r\n";
+    private static final String TIME_SUFFIX = " ms)";
+    private static final String TOTAL_TIME_SUFFIX = " ms total)";
+    private static final String RUNNING_PREFIX = "Running ";
+
     // Variables to keep track of state
     private TestResult mCurrentTestResult = null;
     private int mNumTestsRun = 0;
@@ -113,13 +123,15 @@ public class GeeTestResultParser extends MultiLineReceiver {
 
     private String mCoverageTarget = null;
 
+    private int mMaxCapturedOutput = DEFAULT_MAX_CAPTURED_OUTPUT;
+
     /**
      * Test result data
      */
     private static class TestResult {
         private String mTestName = null;
         private String mTestClass = null;
-        private StringBuilder mStackTrace = null;
+        private OutputBuffer mStackTrace = null;
         @SuppressWarnings("unused")
         private Long mRunTime = null;
 
@@ -173,6 +185,80 @@ public class GeeTestResultParser extends MultiLineReceiver {
         }
     }
 
+    /**
+     * Keeps the most recent output of a test in a circular buffer, so that a test printing a lot
+     * of output does not grow the heap without bound. The buffer starts small and grows on demand
+     * up to its capacity, so tests printing little output do not pay for the full capacity.
+     */
+    private static class OutputBuffer {
+        private static final int INITIAL_SIZE = 256;
+
+        private final int mCapacity;
+        private char[] mBuffer;
+        private int mStart = 0;
+        private int mLength = 0;
+        private long mDropped = 0;
+
+        OutputBuffer(int capacity) {
+            mCapacity = Math.max(capacity, 1);
+            mBuffer = new char[Math.min(mCapacity, INITIAL_SIZE)];
+        }
+
+        void append(CharSequence text) {
+            append(text, 0, text.length());
+        }
+
+        void append(CharSequence text, int start, int end) {
+            int count = end - start;
+            if (count > mCapacity) {
+                // Only the tail of the text can fit.
+                mDropped += mLength + count - mCapacity;
+                start = end - mCapacity;
+                mStart = 0;
+                mLength = 0;
+            }
+            ensureSize(mLength + end - start);
+            for (int i = start; i < end; i++) {
+                if (mLength < mBuffer.length) {
+                    mBuffer[(mStart + mLength) % mBuffer.length] = text.charAt(i);
+                    mLength++;
+                } else {
+                    mBuffer[mStart] = text.charAt(i);
+                    mStart = (mStart + 1) % mBuffer.length;
+                    mDropped++;
+                }
+            }
+        }
+
+        /**
+         * Grows the buffer to hold the given number of characters, at most up to the capacity.
+         */
+        private void ensureSize(int size) {
+            if (size <= mBuffer.length || mBuffer.length == mCapacity) {
+                return;
+            }
+            char[] buffer = new char[Math.min(Math.max(mBuffer.length * 2, size), mCapacity)];
+            int firstPart = Math.min(mLength, mBuffer.length - mStart);
+            System.arraycopy(mBuffer, mStart, buffer, 0, firstPart);
+            System.arraycopy(mBuffer, 0, buffer, firstPart, mLength - firstPart);
+            mBuffer = buffer;
+            mStart = 0;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(mLength + 48);
+            if (mDropped > 0) {
+                sb.append("... ").append(mDropped).append(" characters truncated ...");
+                sb.append(LINE_SEPARATOR);
+            }
+            int firstPart = Math.min(mLength, mBuffer.length - mStart);
+            sb.append(mBuffer, mStart, firstPart);
+            sb.append(mBuffer, 0, mLength - firstPart);
+            return sb.toString();
+        }
+    }
+
     /** Internal helper struct to store parsed test info. */
     private static class ParsedTestInfo {
         String mTestName = null;
@@ -230,6 +316,14 @@ public class GeeTestResultParser extends MultiLineReceiver {
         mFakePackagePrefix = prefix;
     }
 
+    /**
+     * Sets the maximum number of output characters kept for each test. When a test prints more,
+     * only the most recent output is reported with its failure.
+     */
+    public void setMaxCapturedOutput(int maxChars) {
+        mMaxCapturedOutput = maxChars;
+    }
+
     /**
      * Returns the current TestResult for test in progress, or a new default one.
      *
@@ -263,47 +357,97 @@ public class GeeTestResultParser extends MultiLineReceiver {
     /**
      * Parse an individual output line.
      *
-     * @param line  Text output line
+     * @param line  Text output line, which is not retained after this call
      */
-    private void parse(String line) {
-        String message = null;
-
-        if (mTestRunInProgress || line.startsWith(Prefixes.TEST_RUN_MARKER)) {
-            if (line.startsWith(Prefixes.START_TEST_MARKER)) {
+    public void parse(CharSequence line) {
+        // Most lines are test output, only lines starting with '[' can be tags.
+        boolean maybeTag = line.length() > 0 && line.charAt(0) == '[';
+        if (!mTestRunInProgress && !(maybeTag && startsWith(line, Prefixes.TEST_RUN_MARKER))) {
+            return;
+        }
+        if (maybeTag) {
+            if (startsWith(line, Prefixes.START_TEST_MARKER)) {
                 // Individual test started
-                message = line.substring(Prefixes.START_TEST_MARKER.length()).trim();
-                processTestStartedTag(message);
-            }
-            else if (line.startsWith(Prefixes.OK_TEST_MARKER)) {
+                processTestStartedTag(trim(line, Prefixes.START_TEST_MARKER.length()));
+                return;
+            } else if (startsWith(line, Prefixes.OK_TEST_MARKER)) {
                 // Individual test completed successfully
-                message = line.substring(Prefixes.OK_TEST_MARKER.length()).trim();
-                processOKTag(message);
+                processOKTag(trim(line, Prefixes.OK_TEST_MARKER.length()));
                 clearCurrentTestResult();
-            }
-            else if (line.startsWith(Prefixes.FAILED_TEST_MARKER)) {
+                return;
+            } else if (startsWith(line, Prefixes.FAILED_TEST_MARKER)) {
                 // Individual test completed with failure
-                message = line.substring(Prefixes.FAILED_TEST_MARKER.length()).trim();
-                processFailedTag(message);
+                processFailedTag(trim(line, Prefixes.FAILED_TEST_MARKER.length()));
                 clearCurrentTestResult();
-            }
-            else if (line.startsWith(Prefixes.START_TEST_RUN_MARKER)) {
+                return;
+            } else if (startsWith(line, Prefixes.START_TEST_RUN_MARKER)) {
                 // Test run started
                 // Make sure to leave the "Running" in the string
-                message = line.substring(Prefixes.TEST_RUN_MARKER.length()).trim();
-                processRunStartedTag(message);
-            }
-            else if (line.startsWith(Prefixes.TEST_RUN_MARKER)) {
+                processRunStartedTag(trim(line, Prefixes.TEST_RUN_MARKER.length()));
+                return;
+            } else if (startsWith(line, Prefixes.TEST_RUN_MARKER)) {
                 // Test run ended
-                // This is for the end of the test suite run, so make sure this else-if is after the
-                // check for START_TEST_SUITE_MARKER
-                message = line.substring(Prefixes.TEST_RUN_MARKER.length()).trim();
-                processRunCompletedTag(message);
+                // This is for the end of the test suite run, so make sure this else-if is after
+                // the check for START_TEST_SUITE_MARKER
+                processRunCompletedTag(trim(line, Prefixes.TEST_RUN_MARKER.length()));
+                return;
             }
-            else if (testInProgress()) {
-                // Note this does not handle the case of an error outside an actual test run
-                appendTestOutputLine(line);
+        }
+        if (testInProgress()) {
+            // Note this does not handle the case of an error outside an actual test run
+            appendTestOutputLine(line);
+        }
+    }
+
+    /**
+     * Returns whether the given line starts with the given prefix.
+     */
+    private static boolean startsWith(CharSequence line, String prefix) {
+        int length = prefix.length();
+        if (line.length() < length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (line.charAt(i) != prefix.charAt(i)) {
+                return false;
             }
         }
+        return true;
+    }
+
+    /**
+     * Returns the part of the line after the given offset, without leading and trailing
+     * whitespace.
+     */
+    private static String trim(CharSequence line, int offset) {
+        int start = offset;
+        int end = line.length();
+        while (start < end && line.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && line.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        return line.subSequence(start, end).toString();
+    }
+
+    /**
+     * Parses the decimal number ending right before the given index, or returns -1 if there is
+     * none.
+     */
+    private static long parseNumberBefore(String text, int end) {
+        int start = end;
+        while (start > 0 && Character.isDigit(text.charAt(start - 1))) {
+            start--;
+        }
+        if (start == end || end - start > 18) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            value = value * 10 + (text.charAt(i) - '0');
+        }
+        return value;
     }
 
     /**
@@ -401,25 +545,29 @@ public class GeeTestResultParser extends MultiLineReceiver {
     private ParsedTestInfo parseTestIdentifier(String identifier) {
         ParsedTestInfo returnInfo = new ParsedTestInfo("UNKNOWN_CLASS", "UNKNOWN_TEST", null);
 
-        Pattern timePattern = Pattern.compile(".*(\\((\\d+) ms\\))");  // eg: (XX ms)
-        Matcher time = timePattern.matcher(identifier);
-
-        // Try to find a time
-        if (time.find()) {
-            String timeString = time.group(2);  // the "XX" in "(XX ms)"
-            String discardPortion = time.group(1);  // everything after the test class/name
-            identifier = identifier.substring(0, identifier.lastIndexOf(discardPortion)).trim();
-            returnInfo.mTestRunTime = timeString;
+        // Try to find a time, eg: (XX ms)
+        if (identifier.endsWith(TIME_SUFFIX)) {
+            int timeEnd = identifier.length() - TIME_SUFFIX.length();
+            int timeStart = timeEnd;
+            while (timeStart > 0 && Character.isDigit(identifier.charAt(timeStart - 1))) {
+                timeStart--;
+            }
+            if (timeStart < timeEnd && timeStart > 0 && identifier.charAt(timeStart - 1) == '(') {
+                returnInfo.mTestRunTime = identifier.substring(timeStart, timeEnd);
+                identifier = identifier.substring(0, timeStart - 1).trim();
+            }
         }
 
-        String[] testId = identifier.split("\\.");
-        if (testId.length < 2) {
+        int classEnd = identifier.indexOf('.');
+        if (classEnd <= 0 || classEnd == identifier.length() - 1) {
             Log.e(LOG_TAG, "Could not detect the test class and test name, received: " +
                     identifier);
         }
         else {
-            returnInfo.mTestClassName = testId[0];
-            returnInfo.mTestName = testId[1];
+            int nameEnd = identifier.indexOf('.', classEnd + 1);
+            returnInfo.mTestClassName = identifier.substring(0, classEnd);
+            returnInfo.mTestName = identifier.substring(classEnd + 1,
+                    nameEnd < 0 ? identifier.length() : nameEnd);
         }
         return returnInfo;
     }
@@ -431,17 +579,17 @@ public class GeeTestResultParser extends MultiLineReceiver {
      */
     private void processRunStartedTag(String identifier) {
         // eg: (Running XX tests from 1 test case.)
-        Pattern numTestsPattern = Pattern.compile("Running (\\d+) test[s]? from .*");
-        Matcher numTests = numTestsPattern.matcher(identifier);
-
-        // Try to find number of tests
-        if (numTests.find()) {
-            try {
-                mNumTestsExpected = Integer.parseInt(numTests.group(1));
-            }
-            catch (NumberFormatException e) {
-                Log.e(LOG_TAG, "Unable to determine number of tests expected, received: " +
-                        numTests.group(1));
+        if (identifier.startsWith(RUNNING_PREFIX)) {
+            int numEnd = identifier.indexOf(' ', RUNNING_PREFIX.length());
+            if (numEnd > 0) {
+                String numTests = identifier.substring(RUNNING_PREFIX.length(), numEnd);
+                try {
+                    mNumTestsExpected = Integer.parseInt(numTests);
+                }
+                catch (NumberFormatException e) {
+                    Log.e(LOG_TAG, "Unable to determine number of tests expected, received: " +
+                            numTests);
+                }
             }
         }
         if (mNumTestsExpected > 0) {
@@ -457,17 +605,15 @@ public class GeeTestResultParser extends MultiLineReceiver {
      * @param identifier Raw log output from the suite ended tag
      */
     private void processRunCompletedTag(String identifier) {
-        Pattern timePattern = Pattern.compile(".*\\((\\d+) ms total\\)");  // eg: (XX ms total)
-        Matcher time = timePattern.matcher(identifier);
-
-        // Try to find the total run time
-        if (time.find()) {
-            try {
-                mTotalRunTime = Long.parseLong(time.group(1));
-            }
-            catch (NumberFormatException e) {
+        // Try to find the total run time, eg: (XX ms total)
+        if (identifier.endsWith(TOTAL_TIME_SUFFIX)) {
+            long time = parseNumberBefore(identifier,
+                    identifier.length() - TOTAL_TIME_SUFFIX.length());
+            if (time >= 0) {
+                mTotalRunTime = time;
+            } else {
                 Log.e(LOG_TAG, "Unable to determine the total running time, received: " +
-                        time.group(1));
+                        identifier);
             }
         }
         reportTestRunEnded();
@@ -593,10 +739,10 @@ public class GeeTestResultParser extends MultiLineReceiver {
      *
      * @param line Raw test result line of output.
      */
-    private void appendTestOutputLine(String line) {
+    private void appendTestOutputLine(CharSequence line) {
         TestResult testResult = getCurrentTestResult();
         if (testResult.mStackTrace == null) {
-            testResult.mStackTrace = new StringBuilder();
+            testResult.mStackTrace = new OutputBuffer(mMaxCapturedOutput);
         }
         else {
             testResult.mStackTrace.append("\r\n");
@@ -79,6 +79,13 @@ public class JarHostTest implements IDeviceTest, IRemoteTest, IBuildReceiver, Te
         mCtsBuild = CtsBuildHelper.createBuildHelper(buildInfo);
     }
 
+    /**
+     * Get the build of this invocation, passed to the tests.
+     */
+    IBuildInfo getBuild() {
+        return mBuildInfo;
+    }
+
     /**
      * Set the CTS build container.
      * <p/>
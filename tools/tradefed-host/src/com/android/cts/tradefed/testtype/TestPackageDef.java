@@ -120,6 +120,10 @@ class TestPackageDef implements ITestPackageDef {
         mRunTimeArgs = runTimeArgs;
     }
 
+    String getRunTimeArgs() {
+        return mRunTimeArgs;
+    }
+
     void setAppNameSpace(String appNameSpace) {
         mAppNameSpace = appNameSpace;
     }
@@ -168,14 +172,42 @@ class TestPackageDef implements ITestPackageDef {
         mTestPackageName = testPackageName;
     }
 
+    String getTestPackageName() {
+        return mTestPackageName;
+    }
+
     void setTargetBinaryName(String targetBinaryName) {
         mTargetBinaryName = targetBinaryName;
     }
 
+    String getTargetBinaryName() {
+        return mTargetBinaryName;
+    }
+
     void setTargetNameSpace(String targetNameSpace) {
         mTargetNameSpace = targetNameSpace;
     }
 
+    String getTargetNameSpace() {
+        return mTargetNameSpace;
+    }
+
+    /**
+     * @return the timeout of the package in mins, 0 for no timeout or -1 if none was given.
+     */
+    int getTimeout() {
+        return mTimeoutInMins;
+    }
+
+    /**
+     * Overrides the timeout derived from the tests added so far.
+     *
+     * @param timeout in mins, 0 for no timeout or -1 if none was given.
+     */
+    void setTimeout(int timeout) {
+        mTimeoutInMins = timeout;
+    }
+
     @Override
     public String getTargetApkName() {
        if (mTargetBinaryName != null && !mTargetBinaryName.isEmpty()) {
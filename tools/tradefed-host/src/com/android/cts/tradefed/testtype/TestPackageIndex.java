@@ -0,0 +1,535 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.compatibility.common.util.AbiUtils;
+import com.android.ddmlib.testrunner.TestIdentifier;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Binary index of the test package definitions parsed from the package xml files.
+ * <p/>
+ * The index is a flat file of int arrays: a string table, the packages, their tests, test
+ * instances and instance arguments, and a hash table from test class name to the packages that
+ * contain the class. It is memory mapped and {@link TestPackageDef}s are only created from it
+ * when asked for, so loading it does not depend on the number of tests.
+ * <p/>
+ * The index starts with a fingerprint of the files it was created from, see
+ * {@link #getFingerprint}. An index with a different fingerprint is ignored.
+ */
+class TestPackageIndex {
+
+    private static final int MAGIC = 0x74706978;
+    private static final int VERSION = 1;
+
+    // int offsets of the header fields
+    private static final int STRING_COUNT = 0;
+    private static final int PACKAGE_COUNT = 1;
+    private static final int TEST_COUNT = 2;
+    private static final int INSTANCE_COUNT = 3;
+    private static final int ARGUMENT_COUNT = 4;
+    private static final int SLOT_COUNT = 5;
+    private static final int CLASS_ENTRY_COUNT = 6;
+    private static final int STRING_BYTES = 7;
+    private static final int HEADER_INTS = 8;
+
+    // ints per package, with the string ids of its attributes first
+    private static final int PACKAGE_ABI = 0;
+    private static final int PACKAGE_APP_PACKAGE_NAME = 1;
+    private static final int PACKAGE_APP_NAME_SPACE = 2;
+    private static final int PACKAGE_NAME = 3;
+    private static final int PACKAGE_RUNNER = 4;
+    private static final int PACKAGE_TEST_TYPE = 5;
+    private static final int PACKAGE_JAR_PATH = 6;
+    private static final int PACKAGE_RUN_TIME_ARGS = 7;
+    private static final int PACKAGE_TEST_PACKAGE_NAME = 8;
+    private static final int PACKAGE_TARGET_BINARY_NAME = 9;
+    private static final int PACKAGE_TARGET_NAME_SPACE = 10;
+    private static final int PACKAGE_XML_FILE = 11;
+    private static final int PACKAGE_TIMEOUT = 12;
+    private static final int PACKAGE_FIRST_TEST = 13;
+    private static final int PACKAGE_TEST_COUNT = 14;
+    private static final int PACKAGE_INTS = 15;
+
+    // ints per test: class and method name, first instance and instance count
+    private static final int TEST_INTS = 4;
+    // ints per test instance: first argument and argument count
+    private static final int INSTANCE_INTS = 2;
+    // ints per instance argument: name and value
+    private static final int ARGUMENT_INTS = 2;
+    // ints per hash table slot: class name or -1, first class entry and class entry count
+    private static final int SLOT_INTS = 3;
+
+    private static final int NO_STRING = -1;
+
+    private final long mFingerprint;
+    private final IntBuffer mInts;
+    private final ByteBuffer mStringBytes;
+    private final int mStringOffsets;
+    private final int mPackages;
+    private final int mTests;
+    private final int mInstances;
+    private final int mArguments;
+    private final int mSlots;
+    private final int mClassEntries;
+    private final String[] mStrings;
+    // package indexes by id, built on load since there are only a few hundred packages
+    private final Map<String, Integer> mPackageIndexes = new HashMap<>();
+
+    /**
+     * @param buffer the index, with the position at its start
+     * @throws IOException if the buffer is not a valid index
+     */
+    private TestPackageIndex(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 16 + HEADER_INTS * 4
+                || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            throw new IOException("not a test package index");
+        }
+        mFingerprint = buffer.getLong();
+        IntBuffer header = buffer.slice().asIntBuffer();
+        int stringCount = header.get(STRING_COUNT);
+        int packageCount = header.get(PACKAGE_COUNT);
+        mStringOffsets = HEADER_INTS;
+        mPackages = mStringOffsets + stringCount + 1;
+        mTests = mPackages + packageCount * PACKAGE_INTS;
+        mInstances = mTests + header.get(TEST_COUNT) * TEST_INTS;
+        mArguments = mInstances + header.get(INSTANCE_COUNT) * INSTANCE_INTS;
+        mSlots = mArguments + header.get(ARGUMENT_COUNT) * ARGUMENT_INTS;
+        mClassEntries = mSlots + header.get(SLOT_COUNT) * SLOT_INTS;
+        int intCount = mClassEntries + header.get(CLASS_ENTRY_COUNT);
+        if (intCount < 0 || (long) intCount * 4 + header.get(STRING_BYTES)
+                > buffer.remaining()) {
+            throw new IOException("truncated test package index");
+        }
+        ByteBuffer ints = buffer.slice();
+        ints.limit(intCount * 4);
+        mInts = ints.asIntBuffer();
+        buffer.position(buffer.position() + intCount * 4);
+        mStringBytes = buffer.slice();
+        mStringBytes.limit(header.get(STRING_BYTES));
+        mStrings = new String[stringCount];
+        for (int i = 0; i < packageCount; i++) {
+            mPackageIndexes.put(AbiUtils.createId(getPackageString(i, PACKAGE_ABI),
+                    getPackageString(i, PACKAGE_APP_PACKAGE_NAME)), i);
+        }
+    }
+
+    /**
+     * Reads the index from a file.
+     *
+     * @param file the index file
+     * @param fingerprint the expected fingerprint, see {@link #getFingerprint}
+     * @return the index, or <code>null</code> if the file does not exist, cannot be read or has a
+     *         different fingerprint
+     */
+    static TestPackageIndex read(File file, long fingerprint) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            // the mapping stays valid after the channel is closed
+            ByteBuffer buffer =
+                    in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+            if (buffer.remaining() < 16 || buffer.getLong(8) != fingerprint) {
+                return null;
+            }
+            return new TestPackageIndex(buffer);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Computes the fingerprint of the index for the package files in a directory. It changes
+     * when a package xml or config file is added, removed or modified, or the parse options
+     * differ.
+     *
+     * @param dir the directory containing the test package definitions
+     * @param xmlFiles the package xml files in the directory
+     * @param includeKnownFailures the option the package xml files are parsed with
+     */
+    static long getFingerprint(File dir, File[] xmlFiles, boolean includeKnownFailures) {
+        List<String> names = new ArrayList<>();
+        for (File xmlFile : xmlFiles) {
+            names.add(xmlFile.getName());
+        }
+        Collections.sort(names);
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            StringBuilder key = new StringBuilder();
+            key.append(VERSION).append(includeKnownFailures);
+            List<String> abis = new ArrayList<>(AbiUtils.getAbisSupportedByCompatibility());
+            Collections.sort(abis);
+            key.append(abis);
+            for (String name : names) {
+                File xmlFile = new File(dir, name);
+                File configFile = new File(dir, name.substring(0, name.lastIndexOf('.'))
+                        + ".config");
+                key.append('\n').append(name).append(' ').append(xmlFile.length())
+                        .append(' ').append(xmlFile.lastModified());
+                if (configFile.exists()) {
+                    key.append(' ').append(configFile.length())
+                            .append(' ').append(configFile.lastModified());
+                }
+            }
+            byte[] hash = digest.digest(key.toString().getBytes(StandardCharsets.UTF_8));
+            return ByteBuffer.wrap(hash).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Creates an index of test package definitions.
+     *
+     * @param xmlFileNames the package definitions to index, with the name of the xml file each
+     *        was parsed from
+     * @param fingerprint the fingerprint to store, see {@link #getFingerprint}
+     */
+    static TestPackageIndex create(Map<TestPackageDef, String> xmlFileNames, long fingerprint) {
+        List<TestPackageDef> defs = new ArrayList<>(xmlFileNames.keySet());
+        Collections.sort(defs);
+
+        Map<String, Integer> stringIds = new HashMap<>();
+        List<String> strings = new ArrayList<>();
+        int[] packages = new int[defs.size() * PACKAGE_INTS];
+        IntList tests = new IntList();
+        IntList instances = new IntList();
+        IntList arguments = new IntList();
+        // package indexes by class name, in the order the classes are first seen
+        Map<String, Set<Integer>> classPackages = new HashMap<>();
+        List<String> classNames = new ArrayList<>();
+
+        for (int i = 0; i < defs.size(); i++) {
+            TestPackageDef def = defs.get(i);
+            int p = i * PACKAGE_INTS;
+            packages[p + PACKAGE_ABI] = intern(def.getAbi().getName(), stringIds, strings);
+            packages[p + PACKAGE_APP_PACKAGE_NAME] =
+                    intern(def.getAppPackageName(), stringIds, strings);
+            packages[p + PACKAGE_APP_NAME_SPACE] =
+                    intern(def.getAppNameSpace(), stringIds, strings);
+            packages[p + PACKAGE_NAME] = intern(def.getName(), stringIds, strings);
+            packages[p + PACKAGE_RUNNER] = intern(def.getRunner(), stringIds, strings);
+            packages[p + PACKAGE_TEST_TYPE] = intern(def.getTestType(), stringIds, strings);
+            packages[p + PACKAGE_JAR_PATH] = intern(def.getJarPath(), stringIds, strings);
+            packages[p + PACKAGE_RUN_TIME_ARGS] =
+                    intern(def.getRunTimeArgs(), stringIds, strings);
+            packages[p + PACKAGE_TEST_PACKAGE_NAME] =
+                    intern(def.getTestPackageName(), stringIds, strings);
+            packages[p + PACKAGE_TARGET_BINARY_NAME] =
+                    intern(def.getTargetBinaryName(), stringIds, strings);
+            packages[p + PACKAGE_TARGET_NAME_SPACE] =
+                    intern(def.getTargetNameSpace(), stringIds, strings);
+            packages[p + PACKAGE_XML_FILE] = intern(xmlFileNames.get(def), stringIds, strings);
+            packages[p + PACKAGE_TIMEOUT] = def.getTimeout();
+            packages[p + PACKAGE_FIRST_TEST] = tests.size() / TEST_INTS;
+            packages[p + PACKAGE_TEST_COUNT] = def.getTests().size();
+
+            Map<TestIdentifier, List<Map<String, String>>> instanceArguments =
+                    def.getTestInstanceArguments();
+            for (TestIdentifier test : def.getTests()) {
+                tests.add(intern(test.getClassName(), stringIds, strings));
+                tests.add(intern(test.getTestName(), stringIds, strings));
+                List<Map<String, String>> testInstances = instanceArguments.get(test);
+                tests.add(instances.size() / INSTANCE_INTS);
+                tests.add(testInstances == null ? 0 : testInstances.size());
+                if (testInstances != null) {
+                    for (Map<String, String> instance : testInstances) {
+                        instances.add(arguments.size() / ARGUMENT_INTS);
+                        instances.add(instance.size());
+                        for (Map.Entry<String, String> argument : instance.entrySet()) {
+                            arguments.add(intern(argument.getKey(), stringIds, strings));
+                            arguments.add(intern(argument.getValue(), stringIds, strings));
+                        }
+                    }
+                }
+                Set<Integer> packageIndexes = classPackages.get(test.getClassName());
+                if (packageIndexes == null) {
+                    packageIndexes = new LinkedHashSet<>();
+                    classPackages.put(test.getClassName(), packageIndexes);
+                    classNames.add(test.getClassName());
+                }
+                packageIndexes.add(i);
+            }
+        }
+
+        // open addressing with linear probing, at most half full
+        int slotCount = Integer.highestOneBit(Math.max(1, classNames.size()) * 2) * 2;
+        int[] slots = new int[slotCount * SLOT_INTS];
+        for (int i = 0; i < slotCount; i++) {
+            slots[i * SLOT_INTS] = NO_STRING;
+        }
+        IntList classEntries = new IntList();
+        for (String className : classNames) {
+            int slot = className.hashCode() & (slotCount - 1);
+            while (slots[slot * SLOT_INTS] != NO_STRING) {
+                slot = (slot + 1) & (slotCount - 1);
+            }
+            Set<Integer> packageIndexes = classPackages.get(className);
+            slots[slot * SLOT_INTS] = intern(className, stringIds, strings);
+            slots[slot * SLOT_INTS + 1] = classEntries.size();
+            slots[slot * SLOT_INTS + 2] = packageIndexes.size();
+            for (int packageIndex : packageIndexes) {
+                classEntries.add(packageIndex);
+            }
+        }
+
+        ByteArrayOutputStream stringBytes = new ByteArrayOutputStream();
+        int[] stringOffsets = new int[strings.size() + 1];
+        for (int i = 0; i < strings.size(); i++) {
+            byte[] bytes = strings.get(i).getBytes(StandardCharsets.UTF_8);
+            stringBytes.write(bytes, 0, bytes.length);
+            stringOffsets[i + 1] = stringBytes.size();
+        }
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(fingerprint);
+            int[] header = new int[HEADER_INTS];
+            header[STRING_COUNT] = strings.size();
+            header[PACKAGE_COUNT] = defs.size();
+            header[TEST_COUNT] = tests.size() / TEST_INTS;
+            header[INSTANCE_COUNT] = instances.size() / INSTANCE_INTS;
+            header[ARGUMENT_COUNT] = arguments.size() / ARGUMENT_INTS;
+            header[SLOT_COUNT] = slotCount;
+            header[CLASS_ENTRY_COUNT] = classEntries.size();
+            header[STRING_BYTES] = stringBytes.size();
+            writeInts(out, header, header.length);
+            writeInts(out, stringOffsets, stringOffsets.length);
+            writeInts(out, packages, packages.length);
+            writeInts(out, tests.mValues, tests.size());
+            writeInts(out, instances.mValues, instances.size());
+            writeInts(out, arguments.mValues, arguments.size());
+            writeInts(out, slots, slots.length);
+            writeInts(out, classEntries.mValues, classEntries.size());
+            stringBytes.writeTo(out);
+            out.flush();
+            return new TestPackageIndex(ByteBuffer.wrap(bytes.toByteArray()));
+        } catch (IOException e) {
+            // cannot happen when writing to memory
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Writes the index to a file. A temporary file in the same directory is written first and
+     * renamed, so a concurrent reader never sees a partial index and concurrent writers do not
+     * write to the same temporary file.
+     */
+    void write(File file) throws IOException {
+        File tmpFile = File.createTempFile(file.getName(), ".tmp",
+                file.getAbsoluteFile().getParentFile());
+        try {
+            try (OutputStream out = new FileOutputStream(tmpFile)) {
+                ByteBuffer buffer = ByteBuffer.allocate(16 + mInts.capacity() * 4
+                        + mStringBytes.capacity());
+                buffer.putInt(MAGIC);
+                buffer.putInt(VERSION);
+                buffer.putLong(mFingerprint);
+                buffer.asIntBuffer().put(mInts.duplicate());
+                buffer.position(buffer.position() + mInts.capacity() * 4);
+                buffer.put(mStringBytes.duplicate());
+                out.write(buffer.array());
+            }
+            if (!tmpFile.renameTo(file) && !(file.delete() && tmpFile.renameTo(file))) {
+                throw new IOException("could not replace " + file.getAbsolutePath());
+            }
+        } finally {
+            tmpFile.delete();
+        }
+    }
+
+    /**
+     * @return the number of indexed packages.
+     */
+    int getPackageCount() {
+        return mPackageIndexes.size();
+    }
+
+    /**
+     * @return the index of the package with the given id, or -1 if it is not indexed.
+     */
+    int findPackage(String id) {
+        Integer index = mPackageIndexes.get(id);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * @return the id of a package, see {@link TestPackageDef#getId()}.
+     */
+    String getPackageId(int index) {
+        return AbiUtils.createId(getPackageString(index, PACKAGE_ABI),
+                getPackageString(index, PACKAGE_APP_PACKAGE_NAME));
+    }
+
+    /**
+     * @return the name of the xml file a package was parsed from.
+     */
+    String getXmlFileName(int index) {
+        return getPackageString(index, PACKAGE_XML_FILE);
+    }
+
+    /**
+     * @return the indexes of the packages containing tests of the given class.
+     */
+    int[] findPackagesForClass(String className) {
+        int slotCount = mInts.get(SLOT_COUNT);
+        int slot = className.hashCode() & (slotCount - 1);
+        while (true) {
+            int s = mSlots + slot * SLOT_INTS;
+            int name = mInts.get(s);
+            if (name == NO_STRING) {
+                return new int[0];
+            }
+            if (className.equals(getString(name))) {
+                int[] packageIndexes = new int[mInts.get(s + 2)];
+                for (int i = 0; i < packageIndexes.length; i++) {
+                    packageIndexes[i] = mInts.get(mClassEntries + mInts.get(s + 1) + i);
+                }
+                return packageIndexes;
+            }
+            slot = (slot + 1) & (slotCount - 1);
+        }
+    }
+
+    /**
+     * Creates the {@link TestPackageDef} of a package, without its preparers.
+     */
+    TestPackageDef createTestPackageDef(int index) {
+        TestPackageDef def = new TestPackageDef();
+        String abiName = getPackageString(index, PACKAGE_ABI);
+        def.setAbi(new Abi(abiName, AbiUtils.getBitness(abiName)));
+        def.setAppPackageName(getPackageString(index, PACKAGE_APP_PACKAGE_NAME));
+        def.setAppNameSpace(getPackageString(index, PACKAGE_APP_NAME_SPACE));
+        def.setName(getPackageString(index, PACKAGE_NAME));
+        def.setRunner(getPackageString(index, PACKAGE_RUNNER));
+        def.setTestType(getPackageString(index, PACKAGE_TEST_TYPE));
+        def.setJarPath(getPackageString(index, PACKAGE_JAR_PATH));
+        def.setRunTimeArgs(getPackageString(index, PACKAGE_RUN_TIME_ARGS));
+        def.setTestPackageName(getPackageString(index, PACKAGE_TEST_PACKAGE_NAME));
+        def.setTargetBinaryName(getPackageString(index, PACKAGE_TARGET_BINARY_NAME));
+        def.setTargetNameSpace(getPackageString(index, PACKAGE_TARGET_NAME_SPACE));
+
+        int p = mPackages + index * PACKAGE_INTS;
+        int firstTest = mInts.get(p + PACKAGE_FIRST_TEST);
+        int testCount = mInts.get(p + PACKAGE_TEST_COUNT);
+        for (int i = firstTest; i < firstTest + testCount; i++) {
+            int t = mTests + i * TEST_INTS;
+            TestIdentifier test = new TestIdentifier(getString(mInts.get(t)),
+                    getString(mInts.get(t + 1)));
+            def.addTest(test, -1);
+            int firstInstance = mInts.get(t + 2);
+            int instanceCount = mInts.get(t + 3);
+            for (int j = firstInstance; j < firstInstance + instanceCount; j++) {
+                int firstArgument = mInts.get(mInstances + j * INSTANCE_INTS);
+                int argumentCount = mInts.get(mInstances + j * INSTANCE_INTS + 1);
+                Map<String, String> instance = new HashMap<>();
+                for (int k = firstArgument; k < firstArgument + argumentCount; k++) {
+                    int a = mArguments + k * ARGUMENT_INTS;
+                    instance.put(getString(mInts.get(a)), getString(mInts.get(a + 1)));
+                }
+                def.addTestInstance(test, instance);
+            }
+        }
+        def.setTimeout(mInts.get(p + PACKAGE_TIMEOUT));
+        return def;
+    }
+
+    private String getPackageString(int index, int field) {
+        return getString(mInts.get(mPackages + index * PACKAGE_INTS + field));
+    }
+
+    private String getString(int id) {
+        if (id == NO_STRING) {
+            return null;
+        }
+        synchronized (mStrings) {
+            String string = mStrings[id];
+            if (string == null) {
+                int start = mInts.get(mStringOffsets + id);
+                byte[] bytes = new byte[mInts.get(mStringOffsets + id + 1) - start];
+                ByteBuffer buffer = mStringBytes.duplicate();
+                buffer.position(start);
+                buffer.get(bytes);
+                string = new String(bytes, StandardCharsets.UTF_8);
+                mStrings[id] = string;
+            }
+            return string;
+        }
+    }
+
+    private static int intern(String string, Map<String, Integer> stringIds,
+            List<String> strings) {
+        if (string == null) {
+            return NO_STRING;
+        }
+        Integer id = stringIds.get(string);
+        if (id == null) {
+            id = strings.size();
+            stringIds.put(string, id);
+            strings.add(string);
+        }
+        return id;
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values, int count)
+            throws IOException {
+        for (int i = 0; i < count; i++) {
+            out.writeInt(values[i]);
+        }
+    }
+
+    /** A growable int array. */
+    private static class IntList {
+        int[] mValues = new int[64];
+        int mSize = 0;
+
+        void add(int value) {
+            if (mSize == mValues.length) {
+                mValues = Arrays.copyOf(mValues, mSize * 2);
+            }
+            mValues[mSize++] = value;
+        }
+
+        int size() {
+            return mSize;
+        }
+    }
+}
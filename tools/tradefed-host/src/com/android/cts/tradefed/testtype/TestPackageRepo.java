@@ -27,25 +27,37 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FilenameFilter;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 /**
  * Retrieves CTS test package definitions from the repository.
+ * <p/>
+ * The package xml files are parsed once and stored in a {@link TestPackageIndex} next to them,
+ * which later repos load instead as long as the files are unchanged. Package definitions are
+ * only created from the index when they are asked for.
  */
 public class TestPackageRepo implements ITestPackageRepo {
 
     private static final String LOG_TAG = "TestCaseRepo";
 
+    static final String INDEX_FILE_NAME = "test-packages.index";
+    static final String INDEX_WITH_KNOWN_FAILURES_FILE_NAME =
+            "test-packages-with-known-failures.index";
+
     /** mapping of ABI to a mapping of appPackageName to test definition */
     private final Map<String, Map<String, TestPackageDef>> mTestMap;
     private final boolean mIncludeKnownFailures;
+    private final File mTestCaseDir;
+    private final TestPackageIndex mIndex;
 
     /**
      * Creates a {@link TestPackageRepo}, initialized from provided repo files
@@ -57,17 +69,43 @@ public class TestPackageRepo implements ITestPackageRepo {
     public TestPackageRepo(File testCaseDir, boolean includeKnownFailures) {
         mTestMap = new HashMap<>();
         mIncludeKnownFailures = includeKnownFailures;
-        parse(testCaseDir);
+        mTestCaseDir = testCaseDir;
+        mIndex = loadIndex(testCaseDir);
     }
 
     /**
-     * Builds mTestMap based on directory contents
+     * Loads the index of the directory, or parses the package xml files and stores a new index if
+     * it is missing or out of date.
      */
-    private void parse(File dir) {
+    private TestPackageIndex loadIndex(File dir) {
         File[] xmlFiles = dir.listFiles(new XmlFilter());
+        long fingerprint = TestPackageIndex.getFingerprint(dir, xmlFiles, mIncludeKnownFailures);
+        File indexFile = new File(dir, mIncludeKnownFailures
+                ? INDEX_WITH_KNOWN_FAILURES_FILE_NAME : INDEX_FILE_NAME);
+        TestPackageIndex index = TestPackageIndex.read(indexFile, fingerprint);
+        if (index != null) {
+            return index;
+        }
+        Map<TestPackageDef, String> xmlFileNames = new IdentityHashMap<>();
         for (File xmlFile : xmlFiles) {
-            parseModuleTestConfigs(xmlFile);
+            parseModuleTestConfigs(xmlFile, xmlFileNames);
+        }
+        // only the definitions that were not replaced by a later xml file with the same package
+        Map<TestPackageDef, String> indexed = new IdentityHashMap<>();
+        for (Map<String, TestPackageDef> testNameMap : mTestMap.values()) {
+            for (TestPackageDef def : testNameMap.values()) {
+                indexed.put(def, xmlFileNames.get(def));
+            }
+        }
+        index = TestPackageIndex.create(indexed, fingerprint);
+        try {
+            index.write(indexFile);
+        } catch (IOException e) {
+            // the test case directory may be read-only, the index is then rebuilt every time
+            Log.w(LOG_TAG, String.format("Could not store test package index %s: %s",
+                    indexFile.getAbsolutePath(), e.getMessage()));
         }
+        return index;
     }
 
     /**
@@ -98,24 +136,11 @@ public class TestPackageRepo implements ITestPackageRepo {
      * representing the module accordingly.
      * @param xmlFile the module definition XML
      */
-    private void parseModuleTestConfigs(File xmlFile)  {
+    private void parseModuleTestConfigs(File xmlFile, Map<TestPackageDef, String> xmlFileNames) {
         TestPackageXmlParser parser = new TestPackageXmlParser(mIncludeKnownFailures);
         try {
             parser.parse(createStreamFromFile(xmlFile));
-            // based on test module XML file path, and the <module name>.config naming convention,
-            // infers the module test config file, and parses it
-            File preparer = getPreparerDefForPackage(xmlFile);
-            IConfiguration config = null;
-            if (preparer != null) {
-                try {
-                    // invokes parser to process the test module config file
-                    config = ConfigurationFactory.getInstance().createConfigurationFromArgs(
-                            new String[]{preparer.getAbsolutePath()});
-                } catch (ConfigurationException e) {
-                    throw new RuntimeException(
-                            String.format("error parsing config file: %s", xmlFile.getName()), e);
-                }
-            }
+            IConfiguration config = parseModuleTestConfig(xmlFile);
             Set<TestPackageDef> defs = parser.getTestPackageDefs();
             if (defs.isEmpty()) {
                 Log.w(LOG_TAG, String.format("Could not find test package info in xml file %s",
@@ -132,6 +157,7 @@ public class TestPackageRepo implements ITestPackageRepo {
                     mTestMap.put(abi, new HashMap<String, TestPackageDef>());
                 }
                 mTestMap.get(abi).put(name, def);
+                xmlFileNames.put(def, xmlFile.getName());
             }
         } catch (FileNotFoundException e) {
             Log.e(LOG_TAG, String.format("Could not find test case xml file %s",
@@ -144,6 +170,51 @@ public class TestPackageRepo implements ITestPackageRepo {
         }
     }
 
+    /**
+     * Based on test module XML file path, and the &lt;module name&gt;.config naming convention,
+     * infers the module test config file, and parses it.
+     *
+     * @param xmlFile the module definition XML
+     * @return the module test config, or <code>null</code> if there is none
+     */
+    private IConfiguration parseModuleTestConfig(File xmlFile) {
+        File preparer = getPreparerDefForPackage(xmlFile);
+        if (preparer == null) {
+            return null;
+        }
+        try {
+            // invokes parser to process the test module config file
+            return ConfigurationFactory.getInstance().createConfigurationFromArgs(
+                    new String[]{preparer.getAbsolutePath()});
+        } catch (ConfigurationException e) {
+            throw new RuntimeException(
+                    String.format("error parsing config file: %s", xmlFile.getName()), e);
+        }
+    }
+
+    /**
+     * Gets the definition of an indexed package, creating it from the index on first use.
+     */
+    private synchronized TestPackageDef getTestPackage(int index) {
+        String[] parts = AbiUtils.parseId(mIndex.getPackageId(index));
+        String abi = parts[0];
+        String name = parts[1];
+        if (mTestMap.containsKey(abi) && mTestMap.get(abi).containsKey(name)) {
+            return mTestMap.get(abi).get(name);
+        }
+        TestPackageDef def = mIndex.createTestPackageDef(index);
+        IConfiguration config =
+                parseModuleTestConfig(new File(mTestCaseDir, mIndex.getXmlFileName(index)));
+        if (config != null) {
+            def.setPackagePreparers(config.getTargetPreparers());
+        }
+        if (!mTestMap.containsKey(abi)) {
+            mTestMap.put(abi, new HashMap<String, TestPackageDef>());
+        }
+        mTestMap.get(abi).put(name, def);
+        return def;
+    }
+
     /**
      * Helper method to create a stream to read data from given file
      * <p/>
@@ -173,13 +244,11 @@ public class TestPackageRepo implements ITestPackageRepo {
      */
     @Override
     public ITestPackageDef getTestPackage(String id) {
-        String[] parts = AbiUtils.parseId(id);
-        String abi = parts[0];
-        String name = parts[1];
-        if (mTestMap.containsKey(abi) && mTestMap.get(abi).containsKey(name)) {
-            return mTestMap.get(abi).get(name);
+        int index = mIndex.findPackage(id);
+        if (index < 0) {
+            return null;
         }
-        return null;
+        return getTestPackage(index);
     }
 
     /**
@@ -187,14 +256,10 @@ public class TestPackageRepo implements ITestPackageRepo {
      */
     @Override
     public List<String> getPackageIds() {
-        Set<String> ids = new HashSet<>();
-        for (String abi : mTestMap.keySet()) {
-            Map<String, TestPackageDef> testNameMap = mTestMap.get(abi);
-            for (TestPackageDef testPackageDef : testNameMap.values()) {
-                ids.add(testPackageDef.getId());
-            }
+        List<String> idList = new ArrayList<>();
+        for (int i = 0; i < mIndex.getPackageCount(); i++) {
+            idList.add(mIndex.getPackageId(i));
         }
-        List<String> idList = new ArrayList<>(ids);
         Collections.sort(idList);
         return idList;
     }
@@ -205,11 +270,8 @@ public class TestPackageRepo implements ITestPackageRepo {
     @Override
     public List<String> getPackageNames() {
         Set<String> nameSet = new HashSet<String>();
-        for (String abi : mTestMap.keySet()) {
-            Map<String, TestPackageDef> testNameMap = mTestMap.get(abi);
-            for (TestPackageDef testPackageDef : testNameMap.values()) {
-                nameSet.add(AbiUtils.parseTestName(testPackageDef.getId()));
-            }
+        for (int i = 0; i < mIndex.getPackageCount(); i++) {
+            nameSet.add(AbiUtils.parseTestName(mIndex.getPackageId(i)));
         }
         List<String> nameList = new ArrayList<>(nameSet);
         Collections.sort(nameList);
@@ -224,14 +286,12 @@ public class TestPackageRepo implements ITestPackageRepo {
         Map<String, List<ITestPackageDef>> packageDefMap =
                 new HashMap<String, List<ITestPackageDef>>();
 
-        for (String abi : mTestMap.keySet()) {
-            Map<String, TestPackageDef> testNameMap = mTestMap.get(abi);
-            for (String packageName : testNameMap.keySet()) {
-                if (!packageDefMap.containsKey(packageName)) {
-                    packageDefMap.put(packageName, new ArrayList<ITestPackageDef>());
-                }
-                packageDefMap.get(packageName).add(testNameMap.get(packageName));
+        for (int i = 0; i < mIndex.getPackageCount(); i++) {
+            String packageName = AbiUtils.parseTestName(mIndex.getPackageId(i));
+            if (!packageDefMap.containsKey(packageName)) {
+                packageDefMap.put(packageName, new ArrayList<ITestPackageDef>());
             }
+            packageDefMap.get(packageName).add(getTestPackage(i));
         }
         return packageDefMap;
     }
@@ -241,15 +301,10 @@ public class TestPackageRepo implements ITestPackageRepo {
      */
     @Override
     public List<String> findPackageIdsForTest(String testClassName) {
-        Set<String> ids = new HashSet<String>();
-        for (String abi : mTestMap.keySet()) {
-            for (String name : mTestMap.get(abi).keySet()) {
-                if (mTestMap.get(abi).get(name).isKnownTestClass(testClassName)) {
-                    ids.add(AbiUtils.createId(abi, name));
-                }
-            }
+        List<String> idList = new ArrayList<String>();
+        for (int index : mIndex.findPackagesForClass(testClassName)) {
+            idList.add(mIndex.getPackageId(index));
         }
-        List<String> idList = new ArrayList<String>(ids);
         Collections.sort(idList);
         return idList;
     }
@@ -16,6 +16,7 @@
 package com.android.cts.tradefed.testtype;
 
 import com.android.cts.tradefed.build.CtsBuildHelper;
+import com.android.tradefed.config.Option;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.log.LogUtil.CLog;
@@ -24,6 +25,7 @@ import com.android.tradefed.util.FileUtil;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.UUID;
 import java.util.zip.ZipFile;
 
 /**
@@ -34,6 +36,14 @@ public class VMHostTest extends JarHostTest {
 
     private static final String VM_TEST_TEMP_DIR = "/data/local/tmp/vm-tests";
     private static final String EMULATOR_TEMP_DIR = "/data/local/tmp";
+    // Build attributes read by the generated vm-tests, see dot.junit.BatchRunner. They are set
+    // on the build of this invocation so other devices in the same process keep theirs.
+    private static final String BATCH_ATTRIBUTE = "vm-tests.batch";
+    private static final String RUN_ATTRIBUTE = "vm-tests.run";
+
+    @Option(name = "vm-batch-mode", description = "Run the tests of a test class in as few VMs "
+            + "as possible instead of starting a VM for each test.")
+    private boolean mBatchMode = true;
 
     /**
      * {@inheritDoc}
@@ -46,6 +56,8 @@ public class VMHostTest extends JarHostTest {
                     "Failed to install vm-tests prereqs on device %s",
                     getDevice().getSerialNumber()));
         }
+        getBuild().addBuildAttribute(BATCH_ATTRIBUTE, Boolean.toString(mBatchMode));
+        getBuild().addBuildAttribute(RUN_ATTRIBUTE, UUID.randomUUID().toString());
         super.run(listener);
         cleanupDeviceFiles(getDevice());
     }
@@ -24,7 +24,48 @@ import java.util.ArrayList;
 
 public class WrappedGTestResultParser extends GeeTestResultParser {
 
+    private static final String GTEST_STATUS_PREFIX = "INSTRUMENTATION_STATUS: gtest=";
+    private static final String RESULT_PREFIX = "INSTRUMENTATION_RESULT: ";
+    private static final String INSTRUMENTATION_PREFIX = "INSTRUMENTATION_";
+
     private boolean mInstrumentationError;
+    private boolean mReadMultiLine;
+    private final LineSlice mSlice = new LineSlice();
+
+    /**
+     * A reusable view of the gtest part of an instrumentation line, so that stripping the
+     * instrumentation prefix does not copy the line.
+     */
+    private static class LineSlice implements CharSequence {
+        private String mLine;
+        private int mOffset;
+
+        LineSlice set(String line, int offset) {
+            mLine = line;
+            mOffset = offset;
+            return this;
+        }
+
+        @Override
+        public int length() {
+            return mLine.length() - mOffset;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return mLine.charAt(mOffset + index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return mLine.substring(mOffset + start, mOffset + end);
+        }
+
+        @Override
+        public String toString() {
+            return mLine.substring(mOffset);
+        }
+    }
 
     /**
      * Creates the WrappedGTestResultParser.
@@ -50,7 +91,7 @@ public class WrappedGTestResultParser extends GeeTestResultParser {
 
     /**
      * Strips the instrumentation information and then forwards
-     * the raw gtest output to the {@link GeeTestResultParser}.
+     * the raw gtest output to the {@link GeeTestResultParser}, one line at a time.
      */
     @Override
     public void processNewLines(String[] lines) {
@@ -58,8 +99,12 @@ public class WrappedGTestResultParser extends GeeTestResultParser {
             return;
         }
 
-        String[] gtestOutput = parseInstrumentation(lines);
-        super.processNewLines(gtestOutput);
+        for (String line : lines) {
+            CharSequence gtestLine = stripInstrumentation(line);
+            if (gtestLine != null) {
+                parse(gtestLine);
+            }
+        }
     }
 
     /**
@@ -71,36 +116,46 @@ public class WrappedGTestResultParser extends GeeTestResultParser {
      */
     public String[] parseInstrumentation(String[] lines) {
         List<String> output = new ArrayList<String>();
-        boolean readMultiLine = false;
+        mReadMultiLine = false;
         for (String line : lines) {
-
-            if (line.startsWith("INSTRUMENTATION_RESULT: ")) {
-                CLog.e("Instrumentation Error:");
-                mInstrumentationError = true;
+            CharSequence gtestLine = stripInstrumentation(line);
+            if (gtestLine != null) {
+                output.add(gtestLine.toString());
             }
+        }
 
-            if (mInstrumentationError) {
-                CLog.e(line);
-                continue;
-            }
+        return output.toArray(new String[output.size()]);
+    }
 
-            if (line.startsWith("INSTRUMENTATION_STATUS: gtest=")) {
-                output.add(line.replace("INSTRUMENTATION_STATUS: gtest=", ""));
-                readMultiLine = true;
-                continue;
-            }
+    /**
+     * Strips the instrumentation information from a line of raw instrumentation output.
+     *
+     * @param line a line of the raw instrumentation output
+     * @return the gtest output of the line, which is only valid until the next call, or null if
+     *         the line has no gtest output
+     */
+    private CharSequence stripInstrumentation(String line) {
+        if (line.startsWith(RESULT_PREFIX)) {
+            CLog.e("Instrumentation Error:");
+            mInstrumentationError = true;
+        }
 
-            if (line.startsWith("INSTRUMENTATION_")) {
-                readMultiLine = false;
-                continue;
-            }
+        if (mInstrumentationError) {
+            CLog.e(line);
+            return null;
+        }
 
-            if (readMultiLine) {
-                output.add(line);
-            }
+        if (line.startsWith(GTEST_STATUS_PREFIX)) {
+            mReadMultiLine = true;
+            return mSlice.set(line, GTEST_STATUS_PREFIX.length());
         }
 
-        return output.toArray(new String[output.size()]);
+        if (line.startsWith(INSTRUMENTATION_PREFIX)) {
+            mReadMultiLine = false;
+            return null;
+        }
+
+        return mReadMultiLine ? line : null;
     }
 }
 
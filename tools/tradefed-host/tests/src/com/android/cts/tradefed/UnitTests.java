@@ -24,7 +24,9 @@ import com.android.cts.tradefed.result.TestTest;
 import com.android.cts.tradefed.result.TestLogTest;
 import com.android.cts.tradefed.testtype.Abi;
 import com.android.cts.tradefed.testtype.CtsTestTest;
+import com.android.cts.tradefed.testtype.DeqpCapabilityCacheTest;
 import com.android.cts.tradefed.testtype.DeqpTestRunnerTest;
+import com.android.cts.tradefed.testtype.GeeTestResultParserTest;
 import com.android.cts.tradefed.testtype.GeeTestTest;
 import com.android.cts.tradefed.testtype.JarHostTestTest;
 import com.android.cts.tradefed.testtype.TestFilterTest;
@@ -61,11 +63,14 @@ public class UnitTests extends TestSuite {
 
         // testtype package
         addTestSuite(CtsTestTest.class);
+        addTestSuite(DeqpCapabilityCacheTest.class);
         addTestSuite(DeqpTestRunnerTest.class);
+        addTestSuite(GeeTestResultParserTest.class);
         addTestSuite(GeeTestTest.class);
         addTestSuite(JarHostTestTest.class);
         addTestSuite(TestFilterTest.class);
         addTestSuite(TestPackageDefTest.class);
+        addTestSuite(TestPackageIndexTest.class);
         addTestSuite(TestPackageXmlParserTest.class);
         addTestSuite(TestPlanTest.class);
         addTestSuite(WrappedGTestResultParserTest.class);
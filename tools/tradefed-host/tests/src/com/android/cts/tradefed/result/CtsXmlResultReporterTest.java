@@ -167,6 +167,33 @@ public class CtsXmlResultReporterTest extends TestCase {
         EasyMock.verify(mMockBuild);
     }
 
+    /**
+     * Test that the test runs of the shards of a package, reported under the same id, are
+     * merged into one package result.
+     */
+    public void testShardedPackageMerged() {
+        Map<String, String> emptyMap = Collections.emptyMap();
+        final String runId = AbiUtils.createId(UnitTests.ABI.getName(), "run");
+        final TestIdentifier testId1 = new TestIdentifier("dEQP-GLES3.group1", "case1");
+        final TestIdentifier testId2 = new TestIdentifier("dEQP-GLES3.group2", "case2");
+        EasyMock.replay(mMockBuild);
+        mResultReporter.invocationStarted(mMockBuild);
+        for (TestIdentifier testId : new TestIdentifier[] {testId1, testId2}) {
+            mResultReporter.testRunStarted(runId, 1);
+            mResultReporter.testStarted(testId);
+            mResultReporter.testEnded(testId, emptyMap);
+            mResultReporter.testRunEnded(3000, emptyMap);
+        }
+        mResultReporter.invocationEnded(1);
+        String output = getOutput();
+        assertTrue(output.contains(
+              "<Summary failed=\"0\" notExecuted=\"0\" timeout=\"0\" pass=\"2\" />"));
+        assertEquals(output.indexOf("<TestPackage "), output.lastIndexOf("<TestPackage "));
+        assertTrue(output.contains("<Test name=\"case1\" result=\"pass\""));
+        assertTrue(output.contains("<Test name=\"case2\" result=\"pass\""));
+        EasyMock.verify(mMockBuild);
+    }
+
     /**
      * A simple test to ensure expected output is generated for test run with a single failed test.
      */
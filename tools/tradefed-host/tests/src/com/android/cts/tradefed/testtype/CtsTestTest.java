@@ -415,6 +415,63 @@ public class CtsTestTest extends TestCase {
         assertEquals("", actual);
     }
 
+    /**
+     * Test {@link CtsTest#getShardTestPackages} splits dEQP packages over all shards and assigns
+     * the other packages round robin.
+     */
+    public void testGetShardTestPackages_splitsDeqpPackages() {
+        List<TestIdentifier> deqpTests = new ArrayList<>();
+        Map<TestIdentifier, List<Map<String, String>>> instances = new HashMap<>();
+        Map<String, String> instanceArgs = new HashMap<>();
+        instanceArgs.put("glconfig", "rgba8888d24s8");
+        instanceArgs.put("rotation", "unspecified");
+        instanceArgs.put("surfacetype", "window");
+        for (int i = 0; i < 6; i++) {
+            TestIdentifier test = new TestIdentifier("dEQP-GLES3.group" + (i % 3), "case" + i);
+            deqpTests.add(test);
+            instances.put(test, Arrays.asList(instanceArgs));
+        }
+        DeqpTestRunner deqpTest = new DeqpTestRunner("dEQP-GLES3", "dEQP-GLES3", deqpTests,
+                instances);
+        deqpTest.setAbi(UnitTests.ABI);
+        ITestPackageDef deqpDef = EasyMock.createMock(ITestPackageDef.class);
+        EasyMock.expect(deqpDef.getTests()).andStubReturn(deqpTests);
+
+        List<CtsTest.TestPackage> testPackages = new ArrayList<>();
+        testPackages.add(new CtsTest.TestPackage(deqpDef, deqpTest));
+        EasyMock.expect(mMockPackageDef.getTests()).andStubReturn(TEST_IDENTIFIER_LIST);
+        for (int i = 0; i < 3; i++) {
+            testPackages.add(new CtsTest.TestPackage(mMockPackageDef, mMockTest));
+        }
+        EasyMock.replay(deqpDef, mMockPackageDef);
+
+        List<CtsTest.TestPackage> shard0 = CtsTest.getShardTestPackages(testPackages, 0, 2);
+        List<CtsTest.TestPackage> shard1 = CtsTest.getShardTestPackages(testPackages, 1, 2);
+        assertEquals(3, shard0.size());
+        assertEquals(2, shard1.size());
+        assertSame(testPackages.get(1), shard0.get(1));
+        assertSame(testPackages.get(3), shard0.get(2));
+        assertSame(testPackages.get(2), shard1.get(1));
+
+        // each shard runs its own part of the dEQP package, reported under the package id
+        Set<TestIdentifier> shardTests = new HashSet<>();
+        for (CtsTest.TestPackage deqpPart : Arrays.asList(shard0.get(0), shard1.get(0))) {
+            assertSame(deqpDef, deqpPart.getPackageDef());
+            assertTrue(deqpPart.getTestForPackage() instanceof DeqpTestRunner);
+            assertNotSame(deqpTest, deqpPart.getTestForPackage());
+            assertEquals(deqpPart.getKnownTests(), new ArrayList<>(
+                    ((DeqpTestRunner) deqpPart.getTestForPackage()).getRemainingTests()));
+            for (TestIdentifier test : deqpPart.getKnownTests()) {
+                assertTrue(shardTests.add(test));
+            }
+        }
+        assertEquals(new HashSet<>(deqpTests), shardTests);
+
+        // without sharding the package runs as a whole
+        List<CtsTest.TestPackage> unsharded = CtsTest.getShardTestPackages(testPackages, 0, 1);
+        assertEquals(testPackages, unsharded);
+    }
+
     private void replayMocks(Object... mocks) {
         EasyMock.replay(mMockRepo, mMockPlan, mMockDevice, mMockPackageDef, mMockListener, mMockTest);
         EasyMock.replay(mocks);
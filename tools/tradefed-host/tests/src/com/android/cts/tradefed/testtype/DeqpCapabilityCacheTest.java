@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cts.tradefed.testtype;
+
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.util.FileUtil;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Unit tests for {@link DeqpCapabilityCache}.
+ */
+public class DeqpCapabilityCacheTest extends TestCase {
+
+    private static final String ABI = "armeabi-v7a";
+    private static final String CONFIG = "--deqp-gl-config-name=rgba8888d24s8";
+    private static final String VERSION = "24";
+
+    private File mStoreDir;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mStoreDir = FileUtil.createTempDir("deqp-capabilities");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mStoreDir);
+        super.tearDown();
+    }
+
+    public void testRenderConfig() {
+        DeqpCapabilityCache cache = new DeqpCapabilityCache(null);
+        assertNull(cache.isSupportedRenderConfig(ABI, CONFIG));
+        cache.setSupportedRenderConfig(ABI, CONFIG, false);
+        assertEquals(Boolean.FALSE, cache.isSupportedRenderConfig(ABI, CONFIG));
+        // answers are kept per ABI
+        assertNull(cache.isSupportedRenderConfig("arm64-v8a", CONFIG));
+    }
+
+    public void testDeviceFeatures() {
+        DeqpCapabilityCache cache = new DeqpCapabilityCache(null);
+        assertNull(cache.getDeviceFeatures());
+        Set<String> features = new HashSet<>(Arrays.asList("android.hardware.screen.portrait",
+                "android.hardware.screen.landscape"));
+        cache.setDeviceFeatures(features);
+        assertEquals(features, cache.getDeviceFeatures());
+        cache.setDeviceFeatures(new HashSet<String>());
+        assertTrue(cache.getDeviceFeatures().isEmpty());
+    }
+
+    public void testGetCache_sharedPerFingerprint() throws Exception {
+        ITestDevice device = createDevice("vendor/product/device:7.0/ID/1:user/release-keys");
+        ITestDevice sameBuildDevice =
+                createDevice("vendor/product/device:7.0/ID/1:user/release-keys");
+        ITestDevice otherBuildDevice =
+                createDevice("vendor/product/device:7.0/ID/2:user/release-keys");
+
+        DeqpCapabilityCache cache = DeqpCapabilityCache.getCache(device, VERSION, mStoreDir);
+        assertSame(cache, DeqpCapabilityCache.getCache(sameBuildDevice, VERSION, mStoreDir));
+        assertNotSame(cache,
+                DeqpCapabilityCache.getCache(otherBuildDevice, VERSION, mStoreDir));
+    }
+
+    public void testGetCache_perPackageVersion() throws Exception {
+        String fingerprint = "vendor/product/device:7.0/ID/3:user/release-keys";
+        DeqpCapabilityCache cache =
+                DeqpCapabilityCache.getCache(createDevice(fingerprint), VERSION, mStoreDir);
+        cache.setSupportedRenderConfig(ABI, CONFIG, true);
+        // an updated dEQP package on the same build queries the device again
+        DeqpCapabilityCache updatedCache =
+                DeqpCapabilityCache.getCache(createDevice(fingerprint), "25", mStoreDir);
+        assertNotSame(cache, updatedCache);
+        assertNull(updatedCache.isSupportedRenderConfig(ABI, CONFIG));
+    }
+
+    public void testGetCache_noPackageVersion() throws Exception {
+        String fingerprint = "vendor/product/device:7.0/ID/4:user/release-keys";
+        DeqpCapabilityCache cache = DeqpCapabilityCache.getCache(createDevice(fingerprint),
+                (String) null, mStoreDir);
+        cache.setSupportedRenderConfig(ABI, CONFIG, true);
+        assertNull(DeqpCapabilityCache.getCache(createDevice(fingerprint), (String) null,
+                mStoreDir).isSupportedRenderConfig(ABI, CONFIG));
+        // an APK that does not exist has no version either
+        assertNull(DeqpCapabilityCache.getCache(createDevice(fingerprint),
+                new File(mStoreDir, "missing.apk"), mStoreDir)
+                .isSupportedRenderConfig(ABI, CONFIG));
+        assertEquals(0, mStoreDir.list().length);
+    }
+
+    public void testGetCache_noFingerprint() throws Exception {
+        DeqpCapabilityCache cache =
+                DeqpCapabilityCache.getCache(createDevice(null), VERSION, mStoreDir);
+        cache.setSupportedRenderConfig(ABI, CONFIG, true);
+        assertNull(DeqpCapabilityCache.getCache(createDevice(null), VERSION, mStoreDir)
+                .isSupportedRenderConfig(ABI, CONFIG));
+        assertEquals(0, mStoreDir.list().length);
+    }
+
+    public void testStore() throws Exception {
+        File file = new File(mStoreDir, "capabilities.properties");
+        DeqpCapabilityCache cache = new DeqpCapabilityCache(file);
+        cache.setSupportedRenderConfig(ABI, CONFIG, true);
+        cache.setDeviceFeatures(new HashSet<>(Arrays.asList("android.hardware.screen.portrait")));
+
+        // a later session reads the answers back
+        DeqpCapabilityCache loaded = new DeqpCapabilityCache(file);
+        assertEquals(Boolean.TRUE, loaded.isSupportedRenderConfig(ABI, CONFIG));
+        assertEquals(cache.getDeviceFeatures(), loaded.getDeviceFeatures());
+        assertEquals(1, mStoreDir.list().length);
+    }
+
+    private static ITestDevice createDevice(String fingerprint) throws Exception {
+        ITestDevice device = EasyMock.createMock(ITestDevice.class);
+        EasyMock.expect(device.getProperty("ro.build.fingerprint")).andReturn(fingerprint)
+                .anyTimes();
+        EasyMock.replay(device);
+        return device;
+    }
+}
@@ -25,6 +25,7 @@ import com.android.ddmlib.testrunner.TestIdentifier;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.testtype.IRemoteTest;
 import com.android.tradefed.util.IRunUtil;
 import com.android.tradefed.util.RunInterruptedException;
 
@@ -36,10 +37,13 @@ import org.easymock.IMocksControl;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -107,6 +111,44 @@ public class DeqpTestRunnerTest extends TestCase {
         }
     };
 
+    private static class StubClock implements DeqpTestRunner.IClock {
+        private final long[] mTimes;
+        private int mNextTime = 0;
+
+        public StubClock(long... times) {
+            mTimes = times;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public long currentTimeMillis() {
+            return mTimes[mNextTime++];
+        }
+    }
+
+    private static String getPassingBatchOutput(String... testPaths) {
+        final StringBuilder output = new StringBuilder();
+        output.append("INSTRUMENTATION_STATUS: dEQP-EventType=BeginSession\r\n"
+                + "INSTRUMENTATION_STATUS_CODE: 0\r\n");
+        for (String testPath : testPaths) {
+            output.append("INSTRUMENTATION_STATUS: dEQP-EventType=BeginTestCase\r\n"
+                    + "INSTRUMENTATION_STATUS: dEQP-BeginTestCase-TestCasePath=" + testPath + "\r\n"
+                    + "INSTRUMENTATION_STATUS_CODE: 0\r\n"
+                    + "INSTRUMENTATION_STATUS: dEQP-TestCaseResult-Code=Pass\r\n"
+                    + "INSTRUMENTATION_STATUS: dEQP-TestCaseResult-Details=Pass\r\n"
+                    + "INSTRUMENTATION_STATUS: dEQP-EventType=TestCaseResult\r\n"
+                    + "INSTRUMENTATION_STATUS_CODE: 0\r\n"
+                    + "INSTRUMENTATION_STATUS: dEQP-EventType=EndTestCase\r\n"
+                    + "INSTRUMENTATION_STATUS_CODE: 0\r\n");
+        }
+        output.append("INSTRUMENTATION_STATUS: dEQP-EventType=EndSession\r\n"
+                + "INSTRUMENTATION_STATUS_CODE: 0\r\n"
+                + "INSTRUMENTATION_CODE: 0\r\n");
+        return output.toString();
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -547,6 +589,418 @@ public class DeqpTestRunnerTest extends TestCase {
         EasyMock.verify(mockDevice, mockIDevice);
     }
 
+    /**
+     * Test that the batch size limit adapts to the observed launch overhead and that the batch
+     * statistics are reported as run metrics.
+     */
+    public void testRun_adaptiveBatchSize() throws Exception {
+        final TestIdentifier[] testIds = {
+                new TestIdentifier("dEQP-GLES3.info", "vendor"),
+                new TestIdentifier("dEQP-GLES3.info", "renderer"),
+                new TestIdentifier("dEQP-GLES3.info", "version"),
+        };
+
+        ITestDevice mockDevice = EasyMock.createMock(ITestDevice.class);
+        ITestInvocationListener mockListener
+                = EasyMock.createStrictMock(ITestInvocationListener.class);
+        IDevice mockIDevice = EasyMock.createMock(IDevice.class);
+
+        Collection<TestIdentifier> tests = new ArrayList<TestIdentifier>();
+        Map<TestIdentifier, List<Map<String, String>>> instances = new HashMap<>();
+
+        for (TestIdentifier id : testIds) {
+            tests.add(id);
+            instances.put(id, DEFAULT_INSTANCE_ARGS);
+        }
+
+        DeqpTestRunner deqpTest = new DeqpTestRunner(NAME, NAME, tests, instances);
+        deqpTest.setAbi(UnitTests.ABI);
+        deqpTest.setBatchSizePolicy(new DeqpTestRunner.BatchSizePolicy(2));
+        // batch start, first test case begin and batch end of both batches. Launching takes a
+        // second and the cases 5 ms each, so the batches should grow.
+        deqpTest.setClock(new StubClock(0, 1000, 1010, 2000, 3000, 3005));
+
+        int version = 3 << 16;
+        EasyMock.expect(mockDevice.getProperty("ro.opengles.version"))
+                .andReturn(Integer.toString(version)).atLeastOnce();
+
+        EasyMock.expect(mockDevice.uninstallPackage(EasyMock.eq(DEQP_ONDEVICE_PKG))).andReturn("")
+                .once();
+        EasyMock.expect(mockDevice.installPackage(EasyMock.<File>anyObject(),
+                EasyMock.eq(true), EasyMock.eq(AbiUtils.createAbiFlag(UnitTests.ABI.getName()))))
+                .andReturn(null).once();
+
+        expectRenderConfigQuery(mockDevice, 3, 0);
+
+        String commandLine = String.format(
+                "--deqp-caselist-file=%s --deqp-gl-config-name=rgba8888d24s8 "
+                + "--deqp-screen-rotation=unspecified "
+                + "--deqp-surface-type=window "
+                + "--deqp-log-images=disable "
+                + "--deqp-watchdog=enable",
+                CASE_LIST_FILE_NAME);
+
+        runInstrumentationLineAndAnswer(mockDevice, mockIDevice,
+                "{dEQP-GLES3{info{vendor,renderer}}}", commandLine,
+                getPassingBatchOutput("dEQP-GLES3.info.vendor", "dEQP-GLES3.info.renderer"));
+        runInstrumentationLineAndAnswer(mockDevice, mockIDevice,
+                "{dEQP-GLES3{info{version}}}", commandLine,
+                getPassingBatchOutput("dEQP-GLES3.info.version"));
+
+        mockListener.testRunStarted(ID, testIds.length);
+        EasyMock.expectLastCall().once();
+
+        for (TestIdentifier id : testIds) {
+            mockListener.testStarted(EasyMock.eq(id));
+            EasyMock.expectLastCall().once();
+
+            mockListener.testEnded(EasyMock.eq(id), EasyMock.<Map<String, String>>notNull());
+            EasyMock.expectLastCall().once();
+        }
+
+        Map<String, String> metrics = new HashMap<>();
+        metrics.put("batch-count", "2");
+        metrics.put("crashed-batch-count", "0");
+        metrics.put("case-count", "3");
+        metrics.put("launch-overhead-ms", "2000");
+        metrics.put("execution-ms", "15");
+        metrics.put("batch-size-limit", "8");
+        mockListener.testRunEnded(EasyMock.anyLong(), EasyMock.eq(metrics));
+        EasyMock.expectLastCall().once();
+
+        EasyMock.expect(mockDevice.uninstallPackage(EasyMock.eq(DEQP_ONDEVICE_PKG))).andReturn("")
+                .once();
+
+        EasyMock.replay(mockDevice, mockIDevice);
+        EasyMock.replay(mockListener);
+
+        deqpTest.setDevice(mockDevice);
+        deqpTest.setBuildHelper(new StubCtsBuildHelper());
+        deqpTest.run(mockListener);
+
+        EasyMock.verify(mockListener);
+        EasyMock.verify(mockDevice, mockIDevice);
+    }
+
+    /**
+     * Test that the batch size limit grows only while the launch overhead dominates.
+     */
+    public void testBatchSizePolicy_growsWhileOverheadDominates() {
+        DeqpTestRunner.BatchSizePolicy policy = new DeqpTestRunner.BatchSizePolicy(100);
+
+        // 1 s launch, 100 cases in 1 s: overhead is half of the batch
+        policy.recordBatch(100, 100, 1000, 1000, false);
+        assertEquals(200, policy.getBatchSizeLimit());
+
+        // 1 s launch, 200 cases in 200 s: overhead is well below the target
+        policy.recordBatch(200, 200, 1000, 200000, false);
+        assertEquals(200, policy.getBatchSizeLimit());
+    }
+
+    /**
+     * Test that a crash of a full-size batch halves the limit, a crash during bisection does not
+     * and that the limit does not grow again right after crashes.
+     */
+    public void testBatchSizePolicy_shrinksAfterCrash() {
+        DeqpTestRunner.BatchSizePolicy policy = new DeqpTestRunner.BatchSizePolicy(1000);
+
+        policy.recordBatch(1000, 400, 1000, 4000, true);
+        assertEquals(500, policy.getBatchSizeLimit());
+
+        // bisecting the remainder of the crashed batch
+        policy.recordBatch(100, 50, 1000, 500, true);
+        assertEquals(500, policy.getBatchSizeLimit());
+
+        // overhead dominates, but the batches crashed recently
+        policy.recordBatch(500, 500, 1000, 50, false);
+        assertEquals(500, policy.getBatchSizeLimit());
+
+        assertEquals("3", policy.getMetrics().get("batch-count"));
+        assertEquals("2", policy.getMetrics().get("crashed-batch-count"));
+        assertEquals("950", policy.getMetrics().get("case-count"));
+    }
+
+    /**
+     * Test that groups are kept together and the parts are balanced by the instance counts.
+     */
+    public void testPartitionTests_balancesByInstanceCount() {
+        List<TestIdentifier> tests = new ArrayList<>();
+        Map<TestIdentifier, Integer> instanceCounts = new HashMap<>();
+        int[] groupInstanceCounts = {5, 3, 2};
+        for (int groupNdx = 0; groupNdx < groupInstanceCounts.length; ++groupNdx) {
+            for (int i = 0; i < 4; ++i) {
+                TestIdentifier id = new TestIdentifier("dEQP-GLES3.group" + groupNdx, "case" + i);
+                tests.add(id);
+                instanceCounts.put(id, groupInstanceCounts[groupNdx]);
+            }
+        }
+
+        List<List<TestIdentifier>> parts = DeqpTestRunner.partitionTests(tests, instanceCounts,
+                2);
+        assertEquals(2, parts.size());
+        assertEquals(tests.subList(0, 4), parts.get(0));
+        assertEquals(tests.subList(4, 12), parts.get(1));
+    }
+
+    /**
+     * Test that a group longer than a part is cut into consecutive pieces and that test order
+     * is kept within the parts.
+     */
+    public void testPartitionTests_splitsLongGroup() {
+        List<TestIdentifier> tests = new ArrayList<>();
+        Map<TestIdentifier, Integer> instanceCounts = new HashMap<>();
+        for (int i = 0; i < 6; ++i) {
+            TestIdentifier id = new TestIdentifier("dEQP-GLES3.a", "case" + i);
+            tests.add(id);
+            instanceCounts.put(id, 2);
+        }
+        TestIdentifier other = new TestIdentifier("dEQP-GLES3.b", "case0");
+        tests.add(other);
+        instanceCounts.put(other, 2);
+
+        List<List<TestIdentifier>> parts = DeqpTestRunner.partitionTests(tests, instanceCounts,
+                3);
+        assertEquals(3, parts.size());
+        int numTests = 0;
+        for (List<TestIdentifier> part : parts) {
+            numTests += part.size();
+            for (int i = 1; i < part.size(); ++i) {
+                assertTrue(tests.indexOf(part.get(i - 1)) < tests.indexOf(part.get(i)));
+            }
+            assertTrue(part.size() <= 3);
+        }
+        assertEquals(tests.size(), numTests);
+    }
+
+    /**
+     * Test that split creates the requested shards under the same id and does not split small
+     * test lists.
+     */
+    public void testSplit() {
+        Collection<TestIdentifier> tests = new ArrayList<TestIdentifier>();
+        Map<TestIdentifier, List<Map<String, String>>> instances = new HashMap<>();
+        for (int i = 0; i < 10; ++i) {
+            TestIdentifier id = new TestIdentifier("dEQP-GLES3.group" + (i % 3), "case" + i);
+            tests.add(id);
+            instances.put(id, DEFAULT_INSTANCE_ARGS);
+        }
+
+        DeqpTestRunner deqpTest = new DeqpTestRunner(NAME, NAME, tests, instances);
+        deqpTest.setAbi(UnitTests.ABI);
+        assertNull(deqpTest.split());
+
+        deqpTest.setShardCount(3);
+        Collection<IRemoteTest> shards = deqpTest.split();
+        assertEquals(3, shards.size());
+        Set<TestIdentifier> shardTests = new HashSet<>();
+        for (IRemoteTest shard : shards) {
+            assertTrue(shard instanceof DeqpTestRunner);
+            shardTests.addAll(((DeqpTestRunner) shard).getRemainingTests());
+        }
+        assertEquals(new HashSet<>(tests), shardTests);
+
+        deqpTest.setShardCount(1);
+        assertNull(deqpTest.split());
+    }
+
+    /**
+     * Test that render config support and device features are taken from the shared capability
+     * cache instead of querying the device.
+     */
+    public void testRun_capabilityCacheHit() throws Exception {
+        final TestIdentifier testId = new TestIdentifier("dEQP-GLES3.info", "version");
+        final String commandLine = "--deqp-gl-config-name=rgba8888d24s8 "
+                + "--deqp-screen-rotation=90 "
+                + "--deqp-surface-type=window";
+
+        Map<String,String> config = new HashMap<>();
+        config.put("glconfig", "rgba8888d24s8");
+        config.put("rotation", "90");
+        config.put("surfacetype", "window");
+
+        Collection<TestIdentifier> tests = new ArrayList<TestIdentifier>();
+        tests.add(testId);
+        Map<TestIdentifier, List<Map<String, String>>> instances = new HashMap<>();
+        instances.put(testId, new ArrayList<Map<String,String>>());
+        instances.get(testId).add(config);
+
+        DeqpCapabilityCache cache = new DeqpCapabilityCache(null);
+        cache.setDeviceFeatures(new HashSet<String>(Arrays.asList(
+                DeqpTestRunner.FEATURE_LANDSCAPE, DeqpTestRunner.FEATURE_PORTRAIT)));
+        cache.setSupportedRenderConfig(UnitTests.ABI.getName(), commandLine
+                + " --deqp-gl-major-version=3 --deqp-gl-minor-version=0", true);
+
+        ITestDevice mockDevice = EasyMock.createMock(ITestDevice.class);
+        ITestInvocationListener mockListener
+                = EasyMock.createStrictMock(ITestInvocationListener.class);
+        IDevice mockIDevice = EasyMock.createMock(IDevice.class);
+
+        DeqpTestRunner deqpTest = new DeqpTestRunner(NAME, NAME, tests, instances);
+        deqpTest.setAbi(UnitTests.ABI);
+        deqpTest.setCapabilityCache(cache);
+
+        int version = 3 << 16;
+        EasyMock.expect(mockDevice.getProperty("ro.opengles.version"))
+                .andReturn(Integer.toString(version)).atLeastOnce();
+
+        EasyMock.expect(mockDevice.uninstallPackage(EasyMock.eq(DEQP_ONDEVICE_PKG))).andReturn("")
+                .times(2);
+        EasyMock.expect(mockDevice.installPackage(EasyMock.<File>anyObject(),
+                EasyMock.eq(true), EasyMock.eq(AbiUtils.createAbiFlag(UnitTests.ABI.getName()))))
+                .andReturn(null).once();
+
+        // no feature or render config queries
+        runInstrumentationLineAndAnswer(mockDevice, mockIDevice, "{dEQP-GLES3{info{version}}}",
+                "--deqp-caselist-file=" + CASE_LIST_FILE_NAME + " " + commandLine
+                + " --deqp-log-images=disable --deqp-watchdog=enable",
+                getPassingBatchOutput("dEQP-GLES3.info.version"));
+
+        mockListener.testRunStarted(ID, 1);
+        EasyMock.expectLastCall().once();
+        mockListener.testStarted(EasyMock.eq(testId));
+        EasyMock.expectLastCall().once();
+        mockListener.testEnded(EasyMock.eq(testId), EasyMock.<Map<String, String>>notNull());
+        EasyMock.expectLastCall().once();
+        mockListener.testRunEnded(EasyMock.anyLong(), EasyMock.<Map<String, String>>notNull());
+        EasyMock.expectLastCall().once();
+
+        EasyMock.replay(mockDevice, mockIDevice);
+        EasyMock.replay(mockListener);
+
+        deqpTest.setDevice(mockDevice);
+        deqpTest.setBuildHelper(new StubCtsBuildHelper());
+        deqpTest.run(mockListener);
+
+        EasyMock.verify(mockListener);
+        EasyMock.verify(mockDevice, mockIDevice);
+    }
+
+    /**
+     * Test that all render configs are queried with one shell command when prefetching, and
+     * that the answers are stored in the shared capability cache.
+     */
+    public void testRun_prefetchCapabilities() throws Exception {
+        final TestIdentifier testId = new TestIdentifier("dEQP-GLES3.info", "version");
+        final String[] commandLines = {
+                "--deqp-gl-config-name=rgba8888d24s8 "
+                + "--deqp-screen-rotation=unspecified "
+                + "--deqp-surface-type=window",
+                "--deqp-gl-config-name=rgba8888d24s8 "
+                + "--deqp-screen-rotation=90 "
+                + "--deqp-surface-type=window",
+                "--deqp-gl-config-name=rgb565d16s0 "
+                + "--deqp-screen-rotation=unspecified "
+                + "--deqp-surface-type=window",
+        };
+        final String versionCommandLine = " --deqp-gl-major-version=3 --deqp-gl-minor-version=0";
+
+        Collection<TestIdentifier> tests = new ArrayList<TestIdentifier>();
+        tests.add(testId);
+        Map<TestIdentifier, List<Map<String, String>>> instances = new HashMap<>();
+        instances.put(testId, new ArrayList<Map<String,String>>());
+        for (String[] config : new String[][] {
+                {"rgba8888d24s8", "unspecified"},
+                {"rgba8888d24s8", "90"},
+                {"rgb565d16s0", "unspecified"}}) {
+            Map<String,String> instance = new HashMap<>();
+            instance.put("glconfig", config[0]);
+            instance.put("rotation", config[1]);
+            instance.put("surfacetype", "window");
+            instances.get(testId).add(instance);
+        }
+
+        DeqpCapabilityCache cache = new DeqpCapabilityCache(null);
+
+        ITestDevice mockDevice = EasyMock.createMock(ITestDevice.class);
+        ITestInvocationListener mockListener
+                = EasyMock.createStrictMock(ITestInvocationListener.class);
+        IDevice mockIDevice = EasyMock.createMock(IDevice.class);
+
+        DeqpTestRunner deqpTest = new DeqpTestRunner(NAME, NAME, tests, instances);
+        deqpTest.setAbi(UnitTests.ABI);
+        deqpTest.setCapabilityCache(cache);
+        deqpTest.setPrefetchCapabilities(true);
+
+        int version = 3 << 16;
+        EasyMock.expect(mockDevice.getProperty("ro.opengles.version"))
+                .andReturn(Integer.toString(version)).atLeastOnce();
+
+        EasyMock.expect(mockDevice.uninstallPackage(EasyMock.eq(DEQP_ONDEVICE_PKG))).andReturn("")
+                .times(2);
+        EasyMock.expect(mockDevice.installPackage(EasyMock.<File>anyObject(),
+                EasyMock.eq(true), EasyMock.eq(AbiUtils.createAbiFlag(UnitTests.ABI.getName()))))
+                .andReturn(null).once();
+
+        EasyMock.expect(mockDevice.executeShellCommand("pm list features")).andReturn(ALL_FEATURES)
+                .once();
+
+        final StringBuilder prefetchCommand = new StringBuilder();
+        for (String commandLine : commandLines) {
+            if (prefetchCommand.length() != 0) {
+                prefetchCommand.append(" ; ");
+            }
+            prefetchCommand.append(String.format(
+                    "am instrument %s -w -e deqpQueryType renderConfigSupported -e deqpCmdLine "
+                        + "\"%s\" %s",
+                    AbiUtils.createAbiFlag(UnitTests.ABI.getName()),
+                    commandLine + versionCommandLine, QUERY_INSTRUMENTATION_NAME));
+        }
+        final String prefetchOutput = "INSTRUMENTATION_RESULT: Supported=Yes\r\n"
+                + "INSTRUMENTATION_CODE: 0\r\n"
+                + "INSTRUMENTATION_RESULT: Supported=Yes\r\n"
+                + "INSTRUMENTATION_CODE: 0\r\n"
+                + "INSTRUMENTATION_RESULT: Supported=No\r\n"
+                + "INSTRUMENTATION_CODE: 0\r\n";
+
+        mockDevice.executeShellCommand(EasyMock.eq(prefetchCommand.toString()),
+                EasyMock.<IShellOutputReceiver>notNull());
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() {
+                IShellOutputReceiver receiver
+                        = (IShellOutputReceiver)EasyMock.getCurrentArguments()[1];
+
+                receiver.addOutput(prefetchOutput.getBytes(), 0, prefetchOutput.length());
+                receiver.flush();
+
+                return null;
+            }
+        }).once();
+
+        // no further capability queries before the runs
+        for (int i = 0; i < 2; i++) {
+            runInstrumentationLineAndAnswer(mockDevice, mockIDevice,
+                    "{dEQP-GLES3{info{version}}}",
+                    "--deqp-caselist-file=" + CASE_LIST_FILE_NAME + " " + commandLines[i]
+                    + " --deqp-log-images=disable --deqp-watchdog=enable",
+                    getPassingBatchOutput("dEQP-GLES3.info.version"));
+        }
+
+        mockListener.testRunStarted(ID, 1);
+        EasyMock.expectLastCall().once();
+        mockListener.testStarted(EasyMock.eq(testId));
+        EasyMock.expectLastCall().once();
+        mockListener.testEnded(EasyMock.eq(testId), EasyMock.<Map<String, String>>notNull());
+        EasyMock.expectLastCall().once();
+        mockListener.testRunEnded(EasyMock.anyLong(), EasyMock.<Map<String, String>>notNull());
+        EasyMock.expectLastCall().once();
+
+        EasyMock.replay(mockDevice, mockIDevice);
+        EasyMock.replay(mockListener);
+
+        deqpTest.setDevice(mockDevice);
+        deqpTest.setBuildHelper(new StubCtsBuildHelper());
+        deqpTest.run(mockListener);
+
+        EasyMock.verify(mockListener);
+        EasyMock.verify(mockDevice, mockIDevice);
+
+        assertEquals(Boolean.TRUE, cache.isSupportedRenderConfig(UnitTests.ABI.getName(),
+                commandLines[1] + versionCommandLine));
+        assertEquals(Boolean.FALSE, cache.isSupportedRenderConfig(UnitTests.ABI.getName(),
+                commandLines[2] + versionCommandLine));
+    }
+
     /**
      * Test running a unexecutable test.
      */
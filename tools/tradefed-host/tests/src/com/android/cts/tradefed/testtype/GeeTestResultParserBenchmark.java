@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.ddmlib.testrunner.ITestRunListener;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replays recorded gtest output through {@link GeeTestResultParser} and
+ * {@link WrappedGTestResultParser} and reports the parsing throughput.
+ * <p/>
+ * Usage: GeeTestResultParserBenchmark [--wrapped] [--iterations N] [log-file...]
+ * <p/>
+ * A recorded log is the raw stdout of a gtest binary, or the raw output of the wrapped gtest
+ * instrumentation with --wrapped. Without log files, a synthetic log with a million lines of
+ * test output is replayed.
+ */
+public class GeeTestResultParserBenchmark {
+
+    private static final int BATCH_SIZE = 256;
+
+    public static void main(String[] args) throws IOException {
+        boolean wrapped = false;
+        int iterations = 5;
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if ("--wrapped".equals(args[i])) {
+                wrapped = true;
+            } else if ("--iterations".equals(args[i])) {
+                iterations = Integer.parseInt(args[++i]);
+            } else {
+                readLines(new File(args[i]), lines);
+            }
+        }
+        if (lines.isEmpty()) {
+            createSyntheticLog(lines, wrapped);
+        }
+        ITestRunListener listener = createNullListener();
+        for (int i = 0; i < iterations; i++) {
+            GeeTestResultParser parser = wrapped
+                    ? new WrappedGTestResultParser("benchmark", listener)
+                    : new GeeTestResultParser("benchmark", listener);
+            long start = System.nanoTime();
+            // Feed the lines in batches, as the shell output receiver does.
+            for (int from = 0; from < lines.size(); from += BATCH_SIZE) {
+                List<String> batch = lines.subList(from, Math.min(lines.size(), from + BATCH_SIZE));
+                parser.processNewLines(batch.toArray(new String[batch.size()]));
+            }
+            parser.done();
+            long elapsedNs = System.nanoTime() - start;
+            System.out.printf("Iteration %d: %d lines in %d ms (%.0f lines/s)\n", i, lines.size(),
+                    elapsedNs / 1000000, lines.size() * 1e9 / Math.max(elapsedNs, 1));
+        }
+    }
+
+    private static void readLines(File file, List<String> lines) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void createSyntheticLog(List<String> lines, boolean wrapped) {
+        int tests = 10000;
+        int outputLinesPerTest = 100;
+        String prefix = wrapped ? "INSTRUMENTATION_STATUS: gtest=" : "";
+        lines.add(prefix + String.format("[==========] Running %d tests from 1 test case.", tests));
+        for (int i = 0; i < tests; i++) {
+            lines.add(prefix + String.format("[ RUN      ] BenchmarkTest.Test%d", i));
+            for (int j = 0; j < outputLinesPerTest; j++) {
+                lines.add(String.format("bionic/tests/benchmark_test.cpp:%d: output line %d",
+                        i, j));
+            }
+            lines.add(prefix + String.format("[%s] BenchmarkTest.Test%d (%d ms)",
+                    (i % 10 == 0) ? "  FAILED  " : "       OK ", i, i % 100));
+        }
+        lines.add(prefix + String.format("[==========] %d tests from 1 test case ran. (1 ms total)",
+                tests));
+    }
+
+    private static ITestRunListener createNullListener() {
+        return (ITestRunListener) Proxy.newProxyInstance(
+                ITestRunListener.class.getClassLoader(),
+                new Class<?>[] {ITestRunListener.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        return null;
+                    }
+                });
+    }
+}
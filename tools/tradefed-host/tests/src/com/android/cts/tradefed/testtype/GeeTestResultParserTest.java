@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.ddmlib.testrunner.ITestRunListener;
+import com.android.ddmlib.testrunner.TestIdentifier;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+
+import java.util.Map;
+
+/**
+ * Unit tests for {@link GeeTestResultParser}.
+ */
+public class GeeTestResultParserTest extends TestCase {
+
+    private static final String RUN_ID = "run";
+    private static final String PREFIX = "android.foo.";
+    private static final TestIdentifier TEST1 = new TestIdentifier(PREFIX + "MessageTest", "Test1");
+    private static final TestIdentifier TEST2 = new TestIdentifier(PREFIX + "MessageTest", "Test2");
+
+    private static final String[] OUTPUT = new String[] {
+        "[==========] Running 2 tests from 1 test case.",
+        "[----------] Global test environment set-up.",
+        "[ RUN      ] MessageTest.Test1",
+        "[       OK ] MessageTest.Test1 (1 ms)",
+        "[ RUN      ] MessageTest.Test2",
+        "external/gtest/test/gtest-message_test.cc:67: Failure",
+        "Value of: 5",
+        "[  FAILED  ] MessageTest.Test2 (2 ms)",
+        "[==========] 2 tests from 1 test case ran. (26 ms total)",
+    };
+
+    private ITestRunListener mMockListener;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockListener = EasyMock.createStrictMock(ITestRunListener.class);
+    }
+
+    /**
+     * Test a run with a passing and a failing test.
+     */
+    public void testParse() throws Exception {
+        mMockListener.testRunStarted(RUN_ID, 2);
+        mMockListener.testStarted(TEST1);
+        mMockListener.testEnded(EasyMock.eq(TEST1), EasyMock.<Map<String, String>>notNull());
+        mMockListener.testStarted(TEST2);
+        mMockListener.testFailed(TEST2,
+                "external/gtest/test/gtest-message_test.cc:67: Failure\r\nValue of: 5");
+        mMockListener.testEnded(EasyMock.eq(TEST2), EasyMock.<Map<String, String>>notNull());
+        mMockListener.testRunEnded(EasyMock.eq(26L), EasyMock.<Map<String, String>>notNull());
+        EasyMock.replay(mMockListener);
+
+        GeeTestResultParser parser = new GeeTestResultParser(RUN_ID, mMockListener);
+        parser.setFakePackagePrefix(PREFIX);
+        parser.processNewLines(OUTPUT);
+        parser.done();
+        EasyMock.verify(mMockListener);
+    }
+
+    /**
+     * Test that only the most recent output of a test is captured when it exceeds the limit.
+     */
+    public void testParse_outputCapped() throws Exception {
+        mMockListener.testRunStarted(RUN_ID, 1);
+        mMockListener.testStarted(TEST2);
+        mMockListener.testFailed(TEST2, "... 9 characters truncated ...\r\n4\r\n5");
+        mMockListener.testEnded(EasyMock.eq(TEST2), EasyMock.<Map<String, String>>notNull());
+        mMockListener.testRunEnded(EasyMock.eq(3L), EasyMock.<Map<String, String>>notNull());
+        EasyMock.replay(mMockListener);
+
+        GeeTestResultParser parser = new GeeTestResultParser(RUN_ID, mMockListener);
+        parser.setFakePackagePrefix(PREFIX);
+        parser.setMaxCapturedOutput(4);
+        parser.processNewLines(new String[] {
+            "[==========] Running 1 test from 1 test case.",
+            "[ RUN      ] MessageTest.Test2",
+            "1", "2", "3", "4", "5",
+            "[  FAILED  ] MessageTest.Test2",
+            "[==========] 1 test from 1 test case ran. (3 ms total)",
+        });
+        parser.done();
+        EasyMock.verify(mMockListener);
+    }
+
+    /**
+     * Test that the wrapped parser feeds the gtest part of instrumentation output to the parser.
+     */
+    public void testParse_wrapped() throws Exception {
+        mMockListener.testRunStarted(RUN_ID, 1);
+        mMockListener.testStarted(TEST1);
+        mMockListener.testEnded(EasyMock.eq(TEST1), EasyMock.<Map<String, String>>notNull());
+        mMockListener.testRunEnded(EasyMock.eq(17L), EasyMock.<Map<String, String>>notNull());
+        EasyMock.replay(mMockListener);
+
+        WrappedGTestResultParser parser = new WrappedGTestResultParser(RUN_ID, mMockListener);
+        parser.setFakePackagePrefix(PREFIX);
+        parser.processNewLines(new String[] {
+            "INSTRUMENTATION_STATUS: gtest=[==========] Running 1 test from 1 test case.",
+            "INSTRUMENTATION_STATUS_CODE: 1",
+            "INSTRUMENTATION_STATUS: gtest=[ RUN      ] MessageTest.Test1",
+        });
+        parser.processNewLines(new String[] {
+            "INSTRUMENTATION_STATUS: gtest=[       OK ] MessageTest.Test1 (10 ms)",
+            "INSTRUMENTATION_STATUS: gtest=[==========] 1 test from 1 test case ran. (17 ms total)",
+            "INSTRUMENTATION_CODE: -1",
+        });
+        parser.done();
+        EasyMock.verify(mMockListener);
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.compatibility.common.util.AbiUtils;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.util.FileUtil;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit tests for {@link TestPackageIndex} and its use by {@link TestPackageRepo}.
+ */
+public class TestPackageIndexTest extends TestCase {
+
+    private static final String EXAMPLE_XML =
+        "<TestPackage appNameSpace=\"com.example\" appPackageName=\"android.example\" " +
+        "name=\"CtsExampleTestCases\" runner=\"android.test.InstrumentationTestRunner\">\n" +
+        "    <TestSuite name=\"com\" >\n" +
+        "        <TestSuite name=\"example\" >\n" +
+        "            <TestCase name=\"ExampleTest\" >\n" +
+        "                <Test name=\"testFoo\" timeout=\"5\" />\n" +
+        "                <Test name=\"testInstanced\" >\n" +
+        "                    <TestInstance foo=\"bar\" />\n" +
+        "                    <TestInstance foo=\"baz\" foo2=\"baz2\"/>\n" +
+        "                </Test>\n" +
+        "            </TestCase>\n" +
+        "            <TestCase name=\"SharedTest\" >\n" +
+        "                <Test name=\"testShared\" />\n" +
+        "            </TestCase>\n" +
+        "        </TestSuite>\n" +
+        "    </TestSuite>\n" +
+        "</TestPackage>";
+
+    private static final String HOST_XML =
+        "<TestPackage hostSideOnly=\"true\" appPackageName=\"android.host\" " +
+        "name=\"CtsHostTestCases\" jarPath=\"CtsHostTestCases.jar\">\n" +
+        "    <TestSuite name=\"com\" >\n" +
+        "        <TestSuite name=\"example\" >\n" +
+        "            <TestCase name=\"SharedTest\" >\n" +
+        "                <Test name=\"testShared\" />\n" +
+        "            </TestCase>\n" +
+        "        </TestSuite>\n" +
+        "    </TestSuite>\n" +
+        "</TestPackage>";
+
+    private File mTestCaseDir;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTestCaseDir = FileUtil.createTempDir("test-packages");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mTestCaseDir);
+        super.tearDown();
+    }
+
+    public void testCreate() throws Exception {
+        Map<TestPackageDef, String> xmlFileNames = new IdentityHashMap<>();
+        List<TestPackageDef> defs = new ArrayList<>();
+        for (String xml : Arrays.asList(EXAMPLE_XML, HOST_XML)) {
+            TestPackageXmlParser parser = new TestPackageXmlParser(true);
+            parser.parse(new ByteArrayInputStream(xml.getBytes()));
+            for (TestPackageDef def : parser.getTestPackageDefs()) {
+                xmlFileNames.put(def, def.getName() + ".xml");
+                defs.add(def);
+            }
+        }
+        File indexFile = new File(mTestCaseDir, "index");
+        TestPackageIndex.create(xmlFileNames, 42).write(indexFile);
+        // Writing again replaces the index, and no temporary file is left behind
+        TestPackageIndex.create(xmlFileNames, 42).write(indexFile);
+        for (File file : mTestCaseDir.listFiles()) {
+            assertFalse(file.getName(), file.getName().endsWith(".tmp"));
+        }
+        assertNull(TestPackageIndex.read(indexFile, 43));
+        TestPackageIndex index = TestPackageIndex.read(indexFile, 42);
+        assertNotNull(index);
+        assertEquals(defs.size(), index.getPackageCount());
+        assertEquals(-1, index.findPackage(AbiUtils.createId("x86", "android.unknown")));
+
+        for (TestPackageDef def : defs) {
+            int i = index.findPackage(def.getId());
+            assertEquals(def.getId(), index.getPackageId(i));
+            assertEquals(def.getName() + ".xml", index.getXmlFileName(i));
+            TestPackageDef loaded = index.createTestPackageDef(i);
+            assertEquals(def.getId(), loaded.getId());
+            assertEquals(def.getName(), loaded.getName());
+            assertEquals(def.getAppNameSpace(), loaded.getAppNameSpace());
+            assertEquals(def.getRunner(), loaded.getRunner());
+            assertEquals(def.getTestType(), loaded.getTestType());
+            assertEquals(def.getJarPath(), loaded.getJarPath());
+            assertEquals(def.getAbi().getBitness(), loaded.getAbi().getBitness());
+            assertEquals(def.getTimeout(), loaded.getTimeout());
+            assertEquals(new ArrayList<>(def.getTests()), new ArrayList<>(loaded.getTests()));
+            assertEquals(def.getTestInstanceArguments(), loaded.getTestInstanceArguments());
+        }
+
+        String[] abis = AbiUtils.getAbisSupportedByCompatibility().toArray(new String[0]);
+        assertEquals(abis.length * 2, index.findPackagesForClass("com.example.SharedTest").length);
+        assertEquals(abis.length, index.findPackagesForClass("com.example.ExampleTest").length);
+        assertEquals(0, index.findPackagesForClass("com.example.UnknownTest").length);
+    }
+
+    public void testRepo() throws Exception {
+        FileUtil.writeToFile(EXAMPLE_XML, new File(mTestCaseDir, "CtsExampleTestCases.xml"));
+        TestPackageRepo repo = new TestPackageRepo(mTestCaseDir, false);
+        File indexFile = new File(mTestCaseDir, TestPackageRepo.INDEX_FILE_NAME);
+        assertTrue(indexFile.isFile());
+        long indexModified = indexFile.lastModified();
+
+        // an unchanged directory loads the index
+        TestPackageRepo loadedRepo = new TestPackageRepo(mTestCaseDir, false);
+        assertEquals(indexModified, indexFile.lastModified());
+        assertEquals(repo.getPackageIds(), loadedRepo.getPackageIds());
+        assertEquals(Arrays.asList("android.example"), loadedRepo.getPackageNames());
+        for (String id : repo.getPackageIds()) {
+            ITestPackageDef def = repo.getTestPackage(id);
+            ITestPackageDef loaded = loadedRepo.getTestPackage(id);
+            assertSame(loaded, loadedRepo.getTestPackage(id));
+            assertEquals(new ArrayList<TestIdentifier>(def.getTests()),
+                    new ArrayList<TestIdentifier>(loaded.getTests()));
+        }
+        assertEquals(repo.findPackageIdsForTest("com.example.SharedTest"),
+                loadedRepo.findPackageIdsForTest("com.example.SharedTest"));
+        assertTrue(loadedRepo.findPackageIdsForTest("com.example.UnknownTest").isEmpty());
+
+        // a new package file is picked up
+        FileUtil.writeToFile(HOST_XML, new File(mTestCaseDir, "CtsHostTestCases.xml"));
+        TestPackageRepo newRepo = new TestPackageRepo(mTestCaseDir, false);
+        assertEquals(Arrays.asList("android.example", "android.host"),
+                newRepo.getPackageNames());
+        assertEquals(2, newRepo.getTestPackageDefsByName().size());
+        assertEquals(2 * repo.findPackageIdsForTest("com.example.SharedTest").size(),
+                new TestPackageRepo(mTestCaseDir, false)
+                        .findPackageIdsForTest("com.example.SharedTest").size());
+    }
+}
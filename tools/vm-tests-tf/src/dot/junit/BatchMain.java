@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dot.junit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.net.URL;
+import java.net.URLClassLoader;
+
+/**
+ * Runs the main method of many generated Main_ test classes in one VM.
+ * <p>
+ * Usage: BatchMain &lt;timeout-ms&gt; &lt;budget-ms&gt; &lt;root&gt; &lt;common-path&gt;
+ * &lt;test&gt;...<br>
+ * where a test is a main class name, optionally followed by the ':' separated
+ * jars it depends on. Relative paths are resolved against root.
+ * <p>
+ * Each test gets its own class loader, whose parent is the boot class loader,
+ * so the common path (dexcore.jar and mains.jar) and the test's jars are
+ * loaded again for every test and no static state leaks from one test to the
+ * next. The output of a test is captured; like a test run in its own VM, it
+ * passes if it returns without printing anything. For every test a START line
+ * and then exactly one PASS, FAIL or TIMEOUT line are written to stdout:
+ * <pre>
+ * VMTEST|START|dot.junit.opcodes.nop.Main_testN1
+ * VMTEST|FAIL|dot.junit.opcodes.nop.Main_testN1|escaped output
+ * </pre>
+ * After a timeout, or once the budget is spent, the remaining tests are not
+ * started. A test that crashes the VM leaves a START line without a result.
+ * <p>
+ * Each test runs on a thread of its own with a {@link #STACK_SIZE} stack, the
+ * -Xss32K a test run in its own VM gets, while the VM itself keeps its default
+ * stack size.
+ * <p>
+ * This class is packed into dexcore.jar on its own, so it must not have inner
+ * classes.
+ */
+public class BatchMain implements Runnable {
+
+    public static final String PREFIX = "VMTEST|";
+    public static final String START = "START";
+    public static final String PASS = "PASS";
+    public static final String FAIL = "FAIL";
+    public static final String TIMEOUT = "TIMEOUT";
+    public static final char SEPARATOR = '|';
+
+    /** The stack size of the thread running a test. */
+    public static final long STACK_SIZE = 32 * 1024;
+
+    private final ClassLoader mLoader;
+    private final String mMainClass;
+    private Throwable mError;
+
+    private BatchMain(ClassLoader loader, String mainClass) {
+        mLoader = loader;
+        mMainClass = mainClass;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            System.err.println("usage: BatchMain <timeout-ms> <budget-ms> <root> "
+                    + "<common-path> <test>...");
+            System.exit(2);
+        }
+        String[] tests = new String[args.length - 4];
+        System.arraycopy(args, 4, tests, 0, tests.length);
+        boolean completed = run(Long.parseLong(args[0]), Long.parseLong(args[1]), args[2],
+                args[3], tests, System.out);
+        System.out.flush();
+        if (!completed) {
+            // A timed out test may still be running and may never return.
+            Runtime.getRuntime().halt(1);
+        }
+    }
+
+    /**
+     * Runs the given tests one after the other and writes their status lines to out.
+     *
+     * @return false if a test timed out, true otherwise.
+     */
+    public static boolean run(long timeoutMs, long budgetMs, String root, String commonPath,
+            String[] tests, PrintStream out) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + budgetMs;
+        PrintStream stdout = System.out;
+        PrintStream stderr = System.err;
+        for (String test : tests) {
+            if (System.currentTimeMillis() > deadline) {
+                return true;
+            }
+            int separator = test.indexOf(':');
+            String mainClass = separator < 0 ? test : test.substring(0, separator);
+            String path = separator < 0 ? commonPath
+                    : commonPath + test.substring(separator);
+            out.println(PREFIX + START + SEPARATOR + mainClass);
+            out.flush();
+
+            ByteArrayOutputStream captured = new ByteArrayOutputStream();
+            PrintStream capture = new PrintStream(captured, true);
+            BatchMain task = new BatchMain(createClassLoader(root, path), mainClass);
+            Thread thread = new Thread(null, task, mainClass, STACK_SIZE);
+            thread.setDaemon(true);
+            System.setOut(capture);
+            System.setErr(capture);
+            try {
+                thread.start();
+                thread.join(timeoutMs);
+            } finally {
+                System.setOut(stdout);
+                System.setErr(stderr);
+            }
+            if (thread.isAlive()) {
+                out.println(PREFIX + TIMEOUT + SEPARATOR + mainClass);
+                out.flush();
+                return false;
+            }
+            if (task.mError != null) {
+                // What the VM prints for an uncaught exception.
+                capture.print("Exception in thread \"main\" ");
+                task.mError.printStackTrace(capture);
+            }
+            capture.flush();
+            String output = captured.toString();
+            if (output.length() == 0) {
+                out.println(PREFIX + PASS + SEPARATOR + mainClass);
+            } else {
+                out.println(PREFIX + FAIL + SEPARATOR + mainClass + SEPARATOR + escape(output));
+            }
+            out.flush();
+        }
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void run() {
+        Thread.currentThread().setContextClassLoader(mLoader);
+        try {
+            Class<?> c = Class.forName(mMainClass, true, mLoader);
+            c.getMethod("main", String[].class).invoke(null, (Object) new String[0]);
+        } catch (InvocationTargetException e) {
+            mError = e.getCause();
+        } catch (Throwable t) {
+            mError = t;
+        }
+    }
+
+    /**
+     * Escapes the line breaks of a test's output so it fits on its status line.
+     */
+    public static String escape(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\') {
+                sb.append("\\\\");
+            } else if (c == '\n') {
+                sb.append("\\n");
+            } else if (c == '\r') {
+                sb.append("\\r");
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Reverts {@link #escape}.
+     */
+    public static String unescape(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                char next = s.charAt(++i);
+                sb.append(next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Creates a class loader over the given path whose parent is the boot class
+     * loader: a PathClassLoader on the device, a URLClassLoader on a host VM.
+     */
+    private static ClassLoader createClassLoader(String root, String path) {
+        String[] entries = path.split(":");
+        StringBuilder resolved = new StringBuilder();
+        for (String entry : entries) {
+            if (resolved.length() > 0) {
+                resolved.append(':');
+            }
+            resolved.append(entry.startsWith("/") ? entry : root + "/" + entry);
+        }
+        ClassLoader boot = BatchMain.class.getClassLoader().getParent();
+        try {
+            return (ClassLoader) Class.forName("dalvik.system.PathClassLoader")
+                    .getConstructor(String.class, ClassLoader.class)
+                    .newInstance(resolved.toString(), boot);
+        } catch (ClassNotFoundException e) {
+            // Not running on the device.
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        String[] files = resolved.toString().split(":");
+        URL[] urls = new URL[files.length];
+        try {
+            for (int i = 0; i < files.length; i++) {
+                urls[i] = new File(files[i]).toURI().toURL();
+            }
+        } catch (java.net.MalformedURLException e) {
+            throw new RuntimeException(e);
+        }
+        return new URLClassLoader(urls, null);
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dot.junit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Host side of {@link BatchMain}: runs the tests of a generated host test class
+ * in as few VM invocations as possible and parses their status lines.
+ * <p>
+ * The tests are split into commands short enough for adb. When a VM exits
+ * before reporting all of its tests, the tests it did not start are run again
+ * in a new VM; a test that started without a result, i.e. that crashed the VM
+ * or timed out, has no complete {@link Result} and must be run on its own by
+ * the caller, as must every test if the batch did not start at all.
+ * <p>
+ * A result is handed out once: a test that is asked for again, e.g. because it
+ * is retried, runs on its own. The results of a previous run on the same
+ * device and ABI, as told by the vm-tests.run build attribute of the
+ * invocation, are dropped.
+ * <p>
+ * Batching can be turned off with the vm-tests.batch build attribute. Both are
+ * set per invocation, so invocations on other devices in the same process are
+ * not affected.
+ */
+public class BatchRunner {
+
+    /** Build attribute set to "false" to run every test in its own VM. */
+    public static final String BATCH_ATTRIBUTE = "vm-tests.batch";
+
+    /**
+     * Build attribute set to a new value for every run of the tests, so no results of a
+     * previous run are used.
+     */
+    public static final String RUN_ATTRIBUTE = "vm-tests.run";
+
+    /** Time a single test may take in a batch before its VM is given up. */
+    public static final long TEST_TIMEOUT_MS = 60 * 1000;
+
+    /** Time after which a VM does not start new tests, well below the shell timeout. */
+    public static final long BUDGET_MS = 4 * 60 * 1000;
+
+    /** Keeps commands below the 4k limit of the adb shell service. */
+    static final int MAX_COMMAND_LENGTH = 3500;
+
+    /**
+     * Runs a command on the device and returns its output.
+     */
+    public interface Shell {
+        String execute(String command) throws Exception;
+    }
+
+    /**
+     * The status of one test in a batch.
+     */
+    public static class Result {
+        private final String mStatus;
+        private final StringBuilder mOutput = new StringBuilder();
+
+        Result(String status) {
+            mStatus = status;
+        }
+
+        /**
+         * @return true if the test ran to completion; its output then decides whether it passed.
+         */
+        public boolean isComplete() {
+            return BatchMain.PASS.equals(mStatus) || BatchMain.FAIL.equals(mStatus);
+        }
+
+        /**
+         * @return the output of the test, empty if it passed.
+         */
+        public String getOutput() {
+            return mOutput.toString();
+        }
+
+        /**
+         * @return one of the {@link BatchMain} status names.
+         */
+        public String getStatus() {
+            return mStatus;
+        }
+    }
+
+    private final String mCommandPrefix;
+    private final String mRoot;
+    private final String mCommonPath;
+    private final List<String> mTests;
+    private final Map<String, Map<String, Result>> mResults =
+            new HashMap<String, Map<String, Result>>();
+    // the runs the results are from, by key
+    private final Map<String, String> mRuns = new HashMap<String, String>();
+
+    /**
+     * @param commandPrefix the command that starts a VM with BatchMain as main class.
+     * @param root the folder relative paths are resolved against on the device.
+     * @param commonPath the ':' separated path every test needs.
+     * @param tests the tests, each a main class name optionally followed by the ':'
+     *            separated jars it depends on.
+     */
+    public BatchRunner(String commandPrefix, String root, String commonPath, String[] tests) {
+        mCommandPrefix = commandPrefix;
+        mRoot = root;
+        mCommonPath = commonPath;
+        mTests = Arrays.asList(tests);
+    }
+
+    /**
+     * @param batch the value of the {@link #BATCH_ATTRIBUTE} build attribute, or null.
+     * @return whether tests should be batched at all.
+     */
+    public static boolean isEnabled(String batch) {
+        return !"false".equals(batch);
+    }
+
+    /**
+     * Returns the result of the given main class, running the whole batch the
+     * first time in a run a test of the given key, e.g. a device and ABI, is
+     * asked for.
+     *
+     * @param run the value of the {@link #RUN_ATTRIBUTE} build attribute, or null.
+     * @return the result, or null if the test must be run on its own.
+     */
+    public synchronized Result getResult(String key, String run, String mainClass, Shell shell)
+            throws Exception {
+        if (!mRuns.containsKey(key)
+                || (run == null ? mRuns.get(key) != null : !run.equals(mRuns.get(key)))) {
+            // only the results of this key are dropped, other devices may still use theirs
+            mResults.remove(key);
+            mRuns.put(key, run);
+        }
+        Map<String, Result> results = mResults.get(key);
+        if (results == null) {
+            results = run(shell);
+            mResults.put(key, results);
+        }
+        return results.remove(mainClass);
+    }
+
+    /**
+     * Runs all tests, in as many VMs as needed.
+     *
+     * @return the results by main class name.
+     */
+    public Map<String, Result> run(Shell shell) throws Exception {
+        Map<String, Result> results = new LinkedHashMap<String, Result>();
+        List<String> pending = new ArrayList<String>(mTests);
+        while (!pending.isEmpty()) {
+            String command = getCommands(pending).get(0);
+            Map<String, Result> batch = parse(shell.execute(command));
+            if (batch.isEmpty()) {
+                // The VM did not start a single test, don't try again.
+                break;
+            }
+            for (Iterator<String> it = pending.iterator(); it.hasNext(); ) {
+                String mainClass = getMainClass(it.next());
+                Result result = batch.get(mainClass);
+                if (result != null) {
+                    results.put(mainClass, result);
+                    it.remove();
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Splits the given tests into commands of at most {@link #MAX_COMMAND_LENGTH} characters.
+     */
+    public List<String> getCommands(List<String> tests) {
+        String prefix = String.format("%s %d %d %s %s", mCommandPrefix, TEST_TIMEOUT_MS,
+                BUDGET_MS, mRoot, mCommonPath);
+        List<String> commands = new ArrayList<String>();
+        StringBuilder command = new StringBuilder(prefix);
+        for (String test : tests) {
+            if (command.length() > prefix.length()
+                    && command.length() + 1 + test.length() > MAX_COMMAND_LENGTH) {
+                commands.add(command.toString());
+                command = new StringBuilder(prefix);
+            }
+            command.append(' ').append(test);
+        }
+        if (command.length() > prefix.length()) {
+            commands.add(command.toString());
+        }
+        return commands;
+    }
+
+    /**
+     * Parses the output of a {@link BatchMain} run.
+     * <p>
+     * Lines between a START line and its result are output the VM printed
+     * outside of the test's streams; like in a VM of its own, that fails the
+     * test. A test whose VM died before its result has a START result.
+     *
+     * @return the results by main class name.
+     */
+    public static Map<String, Result> parse(String output) {
+        Map<String, Result> results = new LinkedHashMap<String, Result>();
+        if (output == null) {
+            return results;
+        }
+        String current = null;
+        StringBuilder stray = new StringBuilder();
+        for (String line : output.split("\r?\n")) {
+            if (!line.startsWith(BatchMain.PREFIX)) {
+                if (current != null) {
+                    stray.append(line).append('\n');
+                }
+                continue;
+            }
+            String[] fields = line.substring(BatchMain.PREFIX.length()).split("\\|", 3);
+            if (fields.length < 2) {
+                continue;
+            }
+            String status = fields[0];
+            String mainClass = fields[1];
+            if (BatchMain.START.equals(status)) {
+                current = mainClass;
+                stray.setLength(0);
+                results.put(mainClass, new Result(status));
+                continue;
+            }
+            if (!mainClass.equals(current)) {
+                continue;
+            }
+            Result result = new Result(
+                    stray.length() > 0 && BatchMain.PASS.equals(status) ? BatchMain.FAIL : status);
+            result.mOutput.append(stray);
+            if (fields.length > 2) {
+                result.mOutput.append(BatchMain.unescape(fields[2]));
+            }
+            results.put(mainClass, result);
+            current = null;
+        }
+        return results;
+    }
+
+    private static String getMainClass(String test) {
+        int separator = test.indexOf(':');
+        return separator < 0 ? test : test.substring(0, separator);
+    }
+}
@@ -26,24 +26,27 @@ import junit.framework.TestResult;
 import junit.framework.TestSuite;
 import junit.textui.TestRunner;
 
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Scanner;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.MatchResult;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -79,6 +82,10 @@ public class BuildDalvikSuite {
 
     private static final String TARGET_JAR_ROOT_PATH = "/data/local/tmp/vm-tests";
 
+    // the jars every test needs, relative to TARGET_JAR_ROOT_PATH
+    private static final String TARGET_CORE_JAR = "dot/junit/dexcore.jar";
+    private static final String TARGET_COMMON_PATH = TARGET_CORE_JAR + ":" + TARGET_MAIN_FILE;
+
     private int testClassCnt = 0;
     private int testMethodsCnt = 0;
     private boolean useJack;
@@ -93,6 +100,12 @@ public class BuildDalvikSuite {
     private LinkedHashMap<String, List<String>> map = new LinkedHashMap<String,
     List<String>>();
 
+    /*
+     * the dasm build steps of all targets, assembled in parallel before the
+     * targets are built.
+     */
+    private Set<DasmBuildStep> dasmBuildSteps = new LinkedHashSet<DasmBuildStep>();
+
     private class MethodData {
         String methodBody, constraint, title;
     }
@@ -199,49 +212,66 @@ public class BuildDalvikSuite {
         }
         li.add(method);
     }
-    private String curJunitFileName = null;
-    private String curJunitName = null;
-    private String curJunitFileData = "";
-
     private SourceBuildStep hostJunitBuildStep;
 
-    private void flushHostJunitFile() {
-        if (curJunitFileName != null) {
-            File toWrite = new File(curJunitFileName);
-            String absPath = toWrite.getAbsolutePath();
-            // add to java source files for later compilation
-            hostJunitBuildStep.addSourceFile(absPath);
-            // write file
-            curJunitFileData += "\n}\n";
-            writeToFileMkdir(toWrite, curJunitFileData);
-
-            curJunitFileName = null;
-            curJunitFileData = "";
-        }
+    /*
+     * a host junit file being generated. its content is streamed to the file,
+     * while the BatchRunner arguments of its tests are collected for the end.
+     */
+    private static class HostJunitFile {
+        File file;
+        GeneratedFileWriter writer;
+        List<String> batchTests = new ArrayList<String>();
     }
 
-    private void openCTSHostFileFor(String pName, String classOnlyName) {
-        // flush previous JunitFile
-        flushHostJunitFile();
+    /*
+     * the files generated for one junit test class, and what is needed to
+     * build them.
+     */
+    private static class GeneratedClass {
+        String pName;
+        File hostJunitFile;
+        List<File> mainFiles = new ArrayList<File>();
+        List<String> methods = new ArrayList<String>();
+        List<Set<String>> dependentTestClassNames = new ArrayList<Set<String>>();
+        StringBuilder scriptData = new StringBuilder();
+    }
+
+    private void closeHostJunitFile(HostJunitFile junitFile) throws IOException {
+        junitFile.writer.write(getBatchRunnerDeclaration(junitFile.batchTests));
+        junitFile.writer.write("\n}\n");
+        junitFile.writer.close();
+    }
+
+    private HostJunitFile openCTSHostFileFor(String pName, String classOnlyName)
+            throws IOException {
         String sourceName = "JUnit_" + classOnlyName;
 
         // prepare current testcase-file
-        curJunitFileName = HOSTJUNIT_SRC_OUTPUT_FOLDER + "/" + pName.replaceAll("\\.","/") + "/" +
-        sourceName + ".java";
-        curJunitFileData = getWarningMessage() +
+        HostJunitFile junitFile = new HostJunitFile();
+        junitFile.file = new File(HOSTJUNIT_SRC_OUTPUT_FOLDER + "/" +
+                pName.replaceAll("\\.","/") + "/" + sourceName + ".java");
+        junitFile.writer = new GeneratedFileWriter(junitFile.file);
+        junitFile.writer.write(getWarningMessage() +
         "package " + pName + ";\n" +
         "import java.io.IOException;\n" +
+        "import java.util.Map;\n" +
         "import java.util.concurrent.TimeUnit;\n\n" +
+        "import com.android.tradefed.build.IBuildInfo;\n" +
         "import com.android.tradefed.device.CollectingOutputReceiver;\n" +
         "import com.android.tradefed.testtype.IAbi;\n" +
         "import com.android.tradefed.testtype.IAbiReceiver;\n" +
+        "import com.android.tradefed.testtype.IBuildReceiver;\n" +
         "import com.android.tradefed.testtype.DeviceTestCase;\n" +
         "import com.android.tradefed.util.AbiFormatter;\n" +
+        "import dot.junit.BatchRunner;\n" +
         "\n" +
-        "public class " + sourceName + " extends DeviceTestCase implements IAbiReceiver {\n";
+        "public class " + sourceName + " extends DeviceTestCase implements IAbiReceiver,\n" +
+        "        IBuildReceiver {\n");
+        return junitFile;
     }
 
-    private String getShellExecJavaLine(String classpath, String mainclass) {
+    static String getShellExecJavaLine(String classpath, String mainclass) {
       String cmd = String.format("ANDROID_DATA=%s dalvikvm|#ABI#| -Xmx512M -Xss32K " +
               "-Djava.io.tmpdir=%s -classpath %s %s", TARGET_JAR_ROOT_PATH, TARGET_JAR_ROOT_PATH,
               classpath, mainclass);
@@ -249,6 +279,15 @@ public class BuildDalvikSuite {
       code.append("    String cmd = AbiFormatter.formatCmdForAbi(\"")
           .append(cmd)
           .append("\", mAbi.getBitness());\n")
+          // use the result of the batch if the test ran to completion in it, run it on its
+          // own otherwise.
+          .append("    BatchRunner.Result result = getBatchResult(\"")
+          .append(mainclass)
+          .append("\");\n")
+          .append("    if (result != null && result.isComplete()) {\n")
+          .append("        assertEquals(cmd, \"\", result.getOutput());\n")
+          .append("        return;\n")
+          .append("    }\n")
           .append("    CollectingOutputReceiver receiver = new CollectingOutputReceiver();\n")
           .append("    getDevice().executeShellCommand(cmd, receiver, 6, TimeUnit.MINUTES, 1);\n")
           .append("    // A sucessful adb shell command returns an empty string.\n")
@@ -256,43 +295,111 @@ public class BuildDalvikSuite {
       return code.toString();
     }
 
+    /**
+     * Returns the members a host junit file needs to run its tests in batches
+     * of {@link dot.junit.BatchMain}.
+     *
+     * @param batchTests the tests of the file, each a main class optionally
+     *            followed by the jars it depends on, relative to
+     *            TARGET_JAR_ROOT_PATH.
+     */
+    static String getBatchRunnerDeclaration(List<String> batchTests) {
+      // no -Xss32K, BatchMain gives the thread of each test a stack of that size
+      String cmd = String.format("ANDROID_DATA=%s dalvikvm|#ABI#| -Xmx512M " +
+              "-Djava.io.tmpdir=%s -classpath %s/%s dot.junit.BatchMain", TARGET_JAR_ROOT_PATH,
+              TARGET_JAR_ROOT_PATH, TARGET_JAR_ROOT_PATH, TARGET_CORE_JAR);
+      StringBuilder code = new StringBuilder();
+      code.append("private static final BatchRunner BATCH = new BatchRunner(\"")
+          .append(cmd)
+          .append("\",\n        \"")
+          .append(TARGET_JAR_ROOT_PATH)
+          .append("\", \"")
+          .append(TARGET_COMMON_PATH)
+          .append("\", new String[] {\n");
+      for (String test : batchTests) {
+          code.append("        \"").append(test).append("\",\n");
+      }
+      code.append("});\n\n")
+          .append("private final BatchRunner.Shell mShell = new BatchRunner.Shell() {\n")
+          .append("    @Override\n")
+          .append("    public String execute(String command) throws Exception {\n")
+          .append("        CollectingOutputReceiver receiver = new CollectingOutputReceiver();\n")
+          .append("        getDevice().executeShellCommand(\n")
+          .append("                AbiFormatter.formatCmdForAbi(command, mAbi.getBitness()),\n")
+          .append("                receiver, 6, TimeUnit.MINUTES, 1);\n")
+          .append("        return receiver.getOutput();\n")
+          .append("    }\n")
+          .append("};\n\n")
+          .append("private IBuildInfo mBuildInfo = null;\n\n")
+          .append("@Override\n")
+          .append("public void setBuild(IBuildInfo buildInfo) {\n")
+          .append("    mBuildInfo = buildInfo;\n")
+          .append("}\n\n")
+          .append("private String getBatchKey() {\n")
+          .append("    return getDevice().getSerialNumber() + \"/\" + mAbi.getName();\n")
+          .append("}\n\n")
+          // the batch mode and run are attributes of this invocation's build, other
+          // invocations in the same process have their own
+          .append("private BatchRunner.Result getBatchResult(String mainClass)\n")
+          .append("        throws Exception {\n")
+          .append("    if (mBuildInfo == null) {\n")
+          .append("        return null;\n")
+          .append("    }\n")
+          .append("    Map<String, String> attributes = mBuildInfo.getBuildAttributes();\n")
+          .append("    String batch = attributes.get(BatchRunner.BATCH_ATTRIBUTE);\n")
+          .append("    if (!BatchRunner.isEnabled(batch)) {\n")
+          .append("        return null;\n")
+          .append("    }\n")
+          .append("    return BATCH.getResult(getBatchKey(),\n")
+          .append("            attributes.get(BatchRunner.RUN_ATTRIBUTE), mainClass, mShell);\n")
+          .append("}\n");
+      return code.toString();
+    }
+
     private String getWarningMessage() {
         return "//Autogenerated code by " + this.getClass().getName() + "; do not edit.\n";
     }
 
-    private void addCTSHostMethod(String pName, String method, MethodData md,
-            Set<String> dependentTestClassNames) {
-        curJunitFileData += "public void " + method + "() throws Exception {\n";
+    private void addCTSHostMethod(HostJunitFile junitFile, String pName, String method,
+            MethodData md, Set<String> dependentTestClassNames) throws IOException {
+        junitFile.writer.write("public void " + method + "() throws Exception {\n");
         final String targetCoreJarPath = String.format("%s/dot/junit/dexcore.jar",
                 TARGET_JAR_ROOT_PATH);
 
         String mainsJar = String.format("%s/%s", TARGET_JAR_ROOT_PATH, TARGET_MAIN_FILE);
 
         String cp = String.format("%s:%s", targetCoreJarPath, mainsJar);
+        //"dot.junit.opcodes.add_double_2addr.Main_testN2";
+        String mainclass = pName + ".Main_" + method;
+        String batchTest = mainclass;
         for (String depFqcn : dependentTestClassNames) {
             String sourceName = depFqcn.replaceAll("\\.", "/") + ".jar";
             String targetName= String.format("%s/%s", TARGET_JAR_ROOT_PATH,
                     sourceName);
             cp += ":" + targetName;
+            batchTest += ":" + sourceName;
             // dot.junit.opcodes.invoke_interface_range.ITest
             // -> dot/junit/opcodes/invoke_interface_range/ITest.jar
         }
+        junitFile.batchTests.add(batchTest);
 
-        //"dot.junit.opcodes.add_double_2addr.Main_testN2";
-        String mainclass = pName + ".Main_" + method;
-        curJunitFileData += getShellExecJavaLine(cp, mainclass);
-        curJunitFileData += "\n}\n\n";
+        junitFile.writer.write(getShellExecJavaLine(cp, mainclass));
+        junitFile.writer.write("\n}\n\n");
     }
 
     private void handleTests() throws IOException {
         System.out.println("collected " + testMethodsCnt + " test methods in " +
                 testClassCnt + " junit test classes");
-        String datafileContent = "";
         Set<BuildStep> targets = new TreeSet<BuildStep>();
 
         SourceBuildStep srcBuildStep;
         hostJunitBuildStep = new JavacBuildStep(
             HOSTJUNIT_CLASSES_OUTPUT_FOLDER, CLASS_PATH);
+        // the generated host junit files run their tests through these
+        for (String batchSource : new String[] {"BatchMain.java", "BatchRunner.java"}) {
+            hostJunitBuildStep.addSourceFile(new File(JAVASRC_FOLDER + "/dot/junit/" +
+                    batchSource).getAbsolutePath());
+        }
 
         String mainsJar = OUTPUT_FOLDER + File.separator + TARGET_MAIN_FILE;
         if (useJack) {
@@ -302,156 +409,40 @@ public class BuildDalvikSuite {
             srcBuildStep = new JavacBuildStep(CLASSES_OUTPUT_FOLDER, CLASS_PATH);
         }
 
-        for (Entry<String, List<String>> entry : map.entrySet()) {
-
-            String fqcn = entry.getKey();
-            int lastDotPos = fqcn.lastIndexOf('.');
-            String pName = fqcn.substring(0, lastDotPos);
-            String classOnlyName = fqcn.substring(lastDotPos + 1);
-            String instPrefix = "new " + classOnlyName + "()";
-
-            openCTSHostFileFor(pName, classOnlyName);
-
-            curJunitFileData += "\n" +
-                    "protected IAbi mAbi;\n" +
-                    "@Override\n" +
-                    "public void setAbi(IAbi abi) {\n" +
-                    "    mAbi = abi;\n" +
-                    "}\n\n";
-
-            List<String> methods = entry.getValue();
-            Collections.sort(methods, new Comparator<String>() {
-                public int compare(String s1, String s2) {
-                    // TODO sort according: test ... N, B, E, VFE
-                    return s1.compareTo(s2);
-                }
-            });
-            for (String method : methods) {
-                // e.g. testN1
-                if (!method.startsWith("test")) {
-                    throw new RuntimeException("no test method: " + method);
-                }
-
-                // generate the Main_xx java class
-
-                // a Main_testXXX.java contains:
-                // package <packagenamehere>;
-                // public class Main_testxxx {
-                // public static void main(String[] args) {
-                // new dxc.junit.opcodes.aaload.Test_aaload().testN1();
-                // }
-                // }
-                MethodData md = parseTestMethod(pName, classOnlyName, method);
-                String methodContent = md.methodBody;
-
-                Set<String> dependentTestClassNames = parseTestClassName(pName,
-                        classOnlyName, methodContent);
-
-                addCTSHostMethod(pName, method, md, dependentTestClassNames);
-
-
-                if (dependentTestClassNames.isEmpty()) {
-                    continue;
-                }
-
-
-                String content = getWarningMessage() +
-                "package " + pName + ";\n" +
-                "import " + pName + ".d.*;\n" +
-                "import dot.junit.*;\n" +
-                "public class Main_" + method + " extends DxAbstractMain {\n" +
-                "    public static void main(String[] args) throws Exception {" +
-                methodContent + "\n}\n";
-
-                File sourceFile = getFileFromPackage(pName, method);
-
-                writeToFile(sourceFile, content);
-                srcBuildStep.addSourceFile(sourceFile.getAbsolutePath());
-
-                // prepare the entry in the data file for the bash script.
-                // e.g.
-                // main class to execute; opcode/constraint; test purpose
-                // dxc.junit.opcodes.aaload.Main_testN1;aaload;normal case test
-                // (#1)
-
-                char ca = method.charAt("test".length()); // either N,B,E,
-                // or V (VFE)
-                String comment;
-                switch (ca) {
-                case 'N':
-                    comment = "Normal #" + method.substring(5);
-                    break;
-                case 'B':
-                    comment = "Boundary #" + method.substring(5);
-                    break;
-                case 'E':
-                    comment = "Exception #" + method.substring(5);
-                    break;
-                case 'V':
-                    comment = "Verifier #" + method.substring(7);
-                    break;
-                default:
-                    throw new RuntimeException("unknown test abbreviation:"
-                            + method + " for " + fqcn);
-                }
-
-                String line = pName + ".Main_" + method + ";";
-                for (String className : dependentTestClassNames) {
-                    line += className + " ";
-                }
-
-
-                // test description
-                String[] pparts = pName.split("\\.");
-                // detail e.g. add_double
-                String detail = pparts[pparts.length-1];
-                // type := opcode | verify
-                String type = pparts[pparts.length-2];
-
-                String description;
-                if ("format".equals(type)) {
-                    description = "format";
-                } else if ("opcodes".equals(type)) {
-                    // Beautify name, so it matches the actual mnemonic
-                    detail = detail.replaceAll("_", "-");
-                    detail = detail.replace("-from16", "/from16");
-                    detail = detail.replace("-high16", "/high16");
-                    detail = detail.replace("-lit8", "/lit8");
-                    detail = detail.replace("-lit16", "/lit16");
-                    detail = detail.replace("-4", "/4");
-                    detail = detail.replace("-16", "/16");
-                    detail = detail.replace("-32", "/32");
-                    detail = detail.replace("-jumbo", "/jumbo");
-                    detail = detail.replace("-range", "/range");
-                    detail = detail.replace("-2addr", "/2addr");
-
-                    // Unescape reserved words
-                    detail = detail.replace("opc-", "");
-
-                    description = detail;
-                } else if ("verify".equals(type)) {
-                    description = "verifier";
-                } else {
-                    description = type + " " + detail;
-                }
-
-                String details = (md.title != null ? md.title : "");
-                if (md.constraint != null) {
-                    details = " Constraint " + md.constraint + ", " + details;
+        // generate the files of the test classes in parallel, then add them
+        // to the build steps in the original order.
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors());
+        List<Future<GeneratedClass>> futures = new ArrayList<Future<GeneratedClass>>();
+        GeneratedFileWriter scriptData =
+                new GeneratedFileWriter(new File(OUTPUT_FOLDER + "/data/scriptdata"));
+        try {
+            for (final Entry<String, List<String>> entry : map.entrySet()) {
+                futures.add(executor.submit(new Callable<GeneratedClass>() {
+                    @Override
+                    public GeneratedClass call() throws IOException {
+                        return generateClass(entry.getKey(), entry.getValue());
+                    }
+                }));
+            }
+            for (Future<GeneratedClass> future : futures) {
+                GeneratedClass generated = getGeneratedClass(future);
+                // add to java source files for later compilation
+                hostJunitBuildStep.addSourceFile(generated.hostJunitFile.getAbsolutePath());
+                for (File mainFile : generated.mainFiles) {
+                    srcBuildStep.addSourceFile(mainFile.getAbsolutePath());
                 }
-                if (details.length() != 0) {
-                    details = details.substring(0, 1).toUpperCase()
-                            + details.substring(1);
+                for (int i = 0; i < generated.methods.size(); i++) {
+                    generateBuildStepFor(generated.pName, generated.methods.get(i),
+                            generated.dependentTestClassNames.get(i), targets);
                 }
-
-                line += ";" + description + ";" + comment + ";" + details;
-
-                datafileContent += line + "\n";
-                generateBuildStepFor(pName, method, dependentTestClassNames,
-                        targets);
+                scriptData.append(generated.scriptData);
             }
-
-
+            scriptData.close();
+        } finally {
+            executor.shutdownNow();
+            // keeps the previous script data if generation failed
+            scriptData.abort();
         }
 
         if (!useJack) {
@@ -463,13 +454,6 @@ public class BuildDalvikSuite {
           targets.add(dexBuildStep);
         }
 
-        // write latest HOSTJUNIT generated file.
-        flushHostJunitFile();
-
-        File scriptDataDir = new File(OUTPUT_FOLDER + "/data/");
-        scriptDataDir.mkdirs();
-        writeToFile(new File(scriptDataDir, "scriptdata"), datafileContent);
-
         if (!hostJunitBuildStep.build()) {
             System.out.println("main javac cts-host-hostjunit-classes build step failed");
             System.exit(1);
@@ -480,6 +464,9 @@ public class BuildDalvikSuite {
             System.exit(1);
         }
 
+        DasmBuildStep.assembleAll(dasmBuildSteps,
+                Runtime.getRuntime().availableProcessors());
+
         for (BuildStep buildStep : targets) {
             if (!buildStep.build()) {
                 System.out.println("building failed. buildStep: " +
@@ -489,6 +476,193 @@ public class BuildDalvikSuite {
         }
     }
 
+    /**
+     * Generates the Main_ classes, the host junit file and the script data of
+     * one junit test class. Runs concurrently for different test classes, so it
+     * must not touch the build steps.
+     */
+    private GeneratedClass generateClass(String fqcn, List<String> methods)
+            throws IOException {
+        int lastDotPos = fqcn.lastIndexOf('.');
+        HostJunitFile junitFile = openCTSHostFileFor(fqcn.substring(0, lastDotPos),
+                fqcn.substring(lastDotPos + 1));
+        try {
+            GeneratedClass generated = generateClass(fqcn, methods, junitFile);
+            closeHostJunitFile(junitFile);
+            return generated;
+        } finally {
+            // keeps the previous file if generation failed
+            junitFile.writer.abort();
+        }
+    }
+
+    private GeneratedClass generateClass(String fqcn, List<String> methods,
+            HostJunitFile junitFile) throws IOException {
+        int lastDotPos = fqcn.lastIndexOf('.');
+        String pName = fqcn.substring(0, lastDotPos);
+        String classOnlyName = fqcn.substring(lastDotPos + 1);
+        String instPrefix = "new " + classOnlyName + "()";
+
+        GeneratedClass generated = new GeneratedClass();
+        generated.pName = pName;
+        generated.hostJunitFile = junitFile.file;
+
+        junitFile.writer.write("\n" +
+                "protected IAbi mAbi;\n" +
+                "@Override\n" +
+                "public void setAbi(IAbi abi) {\n" +
+                "    mAbi = abi;\n" +
+                "}\n\n");
+
+        Collections.sort(methods, new Comparator<String>() {
+            public int compare(String s1, String s2) {
+                // TODO sort according: test ... N, B, E, VFE
+                return s1.compareTo(s2);
+            }
+        });
+        for (String method : methods) {
+            // e.g. testN1
+            if (!method.startsWith("test")) {
+                throw new RuntimeException("no test method: " + method);
+            }
+
+            // generate the Main_xx java class
+
+            // a Main_testXXX.java contains:
+            // package <packagenamehere>;
+            // public class Main_testxxx {
+            // public static void main(String[] args) {
+            // new dxc.junit.opcodes.aaload.Test_aaload().testN1();
+            // }
+            // }
+            MethodData md = parseTestMethod(pName, classOnlyName, method);
+            String methodContent = md.methodBody;
+
+            Set<String> dependentTestClassNames = parseTestClassName(pName,
+                    classOnlyName, methodContent);
+
+            addCTSHostMethod(junitFile, pName, method, md, dependentTestClassNames);
+
+
+            if (dependentTestClassNames.isEmpty()) {
+                continue;
+            }
+
+
+            String content = getWarningMessage() +
+            "package " + pName + ";\n" +
+            "import " + pName + ".d.*;\n" +
+            "import dot.junit.*;\n" +
+            "public class Main_" + method + " extends DxAbstractMain {\n" +
+            "    public static void main(String[] args) throws Exception {" +
+            methodContent + "\n}\n";
+
+            File sourceFile = getFileFromPackage(pName, method);
+
+            writeToFile(sourceFile, content);
+            generated.mainFiles.add(sourceFile);
+
+            // prepare the entry in the data file for the bash script.
+            // e.g.
+            // main class to execute; opcode/constraint; test purpose
+            // dxc.junit.opcodes.aaload.Main_testN1;aaload;normal case test
+            // (#1)
+
+            char ca = method.charAt("test".length()); // either N,B,E,
+            // or V (VFE)
+            String comment;
+            switch (ca) {
+            case 'N':
+                comment = "Normal #" + method.substring(5);
+                break;
+            case 'B':
+                comment = "Boundary #" + method.substring(5);
+                break;
+            case 'E':
+                comment = "Exception #" + method.substring(5);
+                break;
+            case 'V':
+                comment = "Verifier #" + method.substring(7);
+                break;
+            default:
+                throw new RuntimeException("unknown test abbreviation:"
+                        + method + " for " + fqcn);
+            }
+
+            String line = pName + ".Main_" + method + ";";
+            for (String className : dependentTestClassNames) {
+                line += className + " ";
+            }
+
+
+            // test description
+            String[] pparts = pName.split("\\.");
+            // detail e.g. add_double
+            String detail = pparts[pparts.length-1];
+            // type := opcode | verify
+            String type = pparts[pparts.length-2];
+
+            String description;
+            if ("format".equals(type)) {
+                description = "format";
+            } else if ("opcodes".equals(type)) {
+                // Beautify name, so it matches the actual mnemonic
+                detail = detail.replaceAll("_", "-");
+                detail = detail.replace("-from16", "/from16");
+                detail = detail.replace("-high16", "/high16");
+                detail = detail.replace("-lit8", "/lit8");
+                detail = detail.replace("-lit16", "/lit16");
+                detail = detail.replace("-4", "/4");
+                detail = detail.replace("-16", "/16");
+                detail = detail.replace("-32", "/32");
+                detail = detail.replace("-jumbo", "/jumbo");
+                detail = detail.replace("-range", "/range");
+                detail = detail.replace("-2addr", "/2addr");
+
+                // Unescape reserved words
+                detail = detail.replace("opc-", "");
+
+                description = detail;
+            } else if ("verify".equals(type)) {
+                description = "verifier";
+            } else {
+                description = type + " " + detail;
+            }
+
+            String details = (md.title != null ? md.title : "");
+            if (md.constraint != null) {
+                details = " Constraint " + md.constraint + ", " + details;
+            }
+            if (details.length() != 0) {
+                details = details.substring(0, 1).toUpperCase()
+                        + details.substring(1);
+            }
+
+            line += ";" + description + ";" + comment + ";" + details;
+
+            generated.scriptData.append(line).append('\n');
+            generated.methods.add(method);
+            generated.dependentTestClassNames.add(dependentTestClassNames);
+        }
+        return generated;
+    }
+
+    private static GeneratedClass getGeneratedClass(Future<GeneratedClass> future)
+            throws IOException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted while generating sources", e);
+        }
+    }
+
     private void generateBuildStepFor(String pName, String method,
             Set<String> dependentTestClassNames, Set<BuildStep> targets) {
 
@@ -531,6 +705,7 @@ public class BuildDalvikSuite {
                     OUTPUT_FOLDER, fileName + ".dex");
 
             DasmBuildStep buildStep = new DasmBuildStep(inputFile, dexFile);
+            dasmBuildSteps.add(buildStep);
 
             BuildStep.BuildFile jarFile = new BuildStep.BuildFile(
                     OUTPUT_FOLDER, fileName + ".jar");
@@ -811,36 +986,10 @@ public class BuildDalvikSuite {
         return md;
     }
 
-    private void writeToFileMkdir(File file, String content) {
-        File parent = file.getParentFile();
-        if (!parent.exists() && !parent.mkdirs()) {
-            throw new RuntimeException("failed to create directory: " + parent.getAbsolutePath());
-        }
-        writeToFile(file, content);
-    }
-
     private void writeToFile(File file, String content) {
         try {
-            if (file.exists() && file.length() == content.length()) {
-                FileReader reader = new FileReader(file);
-                char[] charContents = new char[(int) file.length()];
-                reader.read(charContents);
-                reader.close();
-                String contents = new String(charContents);
-                if (contents.equals(content)) {
-                    // System.out.println("skipping identical: "
-                    // + file.getAbsolutePath());
-                    return;
-                }
-            }
-
-            //System.out.println("writing file " + file.getAbsolutePath());
-
-            BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(
-                    new FileOutputStream(file), "utf-8"));
-            bw.write(content);
-            bw.close();
-        } catch (Exception e) {
+            GeneratedFileWriter.write(file, content);
+        } catch (IOException e) {
             throw new RuntimeException("error while writing to file: " + e.getClass().getName() +
                     ", msg:" + e.getMessage());
         }
@@ -853,7 +1002,7 @@ public class BuildDalvikSuite {
         String absPath = MAIN_SRC_OUTPUT_FOLDER + "/" + path;
         File dirPath = new File(absPath);
         File parent = dirPath.getParentFile();
-        if (!parent.exists() && !parent.mkdirs()) {
+        if (!parent.mkdirs() && !parent.isDirectory()) {
             throw new IOException("failed to create directory: " + absPath);
         }
         return dirPath;
@@ -16,6 +16,7 @@
 
 package util.build;
 
+import dasm.BatchAssembler;
 import dasm.DAsm;
 import dasm.DasmError;
 import dasm.Utils;
@@ -29,12 +30,20 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 
 class DasmBuildStep extends BuildStep {
 
 
     boolean generate_linenum = false;
 
+    /**
+     * outcome of an earlier batch assembly of this step, null if not done yet
+     */
+    private Boolean assembled;
+
     DasmBuildStep(BuildFile inputFile, BuildFile outputFile) {
         super(inputFile, outputFile);
 
@@ -43,11 +52,40 @@ class DasmBuildStep extends BuildStep {
     @Override
     boolean build() {
         if (super.build()) {
+            if (assembled != null) {
+                return assembled;
+            }
             return assemble(inputFile.fileName);
         }
         return false;
     }
 
+    /**
+     * Assembles the sources of the given steps in parallel ahead of the
+     * sequential build, so that their later build() only reports the outcome.
+     */
+    static void assembleAll(Collection<DasmBuildStep> steps, int threads) {
+        List<DasmBuildStep> pending = new ArrayList<DasmBuildStep>();
+        List<BatchAssembler.Job> jobs = new ArrayList<BatchAssembler.Job>();
+        for (DasmBuildStep step : steps) {
+            if (step.assembled == null && !step.generate_linenum) {
+                pending.add(step);
+                jobs.add(new BatchAssembler.Job(step.inputFile.fileName.getAbsoluteFile(),
+                        step.outputFile.folder.getAbsoluteFile()));
+            }
+        }
+        BatchAssembler assembler = new BatchAssembler(threads);
+        assembler.setVerbose(BuildDalvikSuite.DEBUG);
+        List<BatchAssembler.Result> results = assembler.assembleJobs(jobs);
+        for (int i = 0; i < results.size(); i++) {
+            BatchAssembler.Result result = results.get(i);
+            if (!result.isSuccess() && !BuildDalvikSuite.DEBUG) {
+                System.err.println(result.getError());
+            }
+            pending.get(i).assembled = result.isSuccess();
+        }
+    }
+
     private static Reader createReader(String fname) throws IOException {
         FileInputStream fs = new FileInputStream(fname);
         InputStreamReader ir;
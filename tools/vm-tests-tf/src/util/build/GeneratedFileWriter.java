@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package util.build;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * A writer for a generated file that streams the content to a temporary file
+ * next to it and, on close, only replaces the generated file if the content
+ * hash changed. Unchanged outputs keep their timestamps, so incremental builds
+ * do not see them as modified.
+ */
+class GeneratedFileWriter extends Writer {
+
+    private final File file;
+    private final File tmpFile;
+    private final MessageDigest digest;
+    private final Writer out;
+    private boolean closed = false;
+    private boolean changed = false;
+
+    GeneratedFileWriter(File file) throws IOException {
+        this.file = file;
+        File parent = file.getAbsoluteFile().getParentFile();
+        // other generator threads may create the same folder concurrently
+        if (!parent.mkdirs() && !parent.isDirectory()) {
+            throw new IOException("failed to create directory: " + parent.getAbsolutePath());
+        }
+        this.tmpFile = new File(parent, file.getName() + ".tmp");
+        this.digest = newDigest();
+        this.out = new BufferedWriter(new OutputStreamWriter(new DigestOutputStream(
+                new FileOutputStream(tmpFile), digest), "utf-8"));
+    }
+
+    /**
+     * Writes the content to the given file unless it already contains exactly
+     * that content.
+     *
+     * @return whether the file was written.
+     */
+    static boolean write(File file, CharSequence content) throws IOException {
+        GeneratedFileWriter writer = new GeneratedFileWriter(file);
+        try {
+            writer.append(content);
+            writer.close();
+        } finally {
+            writer.abort();
+        }
+        return writer.isChanged();
+    }
+
+    /**
+     * @return whether closing the writer replaced the generated file.
+     */
+    boolean isChanged() {
+        return changed;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        out.write(cbuf, off, len);
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        out.write(str, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        out.close();
+        if (file.exists() && file.length() == tmpFile.length()
+                && Arrays.equals(digest.digest(), digestOf(file))) {
+            tmpFile.delete();
+            return;
+        }
+        if (!tmpFile.renameTo(file) && !(file.delete() && tmpFile.renameTo(file))) {
+            throw new IOException("failed to write " + file.getAbsolutePath());
+        }
+        changed = true;
+    }
+
+    /**
+     * Closes the writer and drops what was written, leaving the generated file
+     * as it was. Does nothing if the writer was already closed.
+     */
+    void abort() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            out.close();
+        } catch (IOException e) {
+            // ignored, the temporary file is deleted anyway
+        }
+        tmpFile.delete();
+    }
+
+    private static byte[] digestOf(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return digest.digest();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -29,6 +29,7 @@ import com.android.tradefed.util.FileUtil;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.UUID;
 import java.util.zip.ZipFile;
 
 /**
@@ -40,6 +41,14 @@ public class VmTestPreparer implements ITargetCleaner {
     private static final String JAR_FILE = "android.core.vm-tests-tf.jar";
     private static final String TEMP_DIR = "/data/local/tmp";
     private static final String VM_TEMP_DIR = TEMP_DIR +"/vm-tests";
+    // Build attributes read by the host tests of the jar, see dot.junit.BatchRunner. They are
+    // set on the build of this invocation so other devices in the same process keep theirs.
+    private static final String BATCH_ATTRIBUTE = "vm-tests.batch";
+    private static final String RUN_ATTRIBUTE = "vm-tests.run";
+
+    @Option(name = "batch-mode", description = "Run the tests of a test class in as few VMs as "
+            + "possible instead of starting a VM for each test.")
+    private boolean mBatchMode = true;
 
     /**
      * {@inheritDoc}
@@ -47,6 +56,8 @@ public class VmTestPreparer implements ITargetCleaner {
     @Override
     public void setUp(ITestDevice device, IBuildInfo buildInfo)
             throws TargetSetupError, BuildError, DeviceNotAvailableException {
+        buildInfo.addBuildAttribute(BATCH_ATTRIBUTE, Boolean.toString(mBatchMode));
+        buildInfo.addBuildAttribute(RUN_ATTRIBUTE, UUID.randomUUID().toString());
         CompatibilityBuildHelper helper = new CompatibilityBuildHelper(buildInfo);
         if (!installVmPrereqs(device, helper)) {
             throw new RuntimeException(String.format(
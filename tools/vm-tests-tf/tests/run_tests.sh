@@ -0,0 +1,29 @@
+#!/bin/bash
+
+# Copyright (C) 2016 The Android Open Source Project
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+
+# Helper script for running the vm-tests-tf host unit tests
+
+CTS_DIR=$(dirname ${0})/../../..
+source ${CTS_DIR}/test_defs.sh
+
+JARS="
+    cts-tf-dalvik-buildutil\
+    cts-tf-dalvik-buildutil-tests\
+    junit"
+
+run_tests "dot.junit.BatchMainTest dot.junit.BatchRunnerTest util.build.BuildDalvikSuiteTest \
+    util.build.GeneratedFileWriterTest" \
+    "${JARS}" "${@}"
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dot.junit;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Map;
+
+/**
+ * Runs {@link BatchMain} on the host, with the mains below loaded from the
+ * class path of the test.
+ */
+public class BatchMainTest extends TestCase {
+
+    private static final String PASSING = PassingMain.class.getName();
+    private static final String PRINTING = PrintingMain.class.getName();
+    private static final String THROWING = ThrowingMain.class.getName();
+    private static final String COUNTING = CountingMain.class.getName();
+    private static final String SLEEPING = SleepingMain.class.getName();
+
+    public static class PassingMain {
+        public static void main(String[] args) {
+        }
+    }
+
+    public static class PrintingMain {
+        public static void main(String[] args) {
+            System.out.println("first line");
+            System.err.println("second line");
+        }
+    }
+
+    public static class ThrowingMain {
+        public static void main(String[] args) {
+            throw new RuntimeException("AssertionFailedError: condition was false");
+        }
+    }
+
+    public static class CountingMain {
+        private static int sCount = 0;
+
+        public static void main(String[] args) {
+            if (++sCount != 1) {
+                System.out.println("static state of a previous test: " + sCount);
+            }
+        }
+    }
+
+    public static class SleepingMain {
+        public static void main(String[] args) throws InterruptedException {
+            Thread.sleep(60 * 1000);
+        }
+    }
+
+    public void testRun() throws Exception {
+        Map<String, BatchRunner.Result> results = run(1000, PASSING, PRINTING, THROWING);
+        assertEquals(3, results.size());
+        assertEquals(BatchMain.PASS, results.get(PASSING).getStatus());
+        assertEquals("", results.get(PASSING).getOutput());
+        assertEquals(BatchMain.FAIL, results.get(PRINTING).getStatus());
+        assertEquals("first line\nsecond line\n", results.get(PRINTING).getOutput());
+        assertEquals(BatchMain.FAIL, results.get(THROWING).getStatus());
+        assertTrue(results.get(THROWING).getOutput().contains("condition was false"));
+    }
+
+    public void testRun_separateClassLoaders() throws Exception {
+        Map<String, BatchRunner.Result> results = run(1000, COUNTING, COUNTING);
+        assertEquals(BatchMain.PASS, results.get(COUNTING).getStatus());
+        // the test class itself was not touched by the batch
+        CountingMain.main(new String[0]);
+        assertEquals(1, CountingMain.sCount);
+    }
+
+    public void testRun_timeout() throws Exception {
+        Map<String, BatchRunner.Result> results = run(100, PASSING, SLEEPING, PRINTING);
+        assertEquals(2, results.size());
+        assertEquals(BatchMain.PASS, results.get(PASSING).getStatus());
+        assertEquals(BatchMain.TIMEOUT, results.get(SLEEPING).getStatus());
+        assertFalse(results.get(SLEEPING).isComplete());
+        assertNull(results.get(PRINTING));
+    }
+
+    public void testEscape() {
+        String s = "a|b\\n\nc\r\n";
+        assertEquals(-1, BatchMain.escape(s).indexOf('\n'));
+        assertEquals(s, BatchMain.unescape(BatchMain.escape(s)));
+    }
+
+    private static Map<String, BatchRunner.Result> run(long timeoutMs, String... tests)
+            throws InterruptedException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // the test class path holds the mains, absolute so the root is not used
+        BatchMain.run(timeoutMs, 60 * 1000, "/nonexistent", System.getProperty("java.class.path"),
+                tests, new PrintStream(out, true));
+        return BatchRunner.parse(out.toString());
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dot.junit;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit tests for {@link BatchRunner}.
+ */
+public class BatchRunnerTest extends TestCase {
+
+    private static final String PREFIX = "dalvikvm -classpath dexcore.jar dot.junit.BatchMain";
+    private static final String ROOT = "/data/local/tmp/vm-tests";
+    private static final String COMMON_PATH = "dot/junit/dexcore.jar:mains.jar";
+    private static final String RUN = "run";
+
+    /**
+     * A shell that answers commands with canned outputs and records them.
+     */
+    private static class FakeShell implements BatchRunner.Shell {
+        private final List<String> mOutputs;
+        private final List<String> mCommands = new ArrayList<String>();
+
+        FakeShell(String... outputs) {
+            mOutputs = new ArrayList<String>(Arrays.asList(outputs));
+        }
+
+        @Override
+        public String execute(String command) {
+            mCommands.add(command);
+            return mOutputs.isEmpty() ? "" : mOutputs.remove(0);
+        }
+    }
+
+    public void testParse() {
+        Map<String, BatchRunner.Result> results = BatchRunner.parse(
+                "VM warning before the first test\n"
+                + "VMTEST|START|a.Main_testN1\n"
+                + "VMTEST|PASS|a.Main_testN1\n"
+                + "VMTEST|START|a.Main_testN2\r\n"
+                + "VMTEST|FAIL|a.Main_testN2|line 1\\nline|2\\n\r\n"
+                + "VMTEST|START|a.Main_testN3\n"
+                + "printed by the VM\n"
+                + "VMTEST|PASS|a.Main_testN3\n"
+                + "VMTEST|START|a.Main_testN4\n"
+                + "Segmentation fault\n");
+        assertEquals(4, results.size());
+        assertTrue(results.get("a.Main_testN1").isComplete());
+        assertEquals("", results.get("a.Main_testN1").getOutput());
+        assertTrue(results.get("a.Main_testN2").isComplete());
+        assertEquals("line 1\nline|2\n", results.get("a.Main_testN2").getOutput());
+        assertEquals(BatchMain.FAIL, results.get("a.Main_testN3").getStatus());
+        assertEquals("printed by the VM\n", results.get("a.Main_testN3").getOutput());
+        assertEquals(BatchMain.START, results.get("a.Main_testN4").getStatus());
+        assertFalse(results.get("a.Main_testN4").isComplete());
+    }
+
+    public void testParse_empty() {
+        assertTrue(BatchRunner.parse(null).isEmpty());
+        assertTrue(BatchRunner.parse("dalvikvm: not found\n").isEmpty());
+    }
+
+    public void testGetCommands() {
+        List<String> tests = new ArrayList<String>();
+        for (int i = 0; i < 100; i++) {
+            tests.add("dot.junit.opcodes.add_double.Main_testN" + i
+                    + ":dot/junit/opcodes/add_double/d/T_add_double_" + i + ".jar");
+        }
+        BatchRunner runner = new BatchRunner(PREFIX, ROOT, COMMON_PATH, new String[0]);
+        List<String> commands = runner.getCommands(tests);
+        assertTrue(commands.size() > 1);
+        int count = 0;
+        for (String command : commands) {
+            assertTrue(command.length() <= BatchRunner.MAX_COMMAND_LENGTH);
+            assertTrue(command.startsWith(String.format("%s %d %d %s %s ", PREFIX,
+                    BatchRunner.TEST_TIMEOUT_MS, BatchRunner.BUDGET_MS, ROOT, COMMON_PATH)));
+            count += command.split(" dot\\.junit\\.opcodes\\.").length - 1;
+        }
+        assertEquals(100, count);
+    }
+
+    public void testRun_resumesAfterCrash() throws Exception {
+        BatchRunner runner = new BatchRunner(PREFIX, ROOT, COMMON_PATH,
+                new String[] {"a.Main_testN1", "a.Main_testN2:a/d/T.jar", "a.Main_testN3"});
+        FakeShell shell = new FakeShell(
+                "VMTEST|START|a.Main_testN1\nVMTEST|PASS|a.Main_testN1\n"
+                + "VMTEST|START|a.Main_testN2\n",
+                "VMTEST|START|a.Main_testN3\nVMTEST|PASS|a.Main_testN3\n");
+        Map<String, BatchRunner.Result> results = runner.run(shell);
+        assertEquals(2, shell.mCommands.size());
+        assertTrue(shell.mCommands.get(0).endsWith(" a.Main_testN1 a.Main_testN2:a/d/T.jar "
+                + "a.Main_testN3"));
+        assertTrue(shell.mCommands.get(1).endsWith(COMMON_PATH + " a.Main_testN3"));
+        assertTrue(results.get("a.Main_testN1").isComplete());
+        assertFalse(results.get("a.Main_testN2").isComplete());
+        assertTrue(results.get("a.Main_testN3").isComplete());
+    }
+
+    public void testRun_noProgress() throws Exception {
+        BatchRunner runner = new BatchRunner(PREFIX, ROOT, COMMON_PATH,
+                new String[] {"a.Main_testN1", "a.Main_testN2"});
+        FakeShell shell = new FakeShell("CANNOT LINK EXECUTABLE\n");
+        assertTrue(runner.run(shell).isEmpty());
+        assertEquals(1, shell.mCommands.size());
+    }
+
+    public void testGetResult_runsBatchOncePerKey() throws Exception {
+        BatchRunner runner = new BatchRunner(PREFIX, ROOT, COMMON_PATH,
+                new String[] {"a.Main_testN1", "a.Main_testN2"});
+        String output = "VMTEST|START|a.Main_testN1\nVMTEST|PASS|a.Main_testN1\n"
+                + "VMTEST|START|a.Main_testN2\nVMTEST|PASS|a.Main_testN2\n";
+        FakeShell shell = new FakeShell(output, output);
+        assertTrue(runner.getResult("serial/arm64-v8a", RUN, "a.Main_testN1", shell).isComplete());
+        assertTrue(runner.getResult("serial/arm64-v8a", RUN, "a.Main_testN2", shell).isComplete());
+        assertEquals(1, shell.mCommands.size());
+        assertTrue(runner.getResult("serial/armeabi-v7a", RUN, "a.Main_testN1", shell)
+                .isComplete());
+        assertEquals(2, shell.mCommands.size());
+    }
+
+    public void testGetResult_retriedTestRunsOnItsOwn() throws Exception {
+        BatchRunner runner = new BatchRunner(PREFIX, ROOT, COMMON_PATH,
+                new String[] {"a.Main_testN1"});
+        FakeShell shell = new FakeShell("VMTEST|START|a.Main_testN1\nVMTEST|PASS|a.Main_testN1\n");
+        assertTrue(runner.getResult("serial/arm64-v8a", RUN, "a.Main_testN1", shell).isComplete());
+        assertNull(runner.getResult("serial/arm64-v8a", RUN, "a.Main_testN1", shell));
+        assertEquals(1, shell.mCommands.size());
+    }
+
+    public void testGetResult_newRun() throws Exception {
+        BatchRunner runner = new BatchRunner(PREFIX, ROOT, COMMON_PATH,
+                new String[] {"a.Main_testN1", "a.Main_testN2"});
+        FakeShell shell = new FakeShell(
+                "VMTEST|START|a.Main_testN1\nVMTEST|PASS|a.Main_testN1\n"
+                + "VMTEST|START|a.Main_testN2\nVMTEST|PASS|a.Main_testN2\n",
+                "VMTEST|START|a.Main_testN1\nVMTEST|PASS|a.Main_testN1\n"
+                + "VMTEST|START|a.Main_testN2\nVMTEST|FAIL|a.Main_testN2|failed\n");
+        assertEquals("", runner.getResult("serial/arm64-v8a", "run1", "a.Main_testN2", shell)
+                .getOutput());
+        // the next run does not get the results of the first one
+        assertEquals("failed", runner.getResult("serial/arm64-v8a", "run2", "a.Main_testN2",
+                shell).getOutput());
+        assertEquals(2, shell.mCommands.size());
+    }
+
+    /**
+     * A run on another device does not drop the results of a run still in progress.
+     */
+    public void testGetResult_runsOfOtherDevices() throws Exception {
+        BatchRunner runner = new BatchRunner(PREFIX, ROOT, COMMON_PATH,
+                new String[] {"a.Main_testN1", "a.Main_testN2"});
+        String output = "VMTEST|START|a.Main_testN1\nVMTEST|PASS|a.Main_testN1\n"
+                + "VMTEST|START|a.Main_testN2\nVMTEST|PASS|a.Main_testN2\n";
+        FakeShell shell = new FakeShell(output, output);
+        assertTrue(runner.getResult("serial1/arm64-v8a", "run1", "a.Main_testN1", shell)
+                .isComplete());
+        assertTrue(runner.getResult("serial2/arm64-v8a", "run2", "a.Main_testN1", shell)
+                .isComplete());
+        assertTrue(runner.getResult("serial1/arm64-v8a", "run1", "a.Main_testN2", shell)
+                .isComplete());
+        assertEquals(2, shell.mCommands.size());
+    }
+
+    public void testIsEnabled() {
+        assertTrue(BatchRunner.isEnabled(null));
+        assertTrue(BatchRunner.isEnabled("true"));
+        assertFalse(BatchRunner.isEnabled("false"));
+    }
+}
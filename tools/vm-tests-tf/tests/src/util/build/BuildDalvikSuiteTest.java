@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package util.build;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+/**
+ * Checks the host junit code generated by {@link BuildDalvikSuite}.
+ */
+public class BuildDalvikSuiteTest extends TestCase {
+
+    public void testGetShellExecJavaLine() {
+        String code = BuildDalvikSuite.getShellExecJavaLine(
+                "/data/local/tmp/vm-tests/dot/junit/dexcore.jar", "a.Main_testN1");
+        assertTrue(code.contains("-classpath /data/local/tmp/vm-tests/dot/junit/dexcore.jar "
+                + "a.Main_testN1\", mAbi.getBitness());"));
+        assertTrue(code.contains("getBatchResult(\"a.Main_testN1\");"));
+        // the test still runs on its own if the batch has no complete result for it
+        assertTrue(code.indexOf("result.isComplete()")
+                < code.indexOf("getDevice().executeShellCommand(cmd"));
+    }
+
+    public void testGetBatchRunnerDeclaration() {
+        String code = BuildDalvikSuite.getBatchRunnerDeclaration(Arrays.asList(
+                "a.Main_testN1", "a.Main_testN2:a/d/T_a_2.jar"));
+        assertTrue(code.contains("-classpath /data/local/tmp/vm-tests/dot/junit/dexcore.jar "
+                + "dot.junit.BatchMain\""));
+        // the stack size is set for the thread of each test by BatchMain
+        assertFalse(code.contains("-Xss"));
+        assertTrue(code.contains("\"/data/local/tmp/vm-tests\", "
+                + "\"dot/junit/dexcore.jar:mains.jar\", new String[] {\n"
+                + "        \"a.Main_testN1\",\n"
+                + "        \"a.Main_testN2:a/d/T_a_2.jar\",\n"
+                + "});"));
+        assertTrue(code.contains("new BatchRunner.Shell()"));
+        assertTrue(code.contains("private String getBatchKey()"));
+        // the batch mode and run are read from the build of the invocation
+        assertTrue(code.contains("public void setBuild(IBuildInfo buildInfo)"));
+        assertTrue(code.contains("attributes.get(BatchRunner.BATCH_ATTRIBUTE)"));
+        assertTrue(code.contains("attributes.get(BatchRunner.RUN_ATTRIBUTE)"));
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package util.build;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Unit tests for {@link GeneratedFileWriter}.
+ */
+public class GeneratedFileWriterTest extends TestCase {
+
+    private File tmpDir;
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        tmpDir = File.createTempFile("generated", "");
+        tmpDir.delete();
+        file = new File(tmpDir, "a/b/Main_testN1.java");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(tmpDir);
+        super.tearDown();
+    }
+
+    public void testWrite_createsFile() throws Exception {
+        assertTrue(GeneratedFileWriter.write(file, "class A {}\n"));
+        assertEquals("class A {}\n", read(file));
+        assertEquals(1, file.getParentFile().list().length);
+    }
+
+    public void testWrite_unchanged() throws Exception {
+        GeneratedFileWriter.write(file, "class A {}\n");
+        file.setLastModified(1000);
+        assertFalse(GeneratedFileWriter.write(file, "class A {}\n"));
+        assertEquals(1000, file.lastModified());
+        assertEquals(1, file.getParentFile().list().length);
+    }
+
+    public void testWrite_changed() throws Exception {
+        GeneratedFileWriter.write(file, "class A {}\n");
+        file.setLastModified(1000);
+        // same length, different content
+        assertTrue(GeneratedFileWriter.write(file, "class B {}\n"));
+        assertEquals("class B {}\n", read(file));
+        assertTrue(file.lastModified() != 1000);
+    }
+
+    public void testStreaming() throws Exception {
+        GeneratedFileWriter writer = new GeneratedFileWriter(file);
+        for (int i = 0; i < 1000; i++) {
+            writer.append("line ").append(Integer.toString(i)).append('\n');
+        }
+        writer.close();
+        assertTrue(writer.isChanged());
+        assertTrue(read(file).endsWith("line 999\n"));
+    }
+
+    public void testAbort() throws Exception {
+        GeneratedFileWriter.write(file, "class A {}\n");
+        GeneratedFileWriter writer = new GeneratedFileWriter(file);
+        writer.write("class");
+        writer.abort();
+        assertFalse(writer.isChanged());
+        assertEquals("class A {}\n", read(file));
+        assertEquals(1, file.getParentFile().list().length);
+    }
+
+    private static String read(File file) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toString("utf-8");
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}